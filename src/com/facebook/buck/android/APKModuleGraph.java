@@ -75,7 +75,7 @@ public class APKModuleGraph {
               new AbstractBreadthFirstTraversal<APKModule>(
                   getGraph().getNodesWithNoIncomingEdges()) {
                 @Override
-                public ImmutableSet<APKModule> visit(final APKModule node) {
+                public Iterable<APKModule> visit(final APKModule node) {
                   if (node.equals(rootAPKModuleSupplier.get())) {
                     return ImmutableSet.of();
                   }
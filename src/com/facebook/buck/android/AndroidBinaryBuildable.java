@@ -525,7 +525,8 @@ class AndroidBinaryBuildable implements AddsToRuleKey {
           throws IOException, InterruptedException {
         try (ResourcesZipBuilder builder =
             new ResourcesZipBuilder(
-                getProjectFilesystem().resolve(getMergedThirdPartyJarsPath()))) {
+                getProjectFilesystem().resolve(getMergedThirdPartyJarsPath()),
+                context.getZipCompressionExecutor())) {
           for (Path jar : thirdPartyJars) {
             try (ZipFile base = new ZipFile(jar.toFile())) {
               for (ZipEntry inputEntry : Collections.list(base.entries())) {
@@ -22,6 +22,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
@@ -42,7 +44,16 @@ public class ResourcesZipBuilder implements Closeable {
   private DeterministicZipBuilder builder;
 
   public ResourcesZipBuilder(Path path) throws IOException {
-    builder = new DeterministicZipBuilder(path);
+    this(path, Optional.empty());
+  }
+
+  /** Compresses several entries at once on {@code compressionExecutor}, if there is one. */
+  public ResourcesZipBuilder(Path path, Optional<? extends Executor> compressionExecutor)
+      throws IOException {
+    builder =
+        compressionExecutor.isPresent()
+            ? new DeterministicZipBuilder(path, compressionExecutor.get())
+            : new DeterministicZipBuilder(path);
     hasManifest = false;
   }
 
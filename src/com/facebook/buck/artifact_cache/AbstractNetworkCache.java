@@ -25,12 +25,18 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpService;
 import com.facebook.buck.slb.NoHealthyServersException;
+import com.facebook.buck.util.TeeOutputStream;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -49,6 +55,7 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
   protected final ProjectFilesystem projectFilesystem;
   private final BuckEventBus buckEventBus;
   private final ListeningExecutorService httpWriteExecutorService;
+  private final Optional<ListeningExecutorService> httpFetchExecutorService;
   private final String errorTextTemplate;
   private final Optional<Long> maxStoreSize;
 
@@ -66,6 +73,7 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     this.projectFilesystem = args.getProjectFilesystem();
     this.buckEventBus = args.getBuckEventBus();
     this.httpWriteExecutorService = args.getHttpWriteExecutorService();
+    this.httpFetchExecutorService = args.getHttpFetchExecutorService();
     this.errorTextTemplate = args.getErrorTextTemplate();
     this.maxStoreSize = args.getMaxStoreSizeBytes();
   }
@@ -80,6 +88,30 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder)
       throws IOException;
 
+  /**
+   * @return a stream which writes a fetched payload to {@code file} and, if {@code output} is an
+   *     {@link ArtifactPayloadListener}, to the listener's stream.
+   */
+  protected static OutputStream newPayloadOutputStream(LazyPath output, OutputStream file)
+      throws IOException {
+    if (!(output instanceof ArtifactPayloadListener)) {
+      return file;
+    }
+    try {
+      return new TeeOutputStream(file, ((ArtifactPayloadListener) output).onPayloadStarted());
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /** Tells {@code output}'s listener, if any, that the payload it was last given is a hit. */
+  protected static void notifyPayloadVerified(LazyPath output) {
+    if (output instanceof ArtifactPayloadListener) {
+      ((ArtifactPayloadListener) output).onPayloadVerified();
+    }
+  }
+
   private boolean isNoHealthyServersException(Throwable exception) {
     if (exception == null) {
       return false;
@@ -95,6 +127,36 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     return Futures.immediateFuture(fetch(ruleKey, output));
   }
 
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    if (!httpFetchExecutorService.isPresent() || requests.size() <= 1) {
+      return ArtifactCache.super.multiFetchAsync(requests);
+    }
+
+    // Put all the lookups on the wire at once, so that the batch costs roughly a single round trip
+    // rather than one per key.
+    List<ListenableFuture<CacheResult>> results = new ArrayList<>(requests.size());
+    for (ArtifactFetchRequest request : requests) {
+      results.add(
+          httpFetchExecutorService
+              .get()
+              .submit(() -> fetch(request.getRuleKey(), request.getOutput())));
+    }
+    return Futures.transform(
+        Futures.allAsList(results), ImmutableList::copyOf, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Neither the HTTP nor the thrift protocol can send back an artifact's metadata without the
+   * artifact itself, so network caches can only answer metadata lookups by way of two-level stores,
+   * where the first level is small enough to just fetch.
+   */
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    return Futures.immediateFuture(Optional.empty());
+  }
+
   private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
     HttpArtifactCacheEvent.Started startedEvent =
         HttpArtifactCacheEvent.newFetchStartedEvent(ruleKey);
@@ -47,6 +47,9 @@ interface AbstractNetworkCacheArgs {
 
   ListeningExecutorService getHttpWriteExecutorService();
 
+  /** Used to issue the lookups of a multi-fetch concurrently, rather than one after another. */
+  Optional<ListeningExecutorService> getHttpFetchExecutorService();
+
   String getErrorTextTemplate();
 
   Optional<Long> getMaxStoreSizeBytes();
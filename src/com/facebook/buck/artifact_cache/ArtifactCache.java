@@ -19,7 +19,12 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.MoreCollectors;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Optional;
 
 public interface ArtifactCache extends AutoCloseable {
   /**
@@ -34,6 +39,61 @@ public interface ArtifactCache extends AutoCloseable {
    */
   ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch a batch of cached artifacts, saving each one to the path specified by its request.
+   * Caches which are able to service several lookups at once (e.g. by overlapping their network
+   * round trips) should override this; the default just issues one {@link #fetchAsync} per
+   * request.
+   *
+   * @param requests rule keys to fetch, along with the paths to store the artifacts to.
+   * @return the results of the fetches, in the same order as {@code requests}.
+   */
+  default ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    return Futures.transform(
+        Futures.allAsList(
+            requests
+                .stream()
+                .map(request -> fetchAsync(request.getRuleKey(), request.getOutput()))
+                .collect(MoreCollectors.toImmutableList())),
+        ImmutableList::copyOf,
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Fetch just the metadata stored alongside the artifact keyed by ruleKey, for callers which only
+   * need to know what the artifact would contain (e.g. its output hashes) rather than the artifact
+   * itself. Caches which can't do this without also downloading the artifact return empty, in which
+   * case the caller should use {@link #fetchAsync} instead.
+   *
+   * @param ruleKey cache fetch key
+   * @return the result of the metadata lookup, or empty if this cache can't look up metadata on its
+   *     own.
+   */
+  default ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    return Futures.immediateFuture(Optional.empty());
+  }
+
+  /**
+   * Look up the metadata of a batch of artifacts, as with {@link #fetchMetadataAsync}. Caches which
+   * are able to service several lookups at once should override this; the default just issues one
+   * {@link #fetchMetadataAsync} per rule key.
+   *
+   * @param ruleKeys cache fetch keys
+   * @return the results of the lookups, in the same order as {@code ruleKeys}.
+   */
+  default ListenableFuture<ImmutableList<Optional<CacheResult>>> multiFetchMetadataAsync(
+      ImmutableList<RuleKey> ruleKeys) {
+    return Futures.transform(
+        Futures.allAsList(
+            ruleKeys
+                .stream()
+                .map(this::fetchMetadataAsync)
+                .collect(MoreCollectors.toImmutableList())),
+        ImmutableList::copyOf,
+        MoreExecutors.directExecutor());
+  }
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key. If any internal errors occur, fail silently and continue
@@ -80,9 +80,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_DEDUPLICATE_FIELD = "dir_deduplicate";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_DEDUPLICATE_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -391,6 +392,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setDeduplicating(buckConfig.getBooleanValue(section, DIR_DEDUPLICATE_FIELD, false))
         .build();
   }
 
@@ -499,6 +501,12 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     public abstract Optional<Long> getMaxSizeBytes();
 
     public abstract CacheReadMode getCacheReadMode();
+
+    /** Whether artifacts are stored as content-addressed chunks shared between entries. */
+    @Value.Default
+    public boolean isDeduplicating() {
+      return false;
+    }
   }
 
   @Value.Immutable
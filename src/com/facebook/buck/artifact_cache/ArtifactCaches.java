@@ -63,6 +63,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
   private final ProjectFilesystem projectFilesystem;
   private final Optional<String> wifiSsid;
   private final ListeningExecutorService httpWriteExecutorService;
+  private final Optional<ListeningExecutorService> httpFetchExecutorService;
   private final Optional<AsyncCloseable> asyncCloseable;
 
   private interface NetworkCacheFactory {
@@ -79,6 +80,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
    * @param buckEventBus event bus
    * @param projectFilesystem filesystem to store files on
    * @param wifiSsid current WiFi ssid to decide if we want the http cache or not
+   * @param httpFetchExecutorService used by network caches to issue batched fetches concurrently
    * @param asyncCloseable
    */
   public ArtifactCaches(
@@ -87,6 +89,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService,
+      Optional<ListeningExecutorService> httpFetchExecutorService,
       Optional<AsyncCloseable> asyncCloseable) {
 
     this.buckConfig = buckConfig;
@@ -94,6 +97,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
     this.projectFilesystem = projectFilesystem;
     this.wifiSsid = wifiSsid;
     this.httpWriteExecutorService = httpWriteExecutorService;
+    this.httpFetchExecutorService = httpFetchExecutorService;
     this.asyncCloseable = asyncCloseable;
   }
 
@@ -129,6 +133,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             projectFilesystem,
             wifiSsid,
             httpWriteExecutorService,
+            httpFetchExecutorService,
             distributedBuildModeEnabled);
 
     if (asyncCloseable.isPresent()) {
@@ -147,6 +152,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
         projectFilesystem,
         wifiSsid,
         httpWriteExecutorService,
+        httpFetchExecutorService,
         asyncCloseable);
   }
 
@@ -170,6 +176,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService,
+      Optional<ListeningExecutorService> httpFetchExecutorService,
       boolean distributedBuildModeEnabled) {
     ImmutableSet<ArtifactCacheMode> modes = buckConfig.getArtifactCacheModes();
     if (modes.isEmpty()) {
@@ -190,6 +197,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
               projectFilesystem,
               wifiSsid,
               httpWriteExecutorService,
+              httpFetchExecutorService,
               builder,
               distributedBuildModeEnabled,
               HTTP_PROTOCOL,
@@ -206,6 +214,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
               projectFilesystem,
               wifiSsid,
               httpWriteExecutorService,
+              httpFetchExecutorService,
               builder,
               distributedBuildModeEnabled,
               THRIFT_PROTOCOL,
@@ -254,6 +263,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService,
+      Optional<ListeningExecutorService> httpFetchExecutorService,
       ImmutableList.Builder<ArtifactCache> builder,
       boolean distributedBuildModeEnabled,
       NetworkCacheFactory factory,
@@ -271,6 +281,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
               buckEventBus,
               projectFilesystem,
               httpWriteExecutorService,
+              httpFetchExecutorService,
               buckConfig,
               factory,
               distributedBuildModeEnabled,
@@ -297,13 +308,24 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ProjectFilesystem projectFilesystem) {
     Path cacheDir = dirCacheConfig.getCacheDir();
     try {
-      DirArtifactCache dirArtifactCache =
-          new DirArtifactCache(
-              "dir",
-              projectFilesystem,
-              cacheDir,
-              dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+      ArtifactCache dirArtifactCache;
+      if (dirCacheConfig.isDeduplicating()) {
+        dirArtifactCache =
+            new ChunkedDirArtifactCache(
+                "dir",
+                projectFilesystem,
+                cacheDir,
+                dirCacheConfig.getCacheReadMode(),
+                dirCacheConfig.getMaxSizeBytes());
+      } else {
+        dirArtifactCache =
+            new DirArtifactCache(
+                "dir",
+                projectFilesystem,
+                cacheDir,
+                dirCacheConfig.getCacheReadMode(),
+                dirCacheConfig.getMaxSizeBytes());
+      }
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -326,6 +348,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       final BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       ListeningExecutorService httpWriteExecutorService,
+      Optional<ListeningExecutorService> httpFetchExecutorService,
       ArtifactCacheBuckConfig config,
       NetworkCacheFactory factory,
       boolean distributedBuildModeEnabled,
@@ -337,6 +360,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             buckEventBus,
             projectFilesystem,
             httpWriteExecutorService,
+            httpFetchExecutorService,
             config,
             factory,
             distributedBuildModeEnabled,
@@ -350,6 +374,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       final BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       ListeningExecutorService httpWriteExecutorService,
+      Optional<ListeningExecutorService> httpFetchExecutorService,
       ArtifactCacheBuckConfig config,
       NetworkCacheFactory factory,
       boolean distributedBuildModeEnabled,
@@ -465,6 +490,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             .setProjectFilesystem(projectFilesystem)
             .setBuckEventBus(buckEventBus)
             .setHttpWriteExecutorService(httpWriteExecutorService)
+            .setHttpFetchExecutorService(httpFetchExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setDistributedBuildModeEnabled(distributedBuildModeEnabled)
             .build());
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Implemented by the {@link com.facebook.buck.io.LazyPath} an artifact is fetched to by callers
+ * which can make use of its payload while it is still being downloaded, e.g. to unzip it.
+ *
+ * <p>Caches which download artifacts write the payload to the returned stream as well as to the
+ * path. Others just write the path, so listeners must be prepared for never being called, and for
+ * being called for payloads which then turn out not to be the artifact, e.g. because they fail
+ * verification or the download is retried.
+ */
+public interface ArtifactPayloadListener {
+
+  /**
+   * Called at the start of each download of a payload.
+   *
+   * @return a stream the payload is also written to. Closing it waits for whatever the payload is
+   *     being processed into. It must not throw on failures to do so, which would fail the fetch.
+   */
+  OutputStream onPayloadStarted() throws IOException;
+
+  /**
+   * Called once the payload last written to the stream returned by {@link #onPayloadStarted()} has
+   * been verified, just before the fetch returns it as a hit.
+   */
+  void onPayloadVerified();
+}
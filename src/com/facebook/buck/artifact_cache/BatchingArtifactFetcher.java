@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.MoreCollectors;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Coalesces single-key fetches against an {@link ArtifactCache} into {@link
+ * ArtifactCache#multiFetchAsync} batches, and single-key metadata lookups into {@link
+ * ArtifactCache#multiFetchMetadataAsync} batches.
+ *
+ * <p>Callers {@link #enqueue} a fetch as soon as they know they will need it, and only {@link
+ * PendingFetch#get()} the result later, from the thread which is going to process it. Fetches which
+ * pile up in the meantime (e.g. while all cache threads are busy) are sent out together, so no
+ * request is ever held back on a timer waiting for a batch to fill up.
+ */
+public class BatchingArtifactFetcher {
+  private static final Logger LOG = Logger.get(BatchingArtifactFetcher.class);
+
+  private final ArtifactCache artifactCache;
+  private final int maxBatchSize;
+  // Guarded by this.  Insertion ordered, so batches go out in the order things were queued up.
+  private final Set<PendingFetch> pendingFetches = new LinkedHashSet<>();
+  private final Set<PendingMetadataFetch> pendingMetadataFetches = new LinkedHashSet<>();
+
+  public BatchingArtifactFetcher(ArtifactCache artifactCache, int maxBatchSize) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    this.artifactCache = artifactCache;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /** Queue up a fetch of {@code ruleKey} to be sent out with the next batch. */
+  public synchronized PendingFetch enqueue(RuleKey ruleKey, LazyPath output) {
+    PendingFetch pendingFetch = new PendingFetch(ArtifactFetchRequest.of(ruleKey, output));
+    pendingFetches.add(pendingFetch);
+    return pendingFetch;
+  }
+
+  /** Queue up a metadata lookup of {@code ruleKey} to be sent out with the next batch. */
+  public synchronized PendingMetadataFetch enqueueMetadataFetch(RuleKey ruleKey) {
+    PendingMetadataFetch pendingFetch = new PendingMetadataFetch(ruleKey);
+    pendingMetadataFetches.add(pendingFetch);
+    return pendingFetch;
+  }
+
+  /**
+   * Send up to {@code maxBatchSize} of the queued fetches to the cache as a single batch. This
+   * happens automatically when a queued fetch is waited on, but may also be called ahead of time
+   * to get fetches going before anyone needs them.
+   *
+   * @return false if there was nothing left to send.
+   */
+  public boolean sendBatch() {
+    return sendBatch(
+        pendingFetches,
+        batch ->
+            artifactCache.multiFetchAsync(
+                batch
+                    .stream()
+                    .map(fetch -> fetch.request)
+                    .collect(MoreCollectors.toImmutableList())));
+  }
+
+  /** Like {@link #sendBatch()}, for the queued metadata lookups. */
+  public boolean sendMetadataBatch() {
+    return sendBatch(
+        pendingMetadataFetches,
+        batch ->
+            artifactCache.multiFetchMetadataAsync(
+                batch
+                    .stream()
+                    .map(fetch -> fetch.ruleKey)
+                    .collect(MoreCollectors.toImmutableList())));
+  }
+
+  private <T, P extends Pending<T>> boolean sendBatch(
+      Set<P> pending, Function<List<P>, ListenableFuture<ImmutableList<T>>> send) {
+    List<P> batch = new ArrayList<>();
+    synchronized (this) {
+      Iterator<P> iterator = pending.iterator();
+      while (batch.size() < maxBatchSize && iterator.hasNext()) {
+        P pendingFetch = iterator.next();
+        iterator.remove();
+        pendingFetch.dispatched = true;
+        batch.add(pendingFetch);
+      }
+    }
+    if (batch.isEmpty()) {
+      return false;
+    }
+
+    ListenableFuture<ImmutableList<T>> results;
+    try {
+      results = send.apply(batch);
+    } catch (RuntimeException e) {
+      results = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        results,
+        new FutureCallback<ImmutableList<T>>() {
+          @Override
+          public void onSuccess(ImmutableList<T> cacheResults) {
+            for (int i = 0; i < batch.size(); i++) {
+              batch.get(i).result.set(cacheResults.get(i));
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            for (P pendingFetch : batch) {
+              pendingFetch.result.setException(t);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return true;
+  }
+
+  /** Something which has been queued up, but which may not have been sent out yet. */
+  public abstract class Pending<T> {
+    final SettableFuture<T> result = SettableFuture.create();
+    // Only changed while holding the fetcher's lock, along with taking this out of its queue.
+    volatile boolean dispatched = false;
+    private volatile boolean used = false;
+
+    private Pending() {}
+
+    abstract Set<? extends Pending<T>> getQueue();
+
+    abstract boolean sendQueuedBatch();
+
+    /** Clean up after a result which nobody is going to look at. */
+    void discardResult(@SuppressWarnings("unused") T unusedResult) {}
+
+    /**
+     * Block until the result is available. If it hasn't been sent out yet, the calling thread
+     * sends out batches itself until it has, so that waiters can never all be blocked on fetches
+     * which are still sitting in the queue.
+     */
+    public T get() {
+      used = true;
+      while (!dispatched && sendQueuedBatch()) {
+        // Keep going until this is part of a batch.
+      }
+      return Futures.getUnchecked(result);
+    }
+
+    /** @return the result, if it has already come back, without waiting for or sending it. */
+    public Optional<T> getIfDone() {
+      if (!result.isDone() || result.isCancelled()) {
+        return Optional.empty();
+      }
+      try {
+        return Optional.of(Futures.getDone(result));
+      } catch (ExecutionException e) {
+        return Optional.empty();
+      }
+    }
+
+    /**
+     * If nobody ever called {@link #get()}, take this out of the queue if it hasn't been sent out
+     * yet, or else clean up after its result once it is done, since nobody is going to use it.
+     */
+    public void discardIfUnused() {
+      if (used) {
+        return;
+      }
+      // Only one of this and sendBatch() can take this out of the queue.
+      boolean removed;
+      synchronized (BatchingArtifactFetcher.this) {
+        removed = getQueue().remove(this);
+      }
+      if (removed) {
+        result.cancel(false);
+        return;
+      }
+      Futures.addCallback(
+          result,
+          new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T unusedResult) {
+              discardResult(unusedResult);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {}
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  /** A fetch which has been queued up, but which may not have been sent out yet. */
+  public class PendingFetch extends Pending<CacheResult> {
+    private final ArtifactFetchRequest request;
+
+    private PendingFetch(ArtifactFetchRequest request) {
+      this.request = request;
+    }
+
+    public RuleKey getRuleKey() {
+      return request.getRuleKey();
+    }
+
+    public LazyPath getOutput() {
+      return request.getOutput();
+    }
+
+    @Override
+    Set<PendingFetch> getQueue() {
+      return pendingFetches;
+    }
+
+    @Override
+    boolean sendQueuedBatch() {
+      return sendBatch();
+    }
+
+    /** Delete whatever was downloaded, since nobody is going to unpack it. */
+    @Override
+    void discardResult(CacheResult cacheResult) {
+      if (!cacheResult.getType().isSuccess()) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(request.getOutput().get());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to delete unused artifact for %s", request.getRuleKey());
+      }
+    }
+  }
+
+  /**
+   * A metadata lookup which has been queued up, but which may not have been sent out yet. Its
+   * result is empty if the cache can't look up metadata on its own.
+   */
+  public class PendingMetadataFetch extends Pending<Optional<CacheResult>> {
+    private final RuleKey ruleKey;
+
+    private PendingMetadataFetch(RuleKey ruleKey) {
+      this.ruleKey = ruleKey;
+    }
+
+    public RuleKey getRuleKey() {
+      return ruleKey;
+    }
+
+    @Override
+    Set<PendingMetadataFetch> getQueue() {
+      return pendingMetadataFetches;
+    }
+
+    @Override
+    boolean sendQueuedBatch() {
+      return sendMetadataBatch();
+    }
+  }
+}
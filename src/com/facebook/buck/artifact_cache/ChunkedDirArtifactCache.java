@@ -0,0 +1,962 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.MoreCollectors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * A local directory cache which splits artifacts into content-addressed chunks, so that data shared
+ * between artifacts (e.g. rules with different keys but identical outputs) is only stored once.
+ *
+ * <p>The cache directory holds:
+ *
+ * <ul>
+ *   <li>{@code chunks/}: chunk files, named by the SHA-1 of their contents.
+ *   <li>{@code entries/}: one file per rule key, holding the artifact's metadata and the list of
+ *       chunks it is made up of.
+ *   <li>{@code index}: the size, chunks and last access time of every entry. Eviction works off
+ *       this, so unlike {@link DirArtifactCache}, trimming the cache never has to walk the cache
+ *       directory.
+ * </ul>
+ *
+ * <p>The index is only written back now and then, so a process which dies in between leaves files
+ * behind which it doesn't list. To tell when that happened without walking the cache, an instance
+ * which stores anything first creates a file in {@code writers/}, locks it, and only deletes it once
+ * its additions are in the index. Opening the cache reconciles the index with the directory only if
+ * it finds such a file which nobody holds a lock on (or no index at all), so that the files left
+ * behind are accounted for and eventually evicted like any other entry.
+ *
+ * <p>The cache may be shared between several buck processes. Chunk and entry files are only ever
+ * moved into place once complete, and a fetch which finds a chunk missing (e.g. because another
+ * process evicted it) is treated as a miss, so racing with another process can only cost a cache
+ * hit. The index is merged with the copy on disk, under a file lock, whenever it is written back.
+ */
+public class ChunkedDirArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(ChunkedDirArtifactCache.class);
+
+  private static final ArtifactCacheMode CACHE_MODE = ArtifactCacheMode.dir;
+  // Ratio of bytes stored to max size that expresses how many bytes need to be stored after we
+  // attempt to delete old entries.
+  private static final float STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER = 0.5f;
+  // How much of the max size to leave if we decide to delete old entries.
+  private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final int INDEX_VERSION = 1;
+  // Files which no entry refers to are only deleted once they are this old, since they may belong
+  // to a store which another process is still in the middle of.
+  private static final long ORPHAN_GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // Chunk boundaries are picked based on the content (using a "gear" rolling hash), so that data
+  // which is shifted around between artifacts still ends up split into the same chunks.
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+  private static final long CHUNK_BOUNDARY_MASK = (1L << 18) - 1;
+  private static final long[] GEAR_TABLE = createGearTable();
+
+  // Processes are kept apart by locking the index file, but file locks are held by the whole JVM,
+  // so caches in the same process sharing a directory need to be kept apart separately.
+  private static final ConcurrentMap<Path, Object> IN_PROCESS_INDEX_LOCKS =
+      new ConcurrentHashMap<>();
+  // Writer markers held in this process. They mustn't be opened to check whether they're locked,
+  // since closing any channel on a file may release all of the process's locks on it.
+  private static final Set<Path> IN_PROCESS_WRITER_MARKERS = ConcurrentHashMap.newKeySet();
+
+  private final String name;
+  private final ProjectFilesystem filesystem;
+  private final Path cacheDir;
+  private final CacheReadMode cacheMode;
+  private final Optional<Long> maxCacheSizeBytes;
+
+  // All of the following are guarded by `this`.
+  private final Map<String, IndexEntry> entries = new HashMap<>();
+  private final NavigableSet<IndexEntry> entriesByAccessTime =
+      new TreeSet<>(
+          Comparator.comparingLong(IndexEntry::getLastAccessMillis)
+              .thenComparing(IndexEntry::getRuleKey));
+  private final Map<String, ChunkRefs> chunkRefs = new HashMap<>();
+  private final Set<String> evictedRuleKeys = new HashSet<>();
+  private long totalBytes = 0L;
+  private long bytesSinceLastTrim = 0L;
+  private boolean indexDirty = false;
+  // Marks this instance as having stored files which may not be in the index yet.
+  @Nullable private Path writerMarkerPath = null;
+  @Nullable private FileChannel writerMarkerChannel = null;
+
+  public ChunkedDirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheMode,
+      Optional<Long> maxCacheSizeBytes)
+      throws IOException {
+    this.name = name;
+    this.filesystem = filesystem;
+    this.cacheDir = cacheDir;
+    this.cacheMode = cacheMode;
+    this.maxCacheSizeBytes = maxCacheSizeBytes;
+
+    // Check first, as mkdirs will fail if the path is a symlink.
+    if (!filesystem.isDirectory(cacheDir)) {
+      filesystem.mkdirs(cacheDir);
+    }
+
+    withIndexLock(
+        () -> {
+          synchronized (this) {
+            loadIndex();
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return Futures.immediateFuture(fetch(ruleKey, output));
+  }
+
+  /**
+   * Entries keep their metadata ahead of the list of chunks, so this only reads the entry itself and
+   * checks that its chunks are still there.
+   */
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    CacheResult result;
+    try {
+      ImmutableMap<String, String> metadata;
+      ImmutableList<String> chunkHashes;
+      try (DataInputStream in =
+          new DataInputStream(
+              filesystem.newFileInputStream(getPathForEntry(ruleKey.toString())))) {
+        metadata = readMetadata(in);
+        chunkHashes = readChunkHashes(in);
+      }
+      long artifactSize = 0;
+      for (String chunkHash : chunkHashes) {
+        Path chunkPath = getPathForChunk(chunkHash);
+        if (!filesystem.isFile(chunkPath)) {
+          throw new NoSuchFileException(chunkPath.toString());
+        }
+        artifactSize += filesystem.getFileSize(chunkPath);
+      }
+      result = CacheResult.hit(name, CACHE_MODE, metadata, artifactSize);
+    } catch (NoSuchFileException e) {
+      result = CacheResult.miss();
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact metadata fetch(%s) error", ruleKey);
+      result =
+          CacheResult.error(
+              name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+    return Futures.immediateFuture(Optional.of(result));
+  }
+
+  private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    CacheResult result;
+    Path entryPath = getPathForEntry(ruleKey.toString());
+    try {
+      ImmutableMap<String, String> metadata;
+      ImmutableList<String> chunkHashes;
+      try (DataInputStream in = new DataInputStream(filesystem.newFileInputStream(entryPath))) {
+        metadata = readMetadata(in);
+        chunkHashes = readChunkHashes(in);
+      }
+
+      Map<String, Long> chunkSizes = new LinkedHashMap<>();
+      try (OutputStream out = filesystem.newFileOutputStream(output.get())) {
+        for (String chunkHash : chunkHashes) {
+          try (InputStream in = filesystem.newFileInputStream(getPathForChunk(chunkHash))) {
+            chunkSizes.put(chunkHash, ByteStreams.copy(in, out));
+          }
+        }
+      } catch (NoSuchFileException e) {
+        // The entry is still there, but some of its chunks aren't, so it's no use to anyone.
+        LOG.debug("Chunk of %s is missing, dropping the entry: %s", ruleKey, e.getMessage());
+        filesystem.deleteFileAtPathIfExists(entryPath);
+        synchronized (this) {
+          removeEntry(ruleKey.toString());
+        }
+        throw e;
+      }
+
+      synchronized (this) {
+        IndexEntry entry = entries.get(ruleKey.toString());
+        addEntry(
+            new IndexEntry(
+                ruleKey.toString(),
+                System.currentTimeMillis(),
+                entry != null ? entry.getEntrySize() : filesystem.getFileSize(entryPath),
+                ImmutableMap.copyOf(chunkSizes)));
+      }
+
+      result = CacheResult.hit(name, CACHE_MODE, metadata, filesystem.getFileSize(output.get()));
+    } catch (NoSuchFileException e) {
+      result = CacheResult.miss();
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
+      result =
+          CacheResult.error(
+              name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+
+    LOG.verbose(
+        "Artifact fetch(%s, %s) cache %s",
+        ruleKey, output, (result.getType().isSuccess() ? "hit" : "miss"));
+    return result;
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    if (!getCacheReadMode().isWritable()) {
+      return Futures.immediateFuture(null);
+    }
+
+    try {
+      markAsWriter();
+      ImmutableList<String> chunkHashes = storeChunks(output.getPath());
+      for (RuleKey ruleKey : info.getRuleKeys()) {
+        storeEntry(ruleKey.toString(), info.getMetadata(), chunkHashes);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+    }
+
+    boolean shouldTrim;
+    synchronized (this) {
+      shouldTrim =
+          maxCacheSizeBytes.isPresent()
+              && bytesSinceLastTrim
+                  > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER);
+      if (shouldTrim) {
+        bytesSinceLastTrim = 0L;
+      }
+    }
+    if (shouldTrim) {
+      writeBackIndex();
+    }
+
+    return Futures.immediateFuture(null);
+  }
+
+  /**
+   * Split the file at {@code path} into chunks, and store any which aren't in the cache yet.
+   *
+   * @return the hashes of the chunks making up the file, in order.
+   */
+  private ImmutableList<String> storeChunks(Path path) throws IOException {
+    ImmutableList.Builder<String> chunkHashes = ImmutableList.builder();
+    try (InputStream in = filesystem.newFileInputStream(path)) {
+      ChunkReader reader = new ChunkReader(in);
+      int length;
+      while ((length = reader.next()) > 0) {
+        byte[] buffer = reader.getBuffer();
+        String chunkHash = Hashing.sha1().hashBytes(buffer, 0, length).toString();
+        Path chunkPath = getPathForChunk(chunkHash);
+        if (!filesystem.exists(chunkPath)) {
+          filesystem.mkdirs(chunkPath.getParent());
+          Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "chunk", TMP_EXTENSION);
+          try {
+            try (OutputStream out = filesystem.newFileOutputStream(tmp)) {
+              out.write(buffer, 0, length);
+            }
+            filesystem.move(tmp, chunkPath, StandardCopyOption.REPLACE_EXISTING);
+          } finally {
+            filesystem.deleteFileAtPathIfExists(tmp);
+          }
+        }
+        chunkHashes.add(chunkHash);
+      }
+    }
+    return chunkHashes.build();
+  }
+
+  /**
+   * Splits a stream into chunks. The stream is read in large blocks, and whatever is read past the
+   * end of a chunk is kept for the next one.
+   */
+  @VisibleForTesting
+  static class ChunkReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    // The previous chunk is buffer[0, chunkLength), and buffer[chunkLength, bufferedLength) has been
+    // read past it.
+    private int chunkLength = 0;
+    private int bufferedLength = 0;
+
+    ChunkReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Read the next chunk into the start of {@link #getBuffer()}.
+     *
+     * @return the length of the chunk, or 0 at the end of the stream.
+     */
+    int next() throws IOException {
+      bufferedLength -= chunkLength;
+      System.arraycopy(buffer, chunkLength, buffer, 0, bufferedLength);
+      int read;
+      while (bufferedLength < buffer.length
+          && (read = in.read(buffer, bufferedLength, buffer.length - bufferedLength)) != -1) {
+        bufferedLength += read;
+      }
+
+      long hash = 0;
+      chunkLength = bufferedLength;
+      for (int i = 0; i < bufferedLength; i++) {
+        hash = (hash << 1) + GEAR_TABLE[buffer[i] & 0xff];
+        if (i + 1 >= MIN_CHUNK_SIZE && (hash & CHUNK_BOUNDARY_MASK) == 0) {
+          chunkLength = i + 1;
+          break;
+        }
+      }
+      return chunkLength;
+    }
+
+    byte[] getBuffer() {
+      return buffer;
+    }
+  }
+
+  private void storeEntry(
+      String ruleKey, ImmutableMap<String, String> metadata, ImmutableList<String> chunkHashes)
+      throws IOException {
+    Path entryPath = getPathForEntry(ruleKey);
+    filesystem.mkdirs(entryPath.getParent());
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "entry", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        writeMetadata(out, metadata);
+        out.writeInt(chunkHashes.size());
+        for (String chunkHash : chunkHashes) {
+          out.writeUTF(chunkHash);
+        }
+      }
+      filesystem.move(tmp, entryPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+
+    Map<String, Long> chunkSizes = new LinkedHashMap<>();
+    for (String chunkHash : chunkHashes) {
+      chunkSizes.put(chunkHash, filesystem.getFileSize(getPathForChunk(chunkHash)));
+    }
+    synchronized (this) {
+      long bytesBefore = totalBytes;
+      addEntry(
+          new IndexEntry(
+              ruleKey,
+              System.currentTimeMillis(),
+              filesystem.getFileSize(entryPath),
+              ImmutableMap.copyOf(chunkSizes)));
+      bytesSinceLastTrim += Math.max(0L, totalBytes - bytesBefore);
+    }
+  }
+
+  /** Add (or replace) an entry in the in-memory index. */
+  private synchronized void addEntry(IndexEntry entry) {
+    IndexEntry existing = entries.get(entry.getRuleKey());
+    if (existing != null) {
+      // Keep track of references to the new chunks before dropping those of the old entry, so that
+      // chunks shared by both aren't dropped in between.
+      addChunkRefs(entry);
+      removeEntry(existing.getRuleKey());
+    } else {
+      addChunkRefs(entry);
+    }
+    entries.put(entry.getRuleKey(), entry);
+    entriesByAccessTime.add(entry);
+    totalBytes += entry.getEntrySize();
+    evictedRuleKeys.remove(entry.getRuleKey());
+    indexDirty = true;
+  }
+
+  private synchronized void addChunkRefs(IndexEntry entry) {
+    for (Map.Entry<String, Long> chunk : entry.getChunkSizes().entrySet()) {
+      ChunkRefs refs = chunkRefs.get(chunk.getKey());
+      if (refs == null) {
+        refs = new ChunkRefs(chunk.getValue());
+        chunkRefs.put(chunk.getKey(), refs);
+        totalBytes += refs.size;
+      }
+      refs.count++;
+    }
+  }
+
+  /**
+   * Remove an entry from the in-memory index.
+   *
+   * @return the hashes of the chunks which are no longer referenced by any entry.
+   */
+  private synchronized List<String> removeEntry(String ruleKey) {
+    IndexEntry entry = entries.remove(ruleKey);
+    if (entry == null) {
+      return ImmutableList.of();
+    }
+    entriesByAccessTime.remove(entry);
+    totalBytes -= entry.getEntrySize();
+    indexDirty = true;
+
+    ImmutableList.Builder<String> unreferencedChunks = ImmutableList.builder();
+    for (String chunkHash : entry.getChunkSizes().keySet()) {
+      ChunkRefs refs = chunkRefs.get(chunkHash);
+      if (refs != null && --refs.count == 0) {
+        chunkRefs.remove(chunkHash);
+        totalBytes -= refs.size;
+        unreferencedChunks.add(chunkHash);
+      }
+    }
+    return unreferencedChunks.build();
+  }
+
+  /**
+   * Evict the least recently used entries until the cache is back under {@link
+   * #MAX_BYTES_TRIM_RATIO} of its maximum size. Each eviction only costs a removal from the head of
+   * the access-ordered index, rather than a walk of the cache directory.
+   */
+  private synchronized void evictOldEntries() {
+    if (!maxCacheSizeBytes.isPresent() || totalBytes <= maxCacheSizeBytes.get()) {
+      return;
+    }
+    long targetBytes = (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO);
+    while (totalBytes > targetBytes && !entriesByAccessTime.isEmpty()) {
+      String ruleKey = entriesByAccessTime.first().getRuleKey();
+      List<String> unreferencedChunks = removeEntry(ruleKey);
+      evictedRuleKeys.add(ruleKey);
+      try {
+        filesystem.deleteFileAtPathIfExists(getPathForEntry(ruleKey));
+        for (String chunkHash : unreferencedChunks) {
+          filesystem.deleteFileAtPathIfExists(getPathForChunk(chunkHash));
+        }
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to evict %s from %s.", ruleKey, cacheDir);
+      }
+    }
+  }
+
+  /**
+   * Load the index, and reconcile it with the directory if a writer died before writing back its
+   * part of the index, or if there's no index to begin with. Must be called with the index lock
+   * held, so that no writer starts or finishes in the meantime.
+   */
+  private synchronized void loadIndex() throws IOException {
+    ImmutableList<IndexEntry> indexed = readIndex();
+    ImmutableList<Path> deadWriterMarkers = findDeadWriterMarkers();
+    if (deadWriterMarkers.isEmpty() && filesystem.exists(getPathToIndex())) {
+      for (IndexEntry entry : indexed) {
+        addEntry(entry);
+      }
+      indexDirty = false;
+      return;
+    }
+
+    LOG.debug("A writer of %s didn't write back its index, reconciling it.", cacheDir);
+    reconcileIndex(indexed);
+    if (!filesystem.exists(getPathToIndex())) {
+      writeIndex();
+    }
+    for (Path marker : deadWriterMarkers) {
+      Files.deleteIfExists(marker);
+    }
+  }
+
+  /** @return the marker files of instances which stored files and then died without closing. */
+  private ImmutableList<Path> findDeadWriterMarkers() throws IOException {
+    Path writersDir = filesystem.resolve(getPathToWriters());
+    if (!Files.isDirectory(writersDir)) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<Path> deadMarkers = ImmutableList.builder();
+    try (Stream<Path> markers = Files.list(writersDir)) {
+      for (Path marker : (Iterable<Path>) markers::iterator) {
+        if (IN_PROCESS_WRITER_MARKERS.contains(marker)) {
+          continue;
+        }
+        try (FileChannel channel = FileChannel.open(marker, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock()) {
+          if (lock != null) {
+            deadMarkers.add(marker);
+          }
+        } catch (NoSuchFileException e) {
+          // Its writer just finished.
+        }
+      }
+    }
+    return deadMarkers.build();
+  }
+
+  /**
+   * Before this instance's first store, create and lock a marker file which stays around until the
+   * stored files are in the index, so that if this process dies first, the next one to open the
+   * cache knows to look for them.
+   */
+  private void markAsWriter() throws IOException {
+    synchronized (this) {
+      if (writerMarkerChannel != null) {
+        return;
+      }
+    }
+    // Under the index lock, so that no one opening the cache sees the marker before it's locked.
+    boolean marked =
+        withIndexLock(
+            () -> {
+              synchronized (this) {
+                if (writerMarkerChannel != null) {
+                  return;
+                }
+                Path writersDir = filesystem.resolve(getPathToWriters());
+                Files.createDirectories(writersDir);
+                Path marker = Files.createTempFile(writersDir, "writer", "");
+                FileChannel channel = FileChannel.open(marker, StandardOpenOption.WRITE);
+                try {
+                  channel.lock();
+                } catch (IOException e) {
+                  channel.close();
+                  Files.deleteIfExists(marker);
+                  throw e;
+                }
+                IN_PROCESS_WRITER_MARKERS.add(marker);
+                writerMarkerPath = marker;
+                writerMarkerChannel = channel;
+              }
+            });
+    if (!marked) {
+      throw new IOException("Failed to mark " + cacheDir + " as being written to.");
+    }
+  }
+
+  /**
+   * Unlock this instance's marker, and delete it if everything it stored made it into the index.
+   */
+  private synchronized void releaseWriterMarker(boolean indexWritten) {
+    if (writerMarkerChannel == null || writerMarkerPath == null) {
+      return;
+    }
+    try {
+      if (indexWritten) {
+        Files.deleteIfExists(writerMarkerPath);
+      }
+      writerMarkerChannel.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to release writer marker %s.", writerMarkerPath);
+    }
+    IN_PROCESS_WRITER_MARKERS.remove(writerMarkerPath);
+    writerMarkerPath = null;
+    writerMarkerChannel = null;
+  }
+
+  /**
+   * Bring the index in line with the entries and chunks actually in the directory: entries which
+   * were stored but never made it into the index are added, listed entries whose files are gone are
+   * dropped, and chunks and temporary files nothing refers to are deleted.
+   */
+  private synchronized void reconcileIndex(ImmutableList<IndexEntry> indexEntries)
+      throws IOException {
+    Map<String, IndexEntry> indexed = new HashMap<>();
+    for (IndexEntry entry : indexEntries) {
+      indexed.put(entry.getRuleKey(), entry);
+    }
+
+    boolean changed = false;
+    Path entriesDir = filesystem.resolve(cacheDir.resolve("entries"));
+    for (Path entryPath : listFiles(entriesDir)) {
+      String ruleKey = entryPath.getFileName().toString();
+      IndexEntry entry = indexed.remove(ruleKey);
+      if (entry == null) {
+        entry = readOrphanedEntry(ruleKey, entryPath);
+        changed = true;
+        if (entry == null) {
+          continue;
+        }
+      }
+      addEntry(entry);
+    }
+    // Whatever is left was deleted behind our back.
+    changed |= !indexed.isEmpty();
+
+    long orphanedBefore = System.currentTimeMillis() - ORPHAN_GRACE_PERIOD_MILLIS;
+    for (Path chunkPath : listFiles(filesystem.resolve(cacheDir.resolve("chunks")))) {
+      if (!chunkRefs.containsKey(chunkPath.getFileName().toString())) {
+        deleteIfOlderThan(chunkPath, orphanedBefore);
+      }
+    }
+    for (Path tmpPath : listFiles(filesystem.resolve(cacheDir.resolve("tmp")))) {
+      deleteIfOlderThan(tmpPath, orphanedBefore);
+    }
+
+    if (changed) {
+      LOG.debug("Index of %s was out of date, rewriting it.", cacheDir);
+      evictOldEntries();
+      writeIndex();
+      evictedRuleKeys.clear();
+    }
+    indexDirty = false;
+  }
+
+  /**
+   * Read an entry which isn't in the index, or delete it if any of its chunks are missing.
+   *
+   * @return the entry, or null if it was deleted.
+   */
+  @Nullable
+  private IndexEntry readOrphanedEntry(String ruleKey, Path entryPath) throws IOException {
+    ImmutableList<String> chunkHashes;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(entryPath)))) {
+      readMetadata(in);
+      chunkHashes = readChunkHashes(in);
+    } catch (EOFException e) {
+      LOG.debug("Deleting truncated entry %s.", entryPath);
+      Files.deleteIfExists(entryPath);
+      return null;
+    }
+
+    Map<String, Long> chunkSizes = new LinkedHashMap<>();
+    for (String chunkHash : chunkHashes) {
+      try {
+        chunkSizes.put(chunkHash, filesystem.getFileSize(getPathForChunk(chunkHash)));
+      } catch (NoSuchFileException e) {
+        LOG.debug("Deleting entry %s whose chunk %s is missing.", entryPath, chunkHash);
+        Files.deleteIfExists(entryPath);
+        return null;
+      }
+    }
+    return new IndexEntry(
+        ruleKey,
+        Files.getLastModifiedTime(entryPath).toMillis(),
+        Files.size(entryPath),
+        ImmutableMap.copyOf(chunkSizes));
+  }
+
+  private static ImmutableList<Path> listFiles(Path dir) throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return ImmutableList.of();
+    }
+    try (Stream<Path> paths = Files.walk(dir)) {
+      return paths.filter(Files::isRegularFile).collect(MoreCollectors.toImmutableList());
+    }
+  }
+
+  private static void deleteIfOlderThan(Path path, long millis) throws IOException {
+    try {
+      if (Files.getLastModifiedTime(path).toMillis() < millis) {
+        LOG.debug("Deleting orphaned %s.", path);
+        Files.deleteIfExists(path);
+      }
+    } catch (NoSuchFileException e) {
+      // Someone else got to it first.
+    }
+  }
+
+  /**
+   * Merge the in-memory index with the one on disk (which other processes may have updated in the
+   * meantime), evict old entries if the cache has grown too large, and write the result back.
+   */
+  private void writeBackIndex() {
+    withIndexLock(this::mergeAndWriteIndex);
+  }
+
+  private synchronized void mergeAndWriteIndex() throws IOException {
+    for (IndexEntry onDisk : readIndex()) {
+      if (evictedRuleKeys.contains(onDisk.getRuleKey())) {
+        continue;
+      }
+      IndexEntry inMemory = entries.get(onDisk.getRuleKey());
+      if (inMemory == null || inMemory.getLastAccessMillis() < onDisk.getLastAccessMillis()) {
+        addEntry(onDisk);
+      }
+    }
+    evictOldEntries();
+    writeIndex();
+    evictedRuleKeys.clear();
+    indexDirty = false;
+  }
+
+  private ImmutableList<IndexEntry> readIndex() throws IOException {
+    Path indexPath = getPathToIndex();
+    if (!filesystem.exists(indexPath)) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<IndexEntry> indexEntries = ImmutableList.builder();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(filesystem.newFileInputStream(indexPath)))) {
+      int version = in.readInt();
+      if (version != INDEX_VERSION) {
+        LOG.warn("Ignoring index of %s with unknown version %d.", cacheDir, version);
+        return ImmutableList.of();
+      }
+      int entryCount = in.readInt();
+      for (int i = 0; i < entryCount; i++) {
+        String ruleKey = in.readUTF();
+        long lastAccessMillis = in.readLong();
+        long entrySize = in.readLong();
+        int chunkCount = in.readInt();
+        ImmutableMap.Builder<String, Long> chunkSizes = ImmutableMap.builder();
+        for (int j = 0; j < chunkCount; j++) {
+          chunkSizes.put(in.readUTF(), in.readLong());
+        }
+        indexEntries.add(
+            new IndexEntry(ruleKey, lastAccessMillis, entrySize, chunkSizes.build()));
+      }
+    }
+    return indexEntries.build();
+  }
+
+  private synchronized void writeIndex() throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "index", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(entries.size());
+        for (IndexEntry entry : entriesByAccessTime) {
+          out.writeUTF(entry.getRuleKey());
+          out.writeLong(entry.getLastAccessMillis());
+          out.writeLong(entry.getEntrySize());
+          out.writeInt(entry.getChunkSizes().size());
+          for (Map.Entry<String, Long> chunk : entry.getChunkSizes().entrySet()) {
+            out.writeUTF(chunk.getKey());
+            out.writeLong(chunk.getValue());
+          }
+        }
+      }
+      filesystem.move(tmp, getPathToIndex(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /** @return whether the operation succeeded. */
+  private boolean withIndexLock(IndexOperation operation) {
+    Path lockPath = filesystem.resolve(cacheDir.resolve("index.lock"));
+    Object inProcessLock = IN_PROCESS_INDEX_LOCKS.computeIfAbsent(lockPath, path -> new Object());
+    synchronized (inProcessLock) {
+      try (FileChannel channel =
+              FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          FileLock lock = channel.lock()) {
+        operation.run();
+        return true;
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to update the index of %s.", cacheDir);
+        return false;
+      }
+    }
+  }
+
+  private static ImmutableMap<String, String> readMetadata(DataInputStream in)
+      throws IOException {
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    int sz = in.readInt();
+    for (int i = 0; i < sz; i++) {
+      String key = in.readUTF();
+      int valSize = in.readInt();
+      byte[] val = new byte[valSize];
+      ByteStreams.readFully(in, val);
+      metadata.put(key, new String(val, Charsets.UTF_8));
+    }
+    return metadata.build();
+  }
+
+  private static void writeMetadata(DataOutputStream out, ImmutableMap<String, String> metadata)
+      throws IOException {
+    out.writeInt(metadata.size());
+    for (Map.Entry<String, String> ent : metadata.entrySet()) {
+      out.writeUTF(ent.getKey());
+      byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+      out.writeInt(val.length);
+      out.write(val);
+    }
+  }
+
+  private static ImmutableList<String> readChunkHashes(DataInputStream in) throws IOException {
+    ImmutableList.Builder<String> chunkHashes = ImmutableList.builder();
+    int chunkCount = in.readInt();
+    for (int i = 0; i < chunkCount; i++) {
+      chunkHashes.add(in.readUTF());
+    }
+    return chunkHashes.build();
+  }
+
+  private static long[] createGearTable() {
+    // The table just has to be random-looking, and the same in every process sharing a cache.
+    Random random = new Random(0x6765617254626c65L);
+    long[] table = new long[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = random.nextLong();
+    }
+    return table;
+  }
+
+  private Path getPreparedTempFolder() throws IOException {
+    Path tmp = cacheDir.resolve("tmp");
+    if (!filesystem.exists(tmp)) {
+      filesystem.mkdirs(tmp);
+    }
+    return tmp;
+  }
+
+  private Path getPathToIndex() {
+    return cacheDir.resolve("index");
+  }
+
+  private Path getPathToWriters() {
+    return cacheDir.resolve("writers");
+  }
+
+  @VisibleForTesting
+  Path getPathForChunk(String chunkHash) {
+    return cacheDir
+        .resolve("chunks")
+        .resolve(chunkHash.substring(0, 2))
+        .resolve(chunkHash.substring(2, 4))
+        .resolve(chunkHash);
+  }
+
+  @VisibleForTesting
+  Path getPathForEntry(String ruleKey) {
+    Path entriesDir = cacheDir.resolve("entries");
+    if (ruleKey.length() >= 4) {
+      entriesDir = entriesDir.resolve(ruleKey.substring(0, 2)).resolve(ruleKey.substring(2, 4));
+    }
+    return entriesDir.resolve(ruleKey);
+  }
+
+  @VisibleForTesting
+  synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return cacheMode;
+  }
+
+  @Override
+  public void close() {
+    boolean shouldWriteBack;
+    boolean isWriter;
+    synchronized (this) {
+      shouldWriteBack = indexDirty;
+      isWriter = writerMarkerChannel != null;
+    }
+    if (!shouldWriteBack && !isWriter) {
+      return;
+    }
+    boolean indexWritten =
+        withIndexLock(
+            () -> {
+              synchronized (this) {
+                if (indexDirty) {
+                  mergeAndWriteIndex();
+                }
+                releaseWriterMarker(true);
+              }
+            });
+    if (!indexWritten) {
+      // Leave the marker behind, so the next process to open the cache finds the missing files.
+      releaseWriterMarker(false);
+    }
+  }
+
+  private interface IndexOperation {
+    void run() throws IOException;
+  }
+
+  private static class ChunkRefs {
+    private final long size;
+    private int count = 0;
+
+    private ChunkRefs(long size) {
+      this.size = size;
+    }
+  }
+
+  private static class IndexEntry {
+    private final String ruleKey;
+    private final long lastAccessMillis;
+    private final long entrySize;
+    private final ImmutableMap<String, Long> chunkSizes;
+
+    private IndexEntry(
+        String ruleKey,
+        long lastAccessMillis,
+        long entrySize,
+        ImmutableMap<String, Long> chunkSizes) {
+      this.ruleKey = ruleKey;
+      this.lastAccessMillis = lastAccessMillis;
+      this.entrySize = entrySize;
+      this.chunkSizes = chunkSizes;
+    }
+
+    public String getRuleKey() {
+      return ruleKey;
+    }
+
+    public long getLastAccessMillis() {
+      return lastAccessMillis;
+    }
+
+    public long getEntrySize() {
+      return entrySize;
+    }
+
+    public ImmutableMap<String, Long> getChunkSizes() {
+      return chunkSizes;
+    }
+  }
+}
@@ -91,30 +91,38 @@ public class DirArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(fetch(ruleKey, output));
   }
 
+  /** The metadata is kept in a file of its own, so it can be read without touching the artifact. */
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    CacheResult result;
+    try {
+      ImmutableMap<String, String> metadata = readMetadata(ruleKey);
+      Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+      result =
+          filesystem.isFile(artifactPath)
+              ? CacheResult.hit(name, CACHE_MODE, metadata, filesystem.getFileSize(artifactPath))
+              : CacheResult.miss();
+    } catch (NoSuchFileException e) {
+      result = CacheResult.miss();
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact metadata fetch(%s) error", ruleKey);
+      result =
+          CacheResult.error(
+              name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+    return Futures.immediateFuture(Optional.of(result));
+  }
+
   private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
     CacheResult result;
     try {
       // First, build up the metadata from the metadata file.
-      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
-      try (DataInputStream in =
-          new DataInputStream(
-              filesystem.newFileInputStream(
-                  getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
-        int sz = in.readInt();
-        for (int i = 0; i < sz; i++) {
-          String key = in.readUTF();
-          int valSize = in.readInt();
-          byte[] val = new byte[valSize];
-          ByteStreams.readFully(in, val);
-          metadata.put(key, new String(val, Charsets.UTF_8));
-        }
-      }
+      ImmutableMap<String, String> metadata = readMetadata(ruleKey);
 
       // Now copy the artifact out.
       filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
 
-      result =
-          CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+      result = CacheResult.hit(name, CACHE_MODE, metadata, filesystem.getFileSize(output.get()));
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -130,6 +138,23 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  private ImmutableMap<String, String> readMetadata(RuleKey ruleKey) throws IOException {
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    try (DataInputStream in =
+        new DataInputStream(
+            filesystem.newFileInputStream(getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+      int sz = in.readInt();
+      for (int i = 0; i < sz; i++) {
+        String key = in.readUTF();
+        int valSize = in.readInt();
+        byte[] val = new byte[valSize];
+        ByteStreams.readFully(in, val);
+        metadata.put(key, new String(val, Charsets.UTF_8));
+      }
+    }
+    return metadata.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
 
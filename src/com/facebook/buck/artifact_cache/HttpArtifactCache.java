@@ -86,7 +86,8 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
                 file.getParent(), file.getFileName().toString(), ".tmp");
 
         FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+        try (OutputStream tempFileOutputStream =
+            newPayloadOutputStream(output, projectFilesystem.newFileOutputStream(temp))) {
           fetchedData =
               HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
         }
@@ -119,6 +120,7 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
         projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
 
         LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
+        notifyPayloadVerified(output);
         return CacheResult.hit(
             name, mode, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
       }
@@ -22,6 +22,7 @@ import com.facebook.buck.rules.RuleKey;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.util.Optional;
 
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
@@ -49,6 +50,12 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache, CacheDecora
     return Futures.immediateFuture(fetchResult);
   }
 
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    // Metadata lookups don't transfer an artifact, so they aren't logged as fetches.
+    return delegate.fetchMetadataAsync(ruleKey);
+  }
+
   @Override
   public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
     ArtifactCacheEvent.Started started =
@@ -93,6 +93,99 @@ public class MultiArtifactCache implements ArtifactCache {
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Fetch a batch of artifacts. Each encapsulated ArtifactCache is sent a single batch containing
+   * only the keys that were missed by the ones before it, and hits are propagated to the earlier
+   * writable caches as with {@link #fetchAsync}.
+   */
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    return multiFetchFromCaches(0, requests, ImmutableList.of());
+  }
+
+  private ListenableFuture<ImmutableList<CacheResult>> multiFetchFromCaches(
+      int cacheIndex,
+      ImmutableList<ArtifactFetchRequest> requests,
+      ImmutableList<ArtifactCache> cachesToFill) {
+    if (cacheIndex >= artifactCaches.size() || requests.isEmpty()) {
+      return Futures.immediateFuture(
+          requests
+              .stream()
+              .map(request -> CacheResult.miss())
+              .collect(MoreCollectors.toImmutableList()));
+    }
+
+    ArtifactCache artifactCache = artifactCaches.get(cacheIndex);
+    ImmutableList<ArtifactCache> nextCachesToFill =
+        artifactCache.getCacheReadMode().isWritable()
+            ? ImmutableList.<ArtifactCache>builder().addAll(cachesToFill).add(artifactCache).build()
+            : cachesToFill;
+
+    return Futures.transformAsync(
+        artifactCache.multiFetchAsync(requests),
+        results -> {
+          boolean isLastCache = cacheIndex == artifactCaches.size() - 1;
+          ImmutableList.Builder<ArtifactFetchRequest> missedRequests = ImmutableList.builder();
+          for (int i = 0; i < requests.size(); i++) {
+            if (results.get(i).getType().isSuccess()) {
+              ArtifactFetchRequest request = requests.get(i);
+              storeToCaches(
+                  cachesToFill,
+                  ArtifactInfo.builder()
+                      .addRuleKeys(request.getRuleKey())
+                      .setMetadata(results.get(i).getMetadata())
+                      .build(),
+                  BorrowablePath.notBorrowablePath(request.getOutput().getUnchecked()));
+            } else {
+              missedRequests.add(requests.get(i));
+            }
+          }
+          if (isLastCache) {
+            return Futures.immediateFuture(results);
+          }
+
+          // Merge the results of the lower priority caches back in for the keys we missed.
+          return Futures.transform(
+              multiFetchFromCaches(cacheIndex + 1, missedRequests.build(), nextCachesToFill),
+              (ImmutableList<CacheResult> missedResults) -> {
+                ImmutableList.Builder<CacheResult> merged = ImmutableList.builder();
+                int missedIndex = 0;
+                for (CacheResult result : results) {
+                  merged.add(
+                      result.getType().isSuccess() ? result : missedResults.get(missedIndex++));
+                }
+                return merged.build();
+              },
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Look up metadata in each encapsulated ArtifactCache in turn, the same way {@link #fetchAsync}
+   * would look up the artifact. If a cache which would be asked before the first hit can't answer,
+   * neither can this one, as it can't tell whether the fetch would be served from there.
+   */
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    ListenableFuture<Optional<CacheResult>> cacheResult =
+        Futures.immediateFuture(Optional.of(CacheResult.miss()));
+    for (ArtifactCache artifactCache : artifactCaches) {
+      cacheResult =
+          Futures.transformAsync(
+              cacheResult,
+              (result) -> {
+                if (!result.isPresent() || result.get().getType().isSuccess()) {
+                  return Futures.immediateFuture(result);
+                }
+                return artifactCache.fetchMetadataAsync(ruleKey);
+              },
+              MoreExecutors.directExecutor());
+    }
+    return cacheResult;
+  }
+
   private static ListenableFuture<Void> storeToCaches(
       ImmutableList<ArtifactCache> caches, ArtifactInfo info, BorrowablePath output) {
     // TODO(cjhopman): support BorrowablePath with multiple writable caches.
@@ -24,10 +24,12 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.NoHealthyServersException;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
 
@@ -72,27 +74,93 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
               });
     }
     return Futures.transform(
-        resultFuture,
-        result -> {
-          if (result.getType() != CacheResultType.ERROR) {
-            return result;
-          }
-          String msg = String.join("\n", allCacheErrors);
-          if (!msg.contains(NoHealthyServersException.class.getName())) {
-            buckEventBus.post(
-                ConsoleEvent.warning(
-                    "Failed to fetch %s over %s after %d attempts.",
-                    ruleKey, cacheMode.name(), maxFetchRetries));
+        resultFuture, result -> handleFinalResult(ruleKey, result, allCacheErrors));
+  }
+
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    List<List<String>> allCacheErrors = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      allCacheErrors.add(new ArrayList<>());
+    }
+    ListenableFuture<ImmutableList<CacheResult>> resultsFuture = delegate.multiFetchAsync(requests);
+    for (int retryCount = 1; retryCount < maxFetchRetries; retryCount++) {
+      int retryCountForLambda = retryCount;
+      resultsFuture =
+          Futures.transformAsync(
+              resultsFuture,
+              results -> {
+                // Only the requests which errored out are retried, again as a single batch.
+                List<Integer> failedIndices = new ArrayList<>();
+                ImmutableList.Builder<ArtifactFetchRequest> retryRequests = ImmutableList.builder();
+                for (int i = 0; i < results.size(); i++) {
+                  CacheResult result = results.get(i);
+                  if (result.getType() != CacheResultType.ERROR) {
+                    continue;
+                  }
+                  result.cacheError().ifPresent(allCacheErrors.get(i)::add);
+                  LOG.info(
+                      "Failed to fetch %s after %d/%d attempts, exception: %s",
+                      requests.get(i).getRuleKey(),
+                      retryCountForLambda + 1,
+                      maxFetchRetries,
+                      result.cacheError());
+                  failedIndices.add(i);
+                  retryRequests.add(requests.get(i));
+                }
+                if (failedIndices.isEmpty()) {
+                  return Futures.immediateFuture(results);
+                }
+                return Futures.transform(
+                    delegate.multiFetchAsync(retryRequests.build()),
+                    retryResults -> {
+                      List<CacheResult> merged = new ArrayList<>(results);
+                      for (int i = 0; i < failedIndices.size(); i++) {
+                        merged.set(failedIndices.get(i), retryResults.get(i));
+                      }
+                      return ImmutableList.copyOf(merged);
+                    });
+              });
+    }
+    return Futures.transform(
+        resultsFuture,
+        results -> {
+          ImmutableList.Builder<CacheResult> finalResults = ImmutableList.builder();
+          for (int i = 0; i < results.size(); i++) {
+            finalResults.add(
+                handleFinalResult(
+                    requests.get(i).getRuleKey(), results.get(i), allCacheErrors.get(i)));
           }
-          return CacheResult.builder().from(result).setCacheError(msg).build();
+          return finalResults.build();
         });
   }
 
+  private CacheResult handleFinalResult(
+      RuleKey ruleKey, CacheResult result, List<String> allCacheErrors) {
+    if (result.getType() != CacheResultType.ERROR) {
+      return result;
+    }
+    String msg = String.join("\n", allCacheErrors);
+    if (!msg.contains(NoHealthyServersException.class.getName())) {
+      buckEventBus.post(
+          ConsoleEvent.warning(
+              "Failed to fetch %s over %s after %d attempts.",
+              ruleKey, cacheMode.name(), maxFetchRetries));
+    }
+    return CacheResult.builder().from(result).setCacheError(msg).build();
+  }
+
   @Override
   public ArtifactCache getDelegate() {
     return delegate;
   }
 
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    return delegate.fetchMetadataAsync(ruleKey);
+  }
+
   @Override
   public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
     return delegate.store(info, output);
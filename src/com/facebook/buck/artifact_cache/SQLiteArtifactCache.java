@@ -26,16 +26,21 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.sqlite.RetryBusyHandler;
 import com.facebook.buck.sqlite.SQLiteUtils;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.MoreCollectors;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Striped;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -52,10 +57,26 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.concurrent.GuardedBy;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
 
@@ -65,6 +86,14 @@ import org.sqlite.SQLiteConfig;
  * <p>Cache entries are either metadata or content. All metadata contains a mapping to a content
  * entry. Content entries with sufficiently small content will have their artifacts inlined into the
  * database for improved performance.
+ *
+ * <p>The database runs in WAL mode, so lookups go through a pool of read connections and never
+ * wait on writes. All writes go through a single connection: stores are committed in groups (a
+ * store waits for any transaction in progress, then commits everything which queued up behind it
+ * in one go), and access time updates are buffered and committed along with the next group. Old
+ * entries are evicted incrementally on a background thread, rather than by whichever store
+ * happened to push the cache over its limit. Stores and evictions of the same content hash exclude
+ * each other, so a store which finds its content already there can't have it evicted underneath.
  */
 public class SQLiteArtifactCache implements ArtifactCache {
 
@@ -76,6 +105,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 0;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  private static final int MAX_READ_CONNECTIONS = 16;
+  // Number of buffered access time updates which triggers a commit even if nothing is stored.
+  private static final int ACCESS_UPDATE_BATCH_SIZE = 256;
+  // Number of content rows looked at per eviction round.
+  private static final int EVICTION_BATCH_SIZE = 256;
+  private static final int CONTENT_LOCK_STRIPES = 64;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -86,6 +121,28 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private final CacheReadMode cacheMode;
 
   private final ConnectionInfo db;
+  private final ImmutableList<ReadConnectionInfo> allReadConnections;
+  private final BlockingQueue<ReadConnectionInfo> readConnections;
+  private final Striped<Lock> contentLocks = Striped.lock(CONTENT_LOCK_STRIPES);
+
+  /**
+   * While any content eviction runs, the value of {@link #contentStoreCount} at which each content
+   * hash was last stored. Lets an eviction spare content stored after it picked its rows.
+   */
+  private final Map<RuleKey, Long> contentStoredDuringEviction = new ConcurrentHashMap<>();
+
+  private final AtomicLong contentStoreCount = new AtomicLong();
+  private final AtomicInteger runningContentEvictions = new AtomicInteger();
+
+  private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+  private final Set<RuleKey> pendingMetadataAccesses = Sets.newConcurrentHashSet();
+  private final Set<RuleKey> pendingContentAccesses = Sets.newConcurrentHashSet();
+  private final AtomicInteger pendingAccessCount = new AtomicInteger();
+
+  private final ExecutorService backgroundExecutor;
+  private final boolean ownsBackgroundExecutor;
+  private final AtomicBoolean metadataEvictionScheduled = new AtomicBoolean();
+  private final AtomicBoolean contentEvictionScheduled = new AtomicBoolean();
 
   static {
     SQLiteUtils.initialize();
@@ -99,6 +156,52 @@ public class SQLiteArtifactCache implements ArtifactCache {
       Optional<Long> maxInlinedSizeBytes,
       CacheReadMode cacheMode)
       throws IOException, SQLException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        maxCacheSizeBytes,
+        maxInlinedSizeBytes,
+        cacheMode,
+        MostExecutors.newSingleThreadExecutor("SQLiteArtifactCache"),
+        true);
+  }
+
+  /**
+   * @param backgroundExecutor where eviction and flushes of buffered access times run. It is not
+   *     shut down on {@link #close()}.
+   */
+  @VisibleForTesting
+  SQLiteArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> maxInlinedSizeBytes,
+      CacheReadMode cacheMode,
+      ExecutorService backgroundExecutor)
+      throws IOException, SQLException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        maxCacheSizeBytes,
+        maxInlinedSizeBytes,
+        cacheMode,
+        backgroundExecutor,
+        false);
+  }
+
+  private SQLiteArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> maxInlinedSizeBytes,
+      CacheReadMode cacheMode,
+      ExecutorService backgroundExecutor,
+      boolean ownsBackgroundExecutor)
+      throws IOException, SQLException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -107,6 +210,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
         maxCacheSizeBytes.map(size -> (long) (size * MAX_BYTES_TRIM_RATIO));
     this.maxInlinedBytes = maxInlinedSizeBytes.orElse(DEFAULT_MAX_INLINED_BYTES);
     this.cacheMode = cacheMode;
+    this.backgroundExecutor = backgroundExecutor;
+    this.ownsBackgroundExecutor = ownsBackgroundExecutor;
 
     try {
       Class.forName("org.sqlite.JDBC");
@@ -122,7 +227,16 @@ public class SQLiteArtifactCache implements ArtifactCache {
           String.format("Cache path [%s] already exists and is not a directory.", cacheDir));
     }
 
+    // The writer creates the schema, so it has to come first.
     this.db = new ConnectionInfo(cacheDir);
+    int readConnectionCount =
+        Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_READ_CONNECTIONS));
+    ImmutableList.Builder<ReadConnectionInfo> readers = ImmutableList.builder();
+    for (int i = 0; i < readConnectionCount; i++) {
+      readers.add(new ReadConnectionInfo(cacheDir));
+    }
+    this.allReadConnections = readers.build();
+    this.readConnections = new ArrayBlockingQueue<>(readConnectionCount, false, allReadConnections);
   }
 
   @Override
@@ -147,10 +261,10 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Artifact fetch(%s, %s) stopped unexpectedly", contentHash, output));
     try {
-      ResultSet rs = db.selectContent(contentHash);
-      if (rs.next()) {
-        byte[] artifact = rs.getBytes(1);
-        String filepath = rs.getString(2);
+      Optional<ContentRow> row = read(reader -> reader.selectContent(contentHash));
+      if (row.isPresent()) {
+        byte[] artifact = row.get().artifact;
+        String filepath = row.get().filepath;
 
         if (Objects.nonNull(artifact)) {
           // artifact was inlined into the database as a blob
@@ -160,14 +274,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
           filesystem.copyFile(filesystem.resolve(filepath), output.get());
         } else {
           // artifact stored on disk was removed by another cache, remove database entry
-          db.deleteContent(contentHash);
+          write(writer -> writer.deleteContent(ImmutableList.of(contentHash)));
           return result = CacheResult.miss();
         }
 
-        long size = rs.getLong(3);
-        db.accessContent(contentHash);
+        recordAccess(pendingContentAccesses, contentHash);
 
-        return result = CacheResult.hit(name, CACHE_MODE, ImmutableMap.of(), size);
+        return result = CacheResult.hit(name, CACHE_MODE, ImmutableMap.of(), row.get().size);
       }
 
       return result = CacheResult.miss();
@@ -183,6 +296,29 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Only first-level entries of two-level stores have metadata rows. Anything else is stored as
+   * plain content, which can't be told apart from a miss without fetching it.
+   */
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    try {
+      Optional<byte[]> metadata = read(reader -> reader.selectMetadata(ruleKey));
+      if (!metadata.isPresent()) {
+        return Futures.immediateFuture(Optional.empty());
+      }
+      recordAccess(pendingMetadataAccesses, ruleKey);
+      return Futures.immediateFuture(
+          Optional.of(CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata.get()), 0)));
+    } catch (IOException | SQLException e) {
+      LOG.warn(e, "Metadata fetch(%s) error", ruleKey);
+      return Futures.immediateFuture(
+          Optional.of(
+              CacheResult.error(
+                  name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()))));
+    }
+  }
+
   private CacheResult fetchMetadata(RuleKey ruleKey, LazyPath output) {
     CacheResult result =
         CacheResult.error(
@@ -190,13 +326,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Metadata fetch(%s, %s) stopped unexpectedly", ruleKey, output));
     try {
-      ResultSet rs = db.selectMetadata(ruleKey);
-      if (rs.next()) {
-        byte[] metadata = rs.getBytes(1);
-        db.accessMetadata(ruleKey);
+      Optional<byte[]> metadata = read(reader -> reader.selectMetadata(ruleKey));
+      if (metadata.isPresent()) {
+        recordAccess(pendingMetadataAccesses, ruleKey);
         output.get(); // for MultiArtifactCache, force evaluation of the output path
 
-        return result = CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata), 0);
+        return result = CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata.get()), 0);
       }
 
       return result = CacheResult.miss();
@@ -219,14 +354,18 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     if (info.getMetadata().containsKey(TwoLevelArtifactCacheDecorator.METADATA_KEY)) {
-      return Futures.transformAsync(storeMetadata(info), result -> removeOldMetadata());
+      storeMetadata(info);
+      scheduleEviction(metadataEvictionScheduled, this::removeOldMetadata);
     } else {
-      return Futures.transformAsync(
-          storeContent(info.getRuleKeys(), content), result -> removeOldContent());
+      storeContent(info.getRuleKeys(), content);
+      if (maxCacheSizeBytes.isPresent()) {
+        scheduleEviction(contentEvictionScheduled, this::removeOldContent);
+      }
     }
+    return Futures.immediateFuture(null);
   }
 
-  private ListenableFuture<Void> storeMetadata(ArtifactInfo info) {
+  private void storeMetadata(ArtifactInfo info) {
     ImmutableMap<String, String> metadata = info.getMetadata();
 
     // verify that all metadata keys are valid
@@ -238,16 +377,15 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
+      byte[] marshalledMetadata = marshalMetadata(metadata);
+      write(writer -> writer.storeMetadata(info.getRuleKeys(), marshalledMetadata));
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Metadata store(%s) error", info.getRuleKeys());
     }
-
-    return Futures.immediateFuture(null);
   }
 
-  private ListenableFuture<Void> storeContent(
-      ImmutableSet<RuleKey> contentHashes, BorrowablePath content) {
+  private void storeContent(ImmutableSet<RuleKey> contentHashes, BorrowablePath content) {
+    List<Lock> locks = lockContent(contentHashes);
     try {
       ImmutableList.Builder<RuleKey> inlinedHashes = ImmutableList.builder();
       ImmutableList.Builder<byte[]> artifacts = ImmutableList.builder();
@@ -260,13 +398,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
       Optional<Path> movedArtifactPath = Optional.empty();
       for (RuleKey contentHash : contentHashes) {
         // if the content already exists in the cache, skip it
-        ResultSet existingArtifact = db.selectContent(contentHash);
-        if (existingArtifact.next()) {
-          byte[] inlined = existingArtifact.getBytes(1);
-          String artifactPath = existingArtifact.getString(2);
+        Optional<ContentRow> existingArtifact = read(reader -> reader.selectContent(contentHash));
+        if (existingArtifact.isPresent()) {
+          byte[] inlined = existingArtifact.get().artifact;
+          String artifactPath = existingArtifact.get().filepath;
 
           if (Objects.nonNull(inlined) || filesystem.exists(filesystem.resolve(artifactPath))) {
-            db.accessContent(contentHash);
+            recordAccess(pendingContentAccesses, contentHash);
             continue;
           }
         }
@@ -297,13 +435,44 @@ public class SQLiteArtifactCache implements ArtifactCache {
         }
       }
 
-      db.storeArtifacts(inlinedHashes.build(), artifacts.build(), inlinedSizes.build());
-      db.storeFilepaths(fileHashes.build(), filepaths.build(), fileSizes.build());
+      ImmutableList<RuleKey> inlined = inlinedHashes.build();
+      ImmutableList<RuleKey> files = fileHashes.build();
+      if (!inlined.isEmpty() || !files.isEmpty()) {
+        write(
+            writer -> {
+              writer.storeArtifacts(inlined, artifacts.build(), inlinedSizes.build());
+              writer.storeFilepaths(files, filepaths.build(), fileSizes.build());
+            });
+      }
+      if (runningContentEvictions.get() > 0) {
+        long storeCount = contentStoreCount.incrementAndGet();
+        for (RuleKey contentHash : contentHashes) {
+          contentStoredDuringEviction.put(contentHash, storeCount);
+        }
+      }
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
+    } finally {
+      unlock(locks);
     }
+  }
 
-    return Futures.immediateFuture(null);
+  /**
+   * Locks the content hashes against concurrent stores and evictions. The locks are always taken in
+   * the same order, so callers locking several hashes at once can't deadlock.
+   */
+  private List<Lock> lockContent(Iterable<RuleKey> contentHashes) {
+    List<Lock> locks = ImmutableList.copyOf(contentLocks.bulkGet(contentHashes));
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+    return locks;
+  }
+
+  private static void unlock(List<Lock> locks) {
+    for (Lock lock : Lists.reverse(locks)) {
+      lock.unlock();
+    }
   }
 
   @VisibleForTesting
@@ -363,67 +532,249 @@ public class SQLiteArtifactCache implements ArtifactCache {
   }
 
   /** Removes metadata older than a computed eviction time. */
-  private ListenableFuture<Void> removeOldMetadata() {
+  private void removeOldMetadata() {
     Timestamp evictionTime = Timestamp.from(Instant.now().minus(DEFAULT_EVICTION_TIME));
     try {
-      int deleted = db.deleteMetadata(evictionTime);
-      LOG.verbose("Removed %d metadata rows not accessed since %s", deleted, evictionTime);
+      // Buffered accesses have to make it to the database first, or we may evict entries which
+      // were just used.
+      flushWrites();
+      AtomicInteger deleted = new AtomicInteger();
+      write(writer -> deleted.set(writer.deleteMetadata(evictionTime)));
+      LOG.verbose("Removed %d metadata rows not accessed since %s", deleted.get(), evictionTime);
     } catch (SQLException e) {
       LOG.error(e, "Failed to clean database");
     }
-
-    return Futures.immediateFuture(null);
   }
 
-  /** Deletes files that haven't been accessed recently from the directory cache. */
-  private ListenableFuture<Void> removeOldContent() {
-    if (!maxCacheSizeBytes.isPresent()) {
-      return Futures.immediateFuture(null);
-    }
+  /**
+   * Deletes files that haven't been accessed recently from the directory cache. Works through the
+   * content table in small batches, oldest first, so that neither readers nor writers ever wait on
+   * a full scan of the table.
+   */
+  private void removeOldContent() {
+    removeOldContent(() -> {});
+  }
 
-    long totalSizeBytes;
+  /** @param beforeEvicting runs once each batch of rows to evict is picked, before evicting it. */
+  @VisibleForTesting
+  void removeOldContent(Runnable beforeEvicting) {
+    runningContentEvictions.incrementAndGet();
     try {
-      totalSizeBytes = db.totalSize();
+      long totalSizeBytes = read(ReadConnectionInfo::totalSize);
       if (totalSizeBytes <= maxCacheSizeBytes.get()) {
-        return Futures.immediateFuture(null);
+        return;
+      }
+
+      while (totalSizeBytes > maxBytesAfterDeletion.get()) {
+        long selectedAt = contentStoreCount.get();
+        // Stores which found their content present recorded an access; it has to be in the
+        // database before picking the least recently used rows.
+        flushWrites();
+        ImmutableList<ContentRow> oldest =
+            read(reader -> reader.selectOldestContent(EVICTION_BATCH_SIZE));
+        if (oldest.isEmpty()) {
+          break;
+        }
+
+        ImmutableList.Builder<ContentRow> toEvict = ImmutableList.builder();
+        for (ContentRow row : oldest) {
+          if (totalSizeBytes <= maxBytesAfterDeletion.get()) {
+            break;
+          }
+          toEvict.add(row);
+          totalSizeBytes -= row.size;
+        }
+        beforeEvicting.run();
+        evictContent(toEvict.build(), selectedAt);
+      }
+    } catch (IOException | SQLException e) {
+      LOG.error(e, "Failed to clean path [%s].", filesystem.resolve(cacheDir));
+    } finally {
+      if (runningContentEvictions.decrementAndGet() == 0) {
+        contentStoredDuringEviction.clear();
       }
-    } catch (SQLException e) {
-      LOG.error(e, "Failed to find total artifact size.");
-      return Futures.immediateFuture(null);
     }
+  }
 
+  /**
+   * Deletes the rows and their files, holding the locks of their hashes until the rows are gone, so
+   * that a concurrent store either sees the content gone or stores it after the eviction. Rows
+   * whose content was stored after they were picked, at {@code selectedAt}, are kept, since that
+   * store has already reported success.
+   */
+  private void evictContent(ImmutableList<ContentRow> candidates, long selectedAt)
+      throws IOException, SQLException {
+    List<Lock> locks =
+        lockContent(
+            candidates
+                .stream()
+                .map(row -> row.contentHash)
+                .collect(MoreCollectors.toImmutableList()));
+    ImmutableList<RuleKey> evictedHashes;
     try {
-      ResultSet artifacts = db.selectContentByTime();
-      while (totalSizeBytes > maxBytesAfterDeletion.get() && artifacts.next()) {
-        String filepath = artifacts.getString(1);
-        long sizeBytes = artifacts.getLong(2);
-
+      ImmutableList<ContentRow> rows =
+          candidates
+              .stream()
+              .filter(
+                  row ->
+                      contentStoredDuringEviction.getOrDefault(row.contentHash, Long.MIN_VALUE)
+                          <= selectedAt)
+              .collect(MoreCollectors.toImmutableList());
+      evictedHashes =
+          rows.stream().map(row -> row.contentHash).collect(MoreCollectors.toImmutableList());
+      for (ContentRow row : rows) {
         // from database constraint, exactly one of filepath/artifact is null
-        if (Objects.nonNull(filepath)) {
-          LOG.verbose("Deleting path [%s] of total size [%d] bytes.", filepath, sizeBytes);
-          Path filePathInFS = filesystem.resolve(filepath);
-          MoreFiles.deleteRecursivelyIfExists(filePathInFS);
+        if (Objects.nonNull(row.filepath)) {
+          LOG.verbose("Deleting path [%s] of total size [%d] bytes.", row.filepath, row.size);
+          MoreFiles.deleteRecursivelyIfExists(filesystem.resolve(row.filepath));
         } else {
-          LOG.verbose("Deleting inlined artifact of size [%d] bytes.", sizeBytes);
+          LOG.verbose("Deleting inlined artifact of size [%d] bytes.", row.size);
         }
+      }
+      write(writer -> writer.deleteContent(evictedHashes));
+    } finally {
+      unlock(locks);
+    }
+    LOG.verbose("Deleted %d cached artifacts", evictedHashes.size());
+  }
+
+  /** Runs {@code eviction} in the background, unless a run is already waiting to start. */
+  private void scheduleEviction(AtomicBoolean scheduled, Runnable eviction) {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    backgroundExecutor.execute(
+        () -> {
+          // Anything stored from here on may need another run.
+          scheduled.set(false);
+          eviction.run();
+        });
+  }
+
+  private void recordAccess(Set<RuleKey> pendingAccesses, RuleKey key) {
+    pendingAccesses.add(key);
+    if (pendingAccessCount.incrementAndGet() == ACCESS_UPDATE_BATCH_SIZE) {
+      backgroundExecutor.execute(this::flushWrites);
+    }
+  }
+
+  private <T> T read(ReadOperation<T> operation) throws SQLException {
+    ReadConnectionInfo reader;
+    try {
+      reader = readConnections.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection", e);
+    }
+    try {
+      return operation.run(reader);
+    } finally {
+      readConnections.add(reader);
+    }
+  }
 
-        totalSizeBytes -= sizeBytes;
+  /**
+   * Queues up {@code operation} and waits until it has been committed, either by this thread or by
+   * one which was already committing when it got here. Fails only if this operation's own write
+   * was lost.
+   */
+  private void write(WriteOperation operation) throws SQLException {
+    PendingWrite pendingWrite = new PendingWrite(operation);
+    pendingWrites.add(pendingWrite);
+    synchronized (db) {
+      if (!pendingWrite.done) {
+        commitPendingWrites();
       }
+      if (pendingWrite.error != null) {
+        throw pendingWrite.error;
+      }
+    }
+  }
+
+  /** Commits any queued writes and buffered access time updates. */
+  private void flushWrites() {
+    synchronized (db) {
+      commitPendingWrites();
+    }
+  }
+
+  /**
+   * Commits the queued writes as one transaction. Each write's outcome is recorded on it, so that
+   * only the writers whose own writes were lost see an error.
+   */
+  @GuardedBy("db")
+  private void commitPendingWrites() {
+    List<PendingWrite> batch = new ArrayList<>();
+    for (PendingWrite pendingWrite; (pendingWrite = pendingWrites.poll()) != null; ) {
+      batch.add(pendingWrite);
+    }
+    pendingAccessCount.set(0);
+    ImmutableList<RuleKey> metadataAccesses = drain(pendingMetadataAccesses);
+    ImmutableList<RuleKey> contentAccesses = drain(pendingContentAccesses);
+    if (batch.isEmpty() && metadataAccesses.isEmpty() && contentAccesses.isEmpty()) {
+      return;
+    }
 
-      Timestamp evictionCutoff;
-      if (artifacts.next()) {
-        evictionCutoff = artifacts.getTimestamp(3);
-      } else {
-        evictionCutoff = Timestamp.from(Instant.now());
+    try {
+      runInTransaction(
+          () -> {
+            for (PendingWrite pendingWrite : batch) {
+              pendingWrite.operation.run(db);
+            }
+            db.accessMetadata(metadataAccesses);
+            db.accessContent(contentAccesses);
+          });
+    } catch (SQLException e) {
+      // The whole group was rolled back, since a failing write may have been partly applied. Redo
+      // the writes one transaction each, so that one bad write doesn't take down the rest.
+      LOG.debug(e, "Group of %d writes failed, retrying them one by one.", batch.size());
+      for (PendingWrite pendingWrite : batch) {
+        try {
+          runInTransaction(() -> pendingWrite.operation.run(db));
+        } catch (SQLException writeError) {
+          pendingWrite.error = writeError;
+        }
       }
+      try {
+        runInTransaction(
+            () -> {
+              db.accessMetadata(metadataAccesses);
+              db.accessContent(contentAccesses);
+            });
+      } catch (SQLException accessError) {
+        // Access times only order eviction, which isn't worth failing committed writes for.
+        LOG.warn(accessError, "Failed to update access times");
+      }
+    } finally {
+      for (PendingWrite pendingWrite : batch) {
+        pendingWrite.done = true;
+      }
+    }
+  }
 
-      int deleted = db.deleteContent(evictionCutoff);
-      LOG.verbose("Deleted %d cached artifacts last accessed before %s", deleted, evictionCutoff);
-    } catch (IOException | SQLException e) {
-      LOG.error(e, "Failed to clean path [%s].", filesystem.resolve(cacheDir));
+  /** Runs {@code body} on the write connection, committing all of it or none of it. */
+  @GuardedBy("db")
+  private void runInTransaction(TransactionBody body) throws SQLException {
+    db.connection.setAutoCommit(false);
+    try {
+      body.run();
+      db.connection.commit();
+    } catch (SQLException e) {
+      db.connection.rollback();
+      throw e;
+    } finally {
+      db.connection.setAutoCommit(true);
     }
+  }
 
-    return Futures.immediateFuture(null);
+  private static ImmutableList<RuleKey> drain(Set<RuleKey> keys) {
+    ImmutableList.Builder<RuleKey> drained = ImmutableList.builder();
+    Iterator<RuleKey> iterator = keys.iterator();
+    while (iterator.hasNext()) {
+      drained.add(iterator.next());
+      iterator.remove();
+    }
+    return drained.build();
   }
 
   @Override
@@ -433,6 +784,18 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
+    if (ownsBackgroundExecutor) {
+      try {
+        MostExecutors.shutdown(backgroundExecutor, 1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flushWrites();
+    // Close readers still in use too; whoever holds one gets an error rather than a result.
+    for (ReadConnectionInfo reader : allReadConnections) {
+      reader.close();
+    }
     db.close();
   }
 
@@ -441,82 +804,137 @@ public class SQLiteArtifactCache implements ArtifactCache {
   @VisibleForTesting
   void insertMetadata(RuleKey ruleKey, ImmutableMap<String, String> metadata, Timestamp time)
       throws IOException, SQLException {
-    PreparedStatement stmt =
-        db.connection.prepareStatement(
-            "INSERT INTO metadata (rulekey, data, accessed) VALUES (?, ?, ?)");
-    stmt.setBytes(1, ConnectionInfo.getBytes(ruleKey));
-    stmt.setBytes(2, marshalMetadata(metadata));
-    stmt.setTimestamp(3, time);
-    stmt.executeUpdate();
+    byte[] marshalledMetadata = marshalMetadata(metadata);
+    write(
+        writer -> {
+          PreparedStatement stmt =
+              writer.connection.prepareStatement(
+                  "INSERT INTO metadata (rulekey, data, accessed) VALUES (?, ?, ?)");
+          stmt.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+          stmt.setBytes(2, marshalledMetadata);
+          stmt.setTimestamp(3, time);
+          stmt.executeUpdate();
+        });
   }
 
   @VisibleForTesting
   void insertContent(RuleKey contentHash, BorrowablePath file, Timestamp time)
       throws IOException, SQLException {
     long size = filesystem.getFileSize(file.getPath());
-    PreparedStatement stmt =
-        db.connection.prepareStatement(
-            "INSERT INTO content (sha1, artifact, filepath, size, accessed, created) "
-                + "VALUES (?, ?, ?, ?, ?, ?)");
-
-    stmt.setBytes(1, ConnectionInfo.getBytes(contentHash));
-    if (size <= maxInlinedBytes) {
-      stmt.setBytes(2, Files.readAllBytes(file.getPath()));
-    } else {
-      stmt.setString(3, file.getPath().toString());
-    }
-    stmt.setLong(4, size);
-    stmt.setTimestamp(5, time);
-    stmt.setTimestamp(6, time);
-    stmt.executeUpdate();
+    byte[] artifact = size <= maxInlinedBytes ? Files.readAllBytes(file.getPath()) : null;
+    write(
+        writer -> {
+          PreparedStatement stmt =
+              writer.connection.prepareStatement(
+                  "INSERT INTO content (sha1, artifact, filepath, size, accessed, created) "
+                      + "VALUES (?, ?, ?, ?, ?, ?)");
+
+          stmt.setBytes(1, ConnectionInfo.getBytes(contentHash));
+          if (artifact != null) {
+            stmt.setBytes(2, artifact);
+          } else {
+            stmt.setString(3, file.getPath().toString());
+          }
+          stmt.setLong(4, size);
+          stmt.setTimestamp(5, time);
+          stmt.setTimestamp(6, time);
+          stmt.executeUpdate();
+        });
+  }
+
+  @VisibleForTesting
+  Object getWriteLock() {
+    return db;
+  }
+
+  @VisibleForTesting
+  int getPendingWriteCount() {
+    return pendingWrites.size();
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> directoryFileContentHashes() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection
-            .createStatement()
-            .executeQuery("SELECT sha1 FROM content WHERE filepath NOTNULL")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
-      }
-    }
-    return keys.build();
+    return selectKeys("SELECT sha1 FROM content WHERE filepath NOTNULL");
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> inlinedArtifactContentHashes() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection
-            .createStatement()
-            .executeQuery("SELECT sha1 FROM content WHERE artifact NOTNULL")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
-      }
-    }
-    return keys.build();
+    return selectKeys("SELECT sha1 FROM content WHERE artifact NOTNULL");
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> metadataRuleKeys() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection.createStatement().executeQuery("SELECT rulekey FROM metadata")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
-      }
+    return selectKeys("SELECT rulekey FROM metadata");
+  }
+
+  private ImmutableList<RuleKey> selectKeys(String query) throws SQLException {
+    return read(
+        reader -> {
+          ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
+          try (ResultSet rs = reader.connection.createStatement().executeQuery(query)) {
+            while (rs.next()) {
+              keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
+            }
+          }
+          return keys.build();
+        });
+  }
+
+  private static Connection openConnection(Path cacheDir) throws SQLException {
+    // date format must be set to match CURRENT_TIMESTAMP
+    Properties properties = new SQLiteConfig().toProperties();
+    properties.setProperty(
+        SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+    Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+    connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+    connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+    BusyHandler.setHandler(connection, new RetryBusyHandler());
+    return connection;
+  }
+
+  private interface ReadOperation<T> {
+    T run(ReadConnectionInfo reader) throws SQLException;
+  }
+
+  private interface WriteOperation {
+    void run(ConnectionInfo writer) throws SQLException;
+  }
+
+  private interface TransactionBody {
+    void run() throws SQLException;
+  }
+
+  private static class PendingWrite {
+    private final WriteOperation operation;
+
+    // Guarded by the write connection.
+    private boolean done = false;
+    private SQLException error = null;
+
+    private PendingWrite(WriteOperation operation) {
+      this.operation = operation;
+    }
+  }
+
+  private static class ContentRow {
+    private final RuleKey contentHash;
+    private final byte[] artifact;
+    private final String filepath;
+    private final long size;
+
+    private ContentRow(RuleKey contentHash, byte[] artifact, String filepath, long size) {
+      this.contentHash = contentHash;
+      this.artifact = artifact;
+      this.filepath = filepath;
+      this.size = size;
     }
-    return keys.build();
   }
 
+  /** The connection all writes go through. */
   private static class ConnectionInfo {
     private final Connection connection;
 
-    private final PreparedStatement fetchMetadata;
-    private final PreparedStatement fetchContent;
-
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
 
@@ -524,23 +942,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
     private final PreparedStatement storeArtifact;
     private final PreparedStatement storeFilepath;
 
-    private final PreparedStatement selectContentByTime;
-
     private final PreparedStatement deleteMetadataBeforeCutoff;
-    private final PreparedStatement deleteContentBeforeCutoff;
     private final PreparedStatement deleteContentForHash;
 
-    private final PreparedStatement contentSize;
-
     private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
-      connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
-      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+      connection = openConnection(cacheDir);
 
       /*
        * This cache is used for two different layers, so we use two separate databases to encode these
@@ -573,11 +979,15 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "CONSTRAINT inline CHECK (artifact NOT NULL AND filepath ISNULL "
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
-
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+      // Let eviction find the oldest entries without sorting the whole table.
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE INDEX IF NOT EXISTS metadata_accessed ON metadata (accessed)");
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE INDEX IF NOT EXISTS content_accessed ON content (accessed, created)");
 
       updateMetadataTime =
           connection.prepareStatement(
@@ -588,46 +998,27 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       storeMetadata =
           connection.prepareStatement("REPLACE INTO metadata (rulekey, data) VALUES (?, ?)");
+      // Replace rather than insert, as the row may be left over from an artifact which has since
+      // been removed from disk.
       storeArtifact =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
+              "REPLACE INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
       storeFilepath =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
-
-      selectContentByTime =
-          connection.prepareStatement(
-              "SELECT filepath, size, accessed FROM content ORDER BY accessed ASC, created ASC");
+              "REPLACE INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
 
       deleteMetadataBeforeCutoff =
           connection.prepareStatement("DELETE FROM metadata WHERE accessed < ?");
-      deleteContentBeforeCutoff =
-          connection.prepareStatement("DELETE FROM content WHERE accessed < ?");
       deleteContentForHash = connection.prepareStatement("DELETE FROM content WHERE sha1 = ?");
-
-      contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
-
-      BusyHandler.setHandler(connection, new RetryBusyHandler());
-    }
-
-    private synchronized ResultSet selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      return fetchMetadata.executeQuery();
-    }
-
-    private synchronized ResultSet selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      return fetchContent.executeQuery();
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    private synchronized void accessMetadata(ImmutableList<RuleKey> ruleKeys) throws SQLException {
+      executeForKeys(updateMetadataTime, ruleKeys);
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private synchronized void accessContent(ImmutableList<RuleKey> contentHashes)
+        throws SQLException {
+      executeForKeys(updateContentTime, contentHashes);
     }
 
     private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
@@ -675,31 +1066,104 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return deleteMetadataBeforeCutoff.executeUpdate();
     }
 
-    private synchronized int deleteContent(Timestamp evictionCutoff) throws SQLException {
-      deleteContentBeforeCutoff.setTimestamp(1, evictionCutoff);
-      return deleteContentBeforeCutoff.executeUpdate();
+    private synchronized void deleteContent(ImmutableList<RuleKey> contentHashes)
+        throws SQLException {
+      executeForKeys(deleteContentForHash, contentHashes);
     }
 
-    private synchronized void deleteContent(RuleKey contentHash) throws SQLException {
-      deleteContentForHash.setBytes(1, getBytes(contentHash));
-      deleteContentForHash.executeUpdate();
+    private static void executeForKeys(PreparedStatement statement, ImmutableList<RuleKey> keys)
+        throws SQLException {
+      if (keys.isEmpty()) {
+        return;
+      }
+      for (RuleKey key : keys) {
+        statement.setBytes(1, getBytes(key));
+        statement.addBatch();
+      }
+      statement.executeBatch();
     }
 
-    private synchronized long totalSize() throws SQLException {
-      ResultSet rs = contentSize.executeQuery();
-      if (!rs.next()) {
-        throw new SQLException("Query failed: total size of artifacts");
+    private static byte[] getBytes(RuleKey ruleKey) {
+      return ruleKey.getHashCode().asBytes();
+    }
+
+    private void close() {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
       }
+    }
+  }
 
-      return rs.getLong(1);
+  /**
+   * A connection used for lookups. Each is only ever used by one thread at a time, so unlike
+   * {@link ConnectionInfo} it needs no locking.
+   */
+  private static class ReadConnectionInfo {
+    private final Connection connection;
+
+    private final PreparedStatement fetchMetadata;
+    private final PreparedStatement fetchContent;
+    private final PreparedStatement selectOldestContent;
+    private final PreparedStatement contentSize;
+
+    private ReadConnectionInfo(Path cacheDir) throws SQLException {
+      connection = openConnection(cacheDir);
+
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+      selectOldestContent =
+          connection.prepareStatement(
+              "SELECT sha1, filepath, size FROM content "
+                  + "ORDER BY accessed ASC, created ASC LIMIT ?");
+      contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
     }
 
-    private synchronized ResultSet selectContentByTime() throws SQLException {
-      return selectContentByTime.executeQuery();
+    private Optional<ContentRow> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, ConnectionInfo.getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        if (!rs.next()) {
+          return Optional.empty();
+        }
+        return Optional.of(
+            new ContentRow(contentHash, rs.getBytes(1), rs.getString(2), rs.getLong(3)));
+      }
     }
 
-    private static byte[] getBytes(RuleKey ruleKey) {
-      return ruleKey.getHashCode().asBytes();
+    private ImmutableList<ContentRow> selectOldestContent(int limit) throws SQLException {
+      selectOldestContent.setInt(1, limit);
+      ImmutableList.Builder<ContentRow> rows = ImmutableList.builder();
+      try (ResultSet rs = selectOldestContent.executeQuery()) {
+        while (rs.next()) {
+          rows.add(
+              new ContentRow(
+                  new RuleKey(HashCode.fromBytes(rs.getBytes(1))),
+                  null,
+                  rs.getString(2),
+                  rs.getLong(3)));
+        }
+      }
+      return rows.build();
+    }
+
+    private long totalSize() throws SQLException {
+      try (ResultSet rs = contentSize.executeQuery()) {
+        if (!rs.next()) {
+          throw new SQLException("Query failed: total size of artifacts");
+        }
+
+        return rs.getLong(1);
+      }
     }
 
     private void close() {
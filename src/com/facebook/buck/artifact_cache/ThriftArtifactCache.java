@@ -136,7 +136,8 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         LOG.verbose("Got artifact.  Attempting to read payload.");
         Path tmp = createTempFileForDownload();
         ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
-        try (OutputStream tmpFile = projectFilesystem.newFileOutputStream(tmp)) {
+        try (OutputStream tmpFile =
+            newPayloadOutputStream(output, projectFilesystem.newFileOutputStream(tmp))) {
           try {
             readResult = response.readPayload(tmpFile);
           } catch (IOException e) {
@@ -199,6 +200,7 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
 
         // This makes sure we don't have 'half downloaded files' in the dir cache.
         projectFilesystem.move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+        notifyPayloadVerified(output);
         return CacheResult.hit(
             name,
             mode,
@@ -29,6 +29,7 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.AsyncFunction;
@@ -36,7 +37,12 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -116,56 +122,206 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
     return Futures.transformAsync(
         delegate.fetchAsync(ruleKey, output),
         (CacheResult fetchResult) -> {
-          if (!fetchResult.getType().isSuccess()) {
-            LOG.verbose("Missed first-level lookup.");
-            return Futures.immediateFuture(fetchResult);
-          } else if (!fetchResult.getMetadata().containsKey(METADATA_KEY)) {
-            LOG.verbose("Found a single-level entry.");
+          Optional<String> contentHashKey = getSecondLevelContentHashKey(fetchResult);
+          if (!contentHashKey.isPresent()) {
             return Futures.immediateFuture(fetchResult);
           }
-          LOG.verbose("Found a first-level artifact with metadata: %s", fetchResult.getMetadata());
-
-          String contentHashKey = fetchResult.getMetadata().get(METADATA_KEY);
-          ListenableFuture<CacheResult> outputFileFetchResultFuture =
-              delegate.fetchAsync(new RuleKey(contentHashKey), output);
 
-          return Futures.transformAsync(
-              outputFileFetchResultFuture,
-              (CacheResult outputFileFetchResult) -> {
-                outputFileFetchResult =
-                    outputFileFetchResult.withTwoLevelContentHashKey(contentHashKey);
+          return Futures.transform(
+              delegate.fetchAsync(new RuleKey(contentHashKey.get()), output),
+              (CacheResult outputFileFetchResult) ->
+                  processSecondLevelResult(
+                      fetchResult, contentHashKey.get(), outputFileFetchResult),
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
 
-                if (!outputFileFetchResult.getType().isSuccess()) {
-                  LOG.verbose("Missed second-level lookup.");
-                  secondLevelCacheMisses.inc();
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    return Futures.transformAsync(
+        delegate.multiFetchAsync(requests),
+        (ImmutableList<CacheResult> fetchResults) -> {
+          // Look up all of the second-level entries referenced by the first-level hits in a single
+          // batch as well.
+          List<Optional<String>> contentHashKeys = new ArrayList<>(requests.size());
+          ImmutableList.Builder<ArtifactFetchRequest> secondLevelRequests = ImmutableList.builder();
+          for (int i = 0; i < requests.size(); i++) {
+            Optional<String> contentHashKey = getSecondLevelContentHashKey(fetchResults.get(i));
+            contentHashKeys.add(contentHashKey);
+            if (contentHashKey.isPresent()) {
+              secondLevelRequests.add(
+                  ArtifactFetchRequest.of(
+                      new RuleKey(contentHashKey.get()), requests.get(i).getOutput()));
+            }
+          }
 
-                  // Note: for misses, the fetchResult metadata is not important, so we return
-                  // outputFileFetchResult to signal the miss (as fetchResult was a hit).
-                  return Futures.immediateFuture(outputFileFetchResult);
+          return Futures.transform(
+              delegate.multiFetchAsync(secondLevelRequests.build()),
+              (ImmutableList<CacheResult> outputFileFetchResults) -> {
+                ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+                int secondLevelIndex = 0;
+                for (int i = 0; i < requests.size(); i++) {
+                  Optional<String> contentHashKey = contentHashKeys.get(i);
+                  if (contentHashKey.isPresent()) {
+                    results.add(
+                        processSecondLevelResult(
+                            fetchResults.get(i),
+                            contentHashKey.get(),
+                            outputFileFetchResults.get(secondLevelIndex++)));
+                  } else {
+                    results.add(fetchResults.get(i));
+                  }
                 }
+                return results.build();
+              },
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
 
-                if (outputFileFetchResult.cacheSource().isPresent()) {
-                  secondLevelCacheHitTypes.add(outputFileFetchResult.cacheSource().get());
-                }
-                if (outputFileFetchResult.artifactSizeBytes().isPresent()) {
-                  secondLevelCacheHitBytes.addSample(
-                      outputFileFetchResult.artifactSizeBytes().get());
+  @Override
+  public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+    return Futures.transform(
+        multiFetchMetadataAsync(ImmutableList.of(ruleKey)),
+        results -> results.get(0),
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Look up metadata in the delegate, and fetch the first level of whatever the delegate couldn't
+   * look up on its own, which is small for two-level entries. Those first-level fetches go out to
+   * the delegate as a single batch.
+   */
+  @Override
+  public ListenableFuture<ImmutableList<Optional<CacheResult>>> multiFetchMetadataAsync(
+      ImmutableList<RuleKey> ruleKeys) {
+    return Futures.transformAsync(
+        delegate.multiFetchMetadataAsync(ruleKeys),
+        (ImmutableList<Optional<CacheResult>> metadataResults) -> {
+          ImmutableList.Builder<Optional<CacheResult>> results = ImmutableList.builder();
+          ImmutableList.Builder<ArtifactFetchRequest> firstLevelRequests = ImmutableList.builder();
+          for (int i = 0; i < ruleKeys.size(); i++) {
+            Optional<CacheResult> metadataResult = metadataResults.get(i);
+            if (metadataResult.isPresent()) {
+              CacheResult result = metadataResult.get();
+              results.add(
+                  Optional.of(
+                      getSecondLevelContentHashKey(result)
+                          .map(result::withTwoLevelContentHashKey)
+                          .orElse(result)));
+            } else {
+              results.add(Optional.empty());
+              // Without two-level stores, most artifacts are stored in a single level, and looking
+              // one of those up downloads the artifact along with its metadata.
+              if (performTwoLevelStores) {
+                Optional<Path> firstLevelOutput = createFirstLevelOutput(ruleKeys.get(i));
+                if (firstLevelOutput.isPresent()) {
+                  firstLevelRequests.add(
+                      ArtifactFetchRequest.of(
+                          ruleKeys.get(i), LazyPath.ofInstance(firstLevelOutput.get())));
                 }
+              }
+            }
+          }
+          return fetchFirstLevelForMetadata(ruleKeys, results.build(), firstLevelRequests.build());
+        },
+        MoreExecutors.directExecutor());
+  }
 
-                LOG.verbose(
-                    "Found a second-level artifact with metadata: %s",
-                    outputFileFetchResult.getMetadata());
-                // Note: in the case of a hit, we return fetchResult, rather than outputFileFetchResult,
-                // so that the client gets the correct metadata.
+  private Optional<Path> createFirstLevelOutput(RuleKey ruleKey) {
+    try {
+      return Optional.of(
+          projectFilesystem.resolve(
+              projectFilesystem.createTempFile(
+                  projectFilesystem.getBuckPaths().getTmpDir(), ".buckcache", ".metadata")));
+    } catch (IOException e) {
+      LOG.warn(e, "Could not create file to fetch metadata for %s into.", ruleKey);
+      return Optional.empty();
+    }
+  }
 
-                CacheResult finalResult = fetchResult.withTwoLevelContentHashKey(contentHashKey);
-                return Futures.immediateFuture(finalResult);
-              },
-              MoreExecutors.directExecutor());
+  private ListenableFuture<ImmutableList<Optional<CacheResult>>> fetchFirstLevelForMetadata(
+      ImmutableList<RuleKey> ruleKeys,
+      ImmutableList<Optional<CacheResult>> metadataResults,
+      ImmutableList<ArtifactFetchRequest> firstLevelRequests) {
+    if (firstLevelRequests.isEmpty()) {
+      return Futures.immediateFuture(metadataResults);
+    }
+    return Futures.transform(
+        delegate.multiFetchAsync(firstLevelRequests),
+        (ImmutableList<CacheResult> fetchResults) -> {
+          Map<RuleKey, Optional<CacheResult>> firstLevelResults = new HashMap<>();
+          for (int i = 0; i < firstLevelRequests.size(); i++) {
+            ArtifactFetchRequest request = firstLevelRequests.get(i);
+            try {
+              Files.deleteIfExists(request.getOutput().get());
+            } catch (IOException e) {
+              LOG.warn(e, "Could not delete first-level artifact of %s.", request.getRuleKey());
+            }
+            CacheResult fetchResult = fetchResults.get(i);
+            // A single-level entry has already been downloaded in full, so there's nothing to
+            // save by treating it as metadata.
+            firstLevelResults.put(
+                request.getRuleKey(),
+                fetchResult.getType().isSuccess()
+                    ? getSecondLevelContentHashKey(fetchResult)
+                        .map(fetchResult::withTwoLevelContentHashKey)
+                    : Optional.of(fetchResult));
+          }
+          ImmutableList.Builder<Optional<CacheResult>> results = ImmutableList.builder();
+          for (int i = 0; i < ruleKeys.size(); i++) {
+            results.add(
+                metadataResults.get(i).isPresent()
+                    ? metadataResults.get(i)
+                    : firstLevelResults.getOrDefault(ruleKeys.get(i), Optional.empty()));
+          }
+          return results.build();
         },
         MoreExecutors.directExecutor());
   }
 
+  /** @return the content hash key of the second-level entry a first-level hit points to, if any. */
+  private static Optional<String> getSecondLevelContentHashKey(CacheResult fetchResult) {
+    if (!fetchResult.getType().isSuccess()) {
+      LOG.verbose("Missed first-level lookup.");
+      return Optional.empty();
+    } else if (!fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+      LOG.verbose("Found a single-level entry.");
+      return Optional.empty();
+    }
+    LOG.verbose("Found a first-level artifact with metadata: %s", fetchResult.getMetadata());
+    return Optional.of(fetchResult.getMetadata().get(METADATA_KEY));
+  }
+
+  private CacheResult processSecondLevelResult(
+      CacheResult fetchResult, String contentHashKey, CacheResult outputFileFetchResult) {
+    outputFileFetchResult = outputFileFetchResult.withTwoLevelContentHashKey(contentHashKey);
+
+    if (!outputFileFetchResult.getType().isSuccess()) {
+      LOG.verbose("Missed second-level lookup.");
+      secondLevelCacheMisses.inc();
+
+      // Note: for misses, the fetchResult metadata is not important, so we return
+      // outputFileFetchResult to signal the miss (as fetchResult was a hit).
+      return outputFileFetchResult;
+    }
+
+    if (outputFileFetchResult.cacheSource().isPresent()) {
+      secondLevelCacheHitTypes.add(outputFileFetchResult.cacheSource().get());
+    }
+    if (outputFileFetchResult.artifactSizeBytes().isPresent()) {
+      secondLevelCacheHitBytes.addSample(outputFileFetchResult.artifactSizeBytes().get());
+    }
+
+    LOG.verbose(
+        "Found a second-level artifact with metadata: %s", outputFileFetchResult.getMetadata());
+    // Note: in the case of a hit, we return fetchResult, rather than outputFileFetchResult,
+    // so that the client gets the correct metadata.
+    return fetchResult.withTwoLevelContentHashKey(contentHashKey);
+  }
+
   @Override
   public ListenableFuture<Void> store(final ArtifactInfo info, final BorrowablePath output) {
 
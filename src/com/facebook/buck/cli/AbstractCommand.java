@@ -19,20 +19,33 @@ package com.facebook.buck.cli;
 import com.facebook.buck.config.CellConfig;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.LogConfigSetup;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.BuildTargetParser;
 import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.parser.BuildTargetPatternTargetNodeParser;
 import com.facebook.buck.parser.TargetNodeSpec;
+import com.facebook.buck.rules.BuildRuleDurationHistory;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
+import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellPathResolver;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.RelativeCellName;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourcePathRuleFinder;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
+import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.EventPostingRuleKeyCacheScope;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
+import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.DefaultProcessExecutor;
 import com.facebook.buck.util.HumanReadableException;
@@ -41,11 +54,14 @@ import com.facebook.buck.versions.VersionException;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -56,6 +72,11 @@ import org.kohsuke.args4j.Option;
 
 public abstract class AbstractCommand implements Command {
 
+  private static final Logger LOG = Logger.get(AbstractCommand.class);
+
+  /** Name of the file under buck-out where non-daemon builds keep their rule keys. */
+  private static final String PERSISTENT_RULE_KEY_CACHE_NAME = "rule-key-cache";
+
   private static final String HELP_LONG_ARG = "--help";
   private static final String NO_CACHE_LONG_ARG = "--no-cache";
   private static final String OUTPUT_TEST_EVENTS_TO_FILE_LONG_ARG = "--output-test-events-to-file";
@@ -288,23 +309,26 @@ public abstract class AbstractCommand implements Command {
   }
 
   protected ExecutionContext.Builder getExecutionContextBuilder(CommandRunnerParams params) {
-    return ExecutionContext.builder()
-        .setConsole(params.getConsole())
-        .setAndroidPlatformTargetSupplier(params.getAndroidPlatformTargetSupplier())
-        .setBuckEventBus(params.getBuckEventBus())
-        .setPlatform(params.getPlatform())
-        .setEnvironment(params.getEnvironment())
-        .setJavaPackageFinder(params.getJavaPackageFinder())
-        .setExecutors(params.getExecutors())
-        .setCellPathResolver(params.getCell().getCellPathResolver())
-        .setBuildCellRootPath(params.getCell().getRoot())
-        .setProcessExecutor(new DefaultProcessExecutor(params.getConsole()))
-        .setDefaultTestTimeoutMillis(params.getBuckConfig().getDefaultTestTimeoutMillis())
-        .setInclNoLocationClassesEnabled(
-            params.getBuckConfig().getBooleanValue("test", "incl_no_location_classes", false))
-        .setRuleKeyDiagnosticsMode(params.getBuckConfig().getRuleKeyDiagnosticsMode())
-        .setConcurrencyLimit(getConcurrencyLimit(params.getBuckConfig()))
-        .setPersistentWorkerPools(params.getPersistentWorkerPools());
+    ExecutionContext.Builder builder =
+        ExecutionContext.builder()
+            .setConsole(params.getConsole())
+            .setAndroidPlatformTargetSupplier(params.getAndroidPlatformTargetSupplier())
+            .setBuckEventBus(params.getBuckEventBus())
+            .setPlatform(params.getPlatform())
+            .setEnvironment(params.getEnvironment())
+            .setJavaPackageFinder(params.getJavaPackageFinder())
+            .setExecutors(params.getExecutors())
+            .setCellPathResolver(params.getCell().getCellPathResolver())
+            .setBuildCellRootPath(params.getCell().getRoot())
+            .setProcessExecutor(new DefaultProcessExecutor(params.getConsole()))
+            .setDefaultTestTimeoutMillis(params.getBuckConfig().getDefaultTestTimeoutMillis())
+            .setInclNoLocationClassesEnabled(
+                params.getBuckConfig().getBooleanValue("test", "incl_no_location_classes", false))
+            .setRuleKeyDiagnosticsMode(params.getBuckConfig().getRuleKeyDiagnosticsMode())
+            .setConcurrencyLimit(getConcurrencyLimit(params.getBuckConfig()))
+            .setPersistentWorkerPools(params.getPersistentWorkerPools());
+    params.getJarContentsCache().ifPresent(builder::setJarContentsCache);
+    return builder;
   }
 
   public ConcurrencyLimit getConcurrencyLimit(BuckConfig buckConfig) {
@@ -339,7 +363,9 @@ public abstract class AbstractCommand implements Command {
   }
 
   RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
-      CommandRunnerParams params, RuleKeyCacheRecycler.SettingsAffectingCache settings) {
+      CommandRunnerParams params,
+      BuildRuleResolver resolver,
+      RuleKeyCacheRecycler.SettingsAffectingCache settings) {
     return params
         .getDefaultRuleKeyFactoryCacheRecycler()
         // First try to get the cache from the recycler.
@@ -347,7 +373,70 @@ public abstract class AbstractCommand implements Command {
         // Otherwise, create a new one.
         .orElseGet(
             () ->
-                new EventPostingRuleKeyCacheScope<>(
-                    params.getBuckEventBus(), new DefaultRuleKeyCache<>()));
+                params.getBuckConfig().isPersistentRuleKeyCacheEnabled()
+                    ? newPersistentRuleKeyCacheScope(params, resolver)
+                    : new EventPostingRuleKeyCacheScope<>(
+                        params.getBuckEventBus(), new DefaultRuleKeyCache<>()));
+  }
+
+  /**
+   * @return the durations of earlier rule builds, if the build engine is to schedule rules by them.
+   */
+  Optional<BuildRuleDurationHistory> getRuleDurationHistory(
+      CommandRunnerParams params, CachingBuildEngineBuckConfig engineConfig) {
+    if (!engineConfig.isCriticalPathSchedulingEnabled()) {
+      return Optional.empty();
+    }
+    ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    return Optional.of(
+        BuildRuleDurationHistory.load(
+            filesystem.resolve(
+                filesystem.getBuckPaths().getBuckOut().resolve(BuildRuleDurationHistory.STORE_NAME))));
+  }
+
+  private static RuleKeyCacheScope<RuleKey> newPersistentRuleKeyCacheScope(
+      CommandRunnerParams params, BuildRuleResolver resolver) {
+    ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    int keySeed = params.getBuckConfig().getKeySeed();
+    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
+    PersistentRuleKeyCache cache =
+        PersistentRuleKeyCache.load(
+            filesystem.resolve(
+                filesystem.getBuckPaths().getBuckOut().resolve(PERSISTENT_RULE_KEY_CACHE_NAME)),
+            getPersistentRuleKeyCacheFingerprint(params.getCell(), keySeed),
+            new ContentAgnosticRuleKeyFactory(
+                new RuleKeyFieldLoader(keySeed),
+                DefaultSourcePathResolver.from(ruleFinder),
+                ruleFinder));
+    return new EventPostingRuleKeyCacheScope<RuleKey>(params.getBuckEventBus(), cache) {
+      @Override
+      protected void cleanup(SimplePerfEvent.Scope scope) {
+        try {
+          cache.save();
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to save the rule key cache.");
+        }
+      }
+    };
+  }
+
+  /**
+   * Rule keys also depend on the buck version and on configuration which isn't part of the rules
+   * themselves, so a stored rule key is only reused if they are the same.
+   */
+  private static String getPersistentRuleKeyCacheFingerprint(Cell rootCell, int keySeed) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putUnencodedChars(BuckVersion.getVersion()).putInt(keySeed);
+    rootCell
+        .getAllCells()
+        .stream()
+        .sorted(Comparator.comparing(Cell::getRoot))
+        .forEach(
+            cell ->
+                hasher
+                    .putUnencodedChars(cell.getRoot().toString())
+                    .putUnencodedChars(
+                        cell.getBuckConfig().getConfig().getSectionToEntries().toString()));
+    return hasher.hash().toString();
   }
 }
@@ -32,6 +32,7 @@ import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Console;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.ProcessManager;
 import com.facebook.buck.util.cache.StackedFileHashCache;
 import com.facebook.buck.util.environment.BuildEnvironmentDescription;
@@ -86,6 +87,8 @@ public interface AbstractCommandRunnerParams {
 
   Optional<ConcurrentMap<String, WorkerProcessPool>> getPersistentWorkerPools();
 
+  Optional<JarContentsCache> getJarContentsCache();
+
   BuckConfig getBuckConfig();
 
   StackedFileHashCache getFileHashCache();
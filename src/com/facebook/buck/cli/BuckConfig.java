@@ -520,6 +520,14 @@ public class BuckConfig implements ConfigPathGetter {
     return getBooleanValue("daemon", "flush_events_before_exit", false);
   }
 
+  /**
+   * @return whether zip and jar entries should be compressed several at a time on the build's
+   *     executor.
+   */
+  public boolean isParallelZipCompressionEnabled() {
+    return getBooleanValue("build", "parallel_zip_compression", false);
+  }
+
   public ImmutableSet<String> getListenerJars() {
     return ImmutableSet.copyOf(getListWithoutComments("extensions", "listeners"));
   }
@@ -586,6 +594,29 @@ public class BuckConfig implements ConfigPathGetter {
     return getBooleanValue("cache", "action_graph_cache_check_enabled", false);
   }
 
+  /**
+   * @return whether the daemon should update its cached Action Graph in place when the Target Graph
+   *     changes, rather than creating it from scratch.
+   */
+  public boolean isIncrementalActionGraphEnabled() {
+    return getBooleanValue("cache", "incremental_action_graph", false);
+  }
+
+  /**
+   * @return whether query transitive closures should visit the nodes of each level in parallel.
+   */
+  public boolean isParallelQueryTransitiveClosureEnabled() {
+    return getBooleanValue("query", "parallel_transitive_closure", false);
+  }
+
+  /**
+   * @return whether builds run without the daemon should keep their default rule keys under
+   *     buck-out, to reuse those whose inputs and dependencies didn't change in later runs.
+   */
+  public boolean isPersistentRuleKeyCacheEnabled() {
+    return getBooleanValue("cache", "persistent_rule_key_cache", false);
+  }
+
   public Optional<String> getRepository() {
     return config.get("cache", "repository");
   }
@@ -19,6 +19,7 @@ package com.facebook.buck.cli;
 import static com.facebook.buck.util.concurrent.MoreFutures.propagateCauseIfInstanceOf;
 
 import com.facebook.buck.graph.AbstractBreadthFirstTraversal;
+import com.facebook.buck.graph.AbstractParallelBreadthFirstTraversal;
 import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
 import com.facebook.buck.graph.DirectedAcyclicGraph;
 import com.facebook.buck.graph.GraphTraversable;
@@ -86,6 +87,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   private final ListeningExecutorService executor;
   private final TargetPatternEvaluator targetPatternEvaluator;
   private final QueryEnvironment.TargetEvaluator queryTargetEvaluator;
+  private final boolean parallelTransitiveClosure;
 
   private final ImmutableMap<Cell, BuildFileTree> buildFileTrees;
   private final Map<BuildTarget, QueryTarget> buildTargetToQueryTarget = new HashMap<>();
@@ -100,7 +102,8 @@ public class BuckQueryEnvironment implements QueryEnvironment {
       OwnersReport.Builder ownersReportBuilder,
       PerBuildState parserState,
       ListeningExecutorService executor,
-      TargetPatternEvaluator targetPatternEvaluator) {
+      TargetPatternEvaluator targetPatternEvaluator,
+      boolean parallelTransitiveClosure) {
     this.parserState = parserState;
     this.rootCell = rootCell;
     this.ownersReportBuilder = ownersReportBuilder;
@@ -117,6 +120,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     this.executor = executor;
     this.targetPatternEvaluator = targetPatternEvaluator;
     this.queryTargetEvaluator = new TargetEvaluator(targetPatternEvaluator, executor);
+    this.parallelTransitiveClosure = parallelTransitiveClosure;
   }
 
   public static BuckQueryEnvironment from(
@@ -125,8 +129,24 @@ public class BuckQueryEnvironment implements QueryEnvironment {
       PerBuildState parserState,
       ListeningExecutorService executor,
       TargetPatternEvaluator targetPatternEvaluator) {
+    return from(
+        rootCell, ownersReportBuilder, parserState, executor, targetPatternEvaluator, false);
+  }
+
+  public static BuckQueryEnvironment from(
+      Cell rootCell,
+      OwnersReport.Builder ownersReportBuilder,
+      PerBuildState parserState,
+      ListeningExecutorService executor,
+      TargetPatternEvaluator targetPatternEvaluator,
+      boolean parallelTransitiveClosure) {
     return new BuckQueryEnvironment(
-        rootCell, ownersReportBuilder, parserState, executor, targetPatternEvaluator);
+        rootCell,
+        ownersReportBuilder,
+        parserState,
+        executor,
+        targetPatternEvaluator,
+        parallelTransitiveClosure);
   }
 
   public static BuckQueryEnvironment from(
@@ -145,7 +165,8 @@ public class BuckQueryEnvironment implements QueryEnvironment {
             params.getBuckConfig(),
             params.getParser(),
             params.getBuckEventBus(),
-            enableProfiling));
+            enableProfiling),
+        params.getBuckConfig().isParallelQueryTransitiveClosureEnabled());
   }
 
   public DirectedAcyclicGraph<TargetNode<?, ?>> getTargetGraph() {
@@ -272,22 +293,41 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     for (QueryTarget target : targets) {
       nodes.add(getNode(target));
     }
+    if (parallelTransitiveClosure) {
+      // Universes of rdeps() queries span most of the graph, so the nodes of each level can be
+      // visited in parallel. Query targets are only created afterwards, since doing so isn't
+      // thread safe.
+      ImmutableList<TargetNode<?, ?>> closure =
+          AbstractParallelBreadthFirstTraversal.<TargetNode<?, ?>>traverse(
+              executor, nodes, this::getParseDepNodes);
+
+      ImmutableSet.Builder<QueryTarget> result = ImmutableSet.builder();
+      for (TargetNode<?, ?> node : closure) {
+        result.add(getOrCreateQueryBuildTarget(node.getBuildTarget()));
+      }
+      return result.build();
+    }
+
     ImmutableSet.Builder<QueryTarget> result = ImmutableSet.builder();
 
     new AbstractBreadthFirstTraversal<TargetNode<?, ?>>(nodes) {
       @Override
       public Iterable<TargetNode<?, ?>> visit(TargetNode<?, ?> node) {
         result.add(getOrCreateQueryBuildTarget(node.getBuildTarget()));
-        return node.getParseDeps()
-            .stream()
-            .map(targetsToNodes::get)
-            .collect(MoreCollectors.toImmutableSet());
+        return getParseDepNodes(node);
       }
     }.start();
 
     return result.build();
   }
 
+  private ImmutableSet<TargetNode<?, ?>> getParseDepNodes(TargetNode<?, ?> node) {
+    return node.getParseDeps()
+        .stream()
+        .map(targetsToNodes::get)
+        .collect(MoreCollectors.toImmutableSet());
+  }
+
   @Override
   public void buildTransitiveClosure(Set<QueryTarget> targets, int maxDepth) throws QueryException {
     // Filter QueryTargets that are build targets and not yet present in the build target graph.
@@ -930,6 +930,7 @@ public class BuildCommand extends AbstractCommand {
         RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
             getDefaultRuleKeyCacheScope(
                 params,
+                actionGraphAndResolver.getResolver(),
                 new RuleKeyCacheRecycler.SettingsAffectingCache(
                     rootCellBuckConfig.getKeySeed(), actionGraphAndResolver.getActionGraph()));
         CachingBuildEngine buildEngine =
@@ -937,12 +938,18 @@ public class BuildCommand extends AbstractCommand {
                 cachingBuildEngineDelegate,
                 executor,
                 artifactFetchService.getExecutor(),
+                getConcurrencyLimit(params.getBuckConfig()).threadLimit,
                 new DefaultStepRunner(),
                 getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
                 cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
                 cachingBuildEngineBuckConfig.getBuildDepFiles(),
                 cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                 cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                cachingBuildEngineBuckConfig.getMultiFetchBatchSize(),
+                cachingBuildEngineBuckConfig.isCachePrefetchEnabled(),
+                cachingBuildEngineBuckConfig.isLazyMaterializationEnabled(),
+                cachingBuildEngineBuckConfig.isStreamingArtifactUnzipEnabled(),
+                getRuleDurationHistory(params, cachingBuildEngineBuckConfig),
                 actionGraphAndResolver.getResolver(),
                 params.getBuildInfoStoreManager(),
                 cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
@@ -963,7 +970,9 @@ public class BuildCommand extends AbstractCommand {
                 artifactCache,
                 params.getConsole(),
                 params.getClock(),
-                getExecutionContext())) {
+                rootCellBuckConfig.isParallelZipCompressionEnabled()
+                    ? getExecutionContext().withZipCompressionExecutor(executor)
+                    : getExecutionContext())) {
       lastBuild = build;
       return build.executeAndPrintFailuresToEventBus(
           FluentIterable.from(targetsToBuild)
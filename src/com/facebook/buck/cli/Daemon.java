@@ -28,6 +28,8 @@ import com.facebook.buck.httpserver.WebServer;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.io.WatchmanCursor;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.parser.DaemonicParserState;
+import com.facebook.buck.parser.DaemonicParserStateSnapshot;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.rules.ActionGraphCache;
@@ -38,15 +40,19 @@ import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.WatchmanWatcher;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.WatchedFileHashCache;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
 import com.facebook.buck.worker.WorkerProcessPool;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
 import java.io.Closeable;
 import java.io.IOException;
@@ -55,6 +61,8 @@ import java.nio.file.Path;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Daemon used to monitor the file system and cache build rules between Main() method invocations is
@@ -67,6 +75,9 @@ final class Daemon implements Closeable {
   private static final String STATIC_CONTENT_DIRECTORY =
       System.getProperty("buck.path_to_static_content", "webserver/static");
 
+  private static final String PARSER_STATE_SNAPSHOT_FILE = "daemon/parser-state";
+  private static final long PARSER_STATE_SNAPSHOT_TIMEOUT_SECONDS = 30;
+
   private final Cell rootCell;
   private final TypeCoercerFactory typeCoercerFactory;
   private final Parser parser;
@@ -74,11 +85,17 @@ final class Daemon implements Closeable {
   private final EventBus fileEventBus;
   private final Optional<WebServer> webServer;
   private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
+  private final JarContentsCache jarContentsCache;
   private final VersionedTargetGraphCache versionedTargetGraphCache;
   private final ActionGraphCache actionGraphCache;
   private final BroadcastEventListener broadcastEventListener;
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
   private final ImmutableMap<Path, WatchmanCursor> cursor;
+  private final Optional<ExecutorService> parserStateSnapshotExecutor;
+  private final String parserStateFingerprint;
+  private final Object parserStateSnapshotLock = new Object();
+  private long savedParserStateGeneration;
+  private boolean restoredParserStateSnapshot;
 
   Daemon(Cell rootCell, Optional<WebServer> webServerToReuse) {
     this.rootCell = rootCell;
@@ -102,7 +119,9 @@ final class Daemon implements Closeable {
     this.hashCaches = hashCachesBuilder.build();
 
     this.broadcastEventListener = new BroadcastEventListener();
-    this.actionGraphCache = new ActionGraphCache(broadcastEventListener);
+    this.actionGraphCache =
+        new ActionGraphCache(
+            broadcastEventListener, rootCell.getBuckConfig().isIncrementalActionGraphEnabled());
     this.versionedTargetGraphCache = new VersionedTargetGraphCache();
 
     typeCoercerFactory = new DefaultTypeCoercerFactory();
@@ -130,16 +149,31 @@ final class Daemon implements Closeable {
     if (!initWebServer()) {
       LOG.warn("Can't start web server");
     }
-    if (rootCell.getBuckConfig().getView(ParserConfig.class).getWatchmanCursor()
-            == WatchmanWatcher.CursorType.CLOCK_ID
+    ParserConfig parserConfig = rootCell.getBuckConfig().getView(ParserConfig.class);
+    if (parserConfig.getWatchmanCursor() == WatchmanWatcher.CursorType.CLOCK_ID
         && !rootCell.getWatchman().getClockIds().isEmpty()) {
-      cursor = rootCell.getWatchman().buildClockWatchmanCursorMap();
+      ImmutableMap<Path, WatchmanCursor> clockCursor =
+          rootCell.getWatchman().buildClockWatchmanCursorMap();
+      parserStateFingerprint = DaemonicParserStateSnapshot.computeFingerprint(rootCell);
+      if (parserConfig.getDaemonStateSnapshotEnabled()) {
+        parserStateSnapshotExecutor =
+            Optional.of(MostExecutors.newSingleThreadExecutor("Parser state snapshot"));
+        Optional<ImmutableMap<Path, WatchmanCursor>> restoredCursor =
+            restoreParserStateSnapshot(clockCursor.keySet());
+        cursor = restoredCursor.orElse(clockCursor);
+      } else {
+        parserStateSnapshotExecutor = Optional.empty();
+        cursor = clockCursor;
+      }
     } else {
+      parserStateFingerprint = "";
+      parserStateSnapshotExecutor = Optional.empty();
       LOG.debug("Falling back to named cursors: %s", rootCell.getWatchman().getProjectWatches());
       cursor = rootCell.getWatchman().buildNamedWatchmanCursorMap();
     }
     LOG.debug("Using Watchman Cursor: %s", cursor);
     persistentWorkerPools = new ConcurrentHashMap<>();
+    jarContentsCache = new JarContentsCache();
     JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootCell.getFilesystem());
   }
 
@@ -147,6 +181,81 @@ final class Daemon implements Closeable {
     return rootCell;
   }
 
+  private Path getParserStateSnapshotPath() {
+    return rootCell
+        .getFilesystem()
+        .resolve(rootCell.getFilesystem().getBuckPaths().getBuckOut())
+        .resolve(PARSER_STATE_SNAPSHOT_FILE);
+  }
+
+  /**
+   * Load the parser cache saved by a previous daemon, if there is a usable one.
+   *
+   * @return cursors starting at the clocks the snapshot was taken at, so that the first watchman
+   *     query reports every file changed since then and invalidates the affected cache entries.
+   */
+  private Optional<ImmutableMap<Path, WatchmanCursor>> restoreParserStateSnapshot(
+      ImmutableSet<Path> watchedRoots) {
+    Optional<DaemonicParserStateSnapshot> snapshot =
+        DaemonicParserStateSnapshot.read(getParserStateSnapshotPath(), parserStateFingerprint);
+    if (!snapshot.isPresent()) {
+      return Optional.empty();
+    }
+    if (!snapshot.get().getClocks().keySet().equals(watchedRoots)) {
+      LOG.debug("Ignoring parser state snapshot taken with different watched roots.");
+      return Optional.empty();
+    }
+    try {
+      parser.restoreParserState(snapshot.get().getState(), rootCell);
+    } catch (RuntimeException e) {
+      LOG.warn(e, "Failed to restore parser state snapshot.");
+      return Optional.empty();
+    }
+    LOG.info("Restored parser state from %s.", getParserStateSnapshotPath());
+    restoredParserStateSnapshot = true;
+    savedParserStateGeneration = parser.getParserStateGeneration();
+    return Optional.of(
+        ImmutableMap.copyOf(
+            Maps.transformValues(snapshot.get().getClocks(), WatchmanCursor::new)));
+  }
+
+  /**
+   * Save the parser cache in the background, along with the watchman clocks it is up to date
+   * with, so that the next daemon can start from it. Does nothing if snapshots are disabled or
+   * nothing was parsed or invalidated since the last save.
+   */
+  void saveParserStateSnapshot() {
+    if (!parserStateSnapshotExecutor.isPresent()) {
+      return;
+    }
+    parserStateSnapshotExecutor
+        .get()
+        .execute(
+            () -> {
+              ImmutableMap<Path, String> clocks;
+              DaemonicParserState.StateCopy state;
+              // Hold the parser lock so that the clocks and the cache we save go together, but only
+              // for as long as it takes to copy them: commands wait on the lock to start.
+              synchronized (parser) {
+                long generation = parser.getParserStateGeneration();
+                synchronized (parserStateSnapshotLock) {
+                  if (generation == savedParserStateGeneration) {
+                    return;
+                  }
+                  savedParserStateGeneration = generation;
+                }
+                clocks = ImmutableMap.copyOf(Maps.transformValues(cursor, WatchmanCursor::get));
+                state = parser.copyParserState(rootCell);
+              }
+              try {
+                new DaemonicParserStateSnapshot(parserStateFingerprint, clocks, state.serialise())
+                    .write(getParserStateSnapshotPath());
+              } catch (IOException e) {
+                LOG.warn(e, "Failed to write parser state snapshot.");
+              }
+            });
+  }
+
   private static Optional<WebServer> createWebServer(
       BuckConfig config, ProjectFilesystem filesystem) {
     Optional<Integer> port = getValidWebServerPort(config);
@@ -219,6 +328,10 @@ final class Daemon implements Closeable {
     return persistentWorkerPools;
   }
 
+  JarContentsCache getJarContentsCache() {
+    return jarContentsCache;
+  }
+
   RuleKeyCacheRecycler<RuleKey> getDefaultRuleKeyFactoryCacheRecycler() {
     return defaultRuleKeyFactoryCacheRecycler;
   }
@@ -250,6 +363,12 @@ final class Daemon implements Closeable {
     // invalidations triggered by requests to parse build files or interrupted by client
     // disconnections.
     synchronized (parser) {
+      if (restoredParserStateSnapshot) {
+        // The saved clocks may come from a watchman instance which has since gone away, in which
+        // case there is no way of knowing what changed and the restored cache has to go.
+        watchmanFreshInstanceAction = WatchmanWatcher.FreshInstanceAction.POST_OVERFLOW_EVENT;
+        restoredParserStateSnapshot = false;
+      }
       parser.recordParseStartTime(eventBus);
       fileEventBus.post(commandEvent);
       // Track the file hash cache invalidation run time.
@@ -297,7 +416,22 @@ final class Daemon implements Closeable {
   @Override
   public void close() throws IOException {
     shutdownPersistentWorkerPools();
+    jarContentsCache.close();
     shutdownWebServer();
+    shutdownParserStateSnapshotExecutor();
+  }
+
+  private void shutdownParserStateSnapshotExecutor() {
+    if (parserStateSnapshotExecutor.isPresent()) {
+      try {
+        MostExecutors.shutdown(
+            parserStateSnapshotExecutor.get(),
+            PARSER_STATE_SNAPSHOT_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   private void shutdownPersistentWorkerPools() {
@@ -35,6 +35,7 @@ import com.facebook.buck.slb.ThriftOverHttpServiceConfig;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 import okhttp3.OkHttpClient;
@@ -82,6 +83,13 @@ public abstract class DistBuildFactory {
     ArtifactCacheFactory distBuildArtifactCacheFactory =
         params.getArtifactCacheFactory().cloneWith(state.getRootCell().getBuckConfig());
 
+    // Without a cache shared by the slaves on this machine, keep the sources in this one's buck-out,
+    // so that identical files are still fetched and stored once.
+    ProjectFilesystem filesystem = state.getRootCell().getFilesystem();
+    Path sourceCacheDir =
+        globalCacheDir.orElse(filesystem.resolve(filesystem.getBuckPaths().getCacheDir()));
+    Files.createDirectories(sourceCacheDir);
+
     DistBuildSlaveExecutor executor =
         new DistBuildSlaveExecutor(
             DistBuildExecutorArgs.builder()
@@ -98,7 +106,10 @@ public abstract class DistBuildFactory {
                 .setConsole(params.getConsole())
                 .setProvider(
                     new MultiSourceContentsProvider(
-                        service, fileMaterializationStatsTracker, globalCacheDir))
+                        service,
+                        executorService,
+                        fileMaterializationStatsTracker,
+                        Optional.of(sourceCacheDir)))
                 .setExecutors(params.getExecutors())
                 .setDistBuildMode(mode)
                 .setCoordinatorPort(coordinatorPort)
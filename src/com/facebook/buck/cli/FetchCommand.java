@@ -108,6 +108,7 @@ public class FetchCommand extends BuildCommand {
       try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
               getDefaultRuleKeyCacheScope(
                   params,
+                  actionGraphAndResolver.getResolver(),
                   new RuleKeyCacheRecycler.SettingsAffectingCache(
                       params.getBuckConfig().getKeySeed(),
                       actionGraphAndResolver.getActionGraph()));
@@ -116,12 +117,18 @@ public class FetchCommand extends BuildCommand {
                   localCachingBuildEngineDelegate,
                   pool.getExecutor(),
                   pool.getExecutor(),
+                  getConcurrencyLimit(params.getBuckConfig()).threadLimit,
                   new DefaultStepRunner(),
                   getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
                   cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getMultiFetchBatchSize(),
+                  cachingBuildEngineBuckConfig.isCachePrefetchEnabled(),
+                  cachingBuildEngineBuckConfig.isLazyMaterializationEnabled(),
+                  cachingBuildEngineBuckConfig.isStreamingArtifactUnzipEnabled(),
+                  getRuleDurationHistory(params, cachingBuildEngineBuckConfig),
                   actionGraphAndResolver.getResolver(),
                   params.getBuildInfoStoreManager(),
                   cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
@@ -49,6 +49,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Optional;
 
 /**
  * Utility that aids in creating the objects necessary to traverse the target graph with special
@@ -129,12 +130,18 @@ final class JavaBuildGraphProcessor {
               cachingBuildEngineDelegate,
               executorService,
               executorService,
+              concurrencyLimit.threadLimit,
               new DefaultStepRunner(),
               CachingBuildEngine.BuildMode.SHALLOW,
               cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
               cachingBuildEngineBuckConfig.getBuildDepFiles(),
               cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
               cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+              cachingBuildEngineBuckConfig.getMultiFetchBatchSize(),
+              cachingBuildEngineBuckConfig.isCachePrefetchEnabled(),
+              cachingBuildEngineBuckConfig.isLazyMaterializationEnabled(),
+              cachingBuildEngineBuckConfig.isStreamingArtifactUnzipEnabled(),
+              Optional.empty(),
               buildRuleResolver,
               params.getBuildInfoStoreManager(),
               cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
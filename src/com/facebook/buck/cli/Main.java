@@ -106,6 +106,7 @@ import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultProcessExecutor;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.InterruptionFailedException;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.Libc;
 import com.facebook.buck.util.PkillProcessManager;
 import com.facebook.buck.util.PrintStreamProcessExecutorFactory;
@@ -700,6 +701,7 @@ public final class Main {
         Optional<WebServer> webServer = daemon.flatMap(Daemon::getWebServer);
         Optional<ConcurrentMap<String, WorkerProcessPool>> persistentWorkerPools =
             daemon.map(Daemon::getPersistentWorkerPools);
+        Optional<JarContentsCache> jarContentsCache = daemon.map(Daemon::getJarContentsCache);
 
         TestConfig testConfig = new TestConfig(buckConfig);
         ArtifactCacheBuckConfig cacheBuckConfig = new ArtifactCacheBuckConfig(buckConfig);
@@ -707,6 +709,8 @@ public final class Main {
         ExecutorService diskIoExecutorService = MostExecutors.newSingleThreadExecutor("Disk I/O");
         ListeningExecutorService httpWriteExecutorService =
             getHttpWriteExecutorService(cacheBuckConfig);
+        ListeningExecutorService httpFetchExecutorService =
+            getHttpFetchExecutorService(cacheBuckConfig);
         ScheduledExecutorService counterAggregatorExecutor =
             Executors.newSingleThreadScheduledExecutor(
                 new CommandThreadFactory("CounterAggregatorThread"));
@@ -797,6 +801,7 @@ public final class Main {
                   filesystem,
                   executionEnvironment.getWifiSsid(),
                   httpWriteExecutorService,
+                  Optional.of(httpFetchExecutorService),
                   Optional.of(asyncCloseable));
 
           ProgressEstimator progressEstimator =
@@ -1003,6 +1008,7 @@ public final class Main {
                         .setVersionControlStatsGenerator(vcStatsGenerator)
                         .setProcessManager(processManager)
                         .setPersistentWorkerPools(persistentWorkerPools)
+                        .setJarContentsCache(jarContentsCache)
                         .setWebServer(webServer)
                         .setBuckConfig(buckConfig)
                         .setFileHashCache(fileHashCache)
@@ -1057,10 +1063,17 @@ public final class Main {
             // serialized with this one.)
             TRASH_CLEANER.startCleaningDirectory(filesystem.getBuckPaths().getTrashDir());
           }
+          if (daemon.isPresent()) {
+            // Save whatever this command parsed in the background, so that a restarted daemon
+            // doesn't have to parse it again.
+            daemon.get().saveParserStateSnapshot();
+          }
           // shut down the cached thread pools
           for (ExecutorPool p : executors.keySet()) {
             closeExecutorService(p.toString(), executors.get(p), EXECUTOR_SERVICES_TIMEOUT_SECONDS);
           }
+          closeExecutorService(
+              "HTTP Fetch", httpFetchExecutorService, EXECUTOR_SERVICES_TIMEOUT_SECONDS);
         }
         if (context.isPresent() && !rootCell.getBuckConfig().getFlushEventsBeforeExit()) {
           context.get().in.close(); // Avoid client exit triggering client disconnection handling.
@@ -1221,6 +1234,12 @@ public final class Main {
     }
   }
 
+  private static ListeningExecutorService getHttpFetchExecutorService(
+      ArtifactCacheBuckConfig buckConfig) {
+    return listeningDecorator(
+        MostExecutors.newMultiThreadExecutor("HTTP Fetch", (int) buckConfig.getThreadPoolSize()));
+  }
+
   private static ConsoleHandlerState.Writer createWriterForConsole(
       final AbstractConsoleEventBusListener console) {
     return new ConsoleHandlerState.Writer() {
@@ -42,6 +42,9 @@ import com.facebook.buck.rules.BuildRuleType;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.rules.HasTests;
+import com.facebook.buck.rules.ParallelRuleKeyCalculator;
+import com.facebook.buck.rules.RuleDepsCache;
+import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.SourcePathRuleFinder;
 import com.facebook.buck.rules.TargetGraph;
@@ -65,6 +68,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -75,6 +79,8 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -89,6 +95,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import org.immutables.value.Value;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -834,6 +842,11 @@ public class TargetsCommand extends AbstractCommand {
                     params.getFileHashCache(),
                     DefaultSourcePathResolver.from(ruleFinder),
                     ruleFinder));
+        computeRuleKeys(
+            params,
+            result.getResolver(),
+            ruleKeyFactory.get(),
+            targetGraphAndTargetNodes.getSecond());
       }
     }
 
@@ -882,6 +895,35 @@ public class TargetsCommand extends AbstractCommand {
     return builder.build();
   }
 
+  /**
+   * Computes the rule keys of the given targets' rules, and those of their transitive deps, in
+   * parallel, so that they are then served from {@code ruleKeyFactory}'s cache.
+   */
+  private static void computeRuleKeys(
+      CommandRunnerParams params,
+      BuildRuleResolver resolver,
+      DefaultRuleKeyFactory ruleKeyFactory,
+      Iterable<TargetNode<?, ?>> targetNodes)
+      throws BuildTargetException, InterruptedException {
+    ForkJoinPool pool = new ForkJoinPool(params.getBuckConfig().getNumThreads());
+    try {
+      ParallelRuleKeyCalculator<RuleKey> calculator =
+          new ParallelRuleKeyCalculator<>(pool, ruleKeyFactory, new RuleDepsCache(resolver));
+      List<ListenableFuture<RuleKey>> ruleKeys = new ArrayList<>();
+      for (TargetNode<?, ?> targetNode : targetNodes) {
+        ruleKeys.add(
+            calculator.calculate(
+                params.getBuckEventBus(), resolver.requireRule(targetNode.getBuildTarget())));
+      }
+      Futures.allAsList(ruleKeys).get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   private void showTransitiveRuleKeys(
       BuildRule root,
       DefaultRuleKeyFactory ruleKeyFactory,
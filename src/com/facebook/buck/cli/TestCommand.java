@@ -503,6 +503,7 @@ public class TestCommand extends BuildCommand {
           RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
               getDefaultRuleKeyCacheScope(
                   params,
+                  actionGraphAndResolver.getResolver(),
                   new RuleKeyCacheRecycler.SettingsAffectingCache(
                       params.getBuckConfig().getKeySeed(),
                       actionGraphAndResolver.getActionGraph()))) {
@@ -515,12 +516,18 @@ public class TestCommand extends BuildCommand {
                     artifactFetchService == null
                         ? pool.getExecutor()
                         : artifactFetchService.getExecutor(),
+                    getConcurrencyLimit(params.getBuckConfig()).threadLimit,
                     new DefaultStepRunner(),
                     getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
                     cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
                     cachingBuildEngineBuckConfig.getBuildDepFiles(),
                     cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                     cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                    cachingBuildEngineBuckConfig.getMultiFetchBatchSize(),
+                    cachingBuildEngineBuckConfig.isCachePrefetchEnabled(),
+                    cachingBuildEngineBuckConfig.isLazyMaterializationEnabled(),
+                    cachingBuildEngineBuckConfig.isStreamingArtifactUnzipEnabled(),
+                    getRuleDurationHistory(params, cachingBuildEngineBuckConfig),
                     actionGraphAndResolver.getResolver(),
                     params.getBuildInfoStoreManager(),
                     cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
@@ -204,6 +204,7 @@ public class Build implements Closeable {
     getExecutionContext()
         .getBuckEventBus()
         .post(BuildEvent.ruleCountCalculated(targetsToBuild, numRules));
+    buildEngine.planBuild(rulesToBuild);
 
     // Setup symlinks required when configuring the output path.
     createConfiguredBuckOutSymlinks();
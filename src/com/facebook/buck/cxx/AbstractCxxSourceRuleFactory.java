@@ -77,6 +77,7 @@ abstract class AbstractCxxSourceRuleFactory {
   private static final String COMPILE_FLAVOR_PREFIX = "compile-";
   private static final Flavor AGGREGATED_PREPROCESS_DEPS_FLAVOR =
       InternalFlavor.of("preprocessor-deps");
+  private static final String COMPILATION_CACHE_DIR_NAME = "cxx_compilation_cache";
 
   @Value.Parameter
   protected abstract ProjectFilesystem getProjectFilesystem();
@@ -199,9 +200,28 @@ abstract class AbstractCxxSourceRuleFactory {
                             getCxxPlatform(), getPathResolver()),
                         getSandboxTree(),
                         /* leadingIncludePaths */ Optional.empty());
+                if (getCxxBuckConfig().shouldScanIncludes()) {
+                  delegate = delegate.withIncludeScanner(CxxIncludeScanner.getShared());
+                }
+                Optional<CxxCompilationCache> compilationCache = getCompilationCache();
+                if (compilationCache.isPresent()) {
+                  delegate = delegate.withCompilationCache(compilationCache.get());
+                }
                 return new PreprocessorDelegateCacheValue(delegate);
               });
 
+  private Optional<CxxCompilationCache> getCompilationCache() {
+    return getCxxBuckConfig()
+        .getCompilationCacheMaxSize()
+        .map(
+            maxSize ->
+                CxxCompilationCache.forDirectory(
+                    getProjectFilesystem()
+                        .resolve(getProjectFilesystem().getBuckPaths().getBuckOut())
+                        .resolve(COMPILATION_CACHE_DIR_NAME),
+                    maxSize));
+  }
+
   /**
    * Returns the no-op rule that aggregates the preprocessor dependencies.
    *
@@ -703,6 +723,11 @@ abstract class AbstractCxxSourceRuleFactory {
       DepsBuilder depsBuilder,
       UnflavoredBuildTarget templateTarget,
       ImmutableSortedSet<Flavor> flavors) {
+    Optional<CxxCompilationCache> compilationCache = getCompilationCache();
+    PreprocessorDelegate cachingPreprocessorDelegate =
+        compilationCache.isPresent()
+            ? preprocessorDelegate.withCompilationCache(compilationCache.get())
+            : preprocessorDelegate;
     return (CxxPrecompiledHeader)
         getResolver()
             .computeIfAbsent(
@@ -732,7 +757,7 @@ abstract class AbstractCxxSourceRuleFactory {
                       getProjectFilesystem(),
                       buildRuleParamsWithAndDeps(depsBuilder.build()),
                       output,
-                      preprocessorDelegate,
+                      cachingPreprocessorDelegate,
                       compilerDelegate,
                       compilerFlags,
                       headerPath,
@@ -37,6 +37,7 @@ import com.facebook.buck.rules.Tool;
 import com.facebook.buck.rules.ToolProvider;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import com.facebook.buck.util.unit.SizeUnit;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
@@ -273,6 +274,22 @@ public class CxxBuckConfig {
     return delegate.getBooleanValue(cxxSection, "sandbox_sources", false);
   }
 
+  /**
+   * @return whether to find the headers used by a source with {@link CxxIncludeScanner}, rather
+   *     than from the dep file written by the compiler.
+   */
+  public boolean shouldScanIncludes() {
+    return delegate.getBooleanValue(cxxSection, "scan_includes", false);
+  }
+
+  /**
+   * @return the size above which the local cache of preprocessing compilations evicts its least
+   *     recently used entries, or absent if the cache is disabled.
+   */
+  public Optional<Long> getCompilationCacheMaxSize() {
+    return delegate.getValue(cxxSection, "compilation_cache_max_size").map(SizeUnit::parseBytes);
+  }
+
   public Archive.Contents getArchiveContents() {
     return delegate
         .getEnum(cxxSection, "archive_contents", Archive.Contents.class)
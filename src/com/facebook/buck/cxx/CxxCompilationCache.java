@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cxx;
+
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Keeps the outputs of preprocessing compilations, object files along with their dep files and
+ * precompiled headers, on local disk by the hash of everything the compilation reads: the source,
+ * the effective command line and the headers the source may include.
+ *
+ * <p>Unlike the artifact cache, which is looked up by rule key, an entry may be used by any rule
+ * which runs an equivalent compilation, such as a rule whose key changed for reasons which don't
+ * reach the compiler, or a precompiled header, which the artifact cache never stores. Entries are
+ * evicted least recently used first once their total size goes over a bound.
+ */
+public class CxxCompilationCache {
+
+  private static final Logger LOG = Logger.get(CxxCompilationCache.class);
+
+  private static final String TMP_PREFIX = "tmp";
+
+  /** One cache per directory, so that every rule of a daemon shares its index. */
+  private static final Map<Path, CxxCompilationCache> CACHES = new ConcurrentHashMap<>();
+
+  private final Path directory;
+  private final long maxSizeBytes;
+
+  @GuardedBy("this")
+  @Nullable
+  private Cache<HashCode, Long> entrySizes;
+
+  @VisibleForTesting
+  CxxCompilationCache(Path directory, long maxSizeBytes) {
+    Preconditions.checkArgument(directory.isAbsolute(), "%s is not absolute", directory);
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * @param directory the absolute path of the directory holding the cache.
+   * @param maxSizeBytes the size of the entries above which the least recently used are evicted.
+   */
+  public static CxxCompilationCache forDirectory(Path directory, long maxSizeBytes) {
+    // The daemon is restarted when the configuration changes, so the size doesn't either.
+    return CACHES.computeIfAbsent(directory, dir -> new CxxCompilationCache(dir, maxSizeBytes));
+  }
+
+  /** @return a lookup of the outputs of compilations whose inputs are hashed by the hasher. */
+  public Lookup newLookup(InputsHasher inputsHasher) {
+    return new Lookup(this, inputsHasher);
+  }
+
+  /**
+   * Copies the outputs stored under the key into place.
+   *
+   * @param outputs the absolute paths of the outputs, in the order they were stored in.
+   * @return whether there was an entry for the key.
+   */
+  public boolean fetch(HashCode key, ImmutableList<Path> outputs) throws IOException {
+    if (getEntrySizes().getIfPresent(key) == null) {
+      return false;
+    }
+
+    Path entryDir = getEntryDir(key);
+    try {
+      for (int i = 0; i < outputs.size(); i++) {
+        Path output = outputs.get(i);
+        Files.createDirectories(output.getParent());
+        // Copy under a temporary name first, so that a failed fetch leaves no partial output.
+        Path tmp = Files.createTempFile(output.getParent(), TMP_PREFIX, "");
+        try {
+          Files.copy(entryDir.resolve(String.valueOf(i)), tmp, StandardCopyOption.REPLACE_EXISTING);
+          Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(tmp);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // Evicted in the meantime, or removed behind our back.
+      LOG.debug(e, "Entry %s went away while being fetched.", key);
+      getEntrySizes().invalidate(key);
+      return false;
+    }
+
+    try {
+      // Eviction order survives restarts through the modification times of the entries.
+      Files.setLastModifiedTime(entryDir, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      LOG.debug(e, "Unable to touch %s.", entryDir);
+    }
+    return true;
+  }
+
+  /**
+   * Stores copies of the outputs under the key, unless there already is an entry for it.
+   *
+   * @param outputs the absolute paths of the outputs, in the order they will be fetched in.
+   */
+  public void store(HashCode key, ImmutableList<Path> outputs) throws IOException {
+    Cache<HashCode, Long> entrySizes = getEntrySizes();
+    if (entrySizes.getIfPresent(key) != null) {
+      return;
+    }
+
+    // Fill a temporary directory first, so that an entry appears with all of its outputs or not at
+    // all.
+    Path tmpDir = Files.createTempDirectory(directory, TMP_PREFIX);
+    long size = 0;
+    try {
+      for (int i = 0; i < outputs.size(); i++) {
+        Path stored = tmpDir.resolve(String.valueOf(i));
+        Files.copy(outputs.get(i), stored);
+        size += Files.size(stored);
+      }
+      Path entryDir = getEntryDir(key);
+      Files.createDirectories(entryDir.getParent());
+      Files.move(tmpDir, entryDir, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      LOG.debug("Entry %s was stored by another process.", key);
+    } catch (IOException e) {
+      // Some filesystems report an existing target of a directory move differently.
+      if (!Files.isDirectory(getEntryDir(key))) {
+        throw e;
+      }
+    } finally {
+      MoreFiles.deleteRecursivelyIfExists(tmpDir);
+    }
+    entrySizes.put(key, size);
+  }
+
+  /** Loads the index of the entries from disk the first time it is needed. */
+  private synchronized Cache<HashCode, Long> getEntrySizes() throws IOException {
+    if (entrySizes != null) {
+      return entrySizes;
+    }
+
+    Files.createDirectories(directory);
+    List<StoredEntry> storedEntries = new ArrayList<>();
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+      for (Path child : children) {
+        if (child.getFileName().toString().startsWith(TMP_PREFIX)) {
+          // Left over by a process which died while storing.
+          MoreFiles.deleteRecursivelyIfExists(child);
+          continue;
+        }
+        try (DirectoryStream<Path> entryDirs = Files.newDirectoryStream(child)) {
+          for (Path entryDir : entryDirs) {
+            storedEntries.add(
+                new StoredEntry(
+                    HashCode.fromString(entryDir.getFileName().toString()),
+                    Files.getLastModifiedTime(entryDir),
+                    getSize(entryDir)));
+          }
+        }
+      }
+    }
+
+    Cache<HashCode, Long> loaded =
+        CacheBuilder.newBuilder()
+            // One segment, so that the least recently used entry of the whole cache goes first.
+            .concurrencyLevel(1)
+            .maximumWeight(maxSizeBytes)
+            .weigher((HashCode key, Long size) -> (int) Math.min(size, Integer.MAX_VALUE))
+            .removalListener(this::deleteEvictedEntry)
+            .build();
+    storedEntries.sort(Comparator.comparing(StoredEntry::getLastUsed));
+    for (StoredEntry storedEntry : storedEntries) {
+      loaded.put(storedEntry.getKey(), storedEntry.getSize());
+    }
+    LOG.debug("Loaded %d entries from %s.", storedEntries.size(), directory);
+    entrySizes = loaded;
+    return entrySizes;
+  }
+
+  private void deleteEvictedEntry(RemovalNotification<HashCode, Long> notification) {
+    if (!notification.wasEvicted() || notification.getKey() == null) {
+      return;
+    }
+    try {
+      MoreFiles.deleteRecursivelyIfExists(getEntryDir(notification.getKey()));
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to delete evicted entry %s.", notification.getKey());
+    }
+  }
+
+  private Path getEntryDir(HashCode key) {
+    String name = key.toString();
+    return directory.resolve(name.substring(0, 2)).resolve(name);
+  }
+
+  private static long getSize(Path entryDir) throws IOException {
+    long size = 0;
+    try (DirectoryStream<Path> outputs = Files.newDirectoryStream(entryDir)) {
+      for (Path output : outputs) {
+        size += Files.size(output);
+      }
+    }
+    return size;
+  }
+
+  /** Hashes the files a compilation reads, when they can be told without running it. */
+  public interface InputsHasher {
+    /** @return the hash, or absent if the compilation mustn't be cached. */
+    Optional<HashCode> hashInputs() throws IOException;
+  }
+
+  /** Where a compilation's outputs may be found, and how to hash the files it reads. */
+  public static final class Lookup {
+    private final CxxCompilationCache cache;
+    private final InputsHasher inputsHasher;
+
+    private Lookup(CxxCompilationCache cache, InputsHasher inputsHasher) {
+      this.cache = cache;
+      this.inputsHasher = inputsHasher;
+    }
+
+    public CxxCompilationCache getCache() {
+      return cache;
+    }
+
+    public Optional<HashCode> hashInputs() throws IOException {
+      return inputsHasher.hashInputs();
+    }
+  }
+
+  private static final class StoredEntry {
+    private final HashCode key;
+    private final FileTime lastUsed;
+    private final long size;
+
+    private StoredEntry(HashCode key, FileTime lastUsed, long size) {
+      this.key = key;
+      this.lastUsed = lastUsed;
+      this.size = size;
+    }
+
+    private HashCode getKey() {
+      return key;
+    }
+
+    private FileTime getLastUsed() {
+      return lastUsed;
+    }
+
+    private long getSize() {
+      return size;
+    }
+  }
+}
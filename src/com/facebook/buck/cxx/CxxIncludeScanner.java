@@ -0,0 +1,453 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cxx;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Finds the headers a source file depends on by following its {@code #include}, {@code #import}
+ * and {@code #include_next} directives, without running the preprocessor.
+ *
+ * <p>Conditional compilation isn't evaluated, and an include is followed into every search path
+ * which has a matching header rather than just the first one. The headers found are therefore a
+ * superset of those the preprocessor uses. That is what dep-file rule keys need: a header too many
+ * only costs a cache hit when it changes, a header too few would reuse stale outputs. If a
+ * directive names its header through a macro, the scan gives up, as the header can't be known
+ * without preprocessing.
+ *
+ * <p>The directives of each file are cached by the hash of its contents, so that the headers which
+ * many sources include are only tokenized once.
+ */
+public class CxxIncludeScanner {
+
+  private static final Logger LOG = Logger.get(CxxIncludeScanner.class);
+
+  private static final long DEFAULT_MAX_CACHED_FILES = 100_000;
+
+  /** A scanner whose cache is shared by all the rules of this process. */
+  private static final CxxIncludeScanner SHARED = new CxxIncludeScanner(DEFAULT_MAX_CACHED_FILES);
+
+  private final Cache<HashCode, ImmutableList<Include>> includesByContentHash;
+
+  CxxIncludeScanner(long maxCachedFiles) {
+    this.includesByContentHash = CacheBuilder.newBuilder().maximumSize(maxCachedFiles).build();
+  }
+
+  public static CxxIncludeScanner getShared() {
+    return SHARED;
+  }
+
+  /**
+   * @param roots the source and any header included by the command line, such as the prefix
+   *     header.
+   * @param searchPaths where to look for included headers, after the directory of the including
+   *     file for quoted includes.
+   * @return the absolute paths of all the headers which the roots may include, directly or not, or
+   *     absent if that can't be told without preprocessing.
+   */
+  public Optional<ImmutableSet<Path>> scan(
+      Iterable<Path> roots, ImmutableList<SearchPath> searchPaths) throws IOException {
+    ImmutableSet<Path> rootSet = normalizeRoots(roots);
+    Optional<ImmutableSortedMap<Path, HashCode>> files = walk(rootSet, searchPaths);
+    if (!files.isPresent()) {
+      return Optional.empty();
+    }
+
+    ImmutableSet.Builder<Path> headers = ImmutableSet.builder();
+    for (Path path : files.get().keySet()) {
+      if (!rootSet.contains(path)) {
+        headers.add(path);
+      }
+    }
+    return Optional.of(headers.build());
+  }
+
+  /**
+   * Hashes the paths and contents of the roots and of all the headers they may include, so that
+   * the hash changes whenever a header is added to, removed from or changed in what a compilation
+   * of the roots may read.
+   *
+   * @return the hash, or absent if the headers can't be told without preprocessing.
+   * @see #scan(Iterable, ImmutableList)
+   */
+  public Optional<HashCode> hashClosure(Iterable<Path> roots, ImmutableList<SearchPath> searchPaths)
+      throws IOException {
+    Optional<ImmutableSortedMap<Path, HashCode>> files = walk(normalizeRoots(roots), searchPaths);
+    if (!files.isPresent()) {
+      return Optional.empty();
+    }
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Map.Entry<Path, HashCode> entry : files.get().entrySet()) {
+      hasher.putString(entry.getKey().toString(), StandardCharsets.UTF_8);
+      hasher.putBytes(entry.getValue().asBytes());
+    }
+    return Optional.of(hasher.hash());
+  }
+
+  private static ImmutableSet<Path> normalizeRoots(Iterable<Path> roots) {
+    ImmutableSet.Builder<Path> normalizedRoots = ImmutableSet.builder();
+    for (Path root : roots) {
+      Preconditions.checkArgument(root.isAbsolute(), "%s is not absolute", root);
+      normalizedRoots.add(root.normalize());
+    }
+    return normalizedRoots.build();
+  }
+
+  /** @return the content hashes of the roots and of all the headers they may include. */
+  private Optional<ImmutableSortedMap<Path, HashCode>> walk(
+      ImmutableSet<Path> roots, ImmutableList<SearchPath> searchPaths) throws IOException {
+    Map<Path, HashCode> visited = new HashMap<>();
+    Set<Path> seen = new HashSet<>(roots);
+    Deque<Path> remaining = new ArrayDeque<>(roots);
+
+    while (!remaining.isEmpty()) {
+      Path file = remaining.remove();
+      byte[] contents = Files.readAllBytes(file);
+      HashCode contentHash = Hashing.sha1().hashBytes(contents);
+      visited.put(file, contentHash);
+      for (Include include : getIncludes(contentHash, contents)) {
+        if (include.getKind() == Include.Kind.COMPUTED) {
+          LOG.verbose("%s has a computed include, not scanning it.", file);
+          return Optional.empty();
+        }
+        if (include.getKind() == Include.Kind.QUOTED) {
+          Path candidate = file.resolveSibling(include.getName()).normalize();
+          if (Files.isRegularFile(candidate) && seen.add(candidate)) {
+            remaining.add(candidate);
+          }
+        }
+        for (SearchPath searchPath : searchPaths) {
+          Optional<Path> candidate = searchPath.find(include.getName());
+          if (candidate.isPresent() && seen.add(candidate.get())) {
+            remaining.add(candidate.get());
+          }
+        }
+      }
+    }
+
+    return Optional.of(ImmutableSortedMap.copyOf(visited));
+  }
+
+  private ImmutableList<Include> getIncludes(HashCode contentHash, byte[] contents) {
+    ImmutableList<Include> includes = includesByContentHash.getIfPresent(contentHash);
+    if (includes == null) {
+      // Only ASCII matters to the directives, and ISO-8859-1 maps any byte to a char.
+      includes = parseIncludes(new String(contents, StandardCharsets.ISO_8859_1));
+      includesByContentHash.put(contentHash, includes);
+    }
+    return includes;
+  }
+
+  /** @return the include directives of the given source, in order. */
+  static ImmutableList<Include> parseIncludes(String source) {
+    ImmutableList.Builder<Include> includes = ImmutableList.builder();
+    Tokenizer tokenizer = new Tokenizer(source);
+    while (tokenizer.nextLine()) {
+      if (!tokenizer.skipTo('#')) {
+        continue;
+      }
+      String directive = tokenizer.readIdentifier();
+      if (!directive.equals("include")
+          && !directive.equals("import")
+          && !directive.equals("include_next")) {
+        continue;
+      }
+      int delimiter = tokenizer.peekNonBlank();
+      if (delimiter == '"' || delimiter == '<') {
+        Optional<String> name = tokenizer.readDelimited(delimiter == '"' ? '"' : '>');
+        if (name.isPresent()) {
+          includes.add(
+              new Include(
+                  delimiter == '"' ? Include.Kind.QUOTED : Include.Kind.ANGLED, name.get()));
+          continue;
+        }
+      }
+      includes.add(new Include(Include.Kind.COMPUTED, ""));
+    }
+    return includes.build();
+  }
+
+  /** Where to look for included headers. */
+  public interface SearchPath {
+    /** @return the absolute path of the header with the given include name, if there is one. */
+    Optional<Path> find(String name);
+
+    /** A directory which headers are included relative to, like a {@code -I} flag. */
+    static SearchPath ofDirectory(Path directory) {
+      Preconditions.checkArgument(directory.isAbsolute(), "%s is not absolute", directory);
+      return name -> {
+        Path candidate = directory.resolve(name).normalize();
+        return Files.isRegularFile(candidate) ? Optional.of(candidate) : Optional.empty();
+      };
+    }
+
+    /**
+     * A mapping from include names, with unix separators, to headers. Like a header map or the
+     * links of a header symlink tree.
+     */
+    static SearchPath ofHeaderMap(ImmutableMap<String, Path> headers) {
+      return name ->
+          Optional.ofNullable(headers.get(name)).map(Path::normalize).filter(Files::isRegularFile);
+    }
+  }
+
+  /** An include directive. */
+  static final class Include {
+    enum Kind {
+      /** {@code #include "name"}, looked up next to the including file first. */
+      QUOTED,
+      /** {@code #include <name>}. */
+      ANGLED,
+      /** {@code #include MACRO}, which can't be resolved without preprocessing. */
+      COMPUTED,
+    }
+
+    private final Kind kind;
+    private final String name;
+
+    Include(Kind kind, String name) {
+      this.kind = kind;
+      this.name = name;
+    }
+
+    Kind getKind() {
+      return kind;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Include)) {
+        return false;
+      }
+      Include that = (Include) other;
+      return kind == that.kind && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(kind, name);
+    }
+
+    @Override
+    public String toString() {
+      return kind + "(" + name + ")";
+    }
+  }
+
+  /**
+   * Walks a source line by line, skipping comments, line continuations and the contents of string
+   * and character literals, which is all it takes to find the preprocessor directives.
+   */
+  private static class Tokenizer {
+    private static final int END = -1;
+    private static final int NEWLINE = '\n';
+
+    private final String source;
+    private int position = 0;
+    private boolean isAtLineStart = true;
+
+    private Tokenizer(String source) {
+      this.source = source;
+    }
+
+    /** Moves to the start of the next line, unless already there. */
+    private boolean nextLine() {
+      if (!isAtLineStart) {
+        int c;
+        do {
+          c = next();
+        } while (c != NEWLINE && c != END);
+      }
+      isAtLineStart = true;
+      return peekRaw() != END;
+    }
+
+    /** Skips blanks to the given character at the start of a line and consumes it. */
+    private boolean skipTo(char expected) {
+      isAtLineStart = false;
+      if (peekNonBlank() != expected) {
+        return false;
+      }
+      next();
+      return true;
+    }
+
+    private String readIdentifier() {
+      peekNonBlank();
+      StringBuilder identifier = new StringBuilder();
+      while (true) {
+        int c = peekRaw();
+        if (c == END || !(Character.isLetterOrDigit(c) || c == '_')) {
+          return identifier.toString();
+        }
+        identifier.append((char) next());
+      }
+    }
+
+    /** Reads up to the closing delimiter, which must be on the same line. */
+    private Optional<String> readDelimited(char closing) {
+      // Not next(), which would skip a quoted name as a string literal.
+      consumeRaw();
+      StringBuilder contents = new StringBuilder();
+      while (true) {
+        int c = peekRaw();
+        if (c == END || c == NEWLINE) {
+          return Optional.empty();
+        }
+        consumeRaw();
+        if (c == closing) {
+          return Optional.of(contents.toString());
+        }
+        contents.append((char) c);
+      }
+    }
+
+    /** Skips blanks and comments on the current line, and returns the next character. */
+    private int peekNonBlank() {
+      while (true) {
+        int c = peekRaw();
+        if (c == ' ' || c == '\t' || c == '\f' || c == '\u000b' || c == '\r') {
+          next();
+        } else if (c == '/' && (peekRawAt(1) == '*' || peekRawAt(1) == '/')) {
+          // A block comment may span lines, in which case the preprocessor may or may not see a
+          // directive after it. Assuming it does only risks finding a header too many.
+          next();
+        } else {
+          return c;
+        }
+      }
+    }
+
+    /**
+     * @return the next character, or a space for a whole comment. String and character literals
+     *     are consumed whole too, so that what they contain isn't taken for comments.
+     */
+    private int next() {
+      int c = peekRaw();
+      if (c == END) {
+        return END;
+      }
+      if (c == '/' && peekRawAt(1) == '/') {
+        // A line comment runs to the end of the line, continuations included.
+        while (peekRaw() != NEWLINE && peekRaw() != END) {
+          consumeRaw();
+        }
+        return ' ';
+      }
+      if (c == '/' && peekRawAt(1) == '*') {
+        consumeRaw();
+        consumeRaw();
+        while (peekRaw() != END && !(peekRaw() == '*' && peekRawAt(1) == '/')) {
+          consumeRaw();
+        }
+        consumeRaw();
+        consumeRaw();
+        return ' ';
+      }
+      consumeRaw();
+      if (c == '"' || c == '\'') {
+        skipLiteral((char) c);
+      }
+      return c;
+    }
+
+    private void skipLiteral(char quote) {
+      while (true) {
+        int c = peekRaw();
+        if (c == END || c == NEWLINE) {
+          // Unterminated, e.g. an apostrophe in an #error message.
+          return;
+        }
+        consumeRaw();
+        if (c == '\\') {
+          if (peekRaw() != END) {
+            consumeRaw();
+          }
+        } else if (c == quote) {
+          return;
+        }
+      }
+    }
+
+    /** @return the next character, skipping line continuations. */
+    private int peekRaw() {
+      return peekRawAt(0);
+    }
+
+    private int peekRawAt(int offset) {
+      int index = position;
+      while (true) {
+        index = skipContinuations(index);
+        if (index >= source.length()) {
+          return END;
+        }
+        if (offset == 0) {
+          return source.charAt(index);
+        }
+        offset--;
+        index++;
+      }
+    }
+
+    private void consumeRaw() {
+      position = skipContinuations(position);
+      if (position < source.length()) {
+        position++;
+      }
+    }
+
+    private int skipContinuations(int index) {
+      while (index < source.length() && source.charAt(index) == '\\') {
+        if (source.startsWith("\n", index + 1)) {
+          index += 2;
+        } else if (source.startsWith("\r\n", index + 1)) {
+          index += 3;
+        } else {
+          break;
+        }
+      }
+      return index;
+    }
+  }
+}
@@ -46,6 +46,7 @@ import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -74,6 +75,10 @@ import java.util.function.Predicate;
  * a significant problem. The PCH file is only generated when a source file needs to be compiled,
  * anyway.
  *
+ * <p>They may be kept in the local {@link CxxCompilationCache} though, which never leaves the
+ * machine and whose keys include the project root. The preprocessor is told not to validate
+ * precompiled headers where it supports that, so the mtimes of the headers don't matter.
+ *
  * <p>Additionally, since PCH files contain information like timestamps, absolute paths, and
  * (effectively) random unique IDs, they are not amenable to the InputBasedRuleKey optimization when
  * used to compile another file.
@@ -132,8 +137,7 @@ public class CxxPrecompiledHeader extends AbstractBuildRuleWithDeclaredAndExtraD
   @Override
   public ImmutableList<Step> getBuildSteps(
       BuildContext context, BuildableContext buildableContext) {
-    Path scratchDir =
-        BuildTargets.getScratchPath(getProjectFilesystem(), getBuildTarget(), "%s_tmp");
+    Path scratchDir = getScratchPath();
 
     return new ImmutableList.Builder<Step>()
         .add(
@@ -148,6 +152,19 @@ public class CxxPrecompiledHeader extends AbstractBuildRuleWithDeclaredAndExtraD
         .build();
   }
 
+  private Path getScratchPath() {
+    return BuildTargets.getScratchPath(getProjectFilesystem(), getBuildTarget(), "%s_tmp");
+  }
+
+  /**
+   * @return the key of the precompiled header in the compilation cache, or absent if it isn't
+   *     cached.
+   */
+  public Optional<HashCode> getCompilationCacheKey(SourcePathResolver resolver)
+      throws IOException {
+    return makeMainStep(resolver, getScratchPath()).getCacheKey();
+  }
+
   public SourcePath getInput() {
     return input;
   }
@@ -275,6 +292,16 @@ public class CxxPrecompiledHeader extends AbstractBuildRuleWithDeclaredAndExtraD
         scratchDir,
         /* useArgFile*/ true,
         compilerDelegate.getCompiler(),
-        Optional.empty());
+        Optional.empty(),
+        preprocessorDelegate
+            .getCompilationCache()
+            .map(
+                cache ->
+                    cache.newLookup(
+                        () ->
+                            preprocessorDelegate.hashIncludeClosure(
+                                resolver.getAbsolutePath(input),
+                                getCxxIncludePaths(),
+                                compilerFlags))));
   }
 }
@@ -45,6 +45,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Optional;
@@ -201,6 +203,11 @@ public class CxxPreprocessAndCompile extends AbstractBuildRuleWithDeclaredAndExt
 
     Path relativeInputPath = getRelativeInputPath(resolver);
 
+    Optional<CxxCompilationCache.Lookup> cacheLookup =
+        preprocessDelegate
+            .flatMap(PreprocessorDelegate::getCompilationCache)
+            .map(cache -> cache.newLookup(() -> hashCompilationInputs(resolver)));
+
     return new CxxPreprocessAndCompileStep(
         getProjectFilesystem(),
         preprocessDelegate.isPresent()
@@ -226,7 +233,33 @@ public class CxxPreprocessAndCompile extends AbstractBuildRuleWithDeclaredAndExt
                 .setTarget(getBuildTarget())
                 .setSourcePath(relativeInputPath)
                 .setOutputPath(output)
-                .build()));
+                .build()),
+        cacheLookup);
+  }
+
+  /** @return the hash of what the compilation reads, for the key of the compilation cache. */
+  private Optional<HashCode> hashCompilationInputs(SourcePathResolver resolver)
+      throws IOException {
+    Optional<HashCode> closureHash =
+        preprocessDelegate
+            .get()
+            .hashIncludeClosure(
+                resolver.getAbsolutePath(input),
+                CxxIncludePaths.empty(),
+                compilerDelegate.getCompilerFlags());
+    if (!closureHash.isPresent() || !precompiledHeaderRule.isPresent()) {
+      return closureHash;
+    }
+
+    // A precompiled header holds timestamps, so objects built with equivalent ones are keyed by
+    // what the precompiled header was built from rather than by its contents.
+    Optional<HashCode> precompiledHeaderKey =
+        precompiledHeaderRule.get().getCompilationCacheKey(resolver);
+    if (!precompiledHeaderKey.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        Hashing.combineOrdered(ImmutableList.of(closureHash.get(), precompiledHeaderKey.get())));
   }
 
   public Path getRelativeInputPath(SourcePathResolver resolver) {
@@ -345,20 +378,31 @@ public class CxxPreprocessAndCompile extends AbstractBuildRuleWithDeclaredAndExt
 
     // If present, include all inputs coming from the preprocessor tool.
     if (preprocessDelegate.isPresent()) {
+      // The include scanner, when enabled, looks at the source the compiler was given.
+      Optional<ImmutableList<Path>> scannedDependencies =
+          preprocessDelegate
+              .get()
+              .scanDependencies(
+                  context.getSourcePathResolver().getAbsolutePath(input),
+                  compilerDelegate.getCompilerFlags());
       Iterable<Path> dependencies;
-      try {
-        dependencies =
-            Depfiles.parseAndVerifyDependencies(
-                context.getEventBus(),
-                getProjectFilesystem(),
-                preprocessDelegate.get().getHeaderPathNormalizer(),
-                preprocessDelegate.get().getHeaderVerification(),
-                getDepFilePath(),
-                getRelativeInputPath(context.getSourcePathResolver()),
-                output,
-                compilerDelegate.getDependencyTrackingMode());
-      } catch (Depfiles.HeaderVerificationException e) {
-        throw new HumanReadableException(e);
+      if (scannedDependencies.isPresent()) {
+        dependencies = scannedDependencies.get();
+      } else {
+        try {
+          dependencies =
+              Depfiles.parseAndVerifyDependencies(
+                  context.getEventBus(),
+                  getProjectFilesystem(),
+                  preprocessDelegate.get().getHeaderPathNormalizer(),
+                  preprocessDelegate.get().getHeaderVerification(),
+                  getDepFilePath(),
+                  getRelativeInputPath(context.getSourcePathResolver()),
+                  output,
+                  compilerDelegate.getDependencyTrackingMode());
+        } catch (Depfiles.HeaderVerificationException e) {
+          throw new HumanReadableException(e);
+        }
       }
 
       inputs.addAll(preprocessDelegate.get().getInputsAfterBuildingLocally(dependencies));
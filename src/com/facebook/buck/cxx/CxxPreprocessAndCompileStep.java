@@ -20,6 +20,7 @@ import com.facebook.buck.cxx.platform.Compiler;
 import com.facebook.buck.cxx.platform.DebugPathSanitizer;
 import com.facebook.buck.cxx.platform.DependencyTrackingMode;
 import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.step.ExecutionContext;
@@ -31,19 +32,31 @@ import com.facebook.buck.util.Escaper;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessExecutorParams;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -70,11 +83,25 @@ public class CxxPreprocessAndCompileStep implements Step {
 
   private final boolean useArgfile;
 
+  /** If present, where the outputs may be fetched from instead of running the compiler. */
+  private final Optional<CxxCompilationCache.Lookup> cacheLookup;
+
   private static final FileLastModifiedDateContentsScrubber FILE_LAST_MODIFIED_DATE_SCRUBBER =
       new FileLastModifiedDateContentsScrubber();
 
   private static final String DEPENDENCY_OUTPUT_PREFIX = "Note: including file:";
 
+  /** Changing this invalidates the entries of the compilation cache. */
+  private static final int CACHE_KEY_VERSION = 2;
+
+  /** Content hashes of the files of toolchains, by their path and attributes. */
+  private static final Cache<String, HashCode> TOOL_CONTENT_HASHES =
+      CacheBuilder.newBuilder().maximumSize(1024).build();
+
+  /** Flags which make the compiler write outputs besides the object file and the dep file. */
+  private static final ImmutableSet<String> FLAGS_WITH_EXTRA_OUTPUTS =
+      ImmutableSet.of("-ftest-coverage", "--coverage", "-gsplit-dwarf", "-save-temps");
+
   public CxxPreprocessAndCompileStep(
       ProjectFilesystem filesystem,
       Operation operation,
@@ -88,7 +115,8 @@ public class CxxPreprocessAndCompileStep implements Step {
       Path scratchDir,
       boolean useArgfile,
       Compiler compiler,
-      Optional<CxxLogInfo> cxxLogInfo) {
+      Optional<CxxLogInfo> cxxLogInfo,
+      Optional<CxxCompilationCache.Lookup> cacheLookup) {
     this.filesystem = filesystem;
     this.operation = operation;
     this.output = output;
@@ -102,6 +130,7 @@ public class CxxPreprocessAndCompileStep implements Step {
     this.useArgfile = useArgfile;
     this.compiler = compiler;
     this.cxxLogInfo = cxxLogInfo;
+    this.cacheLookup = cacheLookup;
   }
 
   @Override
@@ -145,12 +174,14 @@ public class CxxPreprocessAndCompileStep implements Step {
     return filesystem.resolve(scratchDir).resolve("ppandcompile.argsfile");
   }
 
+  private String getInputLanguage() {
+    return operation == Operation.GENERATE_PCH
+        ? inputType.getPrecompiledHeaderLanguage().get()
+        : inputType.getLanguage();
+  }
+
   @VisibleForTesting
   ImmutableList<String> getArguments(boolean allowColorsInDiagnostics) {
-    String inputLanguage =
-        operation == Operation.GENERATE_PCH
-            ? inputType.getPrecompiledHeaderLanguage().get()
-            : inputType.getLanguage();
     return ImmutableList.<String>builder()
         .addAll(command.getArguments())
         .addAll(
@@ -158,10 +189,7 @@ public class CxxPreprocessAndCompileStep implements Step {
                     ? compiler.getFlagsForColorDiagnostics()
                     : Optional.<ImmutableList<String>>empty())
                 .orElseGet(ImmutableList::of))
-        .addAll(compiler.languageArgs(inputLanguage))
-        .addAll(
-            sanitizer.getCompilationFlags(
-                compiler, filesystem.getRootPath(), headerPathNormalizer.getPrefixMap()))
+        .addAll(getArgumentsAffectingOutputs())
         .add("-c")
         .addAll(
             depFile
@@ -172,7 +200,110 @@ public class CxxPreprocessAndCompileStep implements Step {
         .build();
   }
 
-  private int executeCompilation(ExecutionContext context)
+  /**
+   * @return the arguments besides those of the command which go before the input. Along with those
+   *     of the command, these are the ones which decide what the outputs are.
+   */
+  private ImmutableList<String> getArgumentsAffectingOutputs() {
+    return ImmutableList.<String>builder()
+        .addAll(compiler.languageArgs(getInputLanguage()))
+        .addAll(
+            sanitizer.getCompilationFlags(
+                compiler, filesystem.getRootPath(), headerPathNormalizer.getPrefixMap()))
+        .build();
+  }
+
+  /**
+   * @return the key of the outputs in the compilation cache, or absent if they mustn't be cached.
+   *     The paths of the outputs aren't part of it, as they don't change their contents, so rules
+   *     with equivalent compilations share the key.
+   */
+  Optional<HashCode> getCacheKey() throws IOException {
+    if (!cacheLookup.isPresent()
+        || command.getArguments().stream().anyMatch(FLAGS_WITH_EXTRA_OUTPUTS::contains)) {
+      return Optional.empty();
+    }
+    Optional<HashCode> inputsHash = cacheLookup.get().hashInputs();
+    if (!inputsHash.isPresent()) {
+      return Optional.empty();
+    }
+
+    ImmutableList<String> commandPrefix = command.getCommandPrefix();
+    if (commandPrefix.isEmpty() || !isFile(commandPrefix.get(0))) {
+      // The tool can't be hashed if it's looked up on the PATH at run time.
+      return Optional.empty();
+    }
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(CACHE_KEY_VERSION);
+    hasher.putString(operation.toString(), StandardCharsets.UTF_8);
+    // Precompiled headers record absolute paths.
+    putString(hasher, filesystem.getRootPath().toAbsolutePath().toString());
+    putString(hasher, compiler.getClass().getName());
+    for (String part : commandPrefix) {
+      putString(hasher, part);
+      // Like the rule key of a tool, which hashes the files it runs, rather than their paths.
+      if (isFile(part)) {
+        hasher.putBytes(hashToolContents(filesystem.getPath(part)).asBytes());
+      }
+    }
+    for (String argument :
+        Iterables.concat(command.getArguments(), getArgumentsAffectingOutputs())) {
+      putString(hasher, argument);
+    }
+    // Variables like SDKROOT and DEVELOPER_DIR change what the compiler produces.
+    for (Map.Entry<String, String> entry :
+        ImmutableSortedMap.copyOf(command.getEnvironment()).entrySet()) {
+      putString(hasher, entry.getKey());
+      putString(hasher, entry.getValue());
+    }
+    putString(hasher, input.toString());
+    hasher.putBoolean(depFile.isPresent());
+    putString(hasher, compiler.getDependencyTrackingMode().toString());
+    hasher.putBytes(inputsHash.get().asBytes());
+    return Optional.of(hasher.hash());
+  }
+
+  private boolean isFile(String commandPart) {
+    Path path = filesystem.getPath(commandPart);
+    return path.isAbsolute() && Files.isRegularFile(path);
+  }
+
+  /**
+   * Hashes the contents of a file of the toolchain. The hash is kept for as long as the file's
+   * identity, size and modification time stay the same, since compilers are large and run often.
+   */
+  private static HashCode hashToolContents(Path tool) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(tool, BasicFileAttributes.class);
+    String identity =
+        String.join(
+            "\0",
+            tool.toString(),
+            String.valueOf(attributes.fileKey()),
+            String.valueOf(attributes.size()),
+            String.valueOf(attributes.lastModifiedTime().toMillis()));
+    try {
+      return TOOL_CONTENT_HASHES.get(
+          identity, () -> MorePaths.asByteSource(tool).hash(Hashing.sha1()));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IllegalStateException("Unexpected cause for ExecutionException: ", e);
+    }
+  }
+
+  private static void putString(Hasher hasher, String string) {
+    hasher.putString(string, StandardCharsets.UTF_8);
+    hasher.putBoolean(false); // separator
+  }
+
+  private ImmutableList<Path> getCachedOutputs() {
+    ImmutableList.Builder<Path> outputs = ImmutableList.builder();
+    outputs.add(filesystem.resolve(output));
+    depFile.ifPresent(path -> outputs.add(filesystem.resolve(path)));
+    return outputs.build();
+  }
+
+  private ProcessExecutor.Result executeCompilation(ExecutionContext context)
       throws IOException, InterruptedException {
     ProcessExecutorParams.Builder builder = makeSubprocessBuilder(context);
 
@@ -261,7 +392,7 @@ public class CxxPreprocessAndCompileStep implements Step {
                   err));
     }
 
-    return exitCode;
+    return new ProcessExecutor.Result(exitCode, "", err);
   }
 
   private static boolean isShowIncludeLine(String line) {
@@ -286,7 +417,15 @@ public class CxxPreprocessAndCompileStep implements Step {
       throws IOException, InterruptedException {
     LOG.debug("%s %s -> %s", operation.toString().toLowerCase(), input, output);
 
-    int exitCode = executeCompilation(context);
+    Optional<HashCode> cacheKey = getCacheKey();
+    if (cacheKey.isPresent()
+        && cacheLookup.get().getCache().fetch(cacheKey.get(), getCachedOutputs())) {
+      LOG.debug("Fetched the outputs of %s from the compilation cache.", input);
+      return StepExecutionResult.SUCCESS;
+    }
+
+    ProcessExecutor.Result result = executeCompilation(context);
+    int exitCode = result.getExitCode();
 
     // If the compilation completed successfully and we didn't effect debug-info normalization
     // through #line directive modification, perform the in-place update of the compilation per
@@ -300,6 +439,9 @@ public class CxxPreprocessAndCompileStep implements Step {
 
     if (exitCode != 0) {
       LOG.warn("error %d %s %s", exitCode, operation.toString().toLowerCase(), input);
+    } else if (cacheKey.isPresent() && result.getStderr().orElse("").isEmpty()) {
+      // Outputs which came with warnings aren't cached, so that the warnings show on every build.
+      cacheLookup.get().getCache().store(cacheKey.get(), getCachedOutputs());
     }
 
     return StepExecutionResult.of(exitCode);
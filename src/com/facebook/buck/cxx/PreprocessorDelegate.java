@@ -19,6 +19,7 @@ package com.facebook.buck.cxx;
 import com.facebook.buck.cxx.platform.DebugPathSanitizer;
 import com.facebook.buck.cxx.platform.HeaderVerification;
 import com.facebook.buck.cxx.platform.Preprocessor;
+import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.ExplicitBuildTargetSourcePath;
 import com.facebook.buck.rules.RuleKeyAppendable;
@@ -37,16 +38,25 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Predicate;
 
 /** Helper class for handling preprocessing related tasks of a cxx compilation rule. */
 final class PreprocessorDelegate implements RuleKeyAppendable {
 
+  /** Flags, and the prefixes of their joined forms, which add search paths or headers. */
+  private static final ImmutableList<String> RAW_INCLUDE_FLAGS =
+      ImmutableList.of(
+          "-I", "-isystem", "-iquote", "-idirafter", "-include", "-imacros", "-F", "-iframework");
+
   // Fields that are added to rule key as is.
   private final Preprocessor preprocessor;
   private final RuleKeyAppendableFunction<FrameworkPath, Path> frameworkPathSearchPathFunction;
@@ -69,6 +79,12 @@ final class PreprocessorDelegate implements RuleKeyAppendable {
 
   private final PathShortener minLengthPathRepresentation;
 
+  /** If present, used to find the headers a source includes instead of the compiler's dep file. */
+  private final Optional<CxxIncludeScanner> includeScanner;
+
+  /** If present, where the outputs of compilations using this delegate are cached. */
+  private final Optional<CxxCompilationCache> compilationCache;
+
   private final Supplier<HeaderPathNormalizer> headerPathNormalizer =
       MoreSuppliers.weakMemoize(
           new Supplier<HeaderPathNormalizer>() {
@@ -106,6 +122,32 @@ final class PreprocessorDelegate implements RuleKeyAppendable {
       RuleKeyAppendableFunction<FrameworkPath, Path> frameworkPathSearchPathFunction,
       Optional<SymlinkTree> sandbox,
       Optional<CxxIncludePaths> leadingIncludePaths) {
+    this(
+        resolver,
+        sanitizer,
+        headerVerification,
+        workingDir,
+        preprocessor,
+        preprocessorFlags,
+        frameworkPathSearchPathFunction,
+        sandbox,
+        leadingIncludePaths,
+        Optional.empty(),
+        Optional.empty());
+  }
+
+  private PreprocessorDelegate(
+      SourcePathResolver resolver,
+      DebugPathSanitizer sanitizer,
+      HeaderVerification headerVerification,
+      Path workingDir,
+      Preprocessor preprocessor,
+      PreprocessorFlags preprocessorFlags,
+      RuleKeyAppendableFunction<FrameworkPath, Path> frameworkPathSearchPathFunction,
+      Optional<SymlinkTree> sandbox,
+      Optional<CxxIncludePaths> leadingIncludePaths,
+      Optional<CxxIncludeScanner> includeScanner,
+      Optional<CxxCompilationCache> compilationCache) {
     this.preprocessor = preprocessor;
     this.preprocessorFlags = preprocessorFlags;
     this.sanitizer = sanitizer;
@@ -116,6 +158,8 @@ final class PreprocessorDelegate implements RuleKeyAppendable {
     this.frameworkPathSearchPathFunction = frameworkPathSearchPathFunction;
     this.sandbox = sandbox;
     this.leadingIncludePaths = leadingIncludePaths;
+    this.includeScanner = includeScanner;
+    this.compilationCache = compilationCache;
   }
 
   public PreprocessorDelegate withLeadingIncludePaths(CxxIncludePaths leadingIncludePaths) {
@@ -128,7 +172,48 @@ final class PreprocessorDelegate implements RuleKeyAppendable {
         this.preprocessorFlags,
         this.frameworkPathSearchPathFunction,
         this.sandbox,
-        Optional.of(leadingIncludePaths));
+        Optional.of(leadingIncludePaths),
+        this.includeScanner,
+        this.compilationCache);
+  }
+
+  /**
+   * @return a delegate which finds the headers used by a source with the given scanner, rather
+   *     than from the dep file written by the compiler.
+   */
+  public PreprocessorDelegate withIncludeScanner(CxxIncludeScanner includeScanner) {
+    return new PreprocessorDelegate(
+        this.resolver,
+        this.sanitizer,
+        this.headerVerification,
+        this.workingDir,
+        this.preprocessor,
+        this.preprocessorFlags,
+        this.frameworkPathSearchPathFunction,
+        this.sandbox,
+        this.leadingIncludePaths,
+        Optional.of(includeScanner),
+        this.compilationCache);
+  }
+
+  /** @return a delegate whose compilations are cached in the given cache. */
+  public PreprocessorDelegate withCompilationCache(CxxCompilationCache compilationCache) {
+    return new PreprocessorDelegate(
+        this.resolver,
+        this.sanitizer,
+        this.headerVerification,
+        this.workingDir,
+        this.preprocessor,
+        this.preprocessorFlags,
+        this.frameworkPathSearchPathFunction,
+        this.sandbox,
+        this.leadingIncludePaths,
+        this.includeScanner,
+        Optional.of(compilationCache));
+  }
+
+  public Optional<CxxCompilationCache> getCompilationCache() {
+    return compilationCache;
   }
 
   public Preprocessor getPreprocessor() {
@@ -250,6 +335,129 @@ final class PreprocessorDelegate implements RuleKeyAppendable {
     return inputs.build();
   }
 
+  /**
+   * Finds the headers the given source may include with the include scanner, if there is one.
+   * Untracked headers aren't reported, so the scanner isn't used when those must be verified. Nor
+   * is it used when framework paths or flags passed as is may find headers it doesn't know about,
+   * so that it never reports fewer headers than the compiler's dep file would.
+   *
+   * @param compilerFlags the flags of the compiler, which share its command line in a compilation
+   *     which also preprocesses.
+   * @return the headers as absolute paths suitable for {@link
+   *     #getInputsAfterBuildingLocally(Iterable)}, or absent if the compiler's dep file must be
+   *     used instead.
+   */
+  public Optional<ImmutableList<Path>> scanDependencies(
+      Path absoluteInputPath, CxxToolFlags compilerFlags) throws IOException {
+    if (!includeScanner.isPresent()
+        || headerVerification.getMode() != HeaderVerification.Mode.IGNORE
+        || hasRawIncludeFlags(compilerFlags)) {
+      return Optional.empty();
+    }
+
+    Optional<ImmutableList<CxxIncludeScanner.SearchPath>> searchPaths =
+        getSearchPaths(CxxIncludePaths.empty());
+    if (!searchPaths.isPresent()) {
+      return Optional.empty();
+    }
+    Optional<ImmutableSet<Path>> headers =
+        includeScanner.get().scan(getScanRoots(absoluteInputPath), searchPaths.get());
+    if (!headers.isPresent()) {
+      return Optional.empty();
+    }
+
+    // Like the headers of a dep file, keep those which belong to the rule's header packs.
+    HeaderPathNormalizer headerPathNormalizer = getHeaderPathNormalizer();
+    ImmutableSet.Builder<Path> dependencies = ImmutableSet.builder();
+    for (Path header : headers.get()) {
+      headerPathNormalizer.getAbsolutePathForUnnormalizedPath(header).ifPresent(dependencies::add);
+    }
+    return Optional.of(dependencies.build().asList());
+  }
+
+  /**
+   * Hashes the source and the headers it may include, for the key of the compilation cache.
+   *
+   * @param extraIncludePaths include paths which the compilation uses besides the delegate's own.
+   * @param compilerFlags the flags of the compiler, as for {@link #scanDependencies(Path,
+   *     CxxToolFlags)}.
+   * @return the hash, or absent if the headers the source uses can't be told without preprocessing.
+   */
+  public Optional<HashCode> hashIncludeClosure(
+      Path absoluteInputPath, CxxIncludePaths extraIncludePaths, CxxToolFlags compilerFlags)
+      throws IOException {
+    Optional<ImmutableList<CxxIncludeScanner.SearchPath>> searchPaths =
+        getSearchPaths(extraIncludePaths);
+    if (!searchPaths.isPresent() || hasRawIncludeFlags(compilerFlags)) {
+      return Optional.empty();
+    }
+    return includeScanner
+        .orElseGet(CxxIncludeScanner::getShared)
+        .hashClosure(getScanRoots(absoluteInputPath), searchPaths.get());
+  }
+
+  /**
+   * @return whether the flags passed as is add search paths or headers, which the include scanner
+   *     doesn't know about.
+   */
+  private boolean hasRawIncludeFlags(CxxToolFlags compilerFlags) {
+    for (String flag :
+        Arg.stringify(
+            Iterables.concat(
+                preprocessorFlags.getOtherFlags().getAllFlags(), compilerFlags.getAllFlags()),
+            resolver)) {
+      for (String includeFlag : RAW_INCLUDE_FLAGS) {
+        if (flag.startsWith(includeFlag)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private ImmutableList<Path> getScanRoots(Path absoluteInputPath) {
+    ImmutableList.Builder<Path> roots = ImmutableList.builder();
+    roots.add(absoluteInputPath);
+    preprocessorFlags.getPrefixHeader().map(resolver::getAbsolutePath).ifPresent(roots::add);
+    return roots.build();
+  }
+
+  /**
+   * @return where the include scanner should look for headers, or absent if it can't find them
+   *     all. Headers found through framework paths aren't modeled by the scanner.
+   */
+  private Optional<ImmutableList<CxxIncludeScanner.SearchPath>> getSearchPaths(
+      CxxIncludePaths extraIncludePaths) {
+    if (!preprocessorFlags.getFrameworkPaths().isEmpty()
+        || !extraIncludePaths.getFPaths().isEmpty()
+        || leadingIncludePaths.map(paths -> !paths.getFPaths().isEmpty()).orElse(false)) {
+      return Optional.empty();
+    }
+
+    ImmutableList.Builder<CxxIncludeScanner.SearchPath> searchPaths = ImmutableList.builder();
+    ImmutableList.Builder<CxxHeaders> allHeaders = ImmutableList.builder();
+    leadingIncludePaths.ifPresent(paths -> allHeaders.addAll(paths.getIPaths()));
+    allHeaders.addAll(extraIncludePaths.getIPaths());
+    allHeaders.addAll(preprocessorFlags.getIncludes());
+    for (CxxHeaders headers : allHeaders.build()) {
+      if (headers instanceof CxxSymlinkTreeHeaders) {
+        // Look headers up by name first, as a header map would.
+        ImmutableMap.Builder<String, Path> headerMap = ImmutableMap.builder();
+        for (Map.Entry<Path, SourcePath> entry :
+            ((CxxSymlinkTreeHeaders) headers).getNameToPathMap().entrySet()) {
+          headerMap.put(
+              MorePaths.pathWithUnixSeparators(entry.getKey()),
+              resolver.getAbsolutePath(entry.getValue()));
+        }
+        searchPaths.add(CxxIncludeScanner.SearchPath.ofHeaderMap(headerMap.build()));
+      }
+      searchPaths.add(
+          CxxIncludeScanner.SearchPath.ofDirectory(
+              resolver.getAbsolutePath(headers.getIncludeRoot())));
+    }
+    return Optional.of(searchPaths.build());
+  }
+
   public Predicate<SourcePath> getCoveredByDepFilePredicate() {
     // TODO(jkeljo): I didn't know how to implement this, and didn't have time to figure it out.
     return (SourcePath path) -> true;
@@ -17,20 +17,33 @@ package com.facebook.buck.distributed;
 
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleDurationHistory;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.function.ToLongFunction;
 
+/**
+ * Keeps track of which targets of a distributed build have all of their dependencies built, along
+ * with how urgent each target is: its estimated cost plus that of the longest chain of targets
+ * which have to wait for it.
+ */
 public class BuildTargetsQueue {
+  /** Cost of a target without an estimate, when no target has one. */
+  private static final long DEFAULT_COST_MILLIS = 1;
+
   private List<EnqueuedTarget> zeroDependencyTargets;
   private final Map<String, EnqueuedTarget> allEnqueuedTargets;
 
@@ -46,9 +59,37 @@ public class BuildTargetsQueue {
 
   public static BuildTargetsQueue newQueue(
       BuildRuleResolver resolver, Iterable<BuildTarget> targetsToBuild) {
-    // Build the reverse dependency graph by traversing the action graph Top-Down.
-    Map<String, Set<String>> allReverseDeps = new HashMap<>();
-    Map<String, Integer> numberOfDependencies = new HashMap<>();
+    return newQueue(resolver, targetsToBuild, rule -> DEFAULT_COST_MILLIS);
+  }
+
+  /**
+   * @param durationHistory durations of earlier builds of the targets, from which their costs are
+   *     estimated. Targets which were never built are estimated by the mean duration.
+   */
+  public static BuildTargetsQueue newQueue(
+      BuildRuleResolver resolver,
+      Iterable<BuildTarget> targetsToBuild,
+      BuildRuleDurationHistory durationHistory) {
+    long unknownCostMillis =
+        Math.max(DEFAULT_COST_MILLIS, durationHistory.getMeanDurationMillis());
+    return newQueue(
+        resolver,
+        targetsToBuild,
+        rule ->
+            Math.max(
+                DEFAULT_COST_MILLIS,
+                durationHistory
+                    .getDurationMillis(rule.getBuildTarget())
+                    .orElse(unknownCostMillis)));
+  }
+
+  private static BuildTargetsQueue newQueue(
+      BuildRuleResolver resolver,
+      Iterable<BuildTarget> targetsToBuild,
+      ToLongFunction<BuildRule> costEstimator) {
+    // Collect the dependency graph by traversing the action graph Top-Down.
+    Map<String, ImmutableList<String>> allDependencies = new HashMap<>();
+    Map<String, Long> costs = new HashMap<>();
     Set<String> visitedTargets = new HashSet<>();
     Queue<BuildRule> buildRulesToProcess =
         Lists.newLinkedList(
@@ -62,25 +103,50 @@ public class BuildTargetsQueue {
     while (!buildRulesToProcess.isEmpty()) {
       BuildRule rule = buildRulesToProcess.remove();
       String target = ruleToTarget(rule);
-      numberOfDependencies.put(target, rule.getBuildDeps().size());
+      costs.put(target, costEstimator.applyAsLong(rule));
+      ImmutableList.Builder<String> dependencies = ImmutableList.builder();
       for (BuildRule dependencyRule : rule.getBuildDeps()) {
         String dependencyTarget = ruleToTarget(dependencyRule);
-        if (!allReverseDeps.containsKey(dependencyTarget)) {
-          allReverseDeps.put(dependencyTarget, new HashSet<>());
-        }
-        allReverseDeps.get(dependencyTarget).add(target);
-
+        dependencies.add(dependencyTarget);
         if (!visitedTargets.contains(dependencyTarget)) {
           visitedTargets.add(dependencyTarget);
           buildRulesToProcess.add(dependencyRule);
         }
       }
+      allDependencies.put(target, dependencies.build());
+    }
+
+    return newQueue(allDependencies, target -> Preconditions.checkNotNull(costs.get(target)));
+  }
+
+  /**
+   * @param allDependencies the dependencies of every target to build, by target. Each of the
+   *     dependencies has to be a key too.
+   * @param costEstimator estimates how long building a target takes, in milliseconds.
+   */
+  static BuildTargetsQueue newQueue(
+      Map<String, ? extends Collection<String>> allDependencies,
+      ToLongFunction<String> costEstimator) {
+    // Build the reverse dependency graph.
+    Map<String, Set<String>> allReverseDeps = new HashMap<>();
+    for (Map.Entry<String, ? extends Collection<String>> entry : allDependencies.entrySet()) {
+      for (String dependencyTarget : entry.getValue()) {
+        Preconditions.checkArgument(
+            allDependencies.containsKey(dependencyTarget),
+            "Dependency %s of %s is not in the graph.",
+            dependencyTarget,
+            entry.getKey());
+        if (!allReverseDeps.containsKey(dependencyTarget)) {
+          allReverseDeps.put(dependencyTarget, new HashSet<>());
+        }
+        allReverseDeps.get(dependencyTarget).add(entry.getKey());
+      }
     }
 
     // Do the reference counting and create the EnqueuedTargets.
     List<EnqueuedTarget> zeroDependencyTargets = new ArrayList<>();
     Map<String, EnqueuedTarget> allEnqueuedTargets = new HashMap<>();
-    for (String target : visitedTargets) {
+    for (String target : allDependencies.keySet()) {
       Iterable<String> currentRevDeps = null;
       if (allReverseDeps.containsKey(target)) {
         currentRevDeps = allReverseDeps.get(target);
@@ -91,8 +157,9 @@ public class BuildTargetsQueue {
       EnqueuedTarget enqueuedTarget =
           new EnqueuedTarget(
               target,
+              ImmutableList.copyOf(allDependencies.get(target)),
               ImmutableList.copyOf(currentRevDeps),
-              Preconditions.checkNotNull(numberOfDependencies.get(target)));
+              costEstimator.applyAsLong(target));
       allEnqueuedTargets.put(target, enqueuedTarget);
 
       if (enqueuedTarget.areAllDependenciesResolved()) {
@@ -100,15 +167,46 @@ public class BuildTargetsQueue {
       }
     }
 
+    computePriorities(allEnqueuedTargets);
     return new BuildTargetsQueue(zeroDependencyTargets, allEnqueuedTargets);
   }
 
+  /**
+   * Sets the priority of every target to its cost plus the highest priority of its dependents,
+   * visiting each target after all of its dependents. Iterative, as dependency chains can be deeper
+   * than the stack.
+   */
+  private static void computePriorities(Map<String, EnqueuedTarget> allEnqueuedTargets) {
+    Map<String, Integer> unvisitedDependents = new HashMap<>();
+    Map<String, Long> longestDependentChains = new HashMap<>();
+    Deque<EnqueuedTarget> targetsToVisit = new ArrayDeque<>();
+    for (EnqueuedTarget target : allEnqueuedTargets.values()) {
+      unvisitedDependents.put(target.getBuildTarget(), target.getDependentTargets().size());
+      if (target.getDependentTargets().isEmpty()) {
+        targetsToVisit.add(target);
+      }
+    }
+
+    while (!targetsToVisit.isEmpty()) {
+      EnqueuedTarget target = targetsToVisit.remove();
+      target.priority =
+          target.getCostMillis()
+              + longestDependentChains.getOrDefault(target.getBuildTarget(), 0L);
+      for (String dependency : target.getDependencies()) {
+        longestDependentChains.merge(dependency, target.priority, Math::max);
+        if (unvisitedDependents.merge(dependency, -1, Integer::sum) == 0) {
+          targetsToVisit.add(Preconditions.checkNotNull(allEnqueuedTargets.get(dependency)));
+        }
+      }
+    }
+  }
+
   public ImmutableList<String> dequeueZeroDependencyNodes(ImmutableList<String> finishedNodes) {
     // Decrement reference counting.
     for (String node : finishedNodes) {
-      EnqueuedTarget target = Preconditions.checkNotNull(allEnqueuedTargets.get(node));
+      EnqueuedTarget target = getEnqueuedTarget(node);
       for (String dependent : target.getDependentTargets()) {
-        EnqueuedTarget dep = Preconditions.checkNotNull(allEnqueuedTargets.get(dependent));
+        EnqueuedTarget dep = getEnqueuedTarget(dependent);
         dep.decrementUnsatisfiedDeps();
         if (dep.areAllDependenciesResolved()) {
           zeroDependencyTargets.add(dep);
@@ -124,20 +222,50 @@ public class BuildTargetsQueue {
     return targetsReadyToBuild;
   }
 
+  /**
+   * @return the estimated cost of the target plus that of the longest chain of targets which
+   *     depend on it, in milliseconds.
+   */
+  public long getPriority(String target) {
+    return getEnqueuedTarget(target).getPriority();
+  }
+
+  /** @return the targets which the given target directly depends on. */
+  public ImmutableList<String> getDependencies(String target) {
+    return getEnqueuedTarget(target).getDependencies();
+  }
+
+  /** @return the targets which directly depend on the given target. */
+  public ImmutableList<String> getDependents(String target) {
+    return getEnqueuedTarget(target).getDependentTargets();
+  }
+
+  private EnqueuedTarget getEnqueuedTarget(String target) {
+    return Preconditions.checkNotNull(allEnqueuedTargets.get(target), "Unknown target %s.", target);
+  }
+
   private static String ruleToTarget(BuildRule rule) {
     return rule.getFullyQualifiedName();
   }
 
   private static class EnqueuedTarget {
     private final String buildTarget;
+    private final ImmutableList<String> dependencies;
     private final ImmutableList<String> dependentTargets;
+    private final long costMillis;
+    private long priority;
     private int unsatisfiedDependencies;
 
     private EnqueuedTarget(
-        String buildTarget, ImmutableList<String> dependentTargets, int numberOfDependencies) {
+        String buildTarget,
+        ImmutableList<String> dependencies,
+        ImmutableList<String> dependentTargets,
+        long costMillis) {
       this.buildTarget = buildTarget;
+      this.dependencies = dependencies;
       this.dependentTargets = dependentTargets;
-      this.unsatisfiedDependencies = numberOfDependencies;
+      this.costMillis = costMillis;
+      this.unsatisfiedDependencies = dependencies.size();
     }
 
     public boolean areAllDependenciesResolved() {
@@ -148,10 +276,22 @@ public class BuildTargetsQueue {
       return buildTarget;
     }
 
+    public ImmutableList<String> getDependencies() {
+      return dependencies;
+    }
+
     public ImmutableList<String> getDependentTargets() {
       return dependentTargets;
     }
 
+    public long getCostMillis() {
+      return costMillis;
+    }
+
+    public long getPriority() {
+      return priority;
+    }
+
     public void decrementUnsatisfiedDeps() {
       --unsatisfiedDependencies;
       Preconditions.checkArgument(
@@ -169,6 +309,8 @@ public class BuildTargetsQueue {
           + unsatisfiedDependencies
           + ", dependentTargets="
           + dependentTargets
+          + ", priority="
+          + priority
           + '}';
     }
   }
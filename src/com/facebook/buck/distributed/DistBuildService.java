@@ -70,6 +70,7 @@ import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -404,10 +405,38 @@ public class DistBuildService implements Closeable {
     return new ByteArrayInputStream(file.getContent());
   }
 
+  /**
+   * Fetches the contents of several source files in a single request.
+   *
+   * @param hashCodes content hashes of the files to fetch.
+   * @return the contents of the files, by content hash.
+   */
+  public ImmutableMap<String, byte[]> fetchSourceFiles(List<String> hashCodes)
+      throws IOException {
+    FrontendRequest request = createFetchSourceFilesRequest(hashCodes);
+    FrontendResponse response = makeRequestChecked(request);
+
+    Preconditions.checkState(response.isSetFetchSourceFilesResponse());
+    Preconditions.checkState(response.getFetchSourceFilesResponse().isSetFiles());
+    ImmutableMap.Builder<String, byte[]> contentsByHash = ImmutableMap.builder();
+    for (FileInfo file : response.getFetchSourceFilesResponse().getFiles()) {
+      Preconditions.checkState(file.isSetContentHash());
+      Preconditions.checkState(file.isSetContent());
+      contentsByHash.put(file.getContentHash(), file.getContent());
+    }
+    return contentsByHash.build();
+  }
+
   public static FrontendRequest createFetchSourceFileRequest(String fileHash) {
+    return createFetchSourceFilesRequest(ImmutableList.of(fileHash));
+  }
+
+  public static FrontendRequest createFetchSourceFilesRequest(List<String> fileHashes) {
     FetchSourceFilesRequest fetchSourceFileRequest = new FetchSourceFilesRequest();
     fetchSourceFileRequest.setContentHashesIsSet(true);
-    fetchSourceFileRequest.addToContentHashes(fileHash);
+    for (String fileHash : fileHashes) {
+      fetchSourceFileRequest.addToContentHashes(fileHash);
+    }
     FrontendRequest frontendRequest = new FrontendRequest();
     frontendRequest.setType(FrontendRequestType.FETCH_SRC_FILES);
     frontendRequest.setFetchSourceFilesRequest(fetchSourceFileRequest);
@@ -25,6 +25,7 @@ import com.facebook.buck.cli.BuckConfig;
 import com.facebook.buck.cli.MetadataChecker;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.distributed.DistBuildSlaveTimingStatsTracker.SlaveEvents;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
 import com.facebook.buck.log.Logger;
@@ -34,6 +35,7 @@ import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.parser.DefaultParserTargetNodeFactory;
 import com.facebook.buck.parser.ParserTargetNodeFactory;
 import com.facebook.buck.rules.ActionGraphAndResolver;
+import com.facebook.buck.rules.BuildRuleDurationHistory;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
 import com.facebook.buck.rules.Cell;
@@ -63,6 +65,7 @@ import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -130,10 +133,18 @@ public class DistBuildSlaveExecutor {
   }
 
   private CoordinatorModeRunner newCoordinatorMode() {
+    // Targets are prioritized by how long they took the last time this machine built them.
+    ProjectFilesystem filesystem = args.getRootCell().getFilesystem();
     BuildTargetsQueue queue =
         BuildTargetsQueue.newQueue(
             Preconditions.checkNotNull(actionGraphAndResolver).getResolver(),
-            fullyQualifiedNameToBuildTarget(args.getState().getRemoteState().getTopLevelTargets()));
+            fullyQualifiedNameToBuildTarget(args.getState().getRemoteState().getTopLevelTargets()),
+            BuildRuleDurationHistory.load(
+                filesystem.resolve(
+                    filesystem
+                        .getBuckPaths()
+                        .getBuckOut()
+                        .resolve(BuildRuleDurationHistory.STORE_NAME))));
     return new CoordinatorModeRunner(args.getCoordinatorPort(), queue, args.getStampedeId());
   }
 
@@ -176,10 +187,6 @@ public class DistBuildSlaveExecutor {
       return actionGraphAndResolver;
     }
 
-    tracker.startTimer(SlaveEvents.TARGET_GRAPH_DESERIALIZATION_TIME);
-    createTargetGraph();
-    tracker.stopTimer(SlaveEvents.TARGET_GRAPH_DESERIALIZATION_TIME);
-
     tracker.startTimer(SlaveEvents.ACTION_GRAPH_CREATION_TIME);
     actionGraphAndResolver =
         Preconditions.checkNotNull(
@@ -200,8 +207,12 @@ public class DistBuildSlaveExecutor {
       return cachingBuildEngineDelegate;
     }
 
+    tracker.startTimer(SlaveEvents.TARGET_GRAPH_DESERIALIZATION_TIME);
+    createTargetGraph();
+    tracker.stopTimer(SlaveEvents.TARGET_GRAPH_DESERIALIZATION_TIME);
+
     tracker.startTimer(SlaveEvents.SOURCE_FILE_PRELOAD_TIME);
-    StackedFileHashCaches caches = createStackedFileHashesAndPreload();
+    StackedFileHashCaches caches = createStackedFileHashesAndPreload(getInputsOfFirstWave());
     tracker.stopTimer(SlaveEvents.SOURCE_FILE_PRELOAD_TIME);
     createActionGraphAndResolver(tracker);
     SourcePathRuleFinder ruleFinder =
@@ -335,12 +346,18 @@ public class DistBuildSlaveExecutor {
                   Preconditions.checkNotNull(cachingBuildEngineDelegate),
                   args.getExecutorService(),
                   args.getExecutorService(),
+                  distBuildConfig.getNumThreads(),
                   new DefaultStepRunner(),
                   engineConfig.getBuildEngineMode(),
                   engineConfig.getBuildMetadataStorage(),
                   engineConfig.getBuildDepFiles(),
                   engineConfig.getBuildMaxDepFileCacheEntries(),
                   engineConfig.getBuildArtifactCacheSizeLimit(),
+                  engineConfig.getMultiFetchBatchSize(),
+                  engineConfig.isCachePrefetchEnabled(),
+                  engineConfig.isLazyMaterializationEnabled(),
+                  engineConfig.isStreamingArtifactUnzipEnabled(),
+                  Optional.empty(),
                   Preconditions.checkNotNull(actionGraphAndResolver).getResolver(),
                   args.getBuildInfoStoreManager(),
                   engineConfig.getResourceAwareSchedulingInfo(),
@@ -408,7 +425,25 @@ public class DistBuildSlaveExecutor {
     }
   }
 
-  private StackedFileHashCaches createStackedFileHashesAndPreload()
+  /**
+   * @return the inputs of the targets which don't depend on any other, and so are the first to
+   *     build.
+   */
+  private ImmutableSet<Path> getInputsOfFirstWave() {
+    TargetGraph graph = Preconditions.checkNotNull(targetGraph);
+    ImmutableSet.Builder<Path> inputs = ImmutableSet.builder();
+    for (TargetNode<?, ?> node : graph.getNodes()) {
+      if (!graph.getOutgoingNodesFor(node).isEmpty()) {
+        continue;
+      }
+      for (Path input : node.getInputs()) {
+        inputs.add(node.getFilesystem().resolve(input));
+      }
+    }
+    return inputs.build();
+  }
+
+  private StackedFileHashCaches createStackedFileHashesAndPreload(Iterable<Path> prefetchAbsPaths)
       throws InterruptedException, IOException {
     StackedFileHashCache stackedFileHashCache = createStackOfDefaultFileHashCache();
     // Used for rule key computations.
@@ -421,7 +456,8 @@ public class DistBuildSlaveExecutor {
         stackedFileHashCache.newDecoratedFileHashCache(
             cache -> {
               try {
-                return args.getState().createMaterializerAndPreload(cache, args.getProvider());
+                return args.getState()
+                    .createMaterializerAndPreload(cache, args.getProvider(), prefetchAbsPaths);
               } catch (IOException exception) {
                 throw new RuntimeException(
                     String.format(
@@ -205,8 +205,15 @@ public class DistBuildState {
     return remoteCache;
   }
 
+  /**
+   * @param prefetchAbsPaths files to start fetching right away, as they are going to be needed
+   *     first.
+   */
   public ProjectFileHashCache createMaterializerAndPreload(
-      ProjectFileHashCache decoratedCache, FileContentsProvider provider) throws IOException {
+      ProjectFileHashCache decoratedCache,
+      FileContentsProvider provider,
+      Iterable<Path> prefetchAbsPaths)
+      throws IOException {
     BuildJobStateFileHashes remoteFileHashes = fileHashes.get(decoratedCache.getFilesystem());
     if (remoteFileHashes == null) {
       // Roots that have no BuildJobStateFileHashes are deemed as not being Cells and don't get
@@ -216,6 +223,7 @@ public class DistBuildState {
 
     MaterializerProjectFileHashCache materializer =
         new MaterializerProjectFileHashCache(decoratedCache, remoteFileHashes, provider);
+    materializer.prefetch(prefetchAbsPaths);
 
     // Create all symlinks and touch all other files.
     // TODO(alisdair): remove this once action graph doesn't read from file system.
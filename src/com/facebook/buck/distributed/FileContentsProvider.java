@@ -17,8 +17,10 @@
 package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
 
 public interface FileContentsProvider {
   /**
@@ -28,4 +30,12 @@ public interface FileContentsProvider {
    */
   boolean materializeFileContents(BuildJobStateFileHashEntry entry, Path targetAbsPath)
       throws IOException;
+
+  /**
+   * Starts fetching the contents of the given entries in bulk, so that materializing them later
+   * doesn't have to fetch them one at a time. Providers which have nothing to fetch do nothing.
+   *
+   * @return a future which completes once the fetching is done, whether or not it succeeded.
+   */
+  ListenableFuture<?> prefetchFileContents(Collection<BuildJobStateFileHashEntry> entries);
 }
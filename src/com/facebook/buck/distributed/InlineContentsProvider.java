@@ -17,12 +17,15 @@
 package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 
 public class InlineContentsProvider implements FileContentsProvider {
 
@@ -43,6 +46,12 @@ public class InlineContentsProvider implements FileContentsProvider {
     return false;
   }
 
+  @Override
+  public ListenableFuture<?> prefetchFileContents(Collection<BuildJobStateFileHashEntry> entries) {
+    // The contents come with the entries.
+    return Futures.immediateFuture(null);
+  }
+
   public static OutputStream newOutputStream(Path absPath) throws IOException {
     Files.createDirectories(absPath.getParent());
     return new BufferedOutputStream(new FileOutputStream(absPath.toFile()));
@@ -16,63 +16,133 @@
 
 package com.facebook.buck.distributed;
 
-import com.facebook.buck.artifact_cache.ArtifactInfo;
-import com.facebook.buck.artifact_cache.CacheReadMode;
-import com.facebook.buck.artifact_cache.CacheResult;
-import com.facebook.buck.artifact_cache.CacheResultType;
-import com.facebook.buck.artifact_cache.DirArtifactCache;
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
-import com.facebook.buck.io.BorrowablePath;
-import com.facebook.buck.io.LazyPath;
-import com.facebook.buck.io.ProjectFilesystem;
-import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Optional;
-import java.util.concurrent.ExecutionException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.regex.Pattern;
 
+/**
+ * Keeps source files in a directory by the SHA-1 of their contents, shared by all the slaves on a
+ * machine, and materializes them by hard linking them into the slave's workspace. Files with the
+ * same contents are thus stored and fetched once.
+ *
+ * <p>As the workspace and the cache share the files, neither may modify them in place. Whatever
+ * replaces a materialized file has to delete it first. Executable files are kept apart from the
+ * others, so that changing their permissions doesn't change those of other files.
+ */
 public class LocalFsContentsProvider implements FileContentsProvider {
-  private static final String CACHE_NAME = "stampede_source_dircache";
+  private static final Logger LOG = Logger.get(LocalFsContentsProvider.class);
 
-  private final DirArtifactCache dirCache;
+  private static final String CACHE_NAME = "stampede_source_cas";
+  private static final String EXECUTABLE_SUFFIX = ".x";
+  private static final Pattern HASH_CODE_PATTERN = Pattern.compile("[0-9a-f]+");
+
+  private final Path storeDirAbsPath;
 
   public LocalFsContentsProvider(Path cacheDirAbsPath) throws InterruptedException, IOException {
     Preconditions.checkArgument(
         Files.isDirectory(cacheDirAbsPath),
         "The cache directory must exist. cacheDirAbsPath=[%s]",
         cacheDirAbsPath);
-    this.dirCache =
-        new DirArtifactCache(
-            CACHE_NAME,
-            new ProjectFilesystem(cacheDirAbsPath),
-            Paths.get(CACHE_NAME),
-            CacheReadMode.READWRITE,
-            Optional.empty());
+    this.storeDirAbsPath = cacheDirAbsPath.resolve(CACHE_NAME);
+    Files.createDirectories(storeDirAbsPath);
   }
 
   @Override
   public boolean materializeFileContents(BuildJobStateFileHashEntry entry, Path targetAbsPath)
       throws IOException {
-    RuleKey key = new RuleKey(entry.getHashCode());
-    CacheResult cacheResult =
-        Futures.getUnchecked(dirCache.fetchAsync(key, LazyPath.ofInstance(targetAbsPath)));
-    return cacheResult.getType() == CacheResultType.HIT;
+    Path storedAbsPath = getStoredAbsPath(entry);
+    if (!Files.isRegularFile(storedAbsPath)) {
+      return false;
+    }
+
+    // The file may have been touched while preloading.
+    Files.createDirectories(targetAbsPath.getParent());
+    Files.deleteIfExists(targetAbsPath);
+    try {
+      Files.createLink(targetAbsPath, storedAbsPath);
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.debug(e, "Unable to link [%s] to [%s], copying it instead.", targetAbsPath, storedAbsPath);
+      Files.copy(storedAbsPath, targetAbsPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return true;
   }
 
+  @Override
+  public ListenableFuture<?> prefetchFileContents(Collection<BuildJobStateFileHashEntry> entries) {
+    // The files are either in the cache already or have to come from another provider.
+    return Futures.immediateFuture(null);
+  }
+
+  /** @return whether the contents of the entry are in the cache. */
+  public boolean contains(BuildJobStateFileHashEntry entry) {
+    return Files.isRegularFile(getStoredAbsPath(entry));
+  }
+
+  /** Adds the file at {@code absPath}, which has the contents of the entry, to the cache. */
   public void writeFileAndGetInputStream(BuildJobStateFileHashEntry entry, Path absPath)
       throws IOException {
-    RuleKey key = new RuleKey(entry.getHashCode());
-    ArtifactInfo artifactInfo = ArtifactInfo.builder().setRuleKeys(ImmutableList.of(key)).build();
-    BorrowablePath nonBorrowablePath = BorrowablePath.notBorrowablePath(absPath);
+    Path storedAbsPath = getStoredAbsPath(entry);
+    if (Files.isRegularFile(storedAbsPath)) {
+      return;
+    }
+    Files.createDirectories(storedAbsPath.getParent());
+    try {
+      Files.createLink(storedAbsPath, absPath);
+      return;
+    } catch (FileAlreadyExistsException e) {
+      // Stored by another slave in the meantime.
+      return;
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.debug(e, "Unable to link [%s] to [%s], copying it instead.", storedAbsPath, absPath);
+    }
+
+    // Copy under a temporary name first, so that no one sees a partially written file.
+    Path tmpAbsPath = Files.createTempFile(storedAbsPath.getParent(), "tmp", "");
+    try {
+      Files.copy(absPath, tmpAbsPath, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmpAbsPath, storedAbsPath, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpAbsPath);
+    }
+  }
+
+  /** Adds the given contents of the entry to the cache. */
+  public void writeFileContents(BuildJobStateFileHashEntry entry, byte[] contents)
+      throws IOException {
+    Path storedAbsPath = getStoredAbsPath(entry);
+    if (Files.isRegularFile(storedAbsPath)) {
+      return;
+    }
+    Files.createDirectories(storedAbsPath.getParent());
+
+    // Write under a temporary name first, so that no one sees a partially written file.
+    Path tmpAbsPath = Files.createTempFile(storedAbsPath.getParent(), "tmp", "");
     try {
-      dirCache.store(artifactInfo, nonBorrowablePath).get();
-    } catch (InterruptedException | ExecutionException e) {
-      throw new IOException("Failed to store artifact to DirCache.", e);
+      Files.write(tmpAbsPath, contents);
+      Files.move(tmpAbsPath, storedAbsPath, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpAbsPath);
     }
   }
+
+  private Path getStoredAbsPath(BuildJobStateFileHashEntry entry) {
+    String hashCode = entry.getHashCode();
+    Preconditions.checkArgument(
+        hashCode != null && hashCode.length() > 2 && HASH_CODE_PATTERN.matcher(hashCode).matches(),
+        "Invalid file hash [%s] for file [%s].",
+        hashCode,
+        entry.getPath());
+    return storeDirAbsPath
+        .resolve(hashCode.substring(0, 2))
+        .resolve(entry.isExecutable ? hashCode + EXECUTABLE_SUFFIX : hashCode);
+  }
 }
@@ -27,11 +27,17 @@ import com.facebook.buck.util.cache.FileHashCacheVerificationResult;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Stack;
@@ -66,6 +72,19 @@ class MaterializerProjectFileHashCache implements ProjectFileHashCache {
    * be here until the misbehaving rules are fixed.
    */
   public void preloadAllFiles() throws IOException {
+    // Fetch the files to materialize in bulk, rather than one at a time below.
+    List<BuildJobStateFileHashEntry> entriesToMaterialize = new ArrayList<>();
+    for (BuildJobStateFileHashEntry fileHashEntry : remoteFileHashesByAbsPath.values()) {
+      if (fileHashEntry.isSetMaterializeDuringPreloading()
+          && fileHashEntry.isMaterializeDuringPreloading()
+          && isRegularFile(fileHashEntry)) {
+        entriesToMaterialize.add(fileHashEntry);
+      }
+    }
+    if (!entriesToMaterialize.isEmpty()) {
+      Futures.getUnchecked(provider.prefetchFileContents(entriesToMaterialize));
+    }
+
     for (Path absPath : remoteFileHashesByAbsPath.keySet()) {
       LOG.info("Preloading: [%s]", absPath.toString());
       BuildJobStateFileHashEntry fileHashEntry = remoteFileHashesByAbsPath.get(absPath);
@@ -108,6 +127,46 @@ class MaterializerProjectFileHashCache implements ProjectFileHashCache {
     }
   }
 
+  /**
+   * Starts fetching the contents of the given files, and of the files in the given directories,
+   * ahead of their materialization. Paths which aren't in this cache's filesystem are ignored.
+   */
+  public ListenableFuture<?> prefetch(Iterable<Path> absPaths) {
+    List<BuildJobStateFileHashEntry> entriesToFetch = new ArrayList<>();
+    Set<Path> visitedAbsPaths = new HashSet<>();
+    Stack<Path> remainingAbsPaths = new Stack<>();
+    Iterables.addAll(remainingAbsPaths, absPaths);
+    while (!remainingAbsPaths.isEmpty()) {
+      Path absPath = remainingAbsPaths.pop();
+      BuildJobStateFileHashEntry fileHashEntry = remoteFileHashesByAbsPath.get(absPath);
+      if (fileHashEntry == null || !visitedAbsPaths.add(absPath)) {
+        continue;
+      }
+      Optional<Path> relPath = projectFilesystem.getPathRelativeToProjectRoot(absPath);
+      if (relPath.isPresent() && materializedPaths.contains(relPath.get())) {
+        continue;
+      }
+
+      if (fileHashEntry.isIsDirectory() && fileHashEntry.isSetChildren()) {
+        for (PathWithUnixSeparators unixPath : fileHashEntry.getChildren()) {
+          remainingAbsPaths.push(projectFilesystem.resolve(Paths.get(unixPath.getPath())));
+        }
+      } else if (isRegularFile(fileHashEntry)) {
+        entriesToFetch.add(fileHashEntry);
+      }
+    }
+
+    LOG.info("Prefetching [%d] files.", entriesToFetch.size());
+    return provider.prefetchFileContents(entriesToFetch);
+  }
+
+  /** @return whether the entry is for a file whose contents are materialized by the provider. */
+  private static boolean isRegularFile(BuildJobStateFileHashEntry fileHashEntry) {
+    return !fileHashEntry.isPathIsAbsolute()
+        && !fileHashEntry.isSetRootSymLink()
+        && !fileHashEntry.isIsDirectory();
+  }
+
   private void materializeIfNeeded(Path relPath) throws IOException {
     Stack<Path> remainingPaths = new Stack<>();
     remainingPaths.add(relPath);
@@ -19,27 +19,61 @@ package com.facebook.buck.distributed;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 /**
  * Allocates and keeps track of what BuildTargets are allocated to which Minions. NOTE: Not thread
  * safe.
+ *
+ * <p>Also remembers which Minion built each target, and which Minions hold the outputs of a target
+ * because they built it or a target depending on it, so that work can go where its dependencies
+ * already are. See {@link AllocationPolicy}.
  */
 public class MinionWorkloadAllocator {
 
+  /** How the targets ready to build are shared out between the Minions asking for work. */
+  public enum AllocationPolicy {
+    /** In the order the targets became ready to build. */
+    FIRST_COME_FIRST_SERVED,
+    /** Targets with the longest chain of targets waiting for them first. */
+    CRITICAL_PATH,
+    /**
+     * Like {@link #CRITICAL_PATH}, except that a target whose dependencies were all built by one
+     * Minion is kept for that Minion, unless it is busy or nothing else is left to build. Ties go to
+     * the targets for which the Minion holds the most dependencies.
+     */
+    CRITICAL_PATH_AND_LOCALITY,
+  }
+
   private final BuildTargetsQueue queue;
   private final int maxTargetsPerMinion;
+  private final AllocationPolicy policy;
   private final Map<String, MinionWorkload> minionAllocations;
   private final List<String> targetsNotAssignedYet;
+  private final Map<String, String> minionByBuiltTarget;
+  private final Map<String, Set<String>> minionsHoldingTarget;
 
   public MinionWorkloadAllocator(BuildTargetsQueue queue, int maxTargetsPerMinion) {
+    this(queue, maxTargetsPerMinion, AllocationPolicy.CRITICAL_PATH_AND_LOCALITY);
+  }
+
+  public MinionWorkloadAllocator(
+      BuildTargetsQueue queue, int maxTargetsPerMinion, AllocationPolicy policy) {
     this.queue = queue;
+    this.policy = policy;
     this.minionAllocations = new HashMap<>();
     this.targetsNotAssignedYet =
         Lists.newArrayList(queue.dequeueZeroDependencyNodes(ImmutableList.of()));
     this.maxTargetsPerMinion = maxTargetsPerMinion;
+    this.minionByBuiltTarget = new HashMap<>();
+    this.minionsHoldingTarget = new HashMap<>();
   }
 
   public ImmutableList<String> getTargetsToBuild(String minionId) {
@@ -58,15 +92,8 @@ public class MinionWorkloadAllocator {
     }
 
     // Assign new minionWorkload to the worker.
-
-    // NOTE: This is just a view into the original collection. It's not a clone.
-    int lastIndex = Math.min(targetsNotAssignedYet.size(), maxTargetsPerMinion);
-    List<String> viewIntoTargetsToBuild = targetsNotAssignedYet.subList(0, lastIndex);
-    ImmutableList<String> targetsToBuild = ImmutableList.copyOf(viewIntoTargetsToBuild);
-
-    // Because this is a view over the original List, the .clear() method will remove the
-    // items from the original list.
-    viewIntoTargetsToBuild.clear();
+    ImmutableList<String> targetsToBuild = chooseTargetsToBuild(minionId);
+    targetsNotAssignedYet.removeAll(targetsToBuild);
 
     MinionWorkload minionWorkload = new MinionWorkload(targetsToBuild);
     minionAllocations.put(minionId, minionWorkload);
@@ -75,6 +102,14 @@ public class MinionWorkloadAllocator {
 
   public void finishedBuildingTargets(String minionId) {
     MinionWorkload minionWorkload = Preconditions.checkNotNull(minionAllocations.remove(minionId));
+    for (String target : minionWorkload.getTargetsBeingBuilt()) {
+      minionByBuiltTarget.put(target, minionId);
+      // The Minion built the target, and fetched the outputs of its dependencies to do so.
+      addHoldingMinion(target, minionId);
+      for (String dependency : queue.getDependencies(target)) {
+        addHoldingMinion(dependency, minionId);
+      }
+    }
     targetsNotAssignedYet.addAll(
         queue.dequeueZeroDependencyNodes(minionWorkload.getTargetsBeingBuilt()));
   }
@@ -83,6 +118,88 @@ public class MinionWorkloadAllocator {
     return minionAllocations.size() == 0 && targetsNotAssignedYet.size() == 0;
   }
 
+  private ImmutableList<String> chooseTargetsToBuild(String minionId) {
+    List<String> candidates = new ArrayList<>(targetsNotAssignedYet);
+    switch (policy) {
+      case FIRST_COME_FIRST_SERVED:
+        break;
+
+      case CRITICAL_PATH:
+        // Stable, so the targets of equal priority stay in the order they became ready.
+        candidates.sort(Comparator.comparingLong(queue::getPriority).reversed());
+        break;
+
+      case CRITICAL_PATH_AND_LOCALITY:
+        List<String> keptForOtherMinions = new ArrayList<>();
+        List<String> chainedTargets = new ArrayList<>();
+        List<String> otherTargets = new ArrayList<>();
+        for (String target : candidates) {
+          Optional<String> builder = getMinionWhichBuiltAllDependencies(target);
+          if (!builder.isPresent()) {
+            otherTargets.add(target);
+          } else if (builder.get().equals(minionId)) {
+            chainedTargets.add(target);
+          } else if (minionAllocations.containsKey(builder.get())) {
+            // That Minion is busy, so rather than waiting for it, fetch the outputs.
+            otherTargets.add(target);
+          } else {
+            keptForOtherMinions.add(target);
+          }
+        }
+        chainedTargets.sort(Comparator.comparingLong(queue::getPriority).reversed());
+        otherTargets.sort(
+            Comparator.comparingLong(queue::getPriority)
+                .thenComparingInt(target -> countDependenciesHeldBy(target, minionId))
+                .reversed());
+        candidates.clear();
+        candidates.addAll(chainedTargets);
+        candidates.addAll(otherTargets);
+        if (candidates.isEmpty()) {
+          // Better to fetch the outputs than to leave this Minion idle.
+          keptForOtherMinions.sort(Comparator.comparingLong(queue::getPriority).reversed());
+          candidates.addAll(keptForOtherMinions);
+        }
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown allocation policy " + policy);
+    }
+    return ImmutableList.copyOf(
+        candidates.subList(0, Math.min(candidates.size(), maxTargetsPerMinion)));
+  }
+
+  /** @return the Minion which built all of the target's dependencies, if it has any. */
+  private Optional<String> getMinionWhichBuiltAllDependencies(String target) {
+    String builder = null;
+    for (String dependency : queue.getDependencies(target)) {
+      String dependencyBuilder = Preconditions.checkNotNull(minionByBuiltTarget.get(dependency));
+      if (builder == null) {
+        builder = dependencyBuilder;
+      } else if (!builder.equals(dependencyBuilder)) {
+        return Optional.empty();
+      }
+    }
+    return Optional.ofNullable(builder);
+  }
+
+  private int countDependenciesHeldBy(String target, String minionId) {
+    int count = 0;
+    for (String dependency : queue.getDependencies(target)) {
+      Set<String> minions = minionsHoldingTarget.get(dependency);
+      if (minions != null && minions.contains(minionId)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private void addHoldingMinion(String target, String minionId) {
+    if (!minionsHoldingTarget.containsKey(target)) {
+      minionsHoldingTarget.put(target, new HashSet<>());
+    }
+    minionsHoldingTarget.get(target).add(minionId);
+  }
+
   private static class MinionWorkload {
     private final ImmutableList<String> targetsBeingBuilt;
 
@@ -19,8 +19,13 @@ package com.facebook.buck.distributed;
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
 import com.facebook.buck.log.Logger;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
@@ -34,10 +39,26 @@ public class MultiSourceContentsProvider implements FileContentsProvider {
 
   public MultiSourceContentsProvider(
       DistBuildService service,
+      ListeningExecutorService executorService,
       FileMaterializationStatsTracker fileMaterializationStatsTracker,
       Optional<Path> localCacheAbsPath)
       throws InterruptedException, IOException {
-    this(new ServerContentsProvider(service), fileMaterializationStatsTracker, localCacheAbsPath);
+    this(
+        createLocalFsProvider(localCacheAbsPath),
+        service,
+        executorService,
+        fileMaterializationStatsTracker);
+  }
+
+  private MultiSourceContentsProvider(
+      Optional<LocalFsContentsProvider> localFsProvider,
+      DistBuildService service,
+      ListeningExecutorService executorService,
+      FileMaterializationStatsTracker fileMaterializationStatsTracker) {
+    this(
+        localFsProvider,
+        new ServerContentsProvider(service, executorService, localFsProvider),
+        fileMaterializationStatsTracker);
   }
 
   public MultiSourceContentsProvider(
@@ -45,15 +66,28 @@ public class MultiSourceContentsProvider implements FileContentsProvider {
       FileMaterializationStatsTracker fileMaterializationStatsTracker,
       Optional<Path> localCacheAbsPath)
       throws InterruptedException, IOException {
+    this(
+        createLocalFsProvider(localCacheAbsPath),
+        serverContentProvider,
+        fileMaterializationStatsTracker);
+  }
+
+  private MultiSourceContentsProvider(
+      Optional<LocalFsContentsProvider> localFsProvider,
+      FileContentsProvider serverContentProvider,
+      FileMaterializationStatsTracker fileMaterializationStatsTracker) {
     this.inlineProvider = new InlineContentsProvider();
     this.fileMaterializationStatsTracker = fileMaterializationStatsTracker;
+    this.localFsProvider = localFsProvider;
+    this.serverProvider = serverContentProvider;
+  }
+
+  private static Optional<LocalFsContentsProvider> createLocalFsProvider(
+      Optional<Path> localCacheAbsPath) throws InterruptedException, IOException {
     if (localCacheAbsPath.isPresent()) {
-      this.localFsProvider = Optional.of(new LocalFsContentsProvider(localCacheAbsPath.get()));
-    } else {
-      this.localFsProvider = Optional.empty();
+      return Optional.of(new LocalFsContentsProvider(localCacheAbsPath.get()));
     }
-
-    this.serverProvider = serverContentProvider;
+    return Optional.empty();
   }
 
   @Override
@@ -88,4 +122,18 @@ public class MultiSourceContentsProvider implements FileContentsProvider {
 
     return false;
   }
+
+  @Override
+  public ListenableFuture<?> prefetchFileContents(
+      Collection<BuildJobStateFileHashEntry> entries) {
+    List<BuildJobStateFileHashEntry> entriesToFetch = new ArrayList<>();
+    for (BuildJobStateFileHashEntry entry : entries) {
+      if (entry.isSetContents()
+          || (localFsProvider.isPresent() && localFsProvider.get().contains(entry))) {
+        continue;
+      }
+      entriesToFetch.add(entry);
+    }
+    return serverProvider.prefetchFileContents(entriesToFetch);
+  }
 }
@@ -17,18 +17,56 @@
 package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 public class ServerContentsProvider implements FileContentsProvider {
+  private static final Logger LOG = Logger.get(ServerContentsProvider.class);
+
+  /** Number of files asked of the frontend in a single request when prefetching. */
+  private static final int PREFETCH_BATCH_SIZE = 100;
+
   private final DistBuildService service;
+  private final ListeningExecutorService executorService;
+  /** Where prefetched contents are written to, rather than being held in memory. */
+  private final Optional<LocalFsContentsProvider> localFsProvider;
+
+  /**
+   * The batches fetching contents ahead of them being materialized, by content hash. Dropped once
+   * materialized.
+   */
+  private final ConcurrentMap<String, ListenableFuture<?>> prefetchedContents =
+      new ConcurrentHashMap<>();
 
-  public ServerContentsProvider(DistBuildService service) {
+  public ServerContentsProvider(
+      DistBuildService service,
+      ListeningExecutorService executorService,
+      Optional<LocalFsContentsProvider> localFsProvider) {
     this.service = service;
+    this.executorService = executorService;
+    this.localFsProvider = localFsProvider;
   }
 
   @Override
@@ -37,6 +75,11 @@ public class ServerContentsProvider implements FileContentsProvider {
     Preconditions.checkState(
         entry.isSetHashCode(), String.format("File hash missing for file [%s]", entry.getPath()));
 
+    if (waitForPrefetchedContents(entry.getHashCode())
+        && localFsProvider.get().materializeFileContents(entry, targetAbsPath)) {
+      return true;
+    }
+
     try (InputStream inputStream = service.fetchSourceFile(entry.getHashCode());
         OutputStream outputStream = InlineContentsProvider.newOutputStream(targetAbsPath)) {
       ByteStreams.copy(inputStream, outputStream);
@@ -44,4 +87,86 @@ public class ServerContentsProvider implements FileContentsProvider {
 
     return true;
   }
+
+  /**
+   * Fetches the contents of the entries from the frontend in batches, in parallel, and writes them
+   * to the local source file cache. Without one, nothing is prefetched, so that the contents of a
+   * whole source tree aren't held in memory.
+   */
+  @Override
+  public ListenableFuture<?> prefetchFileContents(
+      Collection<BuildJobStateFileHashEntry> entries) {
+    if (!localFsProvider.isPresent()) {
+      return Futures.immediateFuture(null);
+    }
+    LocalFsContentsProvider localFsProvider = this.localFsProvider.get();
+
+    // Entries with the same contents are stored apart if only some are executable.
+    ListMultimap<String, BuildJobStateFileHashEntry> entriesByHashCode =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (BuildJobStateFileHashEntry entry : entries) {
+      if (entry.isSetHashCode() && !prefetchedContents.containsKey(entry.getHashCode())) {
+        entriesByHashCode.put(entry.getHashCode(), entry);
+      }
+    }
+
+    List<ListenableFuture<?>> batches = new ArrayList<>();
+    for (List<String> batch :
+        Iterables.partition(entriesByHashCode.keySet(), PREFETCH_BATCH_SIZE)) {
+      ImmutableList<String> batchHashCodes = ImmutableList.copyOf(batch);
+      ImmutableListMultimap.Builder<String, BuildJobStateFileHashEntry> batchEntries =
+          ImmutableListMultimap.builder();
+      for (String hashCode : batchHashCodes) {
+        batchEntries.putAll(hashCode, entriesByHashCode.get(hashCode));
+      }
+      ImmutableListMultimap<String, BuildJobStateFileHashEntry> entriesToStore =
+          batchEntries.build();
+      ListenableFuture<?> batchStored =
+          executorService.submit(
+              () -> {
+                ImmutableMap<String, byte[]> contents = service.fetchSourceFiles(batchHashCodes);
+                for (Map.Entry<String, BuildJobStateFileHashEntry> entry : entriesToStore.entries()) {
+                  localFsProvider.writeFileContents(
+                      entry.getValue(),
+                      Preconditions.checkNotNull(
+                          contents.get(entry.getKey()),
+                          "Frontend did not return the contents of [%s].",
+                          entry.getKey()));
+                }
+                return null;
+              });
+      for (String hashCode : batchHashCodes) {
+        prefetchedContents.putIfAbsent(hashCode, batchStored);
+      }
+      batches.add(batchStored);
+    }
+    LOG.info(
+        "Prefetching %d source files in %d batches.",
+        entriesByHashCode.keySet().size(),
+        batches.size());
+    return Futures.successfulAsList(batches);
+  }
+
+  /**
+   * Waits for the contents with the given hash to be written to the local source file cache, if
+   * they are being prefetched.
+   *
+   * @return whether they were prefetched.
+   */
+  private boolean waitForPrefetchedContents(String hashCode) throws IOException {
+    ListenableFuture<?> stored = prefetchedContents.remove(hashCode);
+    if (stored == null) {
+      return false;
+    }
+    try {
+      stored.get();
+      return true;
+    } catch (ExecutionException e) {
+      LOG.warn(e, "Prefetching [%s] failed, fetching it on its own.", hashCode);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a prefetched source file.", e);
+    }
+  }
 }
@@ -20,76 +20,132 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Threads;
-import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
-import com.google.common.eventbus.EventBus;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Thin wrapper around guava event bus. */
+/**
+ * Event bus delivering events to the {@link com.google.common.eventbus.Subscribe} methods of the
+ * objects registered with it, as Guava's event bus does.
+ *
+ * <p>Unlike Guava's, which delivers every event to every listener in turn, each listener has its
+ * own queue of events, which it gets through independently of the others on a pool of threads.
+ * The listeners which take a type of event are looked up once per type.
+ */
 public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus {
 
   private static final Logger LOG = Logger.get(BuckEventBus.class);
 
   public static final int DEFAULT_SHUTDOWN_TIMEOUT_MS = 15000;
 
+  /** Number of events queued for a listener before posters wait for it to catch up. */
+  private static final int MAX_QUEUED_EVENTS_PER_LISTENER = 1 << 14;
+
   private static final Supplier<Long> DEFAULT_THREAD_ID_SUPPLIER =
       () -> Thread.currentThread().getId();
 
   private final Clock clock;
+  private final boolean async;
   private final ExecutorService executorService;
-  private final EventBus eventBus;
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
+  private volatile Subscriptions subscriptions = new Subscriptions(ImmutableList.of());
+
+  /**
+   * Events which the current thread is delivering, or will deliver once done with the current one,
+   * when delivering synchronously. Queued like this so that events posted by a listener reach every
+   * listener after the event it is handling.
+   */
+  private final ThreadLocal<Queue<Runnable>> synchronousDeliveries =
+      ThreadLocal.withInitial(ArrayDeque::new);
+
+  private final ThreadLocal<Boolean> isDeliveringSynchronously =
+      ThreadLocal.withInitial(() -> false);
 
   // synchronization variables to ensure proper shutdown
-  private volatile int activeTasks = 0;
+  private final AtomicLong pendingDeliveries = new AtomicLong();
   private final Object lock = new Object();
 
   public DefaultBuckEventBus(Clock clock, BuildId buildId) {
     this(clock, true, buildId, DEFAULT_SHUTDOWN_TIMEOUT_MS);
   }
 
+  /**
+   * @param async whether events are delivered on threads of the event bus. Otherwise, events are
+   *     delivered by the thread posting them, before {@link #post} returns.
+   */
   @VisibleForTesting
   public DefaultBuckEventBus(
       Clock clock, boolean async, BuildId buildId, int shutdownTimeoutMillis) {
     this.clock = clock;
+    this.async = async;
     this.executorService =
         async
-            ? MostExecutors.newSingleThreadExecutor(
+            // Each listener takes up at most one thread at a time, so there are never more threads
+            // than listeners, and a listener blocking doesn't hold up the others.
+            ? Executors.newCachedThreadPool(
                 new CommandThreadFactory(BuckEventBus.class.getSimpleName()))
             : MoreExecutors.newDirectExecutorService();
-    this.eventBus = new EventBus("buck-build-events");
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = buildId;
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
   }
 
   private void dispatch(final BuckEvent event) {
-    // keep track the number of active tasks so we can do proper shutdown
-    synchronized (lock) {
-      activeTasks++;
+    ImmutableList<Subscription> eventSubscriptions =
+        subscriptions.getSubscriptions(event.getClass());
+    if (!async) {
+      deliverSynchronously(event, eventSubscriptions);
+      return;
+    }
+
+    // keep track the number of pending deliveries so we can do proper shutdown
+    pendingDeliveries.addAndGet(eventSubscriptions.size());
+    for (Subscription subscription : eventSubscriptions) {
+      subscription.queue.enqueue(event, subscription.handlers);
+    }
+  }
+
+  private void deliverSynchronously(BuckEvent event, ImmutableList<Subscription> subscriptions) {
+    Queue<Runnable> deliveries = synchronousDeliveries.get();
+    for (Subscription subscription : subscriptions) {
+      deliveries.add(() -> subscription.queue.deliverNow(event, subscription.handlers));
+    }
+    if (isDeliveringSynchronously.get()) {
+      return;
+    }
+    isDeliveringSynchronously.set(true);
+    try {
+      Runnable delivery;
+      while ((delivery = deliveries.poll()) != null) {
+        delivery.run();
+      }
+    } finally {
+      isDeliveringSynchronously.set(false);
     }
+  }
 
-    executorService.submit(
-        () -> {
-          try {
-            eventBus.post(event);
-          } finally {
-            // event bus should not throw but just in case wrap with try-finally
-            synchronized (lock) {
-              activeTasks--;
-              // notify about task completion; shutdown may wait for it
-              lock.notifyAll();
-            }
-          }
-        });
+  private void onDelivered() {
+    if (pendingDeliveries.decrementAndGet() == 0) {
+      synchronized (lock) {
+        // notify about delivery completion; shutdown may wait for it
+        lock.notifyAll();
+      }
+    }
   }
 
   @Override
@@ -111,14 +167,28 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   }
 
   @Override
-  public void register(Object object) {
-    eventBus.register(object);
+  public synchronized void register(Object object) {
+    ImmutableList<ListenerQueue> listeners = subscriptions.listeners;
+    if (listeners.stream().anyMatch(listener -> listener.getListener() == object)) {
+      return;
+    }
+    subscriptions =
+        new Subscriptions(
+            ImmutableList.<ListenerQueue>builder()
+                .addAll(listeners)
+                .add(
+                    new ListenerQueue(
+                        object,
+                        executorService,
+                        MAX_QUEUED_EVENTS_PER_LISTENER,
+                        this::onDelivered))
+                .build());
   }
 
   @Override
   public void postWithoutConfiguring(BuckEvent event) {
     Preconditions.checkState(event.isConfigured());
-    eventBus.post(event);
+    dispatch(event);
   }
 
   @VisibleForTesting
@@ -139,21 +209,18 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   }
 
   /**
-   * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} is called to wait
-   * for events which have been posted, but which have been queued by the {@link EventBus}, to be
+   * Waits for events which have been posted, but which are still queued for some listeners, to be
    * delivered. This allows listeners to record or report as much information as possible. This aids
    * debugging when close is called during exception processing.
    */
   @Override
   public void close() throws IOException {
-    // it might have happened that executor service is still processing a task which in turn may
-    // post new tasks to the executor, in this case if we shutdown executor they won't be processed
-    // so first wait for all currently running tasks and their descendants to finish
-    // ideally it should be done inside executorService but it only provides shutdown() method
-    // which immediately stops accepting new tasks, that's why we have some wrapper on top of it
+    // it might have happened that a listener is still handling an event and in turn posts new
+    // events, in this case if we shutdown executor they won't be delivered
+    // so first wait for all queued events and their descendants to be delivered
     long timeoutTime = System.currentTimeMillis() + shutdownTimeoutMillis;
     synchronized (lock) {
-      while (activeTasks > 0) {
+      while (pendingDeliveries.get() > 0) {
 
         long waitTime = timeoutTime - System.currentTimeMillis();
         if (waitTime <= 0) {
@@ -201,4 +268,40 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
         threadId,
         buildId);
   }
+
+  /** The listeners registered with the bus, and which of them take each type of event. */
+  private static class Subscriptions {
+    private final ImmutableList<ListenerQueue> listeners;
+    private final ConcurrentMap<Class<?>, ImmutableList<Subscription>> byEventType =
+        new ConcurrentHashMap<>();
+
+    private Subscriptions(ImmutableList<ListenerQueue> listeners) {
+      this.listeners = listeners;
+    }
+
+    private ImmutableList<Subscription> getSubscriptions(Class<?> eventType) {
+      return byEventType.computeIfAbsent(eventType, this::findSubscriptions);
+    }
+
+    private ImmutableList<Subscription> findSubscriptions(Class<?> eventType) {
+      ImmutableList.Builder<Subscription> subscriptions = ImmutableList.builder();
+      for (ListenerQueue listener : listeners) {
+        ImmutableList<MethodHandle> handlers = listener.getHandlers(eventType);
+        if (!handlers.isEmpty()) {
+          subscriptions.add(new Subscription(listener, handlers));
+        }
+      }
+      return subscriptions.build();
+    }
+  }
+
+  private static class Subscription {
+    private final ListenerQueue queue;
+    private final ImmutableList<MethodHandle> handlers;
+
+    private Subscription(ListenerQueue queue, ImmutableList<MethodHandle> handlers) {
+      this.queue = queue;
+      this.handlers = handlers;
+    }
+  }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.MoreCollectors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The events waiting to be delivered to one object registered with a {@link DefaultBuckEventBus}.
+ *
+ * <p>A listener gets its events one at a time, in the order they were posted, but independently of
+ * other listeners, so that a slow listener only holds up its own events. Events are delivered in
+ * batches, after which the thread is left to deliver the events of other listeners.
+ *
+ * <p>Only so many events are queued for a listener before threads posting more wait for it to catch
+ * up. A listener which doesn't catch up within a while is assumed to be stuck, and its events are
+ * queued without waiting, rather than holding up the build, until it catches up again.
+ */
+class ListenerQueue {
+
+  private static final Logger LOG = Logger.get(ListenerQueue.class);
+
+  /** Events delivered to the listener in one go, before letting other listeners use the thread. */
+  private static final int BATCH_SIZE = 256;
+
+  private static final long MAX_BACKPRESSURE_WAIT_MILLIS = 1000;
+
+  /** Whether the current thread is delivering events, in which case it must never wait for room. */
+  private static final ThreadLocal<Boolean> isDelivering = ThreadLocal.withInitial(() -> false);
+
+  private final Object listener;
+  private final ImmutableList<Subscriber> subscribers;
+  private final Executor executor;
+  private final int capacity;
+  private final Semaphore room;
+  private final Runnable onDelivered;
+  private final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+  /** The size of {@link #deliveries}, which the queue itself only tells in linear time. */
+  private final AtomicInteger queuedDeliveries = new AtomicInteger();
+  private final AtomicBoolean isDeliveryScheduled = new AtomicBoolean();
+  private volatile boolean isStuck = false;
+
+  /**
+   * @param executor runs the deliveries of events queued by {@link #enqueue}.
+   * @param capacity the number of events queued before posters wait for the listener.
+   * @param onDelivered run after every queued event is delivered.
+   */
+  ListenerQueue(Object listener, Executor executor, int capacity, Runnable onDelivered) {
+    this.listener = listener;
+    this.subscribers = findSubscribers(listener);
+    this.executor = executor;
+    this.capacity = capacity;
+    this.room = new Semaphore(capacity);
+    this.onDelivered = onDelivered;
+  }
+
+  Object getListener() {
+    return listener;
+  }
+
+  /** @return the methods of the listener which events of the given type are passed to. */
+  ImmutableList<MethodHandle> getHandlers(Class<?> eventType) {
+    return subscribers
+        .stream()
+        .filter(subscriber -> subscriber.eventType.isAssignableFrom(eventType))
+        .map(subscriber -> subscriber.handler)
+        .collect(MoreCollectors.toImmutableList());
+  }
+
+  /**
+   * Queues the event to be passed to the given handlers, on the executor, after the events queued
+   * before it.
+   */
+  void enqueue(Object event, ImmutableList<MethodHandle> handlers) {
+    boolean holdsRoom = room.tryAcquire() || waitForRoom();
+    queuedDeliveries.incrementAndGet();
+    deliveries.add(new Delivery(event, handlers, holdsRoom));
+    if (isDeliveryScheduled.compareAndSet(false, true)) {
+      executor.execute(this::deliverBatch);
+    }
+  }
+
+  /** Passes the event to the given handlers on this thread, bypassing the queue. */
+  synchronized void deliverNow(Object event, ImmutableList<MethodHandle> handlers) {
+    deliver(event, handlers);
+  }
+
+  private boolean waitForRoom() {
+    if (isStuck || isDelivering.get()) {
+      return false;
+    }
+    try {
+      if (room.tryAcquire(MAX_BACKPRESSURE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (!isStuck) {
+      isStuck = true;
+      LOG.warn(
+          "%s didn't handle its last %d events within %dms, no longer waiting for it.",
+          listener, capacity, MAX_BACKPRESSURE_WAIT_MILLIS);
+    }
+    return false;
+  }
+
+  @VisibleForTesting
+  boolean isStuck() {
+    return isStuck;
+  }
+
+  private void deliverBatch() {
+    boolean wasDelivering = isDelivering.get();
+    isDelivering.set(true);
+    try {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        Delivery delivery = deliveries.poll();
+        if (delivery == null) {
+          break;
+        }
+        deliver(delivery.event, delivery.handlers);
+        if (delivery.holdsRoom) {
+          room.release();
+        }
+        if (queuedDeliveries.decrementAndGet() < capacity && isStuck) {
+          isStuck = false;
+          LOG.info("%s caught up with its events, waiting for it again.", listener);
+        }
+        onDelivered.run();
+      }
+    } finally {
+      isDelivering.set(wasDelivering);
+    }
+
+    isDeliveryScheduled.set(false);
+    // Events queued after the last poll, but before the flag was cleared, didn't schedule delivery.
+    if (!deliveries.isEmpty() && isDeliveryScheduled.compareAndSet(false, true)) {
+      executor.execute(this::deliverBatch);
+    }
+  }
+
+  private void deliver(Object event, ImmutableList<MethodHandle> handlers) {
+    for (MethodHandle handler : handlers) {
+      try {
+        handler.invokeExact(event);
+      } catch (Throwable t) {
+        LOG.error(t, "%s failed to handle %s.", listener, event);
+      }
+    }
+  }
+
+  /**
+   * Finds the methods annotated with {@link Subscribe} of the listener and its supertypes, as
+   * Guava's event bus does. Methods overriding a subscriber are only called once.
+   */
+  private static ImmutableList<Subscriber> findSubscribers(Object listener) {
+    ImmutableList.Builder<Subscriber> subscribers = ImmutableList.builder();
+    Set<String> seen = new HashSet<>();
+    for (Class<?> type : TypeToken.of(listener.getClass()).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+          continue;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+            parameterTypes.length == 1,
+            "Method %s has @Subscribe annotation but has %s parameters. "
+                + "Subscriber methods must have exactly 1 parameter.",
+            method,
+            parameterTypes.length);
+        if (seen.add(method.getName() + Arrays.toString(parameterTypes))) {
+          subscribers.add(new Subscriber(parameterTypes[0], newHandler(listener, method)));
+        }
+      }
+    }
+    return subscribers.build();
+  }
+
+  private static MethodHandle newHandler(Object listener, Method method) {
+    method.setAccessible(true);
+    try {
+      return MethodHandles.lookup()
+          .unreflect(method)
+          .bindTo(listener)
+          .asType(MethodType.methodType(void.class, Object.class));
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Subscriber {
+    private final Class<?> eventType;
+    private final MethodHandle handler;
+
+    private Subscriber(Class<?> eventType, MethodHandle handler) {
+      this.eventType = eventType;
+      this.handler = handler;
+    }
+  }
+
+  private static class Delivery {
+    private final Object event;
+    private final ImmutableList<MethodHandle> handlers;
+    /** Whether the delivery took up room in the queue, which it makes again once delivered. */
+    private final boolean holdsRoom;
+
+    private Delivery(Object event, ImmutableList<MethodHandle> handlers, boolean holdsRoom) {
+      this.event = event;
+      this.handlers = handlers;
+      this.holdsRoom = holdsRoom;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.facebook.buck.rules.AddToRuleKey;
 import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildRuleParams;
 import com.facebook.buck.rules.BuildableContext;
+import com.facebook.buck.rules.CacheableBuildRule;
 import com.facebook.buck.rules.ExplicitBuildTargetSourcePath;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.step.Step;
@@ -35,7 +36,8 @@ import com.google.common.io.ByteSource;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 
-public class WriteFile extends AbstractBuildRuleWithDeclaredAndExtraDeps {
+public class WriteFile extends AbstractBuildRuleWithDeclaredAndExtraDeps
+    implements CacheableBuildRule {
 
   @AddToRuleKey private final byte[] fileContents;
 
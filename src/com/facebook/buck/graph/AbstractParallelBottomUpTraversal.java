@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.collect.Iterables;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A parallel version of {@link AbstractBottomUpTraversal}: every node is visited on a {@link
+ * ForkJoinPool} as soon as all the nodes to which it has an outgoing edge have been visited, so
+ * independent parts of the graph are visited concurrently.
+ *
+ * <p>{@link #visit(Object)} must be thread safe. It may rely on the visits of a node's dependencies
+ * having happened before, and their effects being visible.
+ */
+public abstract class AbstractParallelBottomUpTraversal<T> {
+
+  private final TraversableGraph<T> graph;
+  private final ForkJoinPool pool;
+
+  public AbstractParallelBottomUpTraversal(TraversableGraph<T> graph, ForkJoinPool pool) {
+    this.graph = graph;
+    this.pool = pool;
+  }
+
+  public final void traverse() {
+    // Number of dependencies of each node which are still to be visited. Only this map's values are
+    // modified once the traversal starts, so it doesn't need to be a concurrent one.
+    Map<T, AtomicInteger> pendingDeps = new HashMap<>();
+    for (T node : graph.getNodes()) {
+      pendingDeps.put(node, new AtomicInteger(Iterables.size(graph.getOutgoingNodesFor(node))));
+    }
+    AtomicInteger visitedCount = new AtomicInteger();
+
+    @SuppressWarnings("serial")
+    CountedCompleter<Void> root =
+        new CountedCompleter<Void>() {
+          @Override
+          public void compute() {
+            for (T node : graph.getNodesWithNoOutgoingEdges()) {
+              addToPendingCount(1);
+              new VisitTask(this, node, pendingDeps, visitedCount).fork();
+            }
+            tryComplete();
+          }
+        };
+    pool.invoke(root);
+
+    if (visitedCount.get() != pendingDeps.size()) {
+      throw new IllegalStateException(
+          "Cycle detected despite graph which was claimed to be a DAG");
+    }
+  }
+
+  /** Visit a node. May be called concurrently for nodes which don't depend on each other. */
+  public abstract void visit(T node);
+
+  /**
+   * Visits a node, then forks a task for each of its dependents that has no unvisited dependencies
+   * left. All tasks report to the root, which completes once no task is left.
+   */
+  @SuppressWarnings("serial")
+  private class VisitTask extends CountedCompleter<Void> {
+    private final CountedCompleter<?> root;
+    private final T node;
+    private final Map<T, AtomicInteger> pendingDeps;
+    private final AtomicInteger visitedCount;
+
+    private VisitTask(
+        CountedCompleter<?> root,
+        T node,
+        Map<T, AtomicInteger> pendingDeps,
+        AtomicInteger visitedCount) {
+      super(root);
+      this.root = root;
+      this.node = node;
+      this.pendingDeps = pendingDeps;
+      this.visitedCount = visitedCount;
+    }
+
+    @Override
+    public void compute() {
+      visit(node);
+      visitedCount.incrementAndGet();
+      for (T dependent : graph.getIncomingNodesFor(node)) {
+        if (pendingDeps.get(dependent).decrementAndGet() == 0) {
+          root.addToPendingCount(1);
+          new VisitTask(root, dependent, pendingDeps, visitedCount).fork();
+        }
+      }
+      tryComplete();
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A level-synchronous, parallel version of {@link AbstractBreadthFirstTraversal}: all nodes at a
+ * given distance from the initial nodes are visited in parallel on an {@link Executor}, and the
+ * next level is only started once they have all been visited.
+ *
+ * <p>Every reachable node is visited exactly once. Nodes of the same level are visited in no
+ * particular order and from several threads at once, so {@link #visit(Object)} must be thread safe.
+ * The next level is assembled in the order of the current one though, so the traversal order is
+ * that of {@link AbstractBreadthFirstTraversal}, however the visits were scheduled.
+ *
+ * <p>The calling thread visits nodes too, and only waits for visits other threads have started, so
+ * the traversal can't deadlock on an executor whose threads are all busy, even with the caller.
+ */
+public abstract class AbstractParallelBreadthFirstTraversal<Node> {
+
+  /** Nodes of a level are visited in chunks of this size, one chunk per task. */
+  private static final int NODES_PER_TASK = 32;
+
+  private final Executor executor;
+  private final ImmutableList<Node> initialNodes;
+
+  public AbstractParallelBreadthFirstTraversal(
+      Executor executor, Iterable<? extends Node> initialNodes) {
+    this.executor = executor;
+    this.initialNodes = ImmutableList.copyOf(initialNodes);
+  }
+
+  /** @return the reachable nodes, in breadth-first order. */
+  public final ImmutableList<Node> start() {
+    ImmutableList.Builder<Node> traversalOrder = ImmutableList.builder();
+    Set<Node> explored = new HashSet<>();
+    List<Node> level = new ArrayList<>();
+    for (Node node : initialNodes) {
+      if (explored.add(node)) {
+        level.add(node);
+      }
+    }
+
+    while (!level.isEmpty()) {
+      traversalOrder.addAll(level);
+      List<Node> nextLevel = new ArrayList<>();
+      for (Iterable<Node> deps : visitLevel(level)) {
+        for (Node dep : deps) {
+          if (explored.add(dep)) {
+            nextLevel.add(dep);
+          }
+        }
+      }
+      level = nextLevel;
+    }
+    return traversalOrder.build();
+  }
+
+  /**
+   * To perform a full traversal of the the initial nodes' transitive dependencies, this function
+   * should return all of {@code node}'s direct dependencies. May be called concurrently.
+   *
+   * @param node Visited graph node
+   * @return The set of direct dependencies to visit after visiting this node.
+   */
+  public abstract Iterable<Node> visit(Node node);
+
+  /**
+   * Traverse a graph in parallel without explicitly creating a {@code new
+   * AbstractParallelBreadthFirstTraversal} and overriding {@link #visit(Object)}
+   *
+   * @param visitor Typically a lambda expression, which must be thread safe
+   * @return the reachable nodes, in breadth-first order.
+   */
+  public static <Node> ImmutableList<Node> traverse(
+      Executor executor,
+      Iterable<? extends Node> initialNodes,
+      AbstractBreadthFirstThrowingTraversal.Visitor<Node, RuntimeException> visitor) {
+    return new AbstractParallelBreadthFirstTraversal<Node>(executor, initialNodes) {
+      @Override
+      public Iterable<Node> visit(Node node) {
+        return visitor.visit(node);
+      }
+    }.start();
+  }
+
+  /** @return the dependencies of each node of the level, in the order of the level. */
+  private List<Iterable<Node>> visitLevel(List<Node> level) {
+    List<Iterable<Node>> deps = new ArrayList<>(level.size());
+    for (int i = 0; i < level.size(); i++) {
+      deps.add(null);
+    }
+    int taskCount = (level.size() + NODES_PER_TASK - 1) / NODES_PER_TASK;
+    AtomicInteger nextTask = new AtomicInteger();
+    CountDownLatch tasksDone = new CountDownLatch(taskCount);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    Runnable worker =
+        () -> {
+          int task;
+          while ((task = nextTask.getAndIncrement()) < taskCount) {
+            try {
+              int end = Math.min(level.size(), (task + 1) * NODES_PER_TASK);
+              for (int i = task * NODES_PER_TASK; i < end; i++) {
+                deps.set(i, visit(level.get(i)));
+              }
+            } catch (Throwable t) {
+              failure.compareAndSet(null, t);
+            } finally {
+              tasksDone.countDown();
+            }
+          }
+        };
+    int helpers = Math.min(taskCount - 1, Runtime.getRuntime().availableProcessors());
+    for (int i = 0; i < helpers; i++) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // The calling thread visits what the executor won't.
+        break;
+      }
+    }
+    worker.run();
+    // Helpers which never got to run claim no task, so this only waits for visits in progress.
+    Uninterruptibles.awaitUninterruptibly(tasksDone);
+
+    Throwable t = failure.get();
+    if (t != null) {
+      Throwables.throwIfUnchecked(t);
+      throw new RuntimeException(t);
+    }
+    return deps;
+  }
+}
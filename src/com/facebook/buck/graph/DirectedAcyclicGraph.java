@@ -17,42 +17,145 @@
 package com.facebook.buck.graph;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
-import java.util.Objects;
+import com.google.common.collect.Iterables;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+/**
+ * An immutable, acyclic directed graph.
+ *
+ * <p>Build graphs routinely have hundreds of thousands of nodes and live for the lifetime of the
+ * daemon, so rather than keeping a collection of neighbours per node, every node is assigned a
+ * dense integer id and the edges are stored in compressed sparse row form: for node {@code i}, the
+ * ids of its neighbours are {@code targets[offsets[i]]} up to {@code targets[offsets[i + 1]]}. The
+ * id of a node is found through an open-addressing table of ints, so the graph holds no boxed
+ * values or per-edge objects at all.
+ */
 public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
 
   private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+  private final ImmutableList<T> nodesById;
+
+  /** Open-addressing table from a node's hash to its id plus one, with zero marking empty slots. */
+  private final int[] idTable;
+
+  private final int[] outgoingOffsets;
+  private final int[] outgoingTargets;
+  private final int[] incomingOffsets;
+  private final int[] incomingTargets;
 
   public DirectedAcyclicGraph(MutableDirectedGraph<T> graph) {
     Preconditions.checkState(graph.isAcyclic(), "Graph must by acyclic");
     this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
+    this.nodesById = nodes.asList();
+    int nodeCount = nodesById.size();
+
+    this.idTable = new int[Math.max(2, Integer.highestOneBit(Math.max(1, nodeCount)) << 2)];
+    for (int id = 0; id < nodeCount; id++) {
+      int slot = firstSlot(nodesById.get(id));
+      while (idTable[slot] != 0) {
+        slot = (slot + 1) & (idTable.length - 1);
+      }
+      idTable[slot] = id + 1;
+    }
+
+    this.outgoingOffsets = new int[nodeCount + 1];
+    for (int id = 0; id < nodeCount; id++) {
+      int degree = Iterables.size(graph.getOutgoingNodesFor(nodesById.get(id)));
+      outgoingOffsets[id + 1] = outgoingOffsets[id] + degree;
+    }
+    int edgeCount = outgoingOffsets[nodeCount];
+
+    this.outgoingTargets = new int[edgeCount];
+    int[] incomingDegrees = new int[nodeCount];
+    for (int id = 0; id < nodeCount; id++) {
+      int position = outgoingOffsets[id];
+      for (T sink : graph.getOutgoingNodesFor(nodesById.get(id))) {
+        int sinkId = getNodeId(sink);
+        outgoingTargets[position++] = sinkId;
+        incomingDegrees[sinkId]++;
+      }
+      // Sorted, so that membership can be looked up by binary search.
+      Arrays.sort(outgoingTargets, outgoingOffsets[id], position);
+    }
+
+    // The incoming edges are the outgoing ones bucketed by sink, so they don't need to be read from
+    // the mutable graph a second time. Sources are visited in id order, so each bucket is sorted.
+    this.incomingOffsets = new int[nodeCount + 1];
+    for (int id = 0; id < nodeCount; id++) {
+      incomingOffsets[id + 1] = incomingOffsets[id] + incomingDegrees[id];
+    }
+    this.incomingTargets = new int[edgeCount];
+    int[] positions = new int[nodeCount];
+    System.arraycopy(incomingOffsets, 0, positions, 0, nodeCount);
+    for (int id = 0; id < nodeCount; id++) {
+      for (int i = outgoingOffsets[id]; i < outgoingOffsets[id + 1]; i++) {
+        incomingTargets[positions[outgoingTargets[i]]++] = id;
+      }
+    }
+  }
+
+  private int firstSlot(Object node) {
+    int hash = node.hashCode() * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & (idTable.length - 1);
+  }
+
+  /** @return the dense id of {@code node}, or -1 if it isn't part of this graph. */
+  private int getNodeId(Object node) {
+    for (int slot = firstSlot(node); ; slot = (slot + 1) & (idTable.length - 1)) {
+      int entry = idTable[slot];
+      if (entry == 0) {
+        return -1;
+      }
+      if (nodesById.get(entry - 1).equals(node)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  private Set<T> getNeighbors(T node, int[] offsets, int[] targets) {
+    int id = getNodeId(node);
+    if (id < 0 || offsets[id] == offsets[id + 1]) {
+      return ImmutableSet.of();
+    }
+    return new NodeSlice(targets, offsets[id], offsets[id + 1]);
   }
 
+  private ImmutableSet<T> getNodesWithoutNeighbors(int[] offsets) {
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int id = 0; id < nodesById.size(); id++) {
+      if (offsets[id] == offsets[id + 1]) {
+        builder.add(nodesById.get(id));
+      }
+    }
+    return builder.build();
+  }
+
+  /** @return an unmodifiable view of the nodes {@code source} has an edge to. */
   @Override
-  public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+  public Set<T> getOutgoingNodesFor(T source) {
+    return getNeighbors(source, outgoingOffsets, outgoingTargets);
   }
 
+  /** @return an unmodifiable view of the nodes which have an edge to {@code sink}. */
   @Override
-  public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+  public Set<T> getIncomingNodesFor(T sink) {
+    return getNeighbors(sink, incomingOffsets, incomingTargets);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return getNodesWithoutNeighbors(outgoingOffsets);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return getNodesWithoutNeighbors(incomingOffsets);
   }
 
   @Override
@@ -60,20 +163,84 @@ public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
     return nodes;
   }
 
+  /** @return the number of edges in the graph */
+  public int getEdgeCount() {
+    return outgoingTargets.length;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (!(other instanceof DirectedAcyclicGraph)) {
       return false;
     }
 
-    DirectedAcyclicGraph<?> that = (DirectedAcyclicGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes)
-        && Objects.equals(this.outgoingEdges, that.outgoingEdges)
-        && Objects.equals(this.incomingEdges, that.incomingEdges);
+    // Node ids depend on insertion order, so equal graphs can have different arrays.
+    @SuppressWarnings("unchecked")
+    DirectedAcyclicGraph<T> that = (DirectedAcyclicGraph<T>) other;
+    if (!this.nodes.equals(that.nodes) || this.getEdgeCount() != that.getEdgeCount()) {
+      return false;
+    }
+    for (T node : nodesById) {
+      if (!getOutgoingNodesFor(node).equals(that.getOutgoingNodesFor(node))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    int hashCode = nodes.hashCode();
+    for (T node : nodesById) {
+      hashCode += node.hashCode() * 31 + getOutgoingNodesFor(node).hashCode();
+    }
+    return hashCode;
+  }
+
+  /** A read-only view of the nodes whose ids are stored in a sorted range of an adjacency array. */
+  private final class NodeSlice extends AbstractSet<T> {
+    private final int[] ids;
+    private final int start;
+    private final int end;
+
+    private NodeSlice(int[] ids, int start, int end) {
+      this.ids = ids;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private int position = start;
+
+        @Override
+        public boolean hasNext() {
+          return position < end;
+        }
+
+        @Override
+        public T next() {
+          if (position >= end) {
+            throw new NoSuchElementException();
+          }
+          return nodesById.get(ids[position++]);
+        }
+      };
+    }
+
+    @Override
+    public boolean contains(Object node) {
+      if (node == null) {
+        return false;
+      }
+      int id = getNodeId(node);
+      return id >= 0 && Arrays.binarySearch(ids, start, end, id) >= 0;
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
   }
 }
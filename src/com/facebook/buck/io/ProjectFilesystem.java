@@ -85,6 +85,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
@@ -911,7 +912,23 @@ public class ProjectFilesystem {
    * with the contents and structure that matches that of the specified paths.
    */
   public void createZip(Collection<Path> pathsToIncludeInZip, Path out) throws IOException {
-    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
+    createZip(pathsToIncludeInZip, out, Optional.empty());
+  }
+
+  /**
+   * Like {@link #createZip(Collection, Path)}, but compresses several files at a time on {@code
+   * compressionExecutor}, if there is one.
+   */
+  public void createZip(
+      Collection<Path> pathsToIncludeInZip,
+      Path out,
+      Optional<? extends Executor> compressionExecutor)
+      throws IOException {
+    try (CustomZipOutputStream zip =
+        compressionExecutor.isPresent()
+            ? ZipOutputStreams.newOutputStream(
+                out, ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION, compressionExecutor.get())
+            : ZipOutputStreams.newOutputStream(out)) {
       for (Path path : pathsToIncludeInZip) {
         boolean isDirectory = isDirectory(path);
         CustomZipEntry entry = new CustomZipEntry(path, isDirectory);
@@ -60,6 +60,7 @@ public class JsUtil {
                 tool.getCommandPrefix(sourcePathResolver),
                 tool.getEnvironment(sourcePathResolver),
                 worker.getMaxWorkers(),
+                worker.isMultiplexed(),
                 worker.isPersistent()
                     ? Optional.of(
                         WorkerProcessIdentity.of(
@@ -65,6 +65,7 @@ public class ReactNativeBundleWorkerStep extends WorkerShellStep {
                         .build(),
                     startupEnv,
                     1,
+                    false,
                     Optional.empty()))),
         Optional.empty(),
         Optional.empty(),
@@ -52,6 +52,7 @@ public class ReactNativeDepsWorkerStep extends WorkerShellStep {
                         .build(),
                     startupEnv,
                     1,
+                    false,
                     Optional.empty()))),
         Optional.empty(),
         Optional.empty(),
@@ -20,6 +20,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.jvm.core.JavaPackageFinder;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.util.ClassLoaderCache;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.immutables.BuckStyleTuple;
@@ -39,6 +40,8 @@ abstract class AbstractJavacExecutionContext {
 
   public abstract ClassLoaderCache getClassLoaderCache();
 
+  public abstract JarContentsCache getJarContentsCache();
+
   public abstract Verbosity getVerbosity();
 
   public abstract CellPathResolver getCellPathResolver();
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.JarContentsCache;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * A {@link StandardJavaFileManager} which lists the jars on the class path from a {@link
+ * JarContentsCache}, rather than having every compilation open and list them again.
+ *
+ * <p>Only a class path made up of jars is served from the cache. Other locations, and class paths
+ * with directories on them, are left to the underlying file manager. That includes the platform
+ * class path, which javac may read from {@code ct.sym} rather than from the jars it names.
+ */
+class ClassPathCachingFileManager extends ForwardingStandardJavaFileManager {
+
+  private static final Logger LOG = Logger.get(ClassPathCachingFileManager.class);
+
+  private final JarContentsCache jarContentsCache;
+
+  private boolean isClassPathListed = false;
+  private Optional<ImmutableList<JarContentsCache.Jar>> classPathJars = Optional.empty();
+
+  public ClassPathCachingFileManager(
+      StandardJavaFileManager fileManager, JarContentsCache jarContentsCache) {
+    super(fileManager);
+    this.jarContentsCache = jarContentsCache;
+  }
+
+  @Override
+  public boolean handleOption(String current, Iterator<String> remaining) {
+    // The option may have set the class path.
+    isClassPathListed = false;
+    return super.handleOption(current, remaining);
+  }
+
+  @Override
+  public void setLocation(Location location, Iterable<? extends File> path) throws IOException {
+    if (location == StandardLocation.CLASS_PATH) {
+      isClassPathListed = false;
+    }
+    super.setLocation(location, path);
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(
+      Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse)
+      throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+    Optional<ImmutableList<JarContentsCache.Jar>> jars = getClassPathJars();
+    if (!jars.isPresent()) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+
+    String directory = packageName.replace('.', '/');
+    // In class path order, as the compiler takes the first of several classes of the same name.
+    List<JavaFileObject> files = new ArrayList<>();
+    for (JarContentsCache.Jar jar : jars.get()) {
+      for (String entryName :
+          recurse ? jar.getEntriesRecursively(directory) : jar.getEntries(directory)) {
+        JavaFileObject.Kind kind = getKind(entryName);
+        if (kinds.contains(kind)) {
+          files.add(new JarEntryJavaFileObject(jar, entryName, kind));
+        }
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof JarEntryJavaFileObject) {
+      return ((JarEntryJavaFileObject) file).getBinaryName();
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof JarEntryJavaFileObject || b instanceof JarEntryJavaFileObject) {
+      return a.equals(b);
+    }
+    return super.isSameFile(a, b);
+  }
+
+  /** @return the jars on the class path, or absent if there is anything other than jars on it. */
+  private Optional<ImmutableList<JarContentsCache.Jar>> getClassPathJars() {
+    if (!isClassPathListed) {
+      classPathJars = findClassPathJars();
+      isClassPathListed = true;
+    }
+    return classPathJars;
+  }
+
+  private Optional<ImmutableList<JarContentsCache.Jar>> findClassPathJars() {
+    Iterable<? extends File> classPath = fileManager.getLocation(StandardLocation.CLASS_PATH);
+    if (classPath == null) {
+      return Optional.empty();
+    }
+
+    ImmutableList.Builder<JarContentsCache.Jar> jars = ImmutableList.builder();
+    for (File file : classPath) {
+      Path path = file.toPath().toAbsolutePath();
+      if (!Files.exists(path)) {
+        // The compiler skips those too.
+        continue;
+      }
+      if (!Files.isRegularFile(path)) {
+        return Optional.empty();
+      }
+      try {
+        jars.add(jarContentsCache.getJar(path));
+      } catch (IOException e) {
+        // Let the compiler deal with whatever is wrong with the file.
+        LOG.debug(e, "Unable to list %s, not caching the class path.", path);
+        return Optional.empty();
+      }
+    }
+    return Optional.of(jars.build());
+  }
+
+  private static JavaFileObject.Kind getKind(String entryName) {
+    if (entryName.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+      return JavaFileObject.Kind.CLASS;
+    } else if (entryName.endsWith(JavaFileObject.Kind.SOURCE.extension)) {
+      return JavaFileObject.Kind.SOURCE;
+    } else if (entryName.endsWith(JavaFileObject.Kind.HTML.extension)) {
+      return JavaFileObject.Kind.HTML;
+    }
+    return JavaFileObject.Kind.OTHER;
+  }
+
+  /**
+   * An entry of a jar on the class path, read through the {@link JarContentsCache}. Unlike {@link
+   * javax.tools.SimpleJavaFileObject}, allows for the opaque {@code jar:} URIs which the compiler's
+   * own file manager gives such entries, and which {@link ClassUsageTracker} relies on.
+   */
+  private static class JarEntryJavaFileObject implements JavaFileObject {
+    private final JarContentsCache.Jar jar;
+    private final String entryName;
+    private final Kind kind;
+    private final URI uri;
+
+    private JarEntryJavaFileObject(JarContentsCache.Jar jar, String entryName, Kind kind) {
+      this.jar = jar;
+      this.entryName = entryName;
+      this.kind = kind;
+      this.uri = createUri(jar, entryName);
+    }
+
+    private static URI createUri(JarContentsCache.Jar jar, String entryName) {
+      try {
+        return URI.create(
+            "jar:" + jar.getPath().toUri() + "!/" + new URI(null, null, entryName, null));
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    private String getBinaryName() {
+      return entryName.substring(0, entryName.length() - kind.extension.length()).replace('/', '.');
+    }
+
+    @Override
+    public URI toUri() {
+      return uri;
+    }
+
+    @Override
+    public String getName() {
+      return jar.getPath() + "(" + entryName + ")";
+    }
+
+    @Override
+    public Kind getKind() {
+      return kind;
+    }
+
+    @Override
+    public boolean isNameCompatible(String simpleName, Kind kind) {
+      return this.kind == kind
+          && (entryName.equals(simpleName + kind.extension)
+              || entryName.endsWith("/" + simpleName + kind.extension));
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      return new ByteArrayInputStream(jar.getEntryContents(entryName));
+    }
+
+    @Override
+    public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+      return new StringReader(getCharContent(ignoreEncodingErrors).toString());
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      return new String(jar.getEntryContents(entryName), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Writer openWriter() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLastModified() {
+      return jar.getLastModifiedTime().toMillis();
+    }
+
+    @Override
+    public boolean delete() {
+      return false;
+    }
+
+    @Override
+    @Nullable
+    public NestingKind getNestingKind() {
+      return null;
+    }
+
+    @Override
+    @Nullable
+    public Modifier getAccessLevel() {
+      return null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof JarEntryJavaFileObject)) {
+        return false;
+      }
+      JarEntryJavaFileObject that = (JarEntryJavaFileObject) other;
+      return jar == that.jar && entryName.equals(that.entryName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(jar) + entryName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+  }
+}
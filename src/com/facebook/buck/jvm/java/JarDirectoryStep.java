@@ -155,6 +155,7 @@ public class JarDirectoryStep implements Step {
             .setShouldMergeManifests(mergeManifests)
             .setShouldHashEntries(hashEntries)
             .setRemoveEntryPredicate(removeEntryPredicate)
+            .setCompressionExecutor(context.getZipCompressionExecutor().orElse(null))
             .createJarFile(filesystem.resolve(pathToOutputFile)));
   }
 }
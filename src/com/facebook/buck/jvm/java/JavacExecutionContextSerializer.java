@@ -22,6 +22,7 @@ import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.rules.CellPathResolverSerializer;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.Console;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessExecutorSerializer;
 import com.facebook.buck.util.Verbosity;
@@ -84,6 +85,7 @@ public class JavacExecutionContextSerializer {
       JavacEventSink eventSink,
       PrintStream stdErr,
       ClassLoaderCache classLoaderCache,
+      JarContentsCache jarContentsCache,
       Console console)
       throws InterruptedException {
 
@@ -130,6 +132,7 @@ public class JavacExecutionContextSerializer {
         eventSink,
         stdErr,
         classLoaderCache,
+        jarContentsCache,
         verbosity,
         cellPathResolver,
         javaPackageFinder,
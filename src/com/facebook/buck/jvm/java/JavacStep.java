@@ -128,6 +128,7 @@ public class JavacStep implements Step {
               new JavacEventSinkToBuckEventBusBridge(firstOrderContext.getBuckEventBus()),
               stderr,
               firstOrderContext.getClassLoaderCache(),
+              firstOrderContext.getJarContentsCache(),
               verbosity,
               firstOrderContext.getCellPathResolver(),
               firstOrderContext.getJavaPackageFinder(),
@@ -269,7 +269,8 @@ class Jsr199JavacInvocation implements Javac.Invocation {
       JavaCompiler compiler = compilerConstructor.apply(context);
 
       StandardJavaFileManager standardFileManager =
-          compiler.getStandardFileManager(null, null, null);
+          new ClassPathCachingFileManager(
+              compiler.getStandardFileManager(null, null, null), context.getJarContentsCache());
       addCloseable(standardFileManager);
 
       StandardJavaFileManager fileManager;
@@ -31,6 +31,7 @@ import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.Console;
+import com.facebook.buck.util.JarContentsCache;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -55,6 +56,7 @@ public class OutOfProcessInvocationReceiver implements OutOfProcessJavacConnecti
   public static final int INTERRUPTED_EXIT_CODE = 130;
 
   private static final ClassLoaderCache CLASS_LOADER_CACHE = new ClassLoaderCache();
+  private static final JarContentsCache JAR_CONTENTS_CACHE = new JarContentsCache();
   private static final OutOfProcessJavacEventSink OUT_OF_PROCESS_JAVAC_EVENT_SINK =
       new OutOfProcessJavacEventSink();
 
@@ -102,6 +104,7 @@ public class OutOfProcessInvocationReceiver implements OutOfProcessJavacConnecti
               OUT_OF_PROCESS_JAVAC_EVENT_SINK,
               printStreamForStdErr,
               CLASS_LOADER_CACHE,
+              JAR_CONTENTS_CACHE,
               console);
     } catch (InterruptedException e) {
       return INTERRUPTED_EXIT_CODE;
@@ -161,6 +161,15 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
         .orElse(WatchmanWatcher.CursorType.CLOCK_ID);
   }
 
+  /**
+   * Whether the daemon should save its parser cache on exit and reload it on startup, replaying
+   * file changes since the save via watchman.
+   */
+  @Value.Lazy
+  public boolean getDaemonStateSnapshotEnabled() {
+    return getDelegate().getBooleanValue("parser", "daemon_state_snapshot", false);
+  }
+
   @Value.Lazy
   public boolean getEnableParallelParsing() {
     return getDelegate().getBooleanValue("project", "parallel_parsing", true);
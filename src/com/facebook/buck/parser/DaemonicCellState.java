@@ -34,6 +34,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
@@ -252,66 +253,101 @@ class DaemonicCellState {
     return Optional.empty();
   }
 
-  private Map<String, String> getAllRawNodesForSerialisation() throws IOException {
-    Map<String, String> result = new HashMap<>();
-    Path root = getCellRoot();
-    ObjectMapper objectMapper = new ObjectMapper();
-    for (Path path : allRawNodes.keySet()) {
-      ImmutableSet<Map<String, Object>> v = allRawNodes.getIfPresent(path);
-      if (v != null) {
-        result.put(root.relativize(path).toString(), objectMapper.writeValueAsString(v));
+  /** Copy what gets serialised, so that the serialisation itself can happen without the lock. */
+  Copy copy() {
+    ImmutableMap.Builder<Path, ImmutableSet<Map<String, Object>>> rawNodes =
+        ImmutableMap.builder();
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      for (Path path : allRawNodes.keySet()) {
+        ImmutableSet<Map<String, Object>> v = allRawNodes.getIfPresent(path);
+        if (v != null) {
+          rawNodes.put(path, v);
+        }
       }
+      return new Copy(
+          getCellRoot(),
+          rawNodes.build(),
+          ImmutableSetMultimap.copyOf(buildFileDependents),
+          ImmutableMap.copyOf(buildFileEnv));
     }
-    return result;
   }
 
-  private Map<String, List<String>> getBuildFileDependentsForSerialisation() {
-    Map<String, List<String>> result = new HashMap<>();
-    Path root = getCellRoot();
-    Map<Path, Collection<Path>> view = buildFileDependents.asMap();
-    for (Path path : view.keySet()) {
-      Collection<Path> paths = view.get(path);
-      if (paths != null) {
+  RemoteDaemonicCellState serialise() throws IOException {
+    return copy().serialise();
+  }
+
+  /**
+   * The serialisable parts of the state of a cell at some point in time. The raw nodes are shared
+   * with the cell state rather than copied, as they are never modified once cached.
+   */
+  static final class Copy {
+    private final Path root;
+    private final ImmutableMap<Path, ImmutableSet<Map<String, Object>>> allRawNodes;
+    private final ImmutableSetMultimap<Path, Path> buildFileDependents;
+    private final ImmutableMap<Path, ImmutableMap<String, Optional<String>>> buildFileEnv;
+
+    private Copy(
+        Path root,
+        ImmutableMap<Path, ImmutableSet<Map<String, Object>>> allRawNodes,
+        ImmutableSetMultimap<Path, Path> buildFileDependents,
+        ImmutableMap<Path, ImmutableMap<String, Optional<String>>> buildFileEnv) {
+      this.root = root;
+      this.allRawNodes = allRawNodes;
+      this.buildFileDependents = buildFileDependents;
+      this.buildFileEnv = buildFileEnv;
+    }
+
+    RemoteDaemonicCellState serialise() throws IOException {
+      RemoteDaemonicCellState result = new RemoteDaemonicCellState();
+      result.allRawNodesJsons = getAllRawNodesForSerialisation();
+      result.buildFileDependents = getBuildFileDependentsForSerialisation();
+      result.buildFileEnv = getBuildFileEnvForSerialisation();
+      return result;
+    }
+
+    private Map<String, String> getAllRawNodesForSerialisation() throws IOException {
+      Map<String, String> result = new HashMap<>();
+      ObjectMapper objectMapper = new ObjectMapper();
+      for (Map.Entry<Path, ImmutableSet<Map<String, Object>>> entry : allRawNodes.entrySet()) {
+        result.put(
+            root.relativize(entry.getKey()).toString(),
+            objectMapper.writeValueAsString(entry.getValue()));
+      }
+      return result;
+    }
+
+    private Map<String, List<String>> getBuildFileDependentsForSerialisation() {
+      Map<String, List<String>> result = new HashMap<>();
+      for (Map.Entry<Path, Collection<Path>> entry : buildFileDependents.asMap().entrySet()) {
         ImmutableList<String> pathList =
-            paths
+            entry
+                .getValue()
                 .stream()
                 .map(v -> root.relativize(v).toString())
                 .collect(MoreCollectors.toImmutableList());
-        result.put(root.relativize(path).toString(), pathList);
+        result.put(root.relativize(entry.getKey()).toString(), pathList);
       }
+      return result;
     }
 
-    return result;
-  }
-
-  private Map<String, Map<String, BuildFileEnvProperty>> getBuildFileEnvForSerialisation() {
-    Map<String, Map<String, BuildFileEnvProperty>> result = new HashMap<>();
-    for (Path path : buildFileEnv.keySet()) {
-      ImmutableMap.Builder<String, BuildFileEnvProperty> buildFileEnvValuesMapBuilder =
-          ImmutableMap.builder();
-      ImmutableMap<String, Optional<String>> values = buildFileEnv.get(path);
-      if (values != null) {
-        values.forEach(
-            (k, v) -> {
-              BuildFileEnvProperty prop = new BuildFileEnvProperty();
-              v.ifPresent(prop::setValue);
-              buildFileEnvValuesMapBuilder.put(k, prop);
-            });
+    private Map<String, Map<String, BuildFileEnvProperty>> getBuildFileEnvForSerialisation() {
+      Map<String, Map<String, BuildFileEnvProperty>> result = new HashMap<>();
+      for (Map.Entry<Path, ImmutableMap<String, Optional<String>>> entry :
+          buildFileEnv.entrySet()) {
+        ImmutableMap.Builder<String, BuildFileEnvProperty> buildFileEnvValuesMapBuilder =
+            ImmutableMap.builder();
+        entry
+            .getValue()
+            .forEach(
+                (k, v) -> {
+                  BuildFileEnvProperty prop = new BuildFileEnvProperty();
+                  v.ifPresent(prop::setValue);
+                  buildFileEnvValuesMapBuilder.put(k, prop);
+                });
+        result.put(entry.getKey().toString(), buildFileEnvValuesMapBuilder.build());
       }
-      result.put(path.toString(), buildFileEnvValuesMapBuilder.build());
-    }
-
-    return result;
-  }
-
-  RemoteDaemonicCellState serialise() throws IOException {
-    RemoteDaemonicCellState result = new RemoteDaemonicCellState();
-    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
-      result.allRawNodesJsons = getAllRawNodesForSerialisation();
-      result.buildFileDependents = getBuildFileDependentsForSerialisation();
-      result.buildFileEnv = getBuildFileEnvForSerialisation();
+      return result;
     }
-    return result;
   }
 
   static DaemonicCellState deserialise(
@@ -60,6 +60,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -242,6 +243,7 @@ public class DaemonicParserState {
         dependentsOfEveryNode.add(cell.getFilesystem().resolve(include.substring(2)));
       }
 
+      generation.incrementAndGet();
       return getOrCreateCellState(cell)
           .putRawNodesIfNotPresentAndStripMetaEntries(
               buildFile, withoutMetaIncludes, dependentsOfEveryNode.build(), env);
@@ -285,6 +287,9 @@ public class DaemonicParserState {
 
   private BroadcastEventListener broadcastEventListener;
 
+  /** Bumped on every change to the cached state, so callers can tell whether it has changed. */
+  private final AtomicLong generation = new AtomicLong();
+
   public DaemonicParserState(
       BroadcastEventListener broadcastEventListener,
       TypeCoercerFactory typeCoercerFactory,
@@ -338,6 +343,13 @@ public class DaemonicParserState {
     return typeCoercerFactory;
   }
 
+  /**
+   * @return a number which changes whenever raw nodes are added to or invalidated from this state.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
   LoadingCache<Cell, BuildFileTree> getBuildFileTrees() {
     return buildFileTrees;
   }
@@ -510,6 +522,9 @@ public class DaemonicParserState {
     // Paths passed in may not be absolute.
     path = state.getCellRoot().resolve(path);
     int invalidatedNodes = state.invalidatePath(path);
+    if (invalidatedNodes > 0) {
+      generation.incrementAndGet();
+    }
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
   }
 
@@ -536,6 +551,7 @@ public class DaemonicParserState {
           state.invalidateIfEnvHasChanged(cell, buildFile);
       if (envDiff.isPresent()) {
         hasInvalidated = true;
+        generation.incrementAndGet();
         MapDifference<String, String> diff = envDiff.get();
         LOG.warn("Invalidating cache on environment change (%s)", diff);
         Set<String> environmentChanges = new HashSet<>();
@@ -586,6 +602,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
       cellPathToDaemonicState.remove(cell.getRoot());
+      generation.incrementAndGet();
       if (invalidated) {
         LOG.debug("Cell cache data invalidated.");
       } else {
@@ -601,6 +618,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
+      generation.incrementAndGet();
       buildFileTrees.invalidateAll();
       if (invalidated) {
         LOG.debug("Cache data invalidated.");
@@ -629,33 +647,81 @@ public class DaemonicParserState {
     }
   }
 
-  public RemoteDaemonicParserState serialiseDaemonicParserState() throws IOException {
-    ImmutableList.Builder<String> cellPathsBuilder = ImmutableList.builder();
-    ImmutableMap.Builder<String, RemoteDaemonicCellState> cellPathToDaemonicStateBuilder =
-        ImmutableMap.builder();
+  /**
+   * @param rootCell the cell which cell paths are stored relative to, and which {@link
+   *     #restoreState} has to be given.
+   */
+  public RemoteDaemonicParserState serialiseDaemonicParserState(Cell rootCell)
+      throws IOException {
+    return copyState(rootCell).serialise();
+  }
+
+  /**
+   * Take a copy of the state to serialise later on. Copying only holds the locks of the state for
+   * as long as it takes to copy the maps of cached nodes, not for the serialisation itself.
+   *
+   * @param rootCell the cell which cell paths are stored relative to, and which {@link
+   *     #restoreState} has to be given.
+   */
+  public StateCopy copyState(Cell rootCell) {
+    ImmutableMap.Builder<String, DaemonicCellState.Copy> cellStates = ImmutableMap.builder();
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      for (Path p : cellPathToDaemonicState.keySet()) {
-        DaemonicCellState daemonicCellState = cellPathToDaemonicState.get(p);
-        Path relPath = daemonicCellState.getCellRoot().relativize(p);
-        cellPathsBuilder.add(relPath.toString());
-        cellPathToDaemonicStateBuilder.put(relPath.toString(), daemonicCellState.serialise());
+      for (Map.Entry<Path, DaemonicCellState> entry : cellPathToDaemonicState.entrySet()) {
+        Path relPath = rootCell.getRoot().relativize(entry.getKey());
+        cellStates.put(relPath.toString(), entry.getValue().copy());
       }
     }
-    RemoteDaemonicParserState remote = new RemoteDaemonicParserState();
-    remote.setCellPaths(cellPathsBuilder.build());
     ImmutableMap.Builder<String, List<String>> cachedIncludesBuilder = ImmutableMap.builder();
     try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
       cachedIncludes.forEach(
           (path, iterable) ->
               cachedIncludesBuilder.put(path.toString(), Lists.newArrayList(iterable)));
     }
-    remote.setCachedIncludes(cachedIncludesBuilder.build());
-    remote.setCellPathToDaemonicState(cellPathToDaemonicStateBuilder.build());
+    return new StateCopy(cellStates.build(), cachedIncludesBuilder.build());
+  }
 
-    return remote;
+  /** The state at the time {@link #copyState} was called, ready to be serialised. */
+  public static final class StateCopy {
+    private final ImmutableMap<String, DaemonicCellState.Copy> cellStates;
+    private final ImmutableMap<String, List<String>> cachedIncludes;
+
+    private StateCopy(
+        ImmutableMap<String, DaemonicCellState.Copy> cellStates,
+        ImmutableMap<String, List<String>> cachedIncludes) {
+      this.cellStates = cellStates;
+      this.cachedIncludes = cachedIncludes;
+    }
+
+    public RemoteDaemonicParserState serialise() throws IOException {
+      ImmutableMap.Builder<String, RemoteDaemonicCellState> cellPathToDaemonicStateBuilder =
+          ImmutableMap.builder();
+      for (Map.Entry<String, DaemonicCellState.Copy> entry : cellStates.entrySet()) {
+        cellPathToDaemonicStateBuilder.put(entry.getKey(), entry.getValue().serialise());
+      }
+      RemoteDaemonicParserState remote = new RemoteDaemonicParserState();
+      remote.setCellPaths(cellStates.keySet().asList());
+      remote.setCachedIncludes(cachedIncludes);
+      remote.setCellPathToDaemonicState(cellPathToDaemonicStateBuilder.build());
+      return remote;
+    }
   }
 
+  /**
+   * Populate this state from one produced by {@link #serialiseDaemonicParserState}. If that fails,
+   * whatever was restored up to that point is dropped again before the exception is rethrown.
+   */
   public DaemonicParserState restoreState(RemoteDaemonicParserState remote, Cell rootCell) {
+    try {
+      restoreStateUnchecked(remote, rootCell);
+    } catch (RuntimeException e) {
+      invalidateAllCaches();
+      throw e;
+    }
+    generation.incrementAndGet();
+    return this;
+  }
+
+  private void restoreStateUnchecked(RemoteDaemonicParserState remote, Cell rootCell) {
     Map<String, Cell> pathsToCell =
         remote
             .cellPaths
@@ -683,6 +749,5 @@ public class DaemonicParserState {
           Path path = Paths.get(k);
           cachedIncludes.put(path, v);
         });
-    return this;
   }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
+import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.slb.ThriftProtocol;
+import com.facebook.buck.slb.ThriftUtil;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The parser's cached raw nodes, saved to disk along with the watchman clocks they are valid at, so
+ * that a freshly started daemon can pick up where the last one left off instead of re-parsing
+ * every build file.
+ *
+ * <p>Replaying file changes since the saved clocks is up to the caller; the snapshot only refuses
+ * to load if it was written by a different buck version or for a different cell configuration.
+ */
+public final class DaemonicParserStateSnapshot {
+  private static final Logger LOG = Logger.get(DaemonicParserStateSnapshot.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  private final String fingerprint;
+  private final ImmutableMap<Path, String> clocks;
+  private final RemoteDaemonicParserState state;
+
+  public DaemonicParserStateSnapshot(
+      String fingerprint, ImmutableMap<Path, String> clocks, RemoteDaemonicParserState state) {
+    this.fingerprint = fingerprint;
+    this.clocks = clocks;
+    this.state = state;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /** @return the watchman clock of each watched root at the time the snapshot was taken. */
+  public ImmutableMap<Path, String> getClocks() {
+    return clocks;
+  }
+
+  public RemoteDaemonicParserState getState() {
+    return state;
+  }
+
+  /**
+   * @return a string identifying everything which, if changed, makes a saved snapshot unusable: the
+   *     buck version, and the location and parser-visible configuration of every cell.
+   */
+  public static String computeFingerprint(Cell rootCell) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(BuckVersion.getVersion(), StandardCharsets.UTF_8);
+    rootCell
+        .getAllCells()
+        .stream()
+        .sorted(Comparator.comparing(Cell::getRoot))
+        .forEach(
+            cell -> {
+              hasher.putString(cell.getRoot().toString(), StandardCharsets.UTF_8);
+              hasher.putString(
+                  cell.getBuckConfig().getRawConfigForParser().toString(), StandardCharsets.UTF_8);
+            });
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Write the snapshot to {@code path}, replacing whatever was there. The file is written to the
+   * side and moved into place, so readers never see a partial snapshot.
+   */
+  public void write(Path path) throws IOException {
+    Files.createDirectories(path.getParent());
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    byte[] payload = ThriftUtil.serialize(ThriftProtocol.COMPACT, state);
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(clocks.size());
+      for (Map.Entry<Path, String> entry : clocks.entrySet()) {
+        out.writeUTF(entry.getKey().toString());
+        out.writeUTF(entry.getValue());
+      }
+      out.writeInt(payload.length);
+      out.write(payload);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the snapshot stored at {@code path}, or {@link Optional#empty()} if there is none, or
+   *     it can't be read, or it was taken with a different fingerprint.
+   */
+  public static Optional<DaemonicParserStateSnapshot> read(Path path, String expectedFingerprint) {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        LOG.debug("Ignoring parser state snapshot %s with an unknown format.", path);
+        return Optional.empty();
+      }
+      String fingerprint = in.readUTF();
+      if (!fingerprint.equals(expectedFingerprint)) {
+        LOG.debug("Ignoring parser state snapshot %s taken with a different configuration.", path);
+        return Optional.empty();
+      }
+      int clockCount = in.readInt();
+      ImmutableMap.Builder<Path, String> clocks = ImmutableMap.builder();
+      for (int i = 0; i < clockCount; i++) {
+        clocks.put(Paths.get(in.readUTF()), in.readUTF());
+      }
+      byte[] payload = new byte[in.readInt()];
+      in.readFully(payload);
+      RemoteDaemonicParserState state = new RemoteDaemonicParserState();
+      ThriftUtil.deserialize(ThriftProtocol.COMPACT, payload, state);
+      return Optional.of(new DaemonicParserStateSnapshot(fingerprint, clocks.build(), state));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to read parser state snapshot %s.", path);
+      return Optional.empty();
+    }
+  }
+}
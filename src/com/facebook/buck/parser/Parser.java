@@ -571,14 +571,24 @@ public class Parser {
     return target.withFlavors(defaultFlavors);
   }
 
-  public RemoteDaemonicParserState storeParserState() throws IOException {
-    return getPermState().serialiseDaemonicParserState();
+  public RemoteDaemonicParserState storeParserState(Cell rootCell) throws IOException {
+    return getPermState().serialiseDaemonicParserState(rootCell);
+  }
+
+  /** @see DaemonicParserState#copyState */
+  public DaemonicParserState.StateCopy copyParserState(Cell rootCell) {
+    return getPermState().copyState(rootCell);
   }
 
   public void restoreParserState(RemoteDaemonicParserState state, Cell rootCell) {
     getPermState().restoreState(state, rootCell);
   }
 
+  /** @return a number which changes whenever the cached parser state does. */
+  public long getParserStateGeneration() {
+    return getPermState().getGeneration();
+  }
+
   @Subscribe
   public void onFileSystemChange(WatchmanOverflowEvent event) {
     LOG.verbose("Parser watched event OVERFLOW %s", event.getReason());
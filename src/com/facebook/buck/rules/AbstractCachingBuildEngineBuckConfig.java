@@ -66,6 +66,47 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum number of rule key cache lookups to send to the artifact cache in a single
+   *     batch. A value of 1 disables batching.
+   */
+  public int getMultiFetchBatchSize() {
+    return getDelegate().getInteger("build", "multi_fetch_batch_size").orElse(1);
+  }
+
+  /**
+   * @return whether to start rule key cache lookups for the whole action graph as soon as rule keys
+   *     are known, rather than waiting for the build to reach each rule.
+   */
+  public boolean isCachePrefetchEnabled() {
+    return getDelegate().getBoolean("build", "cache_prefetch").orElse(false);
+  }
+
+  /**
+   * @return whether, in shallow builds, the outputs of deps of rules which may still be fetched by
+   *     input-based rule key are only looked up in the cache, rather than fetched, until it's clear
+   *     they're actually needed.
+   */
+  public boolean isLazyMaterializationEnabled() {
+    return getDelegate().getBoolean("build", "lazy_materialization").orElse(false);
+  }
+
+  /**
+   * @return whether artifacts fetched from network caches are unzipped into buck-out while they
+   *     are being downloaded, rather than once the download completes.
+   */
+  public boolean isStreamingArtifactUnzipEnabled() {
+    return getDelegate().getBoolean("build", "streaming_artifact_unzip").orElse(false);
+  }
+
+  /**
+   * @return whether rules are built in the order of how long the rules depending on them took to
+   *     build in earlier builds, longest first, rather than in the order they become ready.
+   */
+  public boolean isCriticalPathSchedulingEnabled() {
+    return getDelegate().getBoolean("build", "critical_path_scheduling").orElse(false);
+  }
+
   /** @return the maximum size of files input based rule keys will be willing to hash. */
   public long getBuildInputRuleKeyFileSizeLimit() {
     return getDelegate().getLong("build", "input_rule_key_file_size_limit").orElse(Long.MAX_VALUE);
@@ -24,7 +24,9 @@ import com.facebook.buck.event.WatchmanStatusEvent;
 import com.facebook.buck.event.listener.BroadcastEventListener;
 import com.facebook.buck.graph.AbstractBottomUpTraversal;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.Pair;
+import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
@@ -32,6 +34,7 @@ import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.WatchmanOverflowEvent;
 import com.facebook.buck.util.WatchmanPathEvent;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.MapDifference;
@@ -40,9 +43,17 @@ import com.google.common.eventbus.Subscribe;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 /**
@@ -58,8 +69,25 @@ public class ActionGraphCache {
 
   private BroadcastEventListener broadcastEventListener;
 
+  /**
+   * If set, a cache miss rebuilds only the rules of target nodes which changed since the cached
+   * graph (and of everything depending on them), and reuses the cached rules for the rest.
+   */
+  private final boolean incremental;
+
+  /**
+   * Absolute paths of files created or deleted since {@link #lastActionGraph} was created. Only
+   * tracked in incremental mode, where such changes don't drop the whole cached graph.
+   */
+  private final Set<Path> pathsChangedSinceLastActionGraph = ConcurrentHashMap.newKeySet();
+
   public ActionGraphCache(BroadcastEventListener broadcastEventListener) {
+    this(broadcastEventListener, false);
+  }
+
+  public ActionGraphCache(BroadcastEventListener broadcastEventListener, boolean incremental) {
     this.broadcastEventListener = broadcastEventListener;
+    this.incremental = incremental;
   }
 
   /**
@@ -85,7 +113,9 @@ public class ActionGraphCache {
     ActionGraphAndResolver out;
     try {
       RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(keySeed);
-      if (lastActionGraph != null && lastActionGraph.getFirst().equals(targetGraph)) {
+      if (lastActionGraph != null
+          && lastActionGraph.getFirst().equals(targetGraph)
+          && pathsChangedSinceLastActionGraph.isEmpty()) {
         eventBus.post(ActionGraphEvent.Cache.hit());
         LOG.info("ActionGraph cache hit.");
         if (checkActionGraphs) {
@@ -105,15 +135,32 @@ public class ActionGraphCache {
           LOG.info("ActionGraph cache miss. TargetGraphs mismatched.");
         }
         lastTargetGraphHash = targetGraphHash;
-        Pair<TargetGraph, ActionGraphAndResolver> freshActionGraph =
-            new Pair<TargetGraph, ActionGraphAndResolver>(
-                targetGraph,
-                createActionGraph(
-                    eventBus, new DefaultTargetNodeToBuildRuleTransformer(), targetGraph));
+        Pair<TargetGraph, ActionGraphAndResolver> freshActionGraph;
+        if (incremental && lastActionGraph != null) {
+          freshActionGraph =
+              new Pair<TargetGraph, ActionGraphAndResolver>(
+                  targetGraph,
+                  createIncrementalActionGraph(
+                      eventBus,
+                      lastActionGraph.getFirst(),
+                      lastActionGraph.getSecond(),
+                      targetGraph,
+                      ImmutableSet.copyOf(pathsChangedSinceLastActionGraph)));
+          if (checkActionGraphs) {
+            compareActionGraphs(eventBus, freshActionGraph.getSecond(), targetGraph, fieldLoader);
+          }
+        } else {
+          freshActionGraph =
+              new Pair<TargetGraph, ActionGraphAndResolver>(
+                  targetGraph,
+                  createActionGraph(
+                      eventBus, new DefaultTargetNodeToBuildRuleTransformer(), targetGraph));
+        }
         out = freshActionGraph.getSecond();
         if (!skipActionGraphCache) {
           LOG.info("ActionGraph cache assignment. skipActionGraphCache? %s", skipActionGraphCache);
           lastActionGraph = freshActionGraph;
+          pathsChangedSinceLastActionGraph.clear();
         }
       }
     } finally {
@@ -163,8 +210,12 @@ public class ActionGraphCache {
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
       TargetGraph targetGraph) {
-    final BuildRuleResolver resolver = new BuildRuleResolver(targetGraph, transformer, eventBus);
+    BuildRuleResolver resolver = new BuildRuleResolver(targetGraph, transformer, eventBus);
+    return createActionGraph(resolver, targetGraph);
+  }
 
+  private static ActionGraphAndResolver createActionGraph(
+      final BuildRuleResolver resolver, TargetGraph targetGraph) {
     AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException> bottomUpTraversal =
         new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
 
@@ -185,6 +236,156 @@ public class ActionGraphCache {
         .build();
   }
 
+  /**
+   * Creates the {@link ActionGraph} for {@code targetGraph} by updating the one created for {@code
+   * lastTargetGraph}: rules are only created anew for target nodes which differ between the two
+   * graphs, or which are affected by {@code changedPaths}, and for their reverse dependencies. Every
+   * other rule is carried over from {@code lastActionGraph}.
+   */
+  @VisibleForTesting
+  static ActionGraphAndResolver createIncrementalActionGraph(
+      BuckEventBus eventBus,
+      TargetGraph lastTargetGraph,
+      ActionGraphAndResolver lastActionGraph,
+      TargetGraph targetGraph,
+      ImmutableSet<Path> changedPaths) {
+    Set<UnflavoredBuildTarget> invalidatedTargets =
+        getInvalidatedTargets(lastTargetGraph, targetGraph, changedPaths);
+    Set<UnflavoredBuildTarget> targetsInGraph = new HashSet<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      targetsInGraph.add(node.getBuildTarget().getUnflavoredBuildTarget());
+    }
+
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(targetGraph, new DefaultTargetNodeToBuildRuleTransformer(), eventBus);
+    Map<BuildRule, Boolean> reusable = new HashMap<>();
+    int totalRules = 0;
+    int reusedRules = 0;
+    for (BuildRule rule : lastActionGraph.getResolver().getBuildRules()) {
+      totalRules++;
+      if (isReusable(rule, targetsInGraph, invalidatedTargets, reusable)) {
+        resolver.addToIndex(rule);
+        reusedRules++;
+      }
+    }
+    LOG.info(
+        "Updating ActionGraph incrementally: %d target nodes invalidated, %d of %d rules reused.",
+        invalidatedTargets.size(),
+        reusedRules,
+        totalRules);
+
+    return createActionGraph(resolver, targetGraph);
+  }
+
+  /**
+   * @return the targets whose rules have to be recreated: those of nodes which are new, changed or
+   *     gone, or whose inputs or package were touched by {@code changedPaths}, plus everything which
+   *     transitively depends on them.
+   */
+  private static Set<UnflavoredBuildTarget> getInvalidatedTargets(
+      TargetGraph lastTargetGraph, TargetGraph targetGraph, ImmutableSet<Path> changedPaths) {
+    Map<BuildTarget, TargetNode<?, ?>> lastNodes = new HashMap<>();
+    for (TargetNode<?, ?> node : lastTargetGraph.getNodes()) {
+      lastNodes.put(node.getBuildTarget(), node);
+    }
+
+    Set<UnflavoredBuildTarget> invalidatedTargets = new HashSet<>();
+    Set<TargetNode<?, ?>> invalidatedNodes = new HashSet<>();
+    Deque<TargetNode<?, ?>> toVisit = new ArrayDeque<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      TargetNode<?, ?> lastNode = lastNodes.remove(node.getBuildTarget());
+      if (lastNode == null || !lastNode.equals(node) || isAffectedBy(node, changedPaths)) {
+        invalidatedNodes.add(node);
+        toVisit.add(node);
+      }
+    }
+    // Whatever is left was removed from the graph.
+    for (BuildTarget removed : lastNodes.keySet()) {
+      invalidatedTargets.add(removed.getUnflavoredBuildTarget());
+    }
+
+    while (!toVisit.isEmpty()) {
+      TargetNode<?, ?> node = toVisit.remove();
+      invalidatedTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
+      for (TargetNode<?, ?> dependent : targetGraph.getIncomingNodesFor(node)) {
+        if (invalidatedNodes.add(dependent)) {
+          toVisit.add(dependent);
+        }
+      }
+    }
+    return invalidatedTargets;
+  }
+
+  private static boolean isAffectedBy(TargetNode<?, ?> node, ImmutableSet<Path> changedPaths) {
+    if (changedPaths.isEmpty()) {
+      return false;
+    }
+    Path root = node.getFilesystem().getRootPath();
+    Path packagePath = root.resolve(node.getBuildTarget().getBasePath());
+    for (Path changedPath : changedPaths) {
+      if (packagePath.equals(changedPath.getParent())) {
+        return true;
+      }
+      for (Path input : node.getInputs()) {
+        if (root.resolve(input).startsWith(changedPath)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A rule from the previous graph can be reused if its target is still in the graph and wasn't
+   * invalidated, it is a {@link CacheableBuildRule}, and the same holds for all of its build deps.
+   */
+  private static boolean isReusable(
+      BuildRule root,
+      Set<UnflavoredBuildTarget> targetsInGraph,
+      Set<UnflavoredBuildTarget> invalidatedTargets,
+      Map<BuildRule, Boolean> reusable) {
+    // Walk the deps iteratively, since rule graphs can be deeper than the stack allows.
+    Deque<BuildRule> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      BuildRule rule = stack.peek();
+      if (reusable.containsKey(rule)) {
+        stack.pop();
+        continue;
+      }
+      UnflavoredBuildTarget target = rule.getBuildTarget().getUnflavoredBuildTarget();
+      if (!targetsInGraph.contains(target)
+          || invalidatedTargets.contains(target)
+          || !(rule instanceof CacheableBuildRule)) {
+        reusable.put(rule, false);
+        stack.pop();
+        continue;
+      }
+      List<BuildRule> unvisitedDeps = new ArrayList<>();
+      boolean depsReusable = true;
+      for (BuildRule dep : rule.getBuildDeps()) {
+        Boolean depReusable = reusable.get(dep);
+        if (depReusable == null) {
+          unvisitedDeps.add(dep);
+        } else if (!depReusable) {
+          depsReusable = false;
+          break;
+        }
+      }
+      if (!depsReusable || unvisitedDeps.isEmpty()) {
+        reusable.put(rule, depsReusable);
+        BuildRule popped = stack.pop();
+        Preconditions.checkState(popped == rule, "Expected %s on top of the stack.", rule);
+        continue;
+      }
+      // Come back to the rule once all of its deps are decided.
+      for (BuildRule dep : unvisitedDeps) {
+        stack.push(dep);
+      }
+    }
+    return reusable.get(root);
+  }
+
   private static HashCode getTargetGraphHash(TargetGraph targetGraph) {
     Hasher hasher = Hashing.sha1().newHasher();
     ImmutableSet<TargetNode<?, ?>> nodes = targetGraph.getNodes();
@@ -276,10 +477,17 @@ public class ActionGraphCache {
     if (event.getKind() == WatchmanPathEvent.Kind.MODIFY) {
       return;
     }
-    if (!isCacheEmpty()) {
-      LOG.info("ActionGraphCache invalidation due to Watchman event %s.", event);
+    if (incremental) {
+      // Only the rules affected by the file are recreated, the next time a graph is requested.
+      if (!isCacheEmpty()) {
+        pathsChangedSinceLastActionGraph.add(event.getCellPath().resolve(event.getPath()));
+      }
+    } else {
+      if (!isCacheEmpty()) {
+        LOG.info("ActionGraphCache invalidation due to Watchman event %s.", event);
+      }
+      invalidateCache();
     }
-    invalidateCache();
     switch (event.getKind()) {
       case CREATE:
         broadcastEventListener.broadcast(
@@ -307,6 +515,7 @@ public class ActionGraphCache {
   private void invalidateCache() {
     lastActionGraph = null;
     lastTargetGraphHash = null;
+    pathsChangedSinceLastActionGraph.clear();
   }
 
   @VisibleForTesting
@@ -33,6 +33,12 @@ public interface BuildEngine {
   /** Calculate the total number of transitive build rules processed from the given roots. */
   int getNumRulesToBuild(Iterable<BuildRule> rule);
 
+  /**
+   * Lets the engine plan how to build the given rules and their transitive deps, ahead of them being
+   * built. Rules which weren't planned are still built, just without the benefit of planning.
+   */
+  void planBuild(Iterable<BuildRule> rules);
+
   /** Build the given build rule and return a future to the build rule success. */
   BuildEngineResult build(
       BuildEngineBuildContext buildContext, ExecutionContext executionContext, BuildRule rule);
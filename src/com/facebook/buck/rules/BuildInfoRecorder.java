@@ -59,6 +59,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
@@ -272,6 +273,19 @@ public class BuildInfoRecorder {
       final ImmutableSet<RuleKey> ruleKeys,
       ArtifactCache artifactCache,
       final BuckEventBus eventBus) {
+    performUploadToArtifactCache(ruleKeys, artifactCache, eventBus, Optional.empty());
+  }
+
+  /**
+   * Like {@link #performUploadToArtifactCache(ImmutableSet, ArtifactCache, BuckEventBus)}, but
+   * compresses the artifact's files several at a time on {@code compressionExecutor}, if there is
+   * one.
+   */
+  public void performUploadToArtifactCache(
+      final ImmutableSet<RuleKey> ruleKeys,
+      ArtifactCache artifactCache,
+      final BuckEventBus eventBus,
+      Optional<? extends Executor> compressionExecutor) {
 
     // Skip all of this if caching is disabled. Although artifactCache.store() will be a noop,
     // building up the zip is wasted I/O.
@@ -292,7 +306,7 @@ public class BuildInfoRecorder {
           Files.createTempFile(
               "buck_artifact_" + MoreFiles.sanitize(buildTarget.getShortName()), ".zip");
       buildMetadata = getBuildMetadata();
-      projectFilesystem.createZip(pathsToIncludeInZip, zip);
+      projectFilesystem.createZip(pathsToIncludeInZip, zip, compressionExecutor);
     } catch (IOException e) {
       eventBus.post(
           ConsoleEvent.info(
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How long rules took to build locally, kept on disk so that a build can plan with the durations
+ * seen by the builds before it.
+ *
+ * <p>Only the time spent running a rule's steps is recorded, not the time it waited for its deps
+ * or for a thread, and only the latest duration of each rule is kept.
+ */
+public class BuildRuleDurationHistory {
+
+  /** Name of the file under buck-out where builds keep how long rules took to build. */
+  public static final String STORE_NAME = "rule-durations";
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationHistory.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  /** Upper bound on the durations kept in the store, so it doesn't grow forever. */
+  private static final int MAX_ENTRIES = 1 << 20;
+
+  private final Path storePath;
+
+  /** Durations read from the store. Not modified after construction. */
+  private final Map<String, Long> storedDurations;
+
+  /** Durations recorded during this run, which are written out first. */
+  private final ConcurrentMap<String, Long> recordedDurations = new ConcurrentHashMap<>();
+
+  private BuildRuleDurationHistory(Path storePath, Map<String, Long> storedDurations) {
+    this.storePath = storePath;
+    this.storedDurations = storedDurations;
+  }
+
+  /**
+   * @return the history stored at {@code storePath}, which is empty if the store is missing or
+   *     unreadable.
+   */
+  public static BuildRuleDurationHistory load(Path storePath) {
+    Map<String, Long> durations = new HashMap<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(storePath)))) {
+      if (in.readInt() == FORMAT_VERSION) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          durations.put(in.readUTF(), in.readLong());
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing stored yet.
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to read rule durations from %s, discarding them.", storePath);
+      durations.clear();
+    }
+    return new BuildRuleDurationHistory(storePath, durations);
+  }
+
+  /** @return how long the rule took to build the last time it was built locally, if known. */
+  public OptionalLong getDurationMillis(BuildTarget target) {
+    String key = target.getFullyQualifiedName();
+    Long duration = recordedDurations.get(key);
+    if (duration == null) {
+      duration = storedDurations.get(key);
+    }
+    return duration == null ? OptionalLong.empty() : OptionalLong.of(duration);
+  }
+
+  /** @return the mean of the stored durations, or 0 if there are none. */
+  public long getMeanDurationMillis() {
+    return (long) storedDurations.values().stream().mapToLong(Long::longValue).average().orElse(0);
+  }
+
+  public void record(BuildTarget target, long durationMillis) {
+    recordedDurations.put(target.getFullyQualifiedName(), durationMillis);
+  }
+
+  /** Writes the durations recorded this run, and as many older ones as fit, to the store. */
+  public void save() throws IOException {
+    Files.createDirectories(storePath.getParent());
+    Path tmp = Files.createTempFile(storePath.getParent(), storePath.getFileName().toString(), "");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(FORMAT_VERSION);
+        Map<String, Long> durations = new HashMap<>(recordedDurations);
+        for (Map.Entry<String, Long> entry : storedDurations.entrySet()) {
+          if (durations.size() >= MAX_ENTRIES) {
+            break;
+          }
+          durations.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        out.writeInt(durations.size());
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+      }
+      Files.move(
+          tmp,
+          storePath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+/**
+ * Marks a rule which {@link ActionGraphCache} may carry over into the action graph it builds when
+ * updating the cached one incrementally. Rules without it are always created anew.
+ *
+ * <p>A rule can only be marked once it has been audited not to keep the {@link BuildRuleResolver}
+ * it was created with, or a {@link SourcePathRuleFinder} or {@link SourcePathResolver} built on
+ * one, in any form: neither in its own fields, nor in helpers it holds, nor captured by lambdas or
+ * suppliers which may run after the rule was created. Such a rule would keep looking up rules in
+ * the graph it came from, and keep that whole graph alive. The deps suppliers of {@link
+ * AbstractBuildRuleWithDeclaredAndExtraDeps} are fine, since they are resolved before a rule is
+ * carried over.
+ */
+public interface CacheableBuildRule extends BuildRule {}
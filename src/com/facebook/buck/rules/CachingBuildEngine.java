@@ -18,6 +18,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.BatchingArtifactFetcher;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
@@ -62,6 +63,7 @@ import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.concurrent.MoreFutures;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.zip.Unzip;
@@ -73,6 +75,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -107,6 +110,12 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -149,6 +158,10 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final ConcurrentMap<BuildTarget, ListenableFuture<RuleKey>> ruleKeys =
       Maps.newConcurrentMap();
 
+  /** The post-build callbacks of each rule, which are also in {@link #asyncCallbacks}. */
+  private final ConcurrentMap<BuildTarget, ListenableFuture<Void>> ruleCallbacks =
+      Maps.newConcurrentMap();
+
   @Nullable private volatile Throwable firstFailure = null;
 
   private final CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -164,11 +177,43 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final SourcePathRuleFinder ruleFinder;
   private final SourcePathResolver pathResolver;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final int multiFetchBatchSize;
+  private final ConcurrentMap<ArtifactCache, BatchingArtifactFetcher> artifactFetchers =
+      Maps.newConcurrentMap();
+  private final boolean cachePrefetchEnabled;
+  private final boolean lazyMaterializationEnabled;
+  private final boolean streamingArtifactUnzipEnabled;
+  private final Optional<BuildRuleDurationHistory> ruleDurationHistory;
+  private final Optional<CriticalPathPriorities> criticalPathPriorities;
+  private final ConcurrentMap<BuildTarget, ListenableFuture<Boolean>> outputHashSeeds =
+      Maps.newConcurrentMap();
+  private final ConcurrentMap<BuildTarget, ImmutableSet<Path>> outputHashesSeededFromCache =
+      Maps.newConcurrentMap();
+  private final ConcurrentMap<BuildTarget, ImmutableSet<Path>> staleOutputsOfSeededRules =
+      Maps.newConcurrentMap();
+  private final Set<BuildTarget> prefetchWalkedTargets = Sets.newConcurrentHashSet();
+  private final ConcurrentMap<BuildTarget, BatchingArtifactFetcher.PendingMetadataFetch>
+      prefetchedMetadataFetches = Maps.newConcurrentMap();
   private final FileHashCache fileHashCache;
   private final RuleKeyFactories ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
 
   private final RuleDepsCache ruleDeps;
+  /** As many threads as the build, rather than one per core of the machine. */
+  private final ForkJoinPool ruleKeyCalculationPool;
+  private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  /**
+   * Unzips artifacts while they are being downloaded. Bounded, and without a queue: a payload
+   * arriving when every thread is busy is unzipped after its download instead.
+   */
+  private final ExecutorService artifactUnzipService =
+      new ThreadPoolExecutor(
+          /* corePoolSize */ 0,
+          /* maximumPoolSize */ Runtime.getRuntime().availableProcessors(),
+          /* keepAliveTime */ 60L,
+          TimeUnit.SECONDS,
+          /* workQueue */ new SynchronousQueue<>(),
+          new MostExecutors.NamedThreadFactory("Artifact Unzip"));
   private final Optional<UnskippedRulesTracker> unskippedRulesTracker;
   private final BuildRuleDurationTracker buildRuleDurationTracker = new BuildRuleDurationTracker();
   private final RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics;
@@ -183,12 +228,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       WeightedListeningExecutorService service,
       WeightedListeningExecutorService artifactFetchService,
+      int numThreads,
       StepRunner stepRunner,
       BuildMode buildMode,
       MetadataStorage metadataStorage,
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int multiFetchBatchSize,
+      boolean cachePrefetchEnabled,
+      boolean lazyMaterializationEnabled,
+      boolean streamingArtifactUnzipEnabled,
+      Optional<BuildRuleDurationHistory> ruleDurationHistory,
       final BuildRuleResolver resolver,
       BuildInfoStoreManager buildInfoStoreManager,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
@@ -199,12 +250,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     this.service = service;
     this.cacheActivityService = artifactFetchService;
+    this.ruleKeyCalculationPool = new ForkJoinPool(numThreads);
     this.stepRunner = stepRunner;
     this.buildMode = buildMode;
     this.metadataStorage = metadataStorage;
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.multiFetchBatchSize = multiFetchBatchSize;
+    this.cachePrefetchEnabled = cachePrefetchEnabled;
+    this.lazyMaterializationEnabled = lazyMaterializationEnabled;
+    this.streamingArtifactUnzipEnabled = streamingArtifactUnzipEnabled;
+    this.ruleDurationHistory = ruleDurationHistory;
     this.resolver = resolver;
     this.ruleFinder = new SourcePathRuleFinder(resolver);
     this.pathResolver = DefaultSourcePathResolver.from(ruleFinder);
@@ -217,7 +274,10 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
 
     this.ruleDeps = new RuleDepsCache(resolver);
+    this.criticalPathPriorities =
+        ruleDurationHistory.map(history -> new CriticalPathPriorities(history, ruleDeps));
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
+    this.ruleKeyCalculator = createRuleKeyCalculator();
     this.fileHashCacheMode = fileHashCacheMode;
     this.defaultRuleKeyDiagnostics =
         new RuleKeyDiagnostics<>(
@@ -232,17 +292,36 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.asyncCallbacks = new ConcurrentLinkedQueue<>();
   }
 
+  private ParallelRuleKeyCalculator<RuleKey> createRuleKeyCalculator() {
+    return new ParallelRuleKeyCalculator<>(
+        ruleKeyCalculationPool,
+        ruleKeyFactories.getDefaultRuleKeyFactory(),
+        ruleDeps,
+        (eventBus, rule) ->
+            BuildRuleEvent.ruleKeyCalculationScope(
+                eventBus,
+                rule,
+                buildRuleDurationTracker,
+                ruleKeyFactories.getDefaultRuleKeyFactory()));
+  }
+
   /** This constructor MUST ONLY BE USED FOR TESTS. */
   @VisibleForTesting
   CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       WeightedListeningExecutorService service,
+      int numThreads,
       StepRunner stepRunner,
       BuildMode buildMode,
       MetadataStorage metadataStorage,
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int multiFetchBatchSize,
+      boolean cachePrefetchEnabled,
+      boolean lazyMaterializationEnabled,
+      boolean streamingArtifactUnzipEnabled,
+      Optional<BuildRuleDurationHistory> ruleDurationHistory,
       BuildRuleResolver resolver,
       BuildInfoStoreManager buildInfoStoreManager,
       SourcePathRuleFinder ruleFinder,
@@ -255,12 +334,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     this.service = service;
     this.cacheActivityService = service;
+    this.ruleKeyCalculationPool = new ForkJoinPool(numThreads);
     this.stepRunner = stepRunner;
     this.buildMode = buildMode;
     this.metadataStorage = metadataStorage;
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.multiFetchBatchSize = multiFetchBatchSize;
+    this.cachePrefetchEnabled = cachePrefetchEnabled;
+    this.lazyMaterializationEnabled = lazyMaterializationEnabled;
+    this.streamingArtifactUnzipEnabled = streamingArtifactUnzipEnabled;
+    this.ruleDurationHistory = ruleDurationHistory;
     this.resolver = resolver;
     this.ruleFinder = ruleFinder;
     this.pathResolver = pathResolver;
@@ -272,7 +357,10 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.fileHashCacheMode = fileHashCacheMode;
 
     this.ruleDeps = new RuleDepsCache(resolver);
+    this.criticalPathPriorities =
+        ruleDurationHistory.map(history -> new CriticalPathPriorities(history, ruleDeps));
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
+    this.ruleKeyCalculator = createRuleKeyCalculator();
     this.defaultRuleKeyDiagnostics = RuleKeyDiagnostics.nop();
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
     this.asyncCallbacks = new ConcurrentLinkedQueue<>();
@@ -280,6 +368,22 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public void close() {
+    // Don't send out any prefetched lookups which the build never got around to.
+    prefetchedMetadataFetches
+        .values()
+        .forEach(BatchingArtifactFetcher.PendingMetadataFetch::discardIfUnused);
+    // Don't leave hashes for outputs which may never have been fetched behind in the file hash
+    // cache, as it may outlive this build.
+    outputHashesSeededFromCache.values().forEach(paths -> paths.forEach(fileHashCache::invalidate));
+    ruleKeyCalculationPool.shutdownNow();
+    artifactUnzipService.shutdownNow();
+    if (ruleDurationHistory.isPresent()) {
+      try {
+        ruleDurationHistory.get().save();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save rule durations.");
+      }
+    }
     try {
       Futures.allAsList(asyncCallbacks).get();
     } catch (InterruptedException e) {
@@ -319,6 +423,19 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         Futures.immediateFuture(BuildResult.success(buildRule, success, cacheResult)));
   }
 
+  @Override
+  public void planBuild(Iterable<BuildRule> rules) {
+    criticalPathPriorities.ifPresent(priorities -> priorities.compute(rules));
+  }
+
+  /**
+   * @return the priority of building the rule locally over building other rules, which is higher
+   *     the longer the rules which depend on it are expected to take to build.
+   */
+  private long getBuildPriority(BuildRule rule) {
+    return criticalPathPriorities.map(priorities -> priorities.getPriority(rule)).orElse(0L);
+  }
+
   @Override
   public boolean isRuleBuilt(BuildTarget buildTarget) throws InterruptedException {
     ListenableFuture<BuildResult> resultFuture = results.get(buildTarget);
@@ -347,6 +464,155 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return rulesList;
   }
 
+  private boolean shouldDeferDepMaterialization(BuildRule rule) {
+    // Deep builds promise to leave every output on disk, so there's nothing to defer there.
+    return lazyMaterializationEnabled
+        && buildMode == BuildMode.SHALLOW
+        && SupportsInputBasedRuleKey.isSupported(rule);
+  }
+
+  /**
+   * Like {@link #getDepResults}, except that deps whose output hashes can be looked up in the cache
+   * are left unbuilt, with the hashes seeded into the file hash cache instead.
+   *
+   * @param deferredDeps filled in with the deps which were left unbuilt.
+   * @return the results of the deps which were built.
+   */
+  private ListenableFuture<List<BuildResult>> getDepResultsOrOutputHashes(
+      BuildRule rule,
+      BuildEngineBuildContext buildContext,
+      ExecutionContext executionContext,
+      Set<BuildRule> deferredDeps) {
+    List<ListenableFuture<Optional<BuildResult>>> depResults =
+        new ArrayList<>(SortedSets.sizeEstimate(rule.getBuildDeps()));
+    for (BuildRule dep : shuffled(rule.getBuildDeps())) {
+      depResults.add(
+          Futures.transformAsync(
+              seedOutputHashesFromCache(dep, buildContext),
+              (seeded) -> {
+                if (seeded) {
+                  deferredDeps.add(dep);
+                  return Futures.immediateFuture(Optional.empty());
+                }
+                return Futures.transform(
+                    getBuildRuleResultWithRuntimeDeps(dep, buildContext, executionContext),
+                    Optional::of,
+                    MoreExecutors.directExecutor());
+              },
+              serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS)));
+    }
+    return Futures.transform(
+        Futures.allAsList(depResults),
+        (maybeDepResults) ->
+            maybeDepResults
+                .stream()
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(MoreCollectors.toImmutableList()),
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Look up the output hashes recorded for {@code rule} in the cache, without fetching its outputs,
+   * and seed them into the file hash cache. Any outputs and metadata left on disk by earlier builds
+   * are stale from then on, and are cleaned up by {@link #deleteStaleOutputs} once it's clear
+   * whether the rule is going to be built after all.
+   *
+   * @return whether the hashes were seeded. If not, the rule has to be built (or fetched) as usual
+   *     before anything can use its outputs.
+   */
+  private ListenableFuture<Boolean> seedOutputHashesFromCache(
+      BuildRule rule, BuildEngineBuildContext buildContext) {
+    if (!rule.isCacheable()) {
+      return Futures.immediateFuture(false);
+    }
+    // Once the rule has been started on, it's too late to mess with its outputs.  Holding the lock
+    // means it can't be started on until it's been registered here, after which it'll wait for us.
+    synchronized (results) {
+      if (results.containsKey(rule.getBuildTarget())) {
+        return Futures.immediateFuture(false);
+      }
+      return outputHashSeeds.computeIfAbsent(
+          rule.getBuildTarget(),
+          target ->
+              Futures.catching(
+                  cacheActivityService
+                      .withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS)
+                      .submit(() -> trySeedOutputHashesFromCache(rule, buildContext)),
+                  Exception.class,
+                  e -> {
+                    LOG.warn(e, "%s: failed to look up output hashes in the cache.", rule);
+                    return false;
+                  },
+                  MoreExecutors.directExecutor()));
+    }
+  }
+
+  private boolean trySeedOutputHashesFromCache(BuildRule rule, BuildEngineBuildContext buildContext)
+      throws Exception {
+    if (isLocalKeyUnchanged(rule, buildContext)) {
+      return false;
+    }
+    RuleKey ruleKey = ruleKeyFactories.getDefaultRuleKeyFactory().build(rule);
+    Optional<CacheResult> cacheResult = getPrefetchedMetadata(rule);
+    if (!cacheResult.isPresent()) {
+      cacheResult = buildContext.getArtifactCache().fetchMetadataAsync(ruleKey).get();
+    }
+    if (!cacheResult.isPresent() || cacheResult.get().getType() != CacheResultType.HIT) {
+      return false;
+    }
+    String recordedPathHashesBlob =
+        cacheResult.get().getMetadata().get(BuildInfo.MetadataKey.RECORDED_PATH_HASHES);
+    if (recordedPathHashesBlob == null) {
+      return false;
+    }
+    ImmutableMap<String, String> recordedPathHashes =
+        ObjectMappers.readValue(
+            recordedPathHashesBlob, new TypeReference<ImmutableMap<String, String>>() {});
+
+    ProjectFilesystem filesystem = rule.getProjectFilesystem();
+    ImmutableSet.Builder<Path> stalePaths = ImmutableSet.builder();
+    ImmutableSet.Builder<Path> seededPaths = ImmutableSet.builder();
+    for (Map.Entry<String, String> ent : recordedPathHashes.entrySet()) {
+      Path path = filesystem.getPath(ent.getKey());
+      fileHashCache.set(filesystem.resolve(path), HashCode.fromString(ent.getValue()));
+      stalePaths.add(path);
+      seededPaths.add(filesystem.resolve(path));
+    }
+    outputHashesSeededFromCache.put(rule.getBuildTarget(), seededPaths.build());
+    staleOutputsOfSeededRules.put(rule.getBuildTarget(), stalePaths.build());
+    LOG.debug("%s: deferred fetching outputs with rule key %s.", rule, ruleKey);
+    return true;
+  }
+
+  /**
+   * Remove the stale outputs and metadata left on disk by an earlier build of a rule whose output
+   * hashes were seeded from the cache, so that nothing can pick those up in place of the outputs
+   * which were looked up. This happens either just before the rule is started on, or once a rule
+   * which left it unbuilt is done, whichever comes first; later calls do nothing.
+   */
+  private void deleteStaleOutputs(BuildRule rule) throws IOException {
+    BuildTarget target = rule.getBuildTarget();
+    if (!staleOutputsOfSeededRules.containsKey(target)) {
+      return;
+    }
+    // Hold the lock until the outputs are gone, so the rule can't be started on in the meantime.
+    synchronized (rule) {
+      ImmutableSet<Path> stalePaths = staleOutputsOfSeededRules.get(target);
+      if (stalePaths == null) {
+        return;
+      }
+      ProjectFilesystem filesystem = rule.getProjectFilesystem();
+      buildInfoStoreManager.get(filesystem, metadataStorage).deleteMetadata(target);
+      filesystem.deleteRecursivelyIfExists(
+          BuildInfo.getPathToMetadataDirectory(target, filesystem));
+      for (Path path : stalePaths) {
+        filesystem.deleteRecursivelyIfExists(path);
+      }
+      staleOutputsOfSeededRules.remove(target);
+    }
+  }
+
   private ListenableFuture<Optional<BuildResult>> buildLocally(
       final BuildRule rule,
       final BuildEngineBuildContext buildContext,
@@ -478,7 +744,15 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     AtomicReference<CacheResult> rulekeyCacheResult = new AtomicReference<>();
     ListenableFuture<Optional<BuildResult>> buildResultFuture;
 
-    // 2. Rule key cache lookup.
+    // 2. Rule key cache lookup.  If we're batching cache lookups, queue this one up right away so
+    // that it can go out along with those of the other rules which are ready at the same time.
+    // Don't queue up fetches for rules which are going to be canceled anyway.
+    if (!shouldKeepGoing(buildContext)) {
+      Preconditions.checkNotNull(firstFailure);
+      return Futures.immediateFuture(BuildResult.canceled(rule, firstFailure));
+    }
+    Optional<BatchingArtifactFetcher.PendingFetch> pendingRuleKeyFetch =
+        enqueueRuleKeyCacheFetch(rule, buildContext);
     buildResultFuture =
         // TODO(cjhopman): This should follow the same, simple pattern as everything else. With a
         // large ui.thread_line_limit, SuperConsole tries to redraw more lines than are available.
@@ -492,12 +766,23 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                     Preconditions.checkNotNull(firstFailure);
                     return Optional.of(BuildResult.canceled(rule, firstFailure));
                   }
-                  CacheResult cacheResult = performRuleKeyCacheCheck(rule, buildContext);
+                  CacheResult cacheResult =
+                      performRuleKeyCacheCheck(rule, buildContext, pendingRuleKeyFetch);
                   rulekeyCacheResult.set(cacheResult);
                   return getBuildResultForRuleKeyCacheResult(rule, cacheResult, buildInfoRecorder);
                 });
-
-    // 3. Build deps.
+    if (pendingRuleKeyFetch.isPresent()) {
+      // If the rule was canceled before looking at the result of its fetch, or the check never ran
+      // at all, drop the fetch instead of leaving it to be sent out with a later batch.
+      buildResultFuture.addListener(
+          pendingRuleKeyFetch.get()::discardIfUnused, MoreExecutors.directExecutor());
+    }
+
+    // 3. Build deps.  When materializing lazily, a rule which may still be fetched by input-based
+    // rule key only needs the output hashes of its deps for now, so deps which the cache can give
+    // us those for without fetching them are left alone until it's clear they're needed.
+    boolean deferDeps = shouldDeferDepMaterialization(rule);
+    Set<BuildRule> deferredDeps = Sets.newConcurrentHashSet();
     buildResultFuture =
         transformBuildResultAsyncIfNotPresent(
             rule,
@@ -505,19 +790,69 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             buildResultFuture,
             () ->
                 Futures.transformAsync(
-                    getDepResults(rule, buildContext, executionContext),
+                    deferDeps
+                        ? getDepResultsOrOutputHashes(
+                            rule, buildContext, executionContext, deferredDeps)
+                        : getDepResults(rule, buildContext, executionContext),
                     (depResults) -> handleDepsResults(rule, depResults),
                     serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS)));
 
     // 4. Return to the current rule and check caches to see if we can avoid building
     // locally. Start with input-based.
+    AtomicBoolean inputBasedCheckFailed = new AtomicBoolean(false);
     if (SupportsInputBasedRuleKey.isSupported(rule)) {
       buildResultFuture =
           transformBuildResultIfNotPresent(
               rule,
               buildContext,
               buildResultFuture,
-              () -> checkInputBasedCaches(rule, buildContext, onDiskBuildInfo, buildInfoRecorder),
+              () -> {
+                if (deferredDeps.isEmpty()) {
+                  return checkInputBasedCaches(
+                      rule, buildContext, onDiskBuildInfo, buildInfoRecorder);
+                }
+                // The input-based rule key may reach into dep outputs which aren't covered by the
+                // hashes from the cache, so if anything goes wrong, try again once the deps are
+                // actually there.
+                try {
+                  return checkInputBasedCaches(
+                      rule, buildContext, onDiskBuildInfo, buildInfoRecorder);
+                } catch (RuntimeException e) {
+                  LOG.debug(
+                      e, "%s: input-based cache check failed before fetching deps.", rule);
+                  inputBasedCheckFailed.set(true);
+                  return Optional.empty();
+                }
+              },
+              serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+    }
+
+    // 4a. We're going to need the deps after all, so fetch any which were skipped above.
+    if (deferDeps) {
+      buildResultFuture =
+          transformBuildResultAsyncIfNotPresent(
+              rule,
+              buildContext,
+              buildResultFuture,
+              () -> {
+                if (deferredDeps.isEmpty()) {
+                  return Futures.immediateFuture(Optional.empty());
+                }
+                return Futures.transformAsync(
+                    getDepResults(rule, buildContext, executionContext),
+                    (depResults) -> handleDepsResults(rule, depResults),
+                    serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+              });
+      buildResultFuture =
+          transformBuildResultIfNotPresent(
+              rule,
+              buildContext,
+              buildResultFuture,
+              () ->
+                  inputBasedCheckFailed.get()
+                      ? checkInputBasedCaches(
+                          rule, buildContext, onDiskBuildInfo, buildInfoRecorder)
+                      : Optional.empty(),
               serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
     }
 
@@ -579,10 +914,29 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                     service
                         // This needs to adjust the default amounts even in the non-resource-aware scheduling
                         // case so that RuleScheduleInfo works correctly.
-                        .withDefaultAmounts(getRuleResourceAmounts(rule))));
+                        .withDefaultAmounts(getRuleResourceAmounts(rule))
+                        .withPriority(getBuildPriority(rule))));
 
     // Unwrap the result.
-    return Futures.transform(buildResultFuture, Optional::get);
+    ListenableFuture<BuildResult> result = Futures.transform(buildResultFuture, Optional::get);
+    if (deferDeps) {
+      // This rule is done with the deps it left unbuilt, so anything stale they left on disk can go.
+      result =
+          Futures.transform(
+              result,
+              (BuildResult buildResult) -> {
+                for (BuildRule dep : deferredDeps) {
+                  try {
+                    deleteStaleOutputs(dep);
+                  } catch (IOException e) {
+                    LOG.warn(e, "%s: failed to clean up stale outputs.", dep);
+                  }
+                }
+                return buildResult;
+              },
+              serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+    }
+    return result;
   }
 
   private Optional<BuildResult> checkMatchingLocalKey(
@@ -597,18 +951,136 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return Optional.empty();
   }
 
-  private CacheResult performRuleKeyCacheCheck(BuildRule rule, BuildEngineBuildContext buildContext)
+  private Optional<BatchingArtifactFetcher.PendingFetch> enqueueRuleKeyCacheFetch(
+      BuildRule rule, BuildEngineBuildContext buildContext) {
+    if (!rule.isCacheable() || multiFetchBatchSize <= 1) {
+      return Optional.empty();
+    }
+    if (isKnownCacheMiss(getPrefetchedMetadata(rule))) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        getArtifactFetcher(buildContext)
+            .enqueue(
+                ruleKeyFactories.getDefaultRuleKeyFactory().build(rule), createLazyZipPath(rule)));
+  }
+
+  private BatchingArtifactFetcher getArtifactFetcher(BuildEngineBuildContext buildContext) {
+    return artifactFetchers.computeIfAbsent(
+        buildContext.getArtifactCache(),
+        cache -> new BatchingArtifactFetcher(cache, Math.max(1, multiFetchBatchSize)));
+  }
+
+  /**
+   * @return the metadata the prefetch walk looked up for {@code rule}, if the lookup has come back
+   *     and the cache was able to answer it.
+   */
+  private Optional<CacheResult> getPrefetchedMetadata(BuildRule rule) {
+    BatchingArtifactFetcher.PendingMetadataFetch metadataFetch =
+        prefetchedMetadataFetches.get(rule.getBuildTarget());
+    if (metadataFetch == null) {
+      return Optional.empty();
+    }
+    Optional<CacheResult> metadata = metadataFetch.getIfDone().flatMap(result -> result);
+    if (!metadata.isPresent()) {
+      // The rule is being looked at now, so a lookup which hasn't gone out yet is of no use.
+      metadataFetch.discardIfUnused();
+    }
+    return metadata;
+  }
+
+  private static boolean isKnownCacheMiss(Optional<CacheResult> metadata) {
+    return metadata.isPresent() && metadata.get().getType() == CacheResultType.MISS;
+  }
+
+  /**
+   * Walk the transitive deps of {@code rule}, looking up the metadata for each of them in the cache
+   * as soon as its rule key is available, instead of waiting for the build to reach it. This means
+   * lookups for the whole graph are in flight at once, rather than one after the other along the
+   * critical path. Only metadata is looked up, since many of these rules never need their outputs
+   * (e.g. deps of cache hits); artifacts are still only fetched once a rule gets to its own cache
+   * check, which can skip the fetch entirely if the lookup found a miss.
+   */
+  private ListenableFuture<?> prefetchFromCache(
+      BuildRule rule, BuildEngineBuildContext buildContext) {
+    return Futures.transformAsync(
+        calculateRuleKey(rule, buildContext),
+        ruleKey -> {
+          if (rule.isCacheable() && !isLocalKeyUnchanged(rule, buildContext)) {
+            BatchingArtifactFetcher fetcher = getArtifactFetcher(buildContext);
+            prefetchedMetadataFetches.computeIfAbsent(
+                rule.getBuildTarget(), target -> fetcher.enqueueMetadataFetch(ruleKey));
+            // Lookups may block the thread they're sent from, so send them from the cache threads
+            // rather than from the walk.  Each of these picks up as many of the lookups queued by
+            // then as fit into a batch, so the lookups still go out together.
+            cacheActivityService
+                .withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS)
+                .submit(fetcher::sendMetadataBatch);
+          }
+          Iterable<BuildRule> deps = ruleDeps.get(rule);
+          if (rule instanceof HasRuntimeDeps) {
+            deps =
+                Iterables.concat(
+                    deps,
+                    resolver.getAllRules(
+                        ((HasRuntimeDeps) rule)
+                            .getRuntimeDeps(ruleFinder)
+                            .collect(MoreCollectors.toImmutableSet())));
+          }
+          List<ListenableFuture<?>> depPrefetches = new ArrayList<>();
+          for (BuildRule dep : deps) {
+            if (prefetchWalkedTargets.add(dep.getBuildTarget())) {
+              depPrefetches.add(prefetchFromCache(dep, buildContext));
+            }
+          }
+          return Futures.allAsList(depPrefetches);
+        },
+        serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+  }
+
+  private boolean isLocalKeyUnchanged(BuildRule rule, BuildEngineBuildContext buildContext) {
+    OnDiskBuildInfo onDiskBuildInfo =
+        buildContext.createOnDiskBuildInfoFor(
+            rule.getBuildTarget(),
+            rule.getProjectFilesystem(),
+            buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage));
+    return checkMatchingLocalKey(rule, onDiskBuildInfo).isPresent();
+  }
+
+  private CacheResult performRuleKeyCacheCheck(
+      BuildRule rule,
+      BuildEngineBuildContext buildContext,
+      Optional<BatchingArtifactFetcher.PendingFetch> pendingRuleKeyFetch)
       throws IOException {
     final RuleKey defaultRuleKey = ruleKeyFactories.getDefaultRuleKeyFactory().build(rule);
     long cacheRequestTimestampMillis = System.currentTimeMillis();
-    CacheResult cacheResult =
-        tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
-            rule,
-            defaultRuleKey,
-            buildContext.getArtifactCache(),
-            // TODO(simons): This should be a shared between all tests, not one per cell
-            rule.getProjectFilesystem(),
-            buildContext);
+    CacheResult cacheResult;
+    Optional<CacheResult> prefetchedMetadata = getPrefetchedMetadata(rule);
+    if (isKnownCacheMiss(prefetchedMetadata)) {
+      // The prefetch already found out that there's nothing to fetch.
+      pendingRuleKeyFetch.ifPresent(BatchingArtifactFetcher.PendingFetch::discardIfUnused);
+      cacheResult = prefetchedMetadata.get();
+    } else if (pendingRuleKeyFetch.isPresent()) {
+      BatchingArtifactFetcher.PendingFetch pendingFetch = pendingRuleKeyFetch.get();
+      cacheResult =
+          overlayFetchedArtifactOnTopOfProjectFilesystem(
+              rule,
+              defaultRuleKey,
+              pendingFetch.getOutput(),
+              verifyFetchedMetadata(
+                  buildContext.getArtifactCache(), defaultRuleKey, pendingFetch.get()),
+              rule.getProjectFilesystem(),
+              buildContext);
+    } else {
+      cacheResult =
+          tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+              rule,
+              defaultRuleKey,
+              buildContext.getArtifactCache(),
+              // TODO(simons): This should be a shared between all tests, not one per cell
+              rule.getProjectFilesystem(),
+              buildContext);
+    }
 
     RuleKeyCacheResult ruleKeyCacheResult =
         RuleKeyCacheResult.builder()
@@ -661,8 +1133,13 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       throws IOException {
 
     // Create a new `DefaultFileHashCache` to prevent caching from interfering with verification.
+    // Hashes recorded by earlier runs are what is being verified, so it's never persistent.
     ProjectFileHashCache fileHashCache =
-        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+        DefaultFileHashCache.createDefaultFileHashCache(
+            filesystem,
+            fileHashCacheMode == FileHashCacheMode.PERSISTENT
+                ? FileHashCacheMode.PREFIX_TREE
+                : fileHashCacheMode);
 
     // Verify each path from the recorded path hashes entry matches the actual on-disk version.
     for (Map.Entry<String, String> ent : recordedPathHashes.entrySet()) {
@@ -987,7 +1464,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     // Do things that need to happen after either success or failure, but don't block the dependents
     // while doing so:
-    asyncCallbacks.add(
+    ListenableFuture<Void> callbacks =
         MoreFutures.addListenableCallback(
             buildResult,
             new FutureCallback<BuildResult>() {
@@ -1072,7 +1549,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                   buildInfoRecorder.performUploadToArtifactCache(
                       ImmutableSet.copyOf(ruleKeys),
                       buildContext.getArtifactCache(),
-                      buildContext.getEventBus());
+                      buildContext.getEventBus(),
+                      executionContext.getZipCompressionExecutor());
 
                 } catch (Throwable t) {
                   buildContext
@@ -1177,7 +1655,9 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 throw new AssertionError("Dead code");
               }
             },
-            serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS)));
+            serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
+    asyncCallbacks.add(callbacks);
+    ruleCallbacks.put(rule.getBuildTarget(), callbacks);
     return buildResult;
   }
 
@@ -1279,6 +1759,20 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Get the future holding the result for this rule and, if we have no additional runtime deps
     // to attach, return it.
     ListenableFuture<RuleKey> ruleKey = calculateRuleKey(rule, buildContext);
+    ListenableFuture<Boolean> outputHashSeed = outputHashSeeds.get(rule.getBuildTarget());
+    if (outputHashSeed != null) {
+      // Don't start on the rule until any stale outputs are cleaned up, as they don't match the
+      // output hashes which were seeded.
+      ListenableFuture<RuleKey> ruleKeyAfterSeed = ruleKey;
+      ruleKey =
+          Futures.transformAsync(
+              outputHashSeed,
+              seeded -> {
+                deleteStaleOutputs(rule);
+                return ruleKeyAfterSeed;
+              },
+              serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+    }
     ListenableFuture<BuildResult> result =
         Futures.transformAsync(
             ruleKey,
@@ -1358,57 +1852,28 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return seen.size();
   }
 
-  private synchronized ListenableFuture<RuleKey> calculateRuleKey(
+  private ListenableFuture<RuleKey> calculateRuleKey(
       final BuildRule rule, final BuildEngineBuildContext context) {
     ListenableFuture<RuleKey> fromOurCache = ruleKeys.get(rule.getBuildTarget());
     if (fromOurCache != null) {
       return fromOurCache;
     }
 
+    ListenableFuture<RuleKey> future;
     RuleKey fromInternalCache = ruleKeyFactories.getDefaultRuleKeyFactory().getFromCache(rule);
     if (fromInternalCache != null) {
-      ListenableFuture<RuleKey> future = Futures.immediateFuture(fromInternalCache);
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), future);
       // Because a rule key will be invalidated from the internal cache any time one of its
       // dependents is invalidated, we know that all of our transitive deps are also in cache.
-      return future;
+      future = Futures.immediateFuture(fromInternalCache);
+    } else {
+      // Computed, along with the keys of the deps, on the rule key pool rather than the build
+      // executor. The calculator computes each rule once, however many times it is asked.
+      future = ruleKeyCalculator.calculate(context.getEventBus(), rule);
     }
 
-    // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
-    // one, we need to wait for them to complete.
-    ListenableFuture<List<RuleKey>> depKeys =
-        Futures.transformAsync(
-            Futures.immediateFuture(ruleDeps.get(rule)),
-            deps -> {
-              List<ListenableFuture<RuleKey>> depKeys1 =
-                  new ArrayList<>(SortedSets.sizeEstimate(rule.getBuildDeps()));
-              for (BuildRule dep : deps) {
-                depKeys1.add(calculateRuleKey(dep, context));
-              }
-              return Futures.allAsList(depKeys1);
-            },
-            serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
-
-    // Setup a future to calculate this rule key once the dependencies have been calculated.
-    ListenableFuture<RuleKey> calculated =
-        Futures.transform(
-            depKeys,
-            (List<RuleKey> input) -> {
-              try (Scope scope =
-                  BuildRuleEvent.ruleKeyCalculationScope(
-                      context.getEventBus(),
-                      rule,
-                      buildRuleDurationTracker,
-                      ruleKeyFactories.getDefaultRuleKeyFactory())) {
-                return ruleKeyFactories.getDefaultRuleKeyFactory().build(rule);
-              }
-            },
-            serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
-
     // Record the rule key future.
-    ruleKeys.put(rule.getBuildTarget(), calculated);
-    return calculated;
+    ListenableFuture<RuleKey> existing = ruleKeys.putIfAbsent(rule.getBuildTarget(), future);
+    return existing != null ? existing : future;
   }
 
   @Override
@@ -1417,8 +1882,27 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    if (cachePrefetchEnabled && prefetchWalkedTargets.add(rule.getBuildTarget())) {
+      // Failures here are reported by the build itself, which depends on the same rule keys.
+      prefetchFromCache(rule, buildContext);
+    }
     ListenableFuture<BuildResult> resultFuture =
-        getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+        Futures.transformAsync(
+            getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext),
+            result -> {
+              // Dependents don't wait for the callbacks of their deps, but whoever asked for this
+              // rule to be built does, so that no work on the rule is left queued once it has the
+              // result.
+              ListenableFuture<Void> callbacks = ruleCallbacks.get(rule.getBuildTarget());
+              if (callbacks == null) {
+                return Futures.immediateFuture(result);
+              }
+              return Futures.transform(
+                  Futures.successfulAsList(ImmutableList.of(callbacks)),
+                  ignored -> result,
+                  MoreExecutors.directExecutor());
+            },
+            MoreExecutors.directExecutor());
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
@@ -1434,22 +1918,49 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       return CacheResult.ignored();
     }
 
+    final LazyPath lazyZipPath =
+        streamingArtifactUnzipEnabled
+            ? new StreamingUnzipLazyPath(
+                createLazyZipPath(rule),
+                filesystem.resolve(filesystem.getBuckPaths().getTmpDir()),
+                artifactUnzipService)
+            : createLazyZipPath(rule);
+
+    try {
+      // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
+      // Then we could download directly from the remote cache into the on-disk cache and unzip it
+      // from there.
+      CacheResult cacheResult = fetch(artifactCache, ruleKey, lazyZipPath);
+
+      return overlayFetchedArtifactOnTopOfProjectFilesystem(
+          rule, ruleKey, lazyZipPath, cacheResult, filesystem, buildContext);
+    } finally {
+      if (lazyZipPath instanceof StreamingUnzipLazyPath) {
+        ((StreamingUnzipLazyPath) lazyZipPath).discardUnzippedPayloads();
+      }
+    }
+  }
+
+  private static LazyPath createLazyZipPath(final BuildRule rule) {
     // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
     // that we are creating a zip-based FileSystem.
-    final LazyPath lazyZipPath =
-        new LazyPath() {
-          @Override
-          protected Path create() throws IOException {
-            return Files.createTempFile(
-                "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
-                ".zip");
-          }
-        };
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return Files.createTempFile(
+            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()), ".zip");
+      }
+    };
+  }
 
-    // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
-    // Then we could download directly from the remote cache into the on-disk cache and unzip it
-    // from there.
-    CacheResult cacheResult = fetch(artifactCache, ruleKey, lazyZipPath);
+  private CacheResult overlayFetchedArtifactOnTopOfProjectFilesystem(
+      BuildRule rule,
+      RuleKey ruleKey,
+      LazyPath lazyZipPath,
+      CacheResult cacheResult,
+      ProjectFilesystem filesystem,
+      BuildEngineBuildContext buildContext)
+      throws IOException {
 
     // Verify that the rule key we used to fetch the artifact is one of the rule keys reported in
     // it's metadata.
@@ -1472,7 +1983,14 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   }
 
   private CacheResult fetch(ArtifactCache artifactCache, RuleKey ruleKey, LazyPath outputPath) {
-    CacheResult cacheResult = Futures.getUnchecked(artifactCache.fetchAsync(ruleKey, outputPath));
+    return verifyFetchedMetadata(
+        artifactCache,
+        ruleKey,
+        Futures.getUnchecked(artifactCache.fetchAsync(ruleKey, outputPath)));
+  }
+
+  private CacheResult verifyFetchedMetadata(
+      ArtifactCache artifactCache, RuleKey ruleKey, CacheResult cacheResult) {
     if (cacheResult.getType() != CacheResultType.HIT) {
       return cacheResult;
     }
@@ -1540,31 +2058,25 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey));
     buildContext.getEventBus().post(started);
     try {
-
-      // First, clear out the pre-existing metadata directory.  We have to do this *before*
-      // unpacking the zipped artifact, as it includes files that will be stored in the metadata
-      // directory.
-      BuildInfoStore buildInfoStore =
-          buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
-      buildInfoStore.deleteMetadata(rule.getBuildTarget());
-
-      // Always remove the on-disk metadata dir, as some pieces of metadata are still stored here
-      // (e.g. `DEP_FILE`, manifest).
-      Path metadataDir =
-          BuildInfo.getPathToMetadataDirectory(rule.getBuildTarget(), rule.getProjectFilesystem());
-      rule.getProjectFilesystem().deleteRecursivelyIfExists(metadataDir);
-
-      Unzip.extractZipFile(
-          zipPath.toAbsolutePath(),
-          filesystem,
-          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      clearMetadataBeforeUnzip(rule);
+      // Artifacts streamed in full were already unzipped to a scratch directory while they were
+      // being downloaded.
+      if (!(lazyZipPath instanceof StreamingUnzipLazyPath)
+          || !((StreamingUnzipLazyPath) lazyZipPath).moveUnzippedPayloadInto(filesystem)) {
+        Unzip.extractZipFile(
+            zipPath.toAbsolutePath(),
+            filesystem,
+            Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      }
 
       // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
       // around for debugging purposes.
       Files.delete(zipPath);
 
       // Also write out the build metadata.
-      buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+      buildInfoStoreManager
+          .get(rule.getProjectFilesystem(), metadataStorage)
+          .updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
     } finally {
       buildContext.getEventBus().post(ArtifactCompressionEvent.finished(started));
     }
@@ -1572,6 +2084,21 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return cacheResult;
   }
 
+  private void clearMetadataBeforeUnzip(BuildRule rule) throws IOException {
+    // First, clear out the pre-existing metadata directory.  We have to do this *before*
+    // unpacking the zipped artifact, as it includes files that will be stored in the metadata
+    // directory.
+    BuildInfoStore buildInfoStore =
+        buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
+    buildInfoStore.deleteMetadata(rule.getBuildTarget());
+
+    // Always remove the on-disk metadata dir, as some pieces of metadata are still stored here
+    // (e.g. `DEP_FILE`, manifest).
+    Path metadataDir =
+        BuildInfo.getPathToMetadataDirectory(rule.getBuildTarget(), rule.getProjectFilesystem());
+    rule.getProjectFilesystem().deleteRecursivelyIfExists(metadataDir);
+  }
+
   private void executePostBuildSteps(
       BuildRule rule, Iterable<Step> postBuildSteps, ExecutionContext context)
       throws InterruptedException, StepFailedException {
@@ -2181,6 +2708,9 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       LOG.debug(
           "Build completed: %s %s (%dns)",
           rule.getType(), rule.getFullyQualifiedName(), end - start);
+      ruleDurationHistory.ifPresent(
+          history ->
+              history.record(rule.getBuildTarget(), TimeUnit.NANOSECONDS.toMillis(end - start)));
     }
   }
 }
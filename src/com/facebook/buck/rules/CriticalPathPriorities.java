@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Prioritizes the rules of a build by how long the build is going to take once they start, i.e.
+ * their own duration plus that of the longest chain of rules which have to wait for them, as
+ * estimated from the durations of earlier builds. Building the rules with the highest priority
+ * first keeps a long chain, such as a link followed by a dex, from starting late and leaving cores
+ * idle at the end of the build.
+ */
+class CriticalPathPriorities {
+
+  /** Estimate for rules which were never built, when no rule was. */
+  private static final long DEFAULT_DURATION_MILLIS = 1;
+
+  private final BuildRuleDurationHistory history;
+  private final RuleDepsCache ruleDeps;
+  private final long unknownDurationMillis;
+  private final ConcurrentMap<BuildTarget, Long> priorities = new ConcurrentHashMap<>();
+
+  CriticalPathPriorities(BuildRuleDurationHistory history, RuleDepsCache ruleDeps) {
+    this.history = history;
+    this.ruleDeps = ruleDeps;
+    this.unknownDurationMillis = Math.max(DEFAULT_DURATION_MILLIS, history.getMeanDurationMillis());
+  }
+
+  /** Computes the priorities of the given rules and all of their transitive deps. */
+  void compute(Iterable<BuildRule> rules) {
+    Map<BuildRule, Long> longestDependentChains = new HashMap<>();
+    for (BuildRule rule : dependentsFirst(rules)) {
+      long chain = longestDependentChains.getOrDefault(rule, 0L) + getDurationMillis(rule);
+      priorities.merge(rule.getBuildTarget(), chain, Math::max);
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        longestDependentChains.merge(dep, chain, Math::max);
+      }
+    }
+  }
+
+  /** @return the priority of the rule, or 0 if it wasn't computed. */
+  long getPriority(BuildRule rule) {
+    return priorities.getOrDefault(rule.getBuildTarget(), 0L);
+  }
+
+  private long getDurationMillis(BuildRule rule) {
+    return history.getDurationMillis(rule.getBuildTarget()).orElse(unknownDurationMillis);
+  }
+
+  /** @return the rules and their transitive deps, with every rule ahead of its deps. */
+  private List<BuildRule> dependentsFirst(Iterable<BuildRule> rules) {
+    // Iterative, as dep chains can be deeper than the stack.
+    List<BuildRule> depsFirst = new ArrayList<>();
+    Set<BuildRule> visited = new HashSet<>();
+    Deque<BuildRule> path = new ArrayDeque<>();
+    Deque<Iterator<BuildRule>> unvisitedDeps = new ArrayDeque<>();
+    for (BuildRule rule : rules) {
+      if (!visited.add(rule)) {
+        continue;
+      }
+      path.push(rule);
+      unvisitedDeps.push(ruleDeps.get(rule).iterator());
+      while (!path.isEmpty()) {
+        Iterator<BuildRule> deps = unvisitedDeps.peek();
+        if (deps.hasNext()) {
+          BuildRule dep = deps.next();
+          if (visited.add(dep)) {
+            path.push(dep);
+            unvisitedDeps.push(ruleDeps.get(dep).iterator());
+          }
+        } else {
+          unvisitedDeps.pop();
+          depsFirst.add(path.pop());
+        }
+      }
+    }
+    return Lists.reverse(depsFirst);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.facebook.buck.util.Scope;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Calculates the rule keys of build rules bottom-up on a {@link ForkJoinPool}: the task for a rule
+ * starts tasks for the keys of its deps, and once the last of them is done, another task builds the
+ * rule's own key, which the factory can then take from its cache.
+ *
+ * <p>There is exactly one task per rule. Tasks are looked up without locking and published with
+ * {@link ConcurrentMap#putIfAbsent}, so rules shared by many dependents are only computed once. No
+ * task waits for another: a rule's key is scheduled by whichever of its deps finishes last, so
+ * neither threads nor stack frames are held up by deep dependency chains.
+ *
+ * <p>The pool should be dedicated to rule key computation, so that it doesn't compete with, or
+ * wait behind, build steps.
+ */
+public class ParallelRuleKeyCalculator<T> {
+
+  private final ForkJoinPool pool;
+  private final RuleKeyFactory<T> ruleKeyFactory;
+  private final RuleDepsCache ruleDepsCache;
+  private final BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope;
+  private final ConcurrentMap<BuildRule, RuleKeyTask> tasks = new ConcurrentHashMap<>();
+
+  /**
+   * @param ruleKeyCalculationScope creates a scope around the computation of each rule's own key,
+   *     e.g. to post events about it.
+   */
+  public ParallelRuleKeyCalculator(
+      ForkJoinPool pool,
+      RuleKeyFactory<T> ruleKeyFactory,
+      RuleDepsCache ruleDepsCache,
+      BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope) {
+    this.pool = pool;
+    this.ruleKeyFactory = ruleKeyFactory;
+    this.ruleDepsCache = ruleDepsCache;
+    this.ruleKeyCalculationScope = ruleKeyCalculationScope;
+  }
+
+  public ParallelRuleKeyCalculator(
+      ForkJoinPool pool, RuleKeyFactory<T> ruleKeyFactory, RuleDepsCache ruleDepsCache) {
+    this(pool, ruleKeyFactory, ruleDepsCache, (eventBus, rule) -> () -> {});
+  }
+
+  /**
+   * Starts calculating the key of {@code rule}, after those of its deps, unless it already was.
+   *
+   * @param eventBus passed to the scope around each computation started by this call.
+   */
+  public ListenableFuture<T> calculate(BuckEventBus eventBus, BuildRule rule) {
+    return getOrStartTask(eventBus, rule).future;
+  }
+
+  private RuleKeyTask getOrStartTask(BuckEventBus eventBus, BuildRule rule) {
+    RuleKeyTask task = tasks.get(rule);
+    if (task != null) {
+      return task;
+    }
+    RuleKeyTask newTask = new RuleKeyTask(eventBus, rule);
+    task = tasks.putIfAbsent(rule, newTask);
+    if (task != null) {
+      return task;
+    }
+    schedule(newTask::start);
+    return newTask;
+  }
+
+  private void schedule(Runnable runnable) {
+    ForkJoinTask<?> task = ForkJoinTask.adapt(runnable);
+    if (ForkJoinTask.getPool() == pool) {
+      // Pushed onto this worker's own queue, where idle workers can steal it from.
+      task.fork();
+    } else {
+      pool.execute(task);
+    }
+  }
+
+  private class RuleKeyTask {
+    private final BuckEventBus eventBus;
+    private final BuildRule rule;
+    private final SettableFuture<T> future = SettableFuture.create();
+    /** The deps whose keys are still to be calculated, plus one until all have been started. */
+    private final AtomicInteger pendingDeps = new AtomicInteger(1);
+    private List<RuleKeyTask> deps = ImmutableList.of();
+
+    private RuleKeyTask(BuckEventBus eventBus, BuildRule rule) {
+      this.eventBus = eventBus;
+      this.rule = rule;
+    }
+
+    /** Starts the tasks of the deps, and arranges for the key to be built after theirs. */
+    private void start() {
+      try {
+        List<RuleKeyTask> depTasks = new ArrayList<>();
+        for (BuildRule dep : ruleDepsCache.get(rule)) {
+          depTasks.add(getOrStartTask(eventBus, dep));
+        }
+        // Published to build() through pendingDeps.
+        deps = depTasks;
+        pendingDeps.addAndGet(depTasks.size());
+        for (RuleKeyTask dep : depTasks) {
+          // Only schedules the build, so completing a dep never runs its dependents' code inline.
+          dep.future.addListener(this::onDepDone, MoreExecutors.directExecutor());
+        }
+        onDepDone();
+      } catch (RuntimeException | Error e) {
+        future.setException(e);
+        throw e;
+      }
+    }
+
+    private void onDepDone() {
+      if (pendingDeps.decrementAndGet() == 0) {
+        schedule(this::build);
+      }
+    }
+
+    private void build() {
+      try {
+        for (RuleKeyTask dep : deps) {
+          try {
+            Futures.getDone(dep.future);
+          } catch (ExecutionException e) {
+            future.setException(e.getCause());
+            return;
+          }
+        }
+        T ruleKey;
+        Scope scope = ruleKeyCalculationScope.apply(eventBus, rule);
+        try {
+          ruleKey = ruleKeyFactory.build(rule);
+        } finally {
+          scope.close();
+        }
+        future.set(ruleKey);
+      } catch (RuntimeException | Error e) {
+        future.setException(e);
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactPayloadListener;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.zip.Unzip;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The path an artifact is fetched to, which also unzips the artifact while it is being downloaded,
+ * when the cache it comes from streams its payload to listeners.
+ *
+ * <p>Payloads are unzipped on the given executor, as they are piped to it by the fetching thread,
+ * into scratch directories: nothing in the project filesystem changes until the cache verified the
+ * payload. After a hit, callers should move the unzipped payload into place with {@link
+ * #moveUnzippedPayloadInto}, unzip the fetched file themselves if there is none, and then {@link
+ * #discardUnzippedPayloads()}. If the executor has no thread to spare, a payload isn't unzipped
+ * while it's downloaded, rather than making the download wait.
+ */
+class StreamingUnzipLazyPath extends LazyPath implements ArtifactPayloadListener {
+
+  private static final Logger LOG = Logger.get(StreamingUnzipLazyPath.class);
+
+  /** Lets the download run ahead of the unzipping by this many bytes. */
+  private static final int PIPE_SIZE = 1024 * 1024;
+
+  private final LazyPath zipPath;
+  private final Path scratchRoot;
+  private final ExecutorService unzipService;
+
+  @GuardedBy("this")
+  private final List<PayloadUnzipStream> payloads = new ArrayList<>();
+
+  @Nullable private volatile PayloadUnzipStream lastPayload;
+  @Nullable private volatile PayloadUnzipStream verifiedPayload;
+
+  /**
+   * @param scratchRoot the absolute path of the directory to unzip payloads under, on the same file
+   *     system as the project.
+   */
+  StreamingUnzipLazyPath(LazyPath zipPath, Path scratchRoot, ExecutorService unzipService) {
+    this.zipPath = zipPath;
+    this.scratchRoot = scratchRoot;
+    this.unzipService = unzipService;
+  }
+
+  @Override
+  protected Path create() throws IOException {
+    return zipPath.get();
+  }
+
+  @Override
+  public synchronized OutputStream onPayloadStarted() throws IOException {
+    Files.createDirectories(scratchRoot);
+    PayloadUnzipStream payload =
+        new PayloadUnzipStream(Files.createTempDirectory(scratchRoot, "unzip"));
+    payloads.add(payload);
+    lastPayload = payload;
+    return payload;
+  }
+
+  @Override
+  public void onPayloadVerified() {
+    verifiedPayload = lastPayload;
+  }
+
+  /**
+   * Moves the payload of the hit into place, if it was unzipped in full while it was downloaded.
+   *
+   * @return whether it was.
+   */
+  boolean moveUnzippedPayloadInto(ProjectFilesystem filesystem) throws IOException {
+    PayloadUnzipStream payload = verifiedPayload;
+    if (payload == null || payload.extracted == null) {
+      return false;
+    }
+    payload.extracted.moveInto(filesystem, Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+    return true;
+  }
+
+  /** Deletes the scratch directories of all payloads which weren't moved into place. */
+  synchronized void discardUnzippedPayloads() {
+    for (PayloadUnzipStream payload : payloads) {
+      try {
+        MoreFiles.deleteRecursivelyIfExists(payload.scratchDir);
+      } catch (IOException e) {
+        LOG.warn(e, "Couldn't delete %s.", payload.scratchDir);
+      }
+    }
+    payloads.clear();
+  }
+
+  /** Pipes a payload to the task unzipping it, without ever failing the download. */
+  private class PayloadUnzipStream extends OutputStream {
+    private final Path scratchDir;
+    @Nullable private final PipedOutputStream pipe;
+    @Nullable private final Future<Unzip.ExtractedZip> unzip;
+    private boolean failed = false;
+    private boolean closed = false;
+    @Nullable private volatile Unzip.ExtractedZip extracted;
+
+    private PayloadUnzipStream(Path scratchDir) throws IOException {
+      this.scratchDir = scratchDir;
+      PipedInputStream input = new PipedInputStream(PIPE_SIZE);
+      PipedOutputStream pipe = new PipedOutputStream(input);
+      Future<Unzip.ExtractedZip> unzip;
+      try {
+        unzip =
+            unzipService.submit(
+                () -> {
+                  // Closing the pipe's end also unblocks the fetching thread if unzipping fails.
+                  try (InputStream payload = input) {
+                    return Unzip.extractZipStream(payload, scratchDir);
+                  }
+                });
+      } catch (RejectedExecutionException e) {
+        LOG.debug("No thread to unzip a payload while downloading it.");
+        pipe.close();
+        pipe = null;
+        unzip = null;
+        failed = true;
+      }
+      this.pipe = pipe;
+      this.unzip = unzip;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (failed) {
+        return;
+      }
+      try {
+        Preconditions.checkNotNull(pipe).write(b, off, len);
+      } catch (IOException e) {
+        // The unzip failed and closed its end; the reason is logged on close.
+        failed = true;
+      }
+    }
+
+    @Override
+    public void close() {
+      if (closed || pipe == null || unzip == null) {
+        return;
+      }
+      closed = true;
+      try {
+        pipe.close();
+      } catch (IOException e) {
+        failed = true;
+      }
+      try {
+        Unzip.ExtractedZip result = unzip.get();
+        if (!failed) {
+          extracted = result;
+        }
+      } catch (ExecutionException e) {
+        LOG.debug(e.getCause(), "Couldn't unzip a payload while downloading it.");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
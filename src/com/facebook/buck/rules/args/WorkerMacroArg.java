@@ -117,6 +117,10 @@ public class WorkerMacroArg extends MacroArg {
     return workerTool.getMaxWorkers();
   }
 
+  public boolean isMultiplexed() {
+    return workerTool.isMultiplexed();
+  }
+
   public String getJobArgs() {
     try {
       return expander.expand(target, cellNames, resolver, unexpanded).trim();
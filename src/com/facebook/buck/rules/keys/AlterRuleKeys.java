@@ -26,7 +26,7 @@ import com.google.common.collect.ImmutableCollection;
 
 public final class AlterRuleKeys {
   private static final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> cache =
-      CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
+      CacheBuilder.newBuilder().build(new MethodHandleAlterKeyLoader());
 
   public static void amendKey(RuleKeyObjectSink sink, BuildRule rule) {
     amendKey(sink, (Object) rule);
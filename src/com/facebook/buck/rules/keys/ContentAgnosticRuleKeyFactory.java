@@ -54,7 +54,7 @@ public class ContentAgnosticRuleKeyFactory implements RuleKeyFactory<RuleKey> {
 
         @Override
         public HashCode get(ArchiveMemberPath archiveMemberPath) throws IOException {
-          throw new AssertionError();
+          return HashCode.fromLong(0);
         }
       };
 
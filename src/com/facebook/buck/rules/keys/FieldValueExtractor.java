@@ -29,6 +29,10 @@ public class FieldValueExtractor implements ValueExtractor {
 
   @Override
   public String getFullyQualifiedName() {
+    return getFullyQualifiedName(field);
+  }
+
+  static String getFullyQualifiedName(Field field) {
     return field.getDeclaringClass() + "." + field.getName();
   }
 
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+
+/**
+ * Loads a single {@link MethodHandleAlterRuleKey} for all the {@link
+ * com.facebook.buck.rules.AddToRuleKey} fields of a class. Falls back to {@link
+ * ReflectiveAlterKeyLoader} for classes whose fields method handles can't read.
+ */
+class MethodHandleAlterKeyLoader extends CacheLoader<Class<?>, ImmutableCollection<AlterRuleKey>> {
+
+  private static final Logger LOG = Logger.get(MethodHandleAlterKeyLoader.class);
+
+  private final ReflectiveAlterKeyLoader reflectiveLoader = new ReflectiveAlterKeyLoader();
+
+  @Override
+  public ImmutableCollection<AlterRuleKey> load(Class<?> key) throws Exception {
+    ImmutableList<Field> fields = ReflectiveAlterKeyLoader.getAddToRuleKeyFields(key);
+    if (fields.isEmpty()) {
+      return ImmutableList.of();
+    }
+    if (fields.size() <= MethodHandleAlterRuleKey.MAX_FIELDS) {
+      try {
+        return ImmutableList.of(new MethodHandleAlterRuleKey(fields));
+      } catch (IllegalAccessException e) {
+        LOG.debug(e, "Falling back to reflection to add the fields of %s to rule keys.", key);
+      }
+    }
+    return reflectiveLoader.load(key);
+  }
+}
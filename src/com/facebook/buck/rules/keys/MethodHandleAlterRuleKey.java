@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Adds all the {@link AddToRuleKey} fields of a class to a rule key at once.
+ *
+ * <p>Rather than reading each field reflectively, the getters of all the fields are combined into a
+ * single {@link MethodHandle} which returns their values as an array. The JVM compiles such a
+ * handle into a class specialized for the fields it reads, so the values are loaded without any
+ * per-field reflection or access checks.
+ */
+class MethodHandleAlterRuleKey implements AlterRuleKey {
+
+  /** Method handles take at most 255 arguments, and the combined one takes one per field. */
+  static final int MAX_FIELDS = 250;
+
+  private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+  private static final MethodType EXTRACTOR_TYPE =
+      MethodType.methodType(Object[].class, Object.class);
+
+  /** Used for the fields' names, as well as for messages about stringified fields. */
+  private final ValueExtractor[] fields;
+
+  private final boolean[] stringify;
+  private final MethodHandle extractor;
+
+  /**
+   * @param fields accessible fields, in the order in which they are added to the key.
+   * @throws IllegalAccessException if some of the fields can't be read through method handles.
+   */
+  MethodHandleAlterRuleKey(List<Field> fields) throws IllegalAccessException {
+    Preconditions.checkArgument(fields.size() <= MAX_FIELDS, "Too many fields: %s", fields.size());
+    int count = fields.size();
+    this.fields = new ValueExtractor[count];
+    this.stringify = new boolean[count];
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodHandle[] getters = new MethodHandle[count];
+    for (int i = 0; i < count; i++) {
+      Field field = fields.get(i);
+      this.fields[i] = new FieldValueExtractor(field);
+      this.stringify[i] = field.getAnnotation(AddToRuleKey.class).stringify();
+      getters[i] = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+    }
+
+    // (Object, ..., Object) -> Object[] applied to the values of each field of the same object.
+    MethodHandle collector =
+        MethodHandles.identity(Object[].class).asCollector(Object[].class, count);
+    this.extractor =
+        MethodHandles.permuteArguments(
+            MethodHandles.filterArguments(collector, 0, getters), EXTRACTOR_TYPE, new int[count]);
+  }
+
+  @Override
+  public void amendKey(RuleKeyObjectSink sink, Object appendable) {
+    Object[] values;
+    try {
+      values = (Object[]) extractor.invokeExact(appendable);
+    } catch (Throwable t) {
+      Throwables.throwIfUnchecked(t);
+      throw new RuntimeException(t);
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (stringify[i]) {
+        StringifyAlterRuleKey.amendKey(sink, fields[i], values[i]);
+      } else {
+        sink.setReflectively(fields[i].getName(), values[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.AddsToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.HasDeclaredAndExtraDeps;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKeyCache} for default rule keys which keeps them on disk, so that runs without a
+ * daemon, or the first run of a new daemon, don't have to hash every rule of the action graph
+ * again.
+ *
+ * <p>Entries are keyed by the rule's {@link ContentAgnosticRuleKeyFactory content agnostic} key,
+ * i.e. a hash of its {@code @AddToRuleKey} fields and those of its dependencies, without the
+ * contents of any file. An entry records the rule key along with what the daemon's {@link
+ * DefaultRuleKeyCache} would track for invalidation: the stat data of every {@link RuleKeyInput}
+ * and the rule keys of the build rules it depends on. It is only used while those inputs are
+ * unchanged and those dependencies still have the same rule keys.
+ *
+ * <p>Within a run, values are served by a {@link DefaultRuleKeyCache}, which this only backs.
+ */
+public class PersistentRuleKeyCache implements RuleKeyCache<RuleKey> {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyCache.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  /** Upper bound on the entries kept in the store, so it doesn't grow forever. */
+  private static final int MAX_ENTRIES = 1 << 20;
+
+  /**
+   * Inputs modified this recently are not recorded, since a modification within the timestamp
+   * granularity of the file system would go unnoticed.
+   */
+  private static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final Path storePath;
+  private final String fingerprint;
+  private final ContentAgnosticRuleKeyFactory structuralKeyFactory;
+  private final DefaultRuleKeyCache<RuleKey> delegate = new DefaultRuleKeyCache<>();
+
+  /** Entries read from the store. Not modified after construction. */
+  private final Map<RuleKey, Entry> storedEntries;
+
+  /** Entries used or created during this run, which are written out first. */
+  private final ConcurrentMap<RuleKey, Entry> currentEntries = new ConcurrentHashMap<>();
+
+  /** Results of the appendables computed this run, used to flatten them into their rules. */
+  private final Map<AddsToRuleKey, RuleKeyResult<RuleKey>> appendableResults =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  private final AtomicLong storeHits = new AtomicLong();
+  private final AtomicLong storeMisses = new AtomicLong();
+
+  private PersistentRuleKeyCache(
+      Path storePath,
+      String fingerprint,
+      ContentAgnosticRuleKeyFactory structuralKeyFactory,
+      Map<RuleKey, Entry> storedEntries) {
+    this.storePath = storePath;
+    this.fingerprint = fingerprint;
+    this.structuralKeyFactory = structuralKeyFactory;
+    this.storedEntries = storedEntries;
+  }
+
+  /**
+   * @param fingerprint identifies everything rule keys depend on besides the rules themselves, e.g.
+   *     the buck version and configuration. Stores written with a different one are discarded.
+   * @return a cache backed by the store at {@code storePath}, which is empty if the store is
+   *     missing, unreadable or was written with a different {@code fingerprint}.
+   */
+  public static PersistentRuleKeyCache load(
+      Path storePath, String fingerprint, ContentAgnosticRuleKeyFactory structuralKeyFactory) {
+    Map<RuleKey, Entry> entries = new HashMap<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(storePath)))) {
+      if (in.readInt() == FORMAT_VERSION && in.readUTF().equals(fingerprint)) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          RuleKey structuralKey = new RuleKey(in.readUTF());
+          entries.put(structuralKey, Entry.read(in));
+        }
+      } else {
+        LOG.info("Rule key store %s is from a different configuration, discarding it.", storePath);
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing stored yet.
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to read rule key store %s, discarding it.", storePath);
+      entries.clear();
+    }
+    return new PersistentRuleKeyCache(storePath, fingerprint, structuralKeyFactory, entries);
+  }
+
+  /** Writes the entries used this run, then as many of the older ones as fit, to the store. */
+  public void save() throws IOException {
+    Files.createDirectories(storePath.getParent());
+    Path tmp = Files.createTempFile(storePath.getParent(), storePath.getFileName().toString(), "");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(fingerprint);
+        Map<RuleKey, Entry> entries = new HashMap<>(currentEntries);
+        for (Map.Entry<RuleKey, Entry> entry : storedEntries.entrySet()) {
+          if (entries.size() >= MAX_ENTRIES) {
+            break;
+          }
+          entries.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<RuleKey, Entry> entry : entries.entrySet()) {
+          out.writeUTF(entry.getKey().toString());
+          entry.getValue().write(out);
+        }
+      }
+      Files.move(
+          tmp,
+          storePath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    LOG.debug(
+        "Rule key store: %d hits, %d misses, %d entries used this run.",
+        storeHits.get(), storeMisses.get(), currentEntries.size());
+  }
+
+  private RuleKeyResult<RuleKey> load(
+      BuildRule rule, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    RuleKey structuralKey = structuralKeyFactory.build(rule);
+
+    Entry stored = storedEntries.get(structuralKey);
+    if (stored != null) {
+      Optional<ImmutableList<BuildRule>> deps = getUpToDateDeps(rule, stored, create);
+      if (deps.isPresent()) {
+        storeHits.incrementAndGet();
+        currentEntries.put(structuralKey, stored);
+        // The inputs were just checked, and this cache isn't kept around for them to change.
+        return new RuleKeyResult<>(stored.ruleKey, deps.get(), ImmutableList.of());
+      }
+    }
+
+    storeMisses.incrementAndGet();
+    RuleKeyResult<RuleKey> result = create.apply(rule);
+    Entry entry = createEntry(result);
+    if (entry != null) {
+      currentEntries.put(structuralKey, entry);
+    }
+    return result;
+  }
+
+  /**
+   * @return the rules {@code rule}'s key depended on when {@code entry} was recorded, if none of
+   *     them changed key and none of the inputs changed since.
+   */
+  private Optional<ImmutableList<BuildRule>> getUpToDateDeps(
+      BuildRule rule, Entry entry, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    for (InputStat input : entry.inputs) {
+      if (!input.isUpToDate()) {
+        return Optional.empty();
+      }
+    }
+
+    // Every rule a rule key depends on is one of the rule's deps, whose targets are covered by the
+    // structural key, so they can be found by name.
+    Map<String, BuildRule> candidates = new HashMap<>();
+    for (BuildRule dep : rule.getBuildDeps()) {
+      candidates.put(dep.getBuildTarget().getFullyQualifiedName(), dep);
+    }
+    if (rule instanceof HasDeclaredAndExtraDeps) {
+      for (BuildRule dep : ((HasDeclaredAndExtraDeps) rule).getTargetGraphOnlyDeps()) {
+        candidates.put(dep.getBuildTarget().getFullyQualifiedName(), dep);
+      }
+    }
+
+    ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+    for (Map.Entry<String, RuleKey> storedDep : entry.deps.entrySet()) {
+      BuildRule dep = candidates.get(storedDep.getKey());
+      if (dep == null || !get(dep, create).equals(storedDep.getValue())) {
+        return Optional.empty();
+      }
+      deps.add(dep);
+    }
+    return Optional.of(deps.build());
+  }
+
+  /**
+   * @return an entry for a freshly computed rule key, or null if it can't be validated from stat
+   *     data on a later run.
+   */
+  @Nullable
+  private Entry createEntry(RuleKeyResult<RuleKey> result) {
+    Map<String, RuleKey> deps = new HashMap<>();
+    Map<Path, InputStat> inputs = new HashMap<>();
+    if (!flatten(result, deps, inputs, Collections.newSetFromMap(new IdentityHashMap<>()))) {
+      return null;
+    }
+    return new Entry(
+        result.result, ImmutableMap.copyOf(deps), ImmutableList.copyOf(inputs.values()));
+  }
+
+  /**
+   * Collects the rule deps and inputs of {@code result}, including those of the appendables it
+   * depends on, whose keys aren't stored separately.
+   *
+   * @return false if some of them can't be recorded.
+   */
+  private boolean flatten(
+      RuleKeyResult<RuleKey> result,
+      Map<String, RuleKey> deps,
+      Map<Path, InputStat> inputs,
+      Set<Object> visited) {
+    for (Object dep : result.deps) {
+      if (!visited.add(dep)) {
+        continue;
+      }
+      if (dep instanceof BuildRule) {
+        BuildRule rule = (BuildRule) dep;
+        RuleKey key = delegate.get(rule);
+        if (key == null) {
+          return false;
+        }
+        deps.put(rule.getBuildTarget().getFullyQualifiedName(), key);
+      } else {
+        RuleKeyResult<RuleKey> appendableResult = appendableResults.get(dep);
+        if (appendableResult == null || !flatten(appendableResult, deps, inputs, visited)) {
+          return false;
+        }
+      }
+    }
+    for (RuleKeyInput input : result.inputs) {
+      Path path = input.getFilesystem().resolve(input.getPath());
+      if (!inputs.containsKey(path)) {
+        InputStat stat = InputStat.of(path);
+        if (stat == null) {
+          return false;
+        }
+        inputs.put(path, stat);
+      }
+    }
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public RuleKey get(BuildRule rule) {
+    return delegate.get(rule);
+  }
+
+  @Override
+  public RuleKey get(BuildRule rule, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    return delegate.get(rule, r -> load(r, create));
+  }
+
+  @Override
+  public RuleKey get(
+      AddsToRuleKey appendable, Function<? super AddsToRuleKey, RuleKeyResult<RuleKey>> create) {
+    return delegate.get(
+        appendable,
+        a -> {
+          RuleKeyResult<RuleKey> result = create.apply(a);
+          appendableResults.put(a, result);
+          return result;
+        });
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, RuleKey>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs) {
+    delegate.invalidateInputs(inputs);
+  }
+
+  @Override
+  public void invalidateInputsMatchingRelativePath(Path path) {
+    delegate.invalidateInputsMatchingRelativePath(path);
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(ImmutableSet<ProjectFilesystem> filesystems) {
+    delegate.invalidateAllExceptFilesystems(filesystems);
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem) {
+    delegate.invalidateFilesystem(filesystem);
+  }
+
+  @Override
+  public void invalidateAll() {
+    delegate.invalidateAll();
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return delegate.getStats();
+  }
+
+  @VisibleForTesting
+  long getStoreHitCount() {
+    return storeHits.get();
+  }
+
+  /** A stored rule key and what it was computed from. */
+  private static final class Entry {
+    private final RuleKey ruleKey;
+    private final ImmutableMap<String, RuleKey> deps;
+    private final ImmutableList<InputStat> inputs;
+
+    private Entry(
+        RuleKey ruleKey, ImmutableMap<String, RuleKey> deps, ImmutableList<InputStat> inputs) {
+      this.ruleKey = ruleKey;
+      this.deps = deps;
+      this.inputs = inputs;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      out.writeUTF(ruleKey.toString());
+      out.writeInt(deps.size());
+      for (Map.Entry<String, RuleKey> dep : deps.entrySet()) {
+        out.writeUTF(dep.getKey());
+        out.writeUTF(dep.getValue().toString());
+      }
+      out.writeInt(inputs.size());
+      for (InputStat input : inputs) {
+        input.write(out);
+      }
+    }
+
+    private static Entry read(DataInputStream in) throws IOException {
+      RuleKey ruleKey = new RuleKey(in.readUTF());
+      ImmutableMap.Builder<String, RuleKey> deps = ImmutableMap.builder();
+      int depCount = in.readInt();
+      for (int i = 0; i < depCount; i++) {
+        deps.put(in.readUTF(), new RuleKey(in.readUTF()));
+      }
+      ImmutableList.Builder<InputStat> inputs = ImmutableList.builder();
+      int inputCount = in.readInt();
+      for (int i = 0; i < inputCount; i++) {
+        inputs.add(InputStat.read(in));
+      }
+      return new Entry(ruleKey, deps.build(), inputs.build());
+    }
+  }
+
+  /** The stat data of an input file at the time a rule key was computed from it. */
+  private static final class InputStat {
+    private final Path path;
+    private final long modifiedNanos;
+    private final long size;
+    private final int fileKeyHash;
+
+    private InputStat(Path path, long modifiedNanos, long size, int fileKeyHash) {
+      this.path = path;
+      this.modifiedNanos = modifiedNanos;
+      this.size = size;
+      this.fileKeyHash = fileKeyHash;
+    }
+
+    /**
+     * @return the current stat data of {@code path}, or null if it is missing, a directory (whose
+     *     hash depends on its contents) or was modified too recently to be trusted.
+     */
+    @Nullable
+    private static InputStat of(Path path) {
+      BasicFileAttributes attributes = readAttributes(path);
+      if (attributes == null
+          || attributes.isDirectory()
+          || System.currentTimeMillis() - attributes.lastModifiedTime().toMillis()
+              <= RACY_MODIFICATION_WINDOW_MILLIS) {
+        return null;
+      }
+      return new InputStat(
+          path,
+          attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+          attributes.size(),
+          getFileKeyHash(attributes));
+    }
+
+    private boolean isUpToDate() {
+      BasicFileAttributes attributes = readAttributes(path);
+      return attributes != null
+          && attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) == modifiedNanos
+          && attributes.size() == size
+          && getFileKeyHash(attributes) == fileKeyHash;
+    }
+
+    @Nullable
+    private static BasicFileAttributes readAttributes(Path path) {
+      try {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    private static int getFileKeyHash(BasicFileAttributes attributes) {
+      Object fileKey = attributes.fileKey();
+      return fileKey == null ? 0 : fileKey.toString().hashCode();
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      out.writeUTF(path.toString());
+      out.writeLong(modifiedNanos);
+      out.writeLong(size);
+      out.writeInt(fileKeyHash);
+    }
+
+    private static InputStat read(DataInputStream in) throws IOException {
+      return new InputStat(Paths.get(in.readUTF()), in.readLong(), in.readLong(), in.readInt());
+    }
+  }
+}
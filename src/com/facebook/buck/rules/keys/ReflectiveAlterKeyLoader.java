@@ -20,43 +20,53 @@ import com.facebook.buck.rules.AddToRuleKey;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import java.lang.reflect.Field;
 import java.util.Comparator;
 
+/**
+ * Loads an {@link AlterRuleKey} per {@link AddToRuleKey} field of a class, each of which reads its
+ * field through reflection.
+ */
 class ReflectiveAlterKeyLoader extends CacheLoader<Class<?>, ImmutableCollection<AlterRuleKey>> {
 
-  private static final Comparator<ValueExtractor> COMPARATOR =
+  private static final Comparator<Field> COMPARATOR =
       (o1, o2) -> {
-        String name1 = o1.getFullyQualifiedName();
-        String name2 = o2.getFullyQualifiedName();
+        String name1 = FieldValueExtractor.getFullyQualifiedName(o1);
+        String name2 = FieldValueExtractor.getFullyQualifiedName(o2);
         return name1.compareTo(name2);
       };
 
   @Override
   public ImmutableCollection<AlterRuleKey> load(Class<?> key) throws Exception {
     ImmutableList.Builder<AlterRuleKey> builder = ImmutableList.builder();
-    for (Class<?> current = key; !Object.class.equals(current); current = current.getSuperclass()) {
-      ImmutableSortedMap.Builder<ValueExtractor, AlterRuleKey> sortedExtractors =
-          ImmutableSortedMap.orderedBy(COMPARATOR);
-      for (final Field field : current.getDeclaredFields()) {
-        field.setAccessible(true);
-        final AddToRuleKey annotation = field.getAnnotation(AddToRuleKey.class);
-        if (annotation != null) {
-          ValueExtractor valueExtractor = new FieldValueExtractor(field);
-          sortedExtractors.put(valueExtractor, createAlterRuleKey(valueExtractor, annotation));
-        }
+    for (Field field : getAddToRuleKeyFields(key)) {
+      ValueExtractor valueExtractor = new FieldValueExtractor(field);
+      if (field.getAnnotation(AddToRuleKey.class).stringify()) {
+        builder.add(new StringifyAlterRuleKey(valueExtractor));
+      } else {
+        builder.add(new DefaultAlterRuleKey(valueExtractor));
       }
-      builder.addAll(sortedExtractors.build().values());
     }
     return builder.build();
   }
 
-  private AlterRuleKey createAlterRuleKey(ValueExtractor valueExtractor, AddToRuleKey annotation) {
-    if (annotation.stringify()) {
-      return new StringifyAlterRuleKey(valueExtractor);
-    } else {
-      return new DefaultAlterRuleKey(valueExtractor);
+  /**
+   * @return the {@link AddToRuleKey} fields of {@code key}, made accessible, in the order they are
+   *     added to rule keys: those of subclasses first, and by name within each class.
+   */
+  static ImmutableList<Field> getAddToRuleKeyFields(Class<?> key) {
+    ImmutableList.Builder<Field> builder = ImmutableList.builder();
+    for (Class<?> current = key; !Object.class.equals(current); current = current.getSuperclass()) {
+      ImmutableSortedSet.Builder<Field> sortedFields = ImmutableSortedSet.orderedBy(COMPARATOR);
+      for (final Field field : current.getDeclaredFields()) {
+        if (field.getAnnotation(AddToRuleKey.class) != null) {
+          field.setAccessible(true);
+          sortedFields.add(field);
+        }
+      }
+      builder.addAll(sortedFields.build());
     }
+    return builder.build();
   }
 }
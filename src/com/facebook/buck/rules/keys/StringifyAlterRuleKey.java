@@ -28,6 +28,7 @@ import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
+import javax.annotation.Nullable;
 
 class StringifyAlterRuleKey implements AlterRuleKey {
 
@@ -68,7 +69,12 @@ class StringifyAlterRuleKey implements AlterRuleKey {
 
   @Override
   public void amendKey(RuleKeyObjectSink sink, Object addsToRuleKey) {
-    Object val = valueExtractor.getValue(addsToRuleKey);
+    amendKey(sink, valueExtractor, valueExtractor.getValue(addsToRuleKey));
+  }
+
+  /** Adds {@code val}, which was read with {@code valueExtractor}, to the key as a string. */
+  static void amendKey(
+      RuleKeyObjectSink sink, ValueExtractor valueExtractor, @Nullable Object val) {
     String stringVal = (val == null) ? null : String.valueOf(val);
     sink.setReflectively(valueExtractor.getName(), stringVal);
 
@@ -44,6 +44,7 @@ public class DefaultWorkerTool extends NoopBuildRuleWithDeclaredAndExtraDeps
 
   private final int maxWorkers;
   private final boolean isPersistent;
+  @AddToRuleKey private final boolean isMultiplexed;
   private final BuildOutputInitializer<Data> buildOutputInitializer;
 
   protected DefaultWorkerTool(
@@ -52,11 +53,13 @@ public class DefaultWorkerTool extends NoopBuildRuleWithDeclaredAndExtraDeps
       BuildRuleParams ruleParams,
       Tool tool,
       int maxWorkers,
-      boolean isPersistent) {
+      boolean isPersistent,
+      boolean isMultiplexed) {
     super(buildTarget, projectFilesystem, ruleParams);
     this.tool = tool;
     this.maxWorkers = maxWorkers;
     this.isPersistent = isPersistent;
+    this.isMultiplexed = isMultiplexed;
     this.buildOutputInitializer = new BuildOutputInitializer<>(getBuildTarget(), this);
   }
 
@@ -80,6 +83,11 @@ public class DefaultWorkerTool extends NoopBuildRuleWithDeclaredAndExtraDeps
     return isPersistent;
   }
 
+  @Override
+  public boolean isMultiplexed() {
+    return isMultiplexed;
+  }
+
   @Override
   public Stream<BuildTarget> getRuntimeDeps(SourcePathRuleFinder ruleFinder) {
     return getBuildDeps().stream().map(BuildRule::getBuildTarget);
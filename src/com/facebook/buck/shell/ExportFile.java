@@ -26,6 +26,7 @@ import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleParams;
 import com.facebook.buck.rules.BuildableContext;
+import com.facebook.buck.rules.CacheableBuildRule;
 import com.facebook.buck.rules.ExplicitBuildTargetSourcePath;
 import com.facebook.buck.rules.HasRuntimeDeps;
 import com.facebook.buck.rules.SourcePath;
@@ -92,7 +93,7 @@ import java.util.stream.Stream;
  */
 // TODO(simons): Extend to also allow exporting a rule.
 public class ExportFile extends AbstractBuildRuleWithDeclaredAndExtraDeps
-    implements HasOutputName, HasRuntimeDeps {
+    implements HasOutputName, HasRuntimeDeps, CacheableBuildRule {
 
   @AddToRuleKey private final String name;
   @AddToRuleKey private final ExportFileDescription.Mode mode;
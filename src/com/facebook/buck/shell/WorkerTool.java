@@ -29,5 +29,8 @@ public interface WorkerTool {
 
   boolean isPersistent();
 
+  /** @return whether a single worker process can run several of the tool's jobs at once. */
+  boolean isMultiplexed();
+
   HashCode getInstanceKey();
 }
@@ -151,7 +151,8 @@ public class WorkerToolDescription
         tool,
         maxWorkers,
         args.getPersistent()
-            .orElse(buckConfig.getBooleanValue(CONFIG_SECTION, CONFIG_PERSISTENT_KEY, false)));
+            .orElse(buckConfig.getBooleanValue(CONFIG_SECTION, CONFIG_PERSISTENT_KEY, false)),
+        args.getMultiplexed());
   }
 
   @Override
@@ -202,5 +203,10 @@ public class WorkerToolDescription
     }
 
     Optional<Boolean> getPersistent();
+
+    @Value.Default
+    default boolean getMultiplexed() {
+      return false;
+    }
   }
 }
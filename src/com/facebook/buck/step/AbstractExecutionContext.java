@@ -28,6 +28,7 @@ import com.facebook.buck.rules.RuleKeyDiagnosticsMode;
 import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.Console;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
@@ -84,6 +85,12 @@ abstract class AbstractExecutionContext implements Closeable {
   @Value.Parameter
   abstract Optional<ConcurrentMap<String, WorkerProcessPool>> getPersistentWorkerPools();
 
+  /**
+   * The executor on which zip and jar entries are compressed several at a time, if that is
+   * enabled. Entries are compressed one at a time otherwise.
+   */
+  abstract Optional<ListeningExecutorService> getZipCompressionExecutor();
+
   @Value.Parameter
   abstract CellPathResolver getCellPathResolver();
 
@@ -157,6 +164,15 @@ abstract class AbstractExecutionContext implements Closeable {
     return new ClassLoaderCache();
   }
 
+  /**
+   * Listings and contents of the jars read by in-process compilers. Inside buck daemon, these are
+   * kept across buck invocations.
+   */
+  @Value.Default
+  public JarContentsCache getJarContentsCache() {
+    return new JarContentsCache();
+  }
+
   @Value.Derived
   public Verbosity getVerbosity() {
     return getConsole().getVerbosity();
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Maintains the listings of jars which are read over and over, such as the jars on the class paths
+ * of in-process compilers, along with the contents of their most recently read entries.
+ *
+ * <p>A jar is listed once, and its listing is kept until the jar changes on disk, it is evicted or
+ * the cache is closed. Jars are told apart by their path, size, modification time and file key,
+ * rather than by hashing their contents, so that looking one up costs a single stat. Only the most
+ * recently read jars are kept open, so that a large class path doesn't hold a file descriptor per
+ * jar.
+ */
+public final class JarContentsCache implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(JarContentsCache.class);
+
+  private static final int DEFAULT_MAX_LISTED_JARS = 4096;
+  private static final int DEFAULT_MAX_OPEN_JARS = 64;
+  private static final long DEFAULT_MAX_CACHED_ENTRY_BYTES = 128L * 1024 * 1024;
+
+  private final Cache<Path, Jar> jars;
+  private final Cache<EntryKey, byte[]> entryContents;
+
+  /** The most recently read jars, in the order they were read in. */
+  @GuardedBy("openJars")
+  private final Map<Jar, OpenJar> openJars;
+
+  public JarContentsCache() {
+    this(DEFAULT_MAX_LISTED_JARS, DEFAULT_MAX_OPEN_JARS, DEFAULT_MAX_CACHED_ENTRY_BYTES);
+  }
+
+  @VisibleForTesting
+  JarContentsCache(int maxListedJars, int maxOpenJars, long maxCachedEntryBytes) {
+    this.jars =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxListedJars)
+            .removalListener(
+                (RemovalNotification<Path, Jar> notification) -> {
+                  if (notification.getValue() != null) {
+                    closeJar(notification.getValue());
+                  }
+                })
+            .build();
+    this.openJars =
+        new LinkedHashMap<Jar, OpenJar>(16, 0.75f, /* accessOrder */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Jar, OpenJar> eldest) {
+            if (size() <= maxOpenJars) {
+              return false;
+            }
+            eldest.getValue().release();
+            return true;
+          }
+        };
+    this.entryContents =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxCachedEntryBytes)
+            .weigher((EntryKey key, byte[] contents) -> contents.length)
+            .build();
+  }
+
+  /**
+   * @param jarPath the absolute path to a jar.
+   * @return the jar at the given path, as it is on disk now.
+   */
+  public Jar getJar(Path jarPath) throws IOException {
+    Preconditions.checkArgument(jarPath.isAbsolute(), "%s is not absolute", jarPath);
+    BasicFileAttributes attributes = Files.readAttributes(jarPath, BasicFileAttributes.class);
+    Jar jar = jars.getIfPresent(jarPath);
+    if (jar != null && jar.isUpToDate(attributes)) {
+      return jar;
+    }
+
+    synchronized (this) {
+      jar = jars.getIfPresent(jarPath);
+      if (jar == null || !jar.isUpToDate(attributes)) {
+        // Replacing a jar which changed closes it.
+        jar = new Jar(this, jarPath, attributes);
+        jars.put(jarPath, jar);
+      }
+      return jar;
+    }
+  }
+
+  @Override
+  public void close() {
+    jars.invalidateAll();
+    entryContents.invalidateAll();
+    synchronized (openJars) {
+      for (OpenJar openJar : openJars.values()) {
+        openJar.release();
+      }
+      openJars.clear();
+    }
+  }
+
+  @VisibleForTesting
+  int getOpenJarCount() {
+    synchronized (openJars) {
+      return openJars.size();
+    }
+  }
+
+  /** Closes the jar, if it is open, once the reads still using it are done. */
+  private void closeJar(Jar jar) {
+    synchronized (openJars) {
+      OpenJar openJar = openJars.remove(jar);
+      if (openJar != null) {
+        openJar.release();
+      }
+    }
+  }
+
+  private byte[] readEntryContents(Jar jar, String entryName) throws IOException {
+    OpenJar openJar = acquireOpenJar(jar);
+    try {
+      ZipEntry entry = openJar.zipFile.getEntry(entryName);
+      if (entry == null) {
+        throw new FileNotFoundException(String.format("%s!/%s", jar.getPath(), entryName));
+      }
+      try (InputStream inputStream = openJar.zipFile.getInputStream(entry)) {
+        return ByteStreams.toByteArray(inputStream);
+      }
+    } finally {
+      synchronized (openJars) {
+        openJar.release();
+      }
+    }
+  }
+
+  private OpenJar acquireOpenJar(Jar jar) throws IOException {
+    synchronized (openJars) {
+      OpenJar openJar = openJars.get(jar);
+      if (openJar != null) {
+        openJar.users++;
+        return openJar;
+      }
+    }
+
+    // Opened without holding the lock, so that reads of other jars aren't held up.
+    ZipFile zipFile = new ZipFile(jar.getPath().toFile());
+    synchronized (openJars) {
+      OpenJar openJar = openJars.get(jar);
+      if (openJar != null) {
+        closeZipFile(jar.getPath(), zipFile);
+      } else {
+        openJar = new OpenJar(jar.getPath(), zipFile);
+        // Only jars which are still listed are kept open, so that one which changed is not.
+        if (jars.getIfPresent(jar.getPath()) == jar) {
+          openJar.users++;
+          openJars.put(jar, openJar);
+        }
+      }
+      openJar.users++;
+      return openJar;
+    }
+  }
+
+  private static void closeZipFile(Path path, ZipFile zipFile) {
+    try {
+      zipFile.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to close %s.", path);
+    }
+  }
+
+  /**
+   * An open jar, which is closed once it is neither among the most recently read jars nor being
+   * read.
+   */
+  private static final class OpenJar {
+    private final Path path;
+    private final ZipFile zipFile;
+
+    /** The reads using the jar, and one more while it is among the most recently read jars. */
+    @GuardedBy("openJars")
+    private int users;
+
+    private OpenJar(Path path, ZipFile zipFile) {
+      this.path = path;
+      this.zipFile = zipFile;
+    }
+
+    @GuardedBy("openJars")
+    private void release() {
+      users--;
+      if (users == 0) {
+        closeZipFile(path, zipFile);
+      }
+    }
+  }
+
+  /**
+   * The listing of a jar, through which the contents of its entries can be read. The jar itself is
+   * only open while its entries are being read.
+   */
+  public static final class Jar {
+    private final JarContentsCache cache;
+    private final Path path;
+    private final long size;
+    private final FileTime lastModifiedTime;
+    @Nullable private final Object fileKey;
+    /** Entries, other than directories, by the directory they are in, without a trailing slash. */
+    private final ImmutableListMultimap<String, String> entriesByDirectory;
+
+    private Jar(JarContentsCache cache, Path path, BasicFileAttributes attributes)
+        throws IOException {
+      this.cache = cache;
+      this.path = path;
+      this.size = attributes.size();
+      this.lastModifiedTime = attributes.lastModifiedTime();
+      this.fileKey = attributes.fileKey();
+
+      ImmutableListMultimap.Builder<String, String> entriesByDirectory =
+          ImmutableListMultimap.builder();
+      try (ZipFile zipFile = new ZipFile(path.toFile())) {
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            entries.hasMoreElements();
+            ) {
+          ZipEntry entry = entries.nextElement();
+          if (entry.isDirectory()) {
+            continue;
+          }
+          String name = entry.getName();
+          int lastSlash = name.lastIndexOf('/');
+          entriesByDirectory.put(lastSlash == -1 ? "" : name.substring(0, lastSlash), name);
+        }
+      }
+      this.entriesByDirectory = entriesByDirectory.build();
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    public FileTime getLastModifiedTime() {
+      return lastModifiedTime;
+    }
+
+    /**
+     * @param directory a directory in the jar, such as {@code com/example}, or the empty string for
+     *     the root of the jar.
+     * @return the names of the entries directly in the given directory.
+     */
+    public ImmutableList<String> getEntries(String directory) {
+      return entriesByDirectory.get(directory);
+    }
+
+    /** @return the names of the entries in the given directory and in its subdirectories. */
+    public ImmutableList<String> getEntriesRecursively(String directory) {
+      if (directory.isEmpty()) {
+        return entriesByDirectory.values().asList();
+      }
+      String prefix = directory + "/";
+      ImmutableList.Builder<String> entries = ImmutableList.builder();
+      for (String entryDirectory : entriesByDirectory.keySet()) {
+        if (entryDirectory.equals(directory) || entryDirectory.startsWith(prefix)) {
+          entries.addAll(entriesByDirectory.get(entryDirectory));
+        }
+      }
+      return entries.build();
+    }
+
+    /** @return the contents of the given entry, which may be shared with other readers. */
+    public byte[] getEntryContents(String entryName) throws IOException {
+      try {
+        return cache.entryContents.get(
+            new EntryKey(this, entryName), () -> cache.readEntryContents(this, entryName));
+      } catch (ExecutionException | UncheckedExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    private boolean isUpToDate(BasicFileAttributes attributes) {
+      return size == attributes.size()
+          && lastModifiedTime.equals(attributes.lastModifiedTime())
+          && Objects.equals(fileKey, attributes.fileKey());
+    }
+  }
+
+  private static final class EntryKey {
+    private final Jar jar;
+    private final String entryName;
+
+    private EntryKey(Jar jar, String entryName) {
+      this.jar = jar;
+      this.entryName = entryName;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof EntryKey)) {
+        return false;
+      }
+      EntryKey that = (EntryKey) other;
+      return jar == that.jar && entryName.equals(that.entryName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(jar) + entryName.hashCode();
+    }
+  }
+}
@@ -35,6 +35,12 @@ public class TeeOutputStream extends OutputStream {
     two.write(b);
   }
 
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    one.write(b, off, len);
+    two.write(b, off, len);
+  }
+
   @Override
   public void flush() throws IOException {
     one.flush();
@@ -43,7 +49,10 @@ public class TeeOutputStream extends OutputStream {
 
   @Override
   public void close() throws IOException {
-    one.close();
-    two.close();
+    try {
+      one.close();
+    } finally {
+      two.close();
+    }
   }
 }
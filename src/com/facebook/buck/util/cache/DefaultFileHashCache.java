@@ -45,12 +45,30 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
 
+  /** Where {@link FileHashCacheMode#PERSISTENT} caches keep their indexes, under buck-out. */
+  private static final String PERSISTENT_INDEX_DIR = "file-hash-cache";
+
+  private static final String SOURCES_INDEX_NAME = "sources";
+  private static final String BUCK_OUT_INDEX_NAME = "buck-out";
+
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
   protected DefaultFileHashCache(
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, SOURCES_INDEX_NAME);
+  }
+
+  /**
+   * @param persistentIndexName distinguishes the on-disk indexes of caches with the same root when
+   *     using {@link FileHashCacheMode#PERSISTENT}.
+   */
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      String persistentIndexName) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
@@ -80,6 +98,19 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       case PREFIX_TREE:
         fileHashCacheEngine = new FileSystemMapFileHashCache(hashLoader, sizeLoader);
         break;
+      case PERSISTENT:
+        fileHashCacheEngine =
+            PersistentFileHashCache.createOrFallBack(
+                projectFilesystem,
+                projectFilesystem.resolve(
+                    projectFilesystem
+                        .getBuckPaths()
+                        .getBuckOut()
+                        .resolve(PERSISTENT_INDEX_DIR)
+                        .resolve(persistentIndexName)),
+                hashLoader,
+                sizeLoader);
+        break;
       default:
         throw new RuntimeException(
             "Unsupported file hash cache engine: " + fileHashCacheMode.toString());
@@ -91,7 +122,8 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return new DefaultFileHashCache(
         projectFilesystem,
         (path) -> !(path.startsWith(projectFilesystem.getBuckPaths().getBuckOut())),
-        fileHashCacheMode);
+        fileHashCacheMode,
+        BUCK_OUT_INDEX_NAME);
   }
 
   public static DefaultFileHashCache createDefaultFileHashCache(
@@ -123,9 +155,13 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
           ProjectFilesystem.createNewOrThrowHumanReadableException(root);
       // A cache which caches hashes of absolute paths which my be accessed by certain
       // rules (e.g. /usr/bin/gcc), and only serves to prevent rehashing the same file
-      // multiple times in a single run.
+      // multiple times in a single run. There is no buck-out to keep a persistent index in.
       allCaches.add(
-          DefaultFileHashCache.createDefaultFileHashCache(projectFilesystem, fileHashCacheMode));
+          DefaultFileHashCache.createDefaultFileHashCache(
+              projectFilesystem,
+              fileHashCacheMode == FileHashCacheMode.PERSISTENT
+                  ? FileHashCacheMode.PREFIX_TREE
+                  : fileHashCacheMode));
     }
 
     return allCaches.build();
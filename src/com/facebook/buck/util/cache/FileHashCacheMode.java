@@ -20,6 +20,8 @@ package com.facebook.buck.util.cache;
 public enum FileHashCacheMode {
   LOADING_CACHE,
   PREFIX_TREE,
-  PARALLEL_COMPARISON;
+  PARALLEL_COMPARISON,
+  /** Like {@link #PREFIX_TREE}, backed by an on-disk index which outlives the process. */
+  PERSISTENT;
   public static final FileHashCacheMode DEFAULT = PREFIX_TREE;
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.FileHashCacheEvent;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FileSystemMapFileHashCache} backed by a {@link PersistentFileHashIndex}, so that the
+ * hashes of files which haven't changed survive from one buck process to the next.
+ *
+ * <p>The in-memory cache is invalidated as usual. Only when it misses is the on-disk index
+ * consulted, and its entries are only trusted if the file's modification time, size and identity
+ * are still those it was hashed with.
+ */
+class PersistentFileHashCache implements FileHashCacheEngine {
+  private static final Logger LOG = Logger.get(PersistentFileHashCache.class);
+
+  /** Number of slots in the on-disk index, 64 bytes each. The file is sparse until filled. */
+  static final int DEFAULT_CAPACITY = 1 << 21;
+
+  /**
+   * Files modified this recently are not recorded, since a modification within the timestamp
+   * granularity of the file system would go unnoticed.
+   */
+  private static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private static final byte TYPE_FILE = 1;
+  private static final byte TYPE_ARCHIVE = 2;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final PersistentFileHashIndex index;
+  private final FileHashCacheEngine delegate;
+
+  private final AtomicLong indexHits = new AtomicLong();
+  private final AtomicLong indexMisses = new AtomicLong();
+  private final AtomicLong indexNanoTime = new AtomicLong();
+
+  @VisibleForTesting
+  PersistentFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      PersistentFileHashIndex index,
+      ValueLoader<HashCodeAndFileType> hashLoader,
+      ValueLoader<Long> sizeLoader) {
+    this.projectFilesystem = projectFilesystem;
+    this.index = index;
+    this.delegate =
+        new FileSystemMapFileHashCache(
+            path -> loadThroughIndex(path, hashLoader), sizeLoader);
+  }
+
+  /**
+   * @return a persistent engine using the index at {@code indexPath}, or a purely in-memory one if
+   *     the index can't be opened (e.g. because the file system is read-only).
+   */
+  static FileHashCacheEngine createOrFallBack(
+      ProjectFilesystem projectFilesystem,
+      Path indexPath,
+      ValueLoader<HashCodeAndFileType> hashLoader,
+      ValueLoader<Long> sizeLoader) {
+    try {
+      return new PersistentFileHashCache(
+          projectFilesystem,
+          PersistentFileHashIndex.open(indexPath, DEFAULT_CAPACITY),
+          hashLoader,
+          sizeLoader);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to open file hash index %s, hashes won't be persisted.", indexPath);
+      return new FileSystemMapFileHashCache(hashLoader, sizeLoader);
+    }
+  }
+
+  private HashCodeAndFileType loadThroughIndex(
+      Path path, ValueLoader<HashCodeAndFileType> hashLoader) {
+    long start = System.nanoTime();
+    // Stat before hashing, so that a modification made while hashing makes the entry stale
+    // rather than recording the old stat data with the new contents.
+    BasicFileAttributes attributes = null;
+    long key = 0;
+    try {
+      attributes =
+          Files.readAttributes(projectFilesystem.resolve(path), BasicFileAttributes.class);
+    } catch (IOException e) {
+      // Leave it to the loader to report missing files.
+    }
+    if (attributes != null && attributes.isRegularFile()) {
+      key = PersistentFileHashIndex.keyFor(path.toString());
+      PersistentFileHashIndex.Entry entry =
+          index.get(
+              key,
+              attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+              attributes.size(),
+              getFileKey(attributes));
+      HashCodeAndFileType cached = entry == null ? null : toHashCodeAndFileType(path, entry);
+      indexNanoTime.addAndGet(System.nanoTime() - start);
+      if (cached != null) {
+        indexHits.incrementAndGet();
+        return cached;
+      }
+      indexMisses.incrementAndGet();
+    }
+
+    HashCodeAndFileType value = hashLoader.load(path);
+
+    if (key != 0
+        && System.currentTimeMillis() - attributes.lastModifiedTime().toMillis()
+            > RACY_MODIFICATION_WINDOW_MILLIS) {
+      byte type = getTypeByte(value.getType());
+      if (type != 0) {
+        index.put(
+            key,
+            attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+            attributes.size(),
+            getFileKey(attributes),
+            value.getHashCode(),
+            type);
+      }
+    }
+    return value;
+  }
+
+  @Nullable
+  private HashCodeAndFileType toHashCodeAndFileType(
+      Path path, PersistentFileHashIndex.Entry entry) {
+    switch (entry.getType()) {
+      case TYPE_FILE:
+        return HashCodeAndFileType.ofFile(entry.getHashCode());
+      case TYPE_ARCHIVE:
+        return HashCodeAndFileType.ofArchive(entry.getHashCode(), projectFilesystem, path);
+      default:
+        return null;
+    }
+  }
+
+  private static byte getTypeByte(HashCodeAndFileType.Type type) {
+    switch (type) {
+      case FILE:
+        return TYPE_FILE;
+      case ARCHIVE:
+        return TYPE_ARCHIVE;
+      case DIRECTORY:
+        // Directory hashes depend on their contents, which stat data doesn't cover.
+        return 0;
+    }
+    throw new IllegalStateException("Unhandled type: " + type);
+  }
+
+  private static long getFileKey(BasicFileAttributes attributes) {
+    Object fileKey = attributes.fileKey();
+    return fileKey == null ? 0 : PersistentFileHashIndex.keyFor(fileKey.toString());
+  }
+
+  @Override
+  public void put(Path path, HashCodeAndFileType value) {
+    delegate.put(path, value);
+  }
+
+  @Override
+  public void putSize(Path path, long value) {
+    delegate.putSize(path, value);
+  }
+
+  @Override
+  public void invalidate(Path path) {
+    delegate.invalidate(path);
+  }
+
+  @Override
+  public void invalidateWithParents(Path path) {
+    delegate.invalidateWithParents(path);
+  }
+
+  @Override
+  public HashCode get(Path path) throws IOException {
+    return delegate.get(path);
+  }
+
+  @Override
+  public HashCode get(ArchiveMemberPath archiveMemberPath) throws IOException {
+    return delegate.get(archiveMemberPath);
+  }
+
+  @Nullable
+  @Override
+  public HashCodeAndFileType getIfPresent(Path path) {
+    return delegate.getIfPresent(path);
+  }
+
+  @Nullable
+  @Override
+  public Long getSizeIfPresent(Path path) {
+    return delegate.getSizeIfPresent(path);
+  }
+
+  @Override
+  public long getSize(Path relativePath) throws IOException {
+    return delegate.getSize(relativePath);
+  }
+
+  @Override
+  public void invalidateAll() {
+    delegate.invalidateAll();
+  }
+
+  @Override
+  public ConcurrentMap<Path, HashCodeAndFileType> asMap() {
+    return delegate.asMap();
+  }
+
+  @Override
+  public List<AbstractBuckEvent> getStatsEvents() {
+    List<AbstractBuckEvent> events = delegate.getStatsEvents();
+    long hits = indexHits.getAndSet(0);
+    long misses = indexMisses.getAndSet(0);
+    long nanoTime = indexNanoTime.getAndSet(0);
+    if (hits + misses > 0) {
+      events.add(
+          new FileHashCacheEvent("persistent.lookup", nanoTime, nanoTime, hits + misses));
+      events.add(new FileHashCacheEvent("persistent.hit", 0, 0, hits));
+    }
+    return events;
+  }
+}
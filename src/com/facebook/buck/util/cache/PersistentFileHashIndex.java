@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A fixed-size, open-addressing hash table of file hashes in a memory-mapped file, which any number
+ * of processes can read and write at the same time.
+ *
+ * <p>Entries are keyed by a 64 bit hash of the path, and store the stat data the file had when it
+ * was hashed. Lookups only succeed if the caller's stat data still matches. Every entry carries a
+ * checksum, so entries torn by concurrent writers are ignored rather than misread. When all slots a
+ * key may go into are taken, an existing entry is overwritten, so the table never needs to grow.
+ */
+class PersistentFileHashIndex {
+
+  private static final int MAGIC = 0x42464849;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_SIZE = 64;
+  private static final int PROBE_LIMIT = 16;
+
+  // Layout of a slot.
+  private static final int KEY_OFFSET = 0;
+  private static final int MTIME_OFFSET = 8;
+  private static final int SIZE_OFFSET = 16;
+  private static final int FILE_KEY_OFFSET = 24;
+  private static final int HASH_OFFSET = 32;
+  private static final int HASH_SIZE = 20;
+  private static final int TYPE_OFFSET = HASH_OFFSET + HASH_SIZE;
+  private static final int CHECKSUM_OFFSET = SLOT_SIZE - 4;
+
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+
+  private PersistentFileHashIndex(MappedByteBuffer buffer, int capacity) {
+    this.buffer = buffer;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Map the index stored at {@code file}, creating it if it doesn't exist or was created with a
+   * different layout.
+   *
+   * @param capacity number of slots, which must be a power of two.
+   */
+  static PersistentFileHashIndex open(Path file, int capacity) throws IOException {
+    Preconditions.checkArgument(Integer.bitCount(capacity) == 1);
+    long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE);
+    Files.createDirectories(file.getParent());
+
+    for (int attempt = 0; ; attempt++) {
+      if (!Files.exists(file) || !hasExpectedHeader(file, size, capacity)) {
+        Preconditions.checkState(attempt < 2, "Failed to create file hash index at %s", file);
+        create(file, size, capacity);
+        continue;
+      }
+      try (FileChannel channel =
+          FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // The mapping stays valid after the channel is closed.
+        return new PersistentFileHashIndex(
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, size), capacity);
+      }
+    }
+  }
+
+  private static boolean hasExpectedHeader(Path file, long size, int capacity) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+      return raf.length() == size
+          && raf.readInt() == MAGIC
+          && raf.readInt() == VERSION
+          && raf.readInt() == capacity;
+    }
+  }
+
+  /**
+   * Write a fresh, empty index to the side and move it into place. Processes which still have the
+   * old file mapped carry on using it, rather than having it truncated under them.
+   */
+  private static void create(Path file, long size, int capacity) throws IOException {
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw")) {
+        raf.setLength(size);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(capacity);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  static long keyFor(String path) {
+    long key = Hashing.murmur3_128().hashString(path, StandardCharsets.UTF_8).asLong();
+    // Zero marks an empty slot.
+    return key == 0 ? 1 : key;
+  }
+
+  /**
+   * @return the entry stored for {@code key}, if there is one and it was recorded with the same
+   *     stat data.
+   */
+  @Nullable
+  Entry get(long key, long mtime, long size, long fileKey) {
+    byte[] slot = new byte[SLOT_SIZE];
+    for (int i = 0; i < PROBE_LIMIT; i++) {
+      ByteBuffer entry = readSlot(slotFor(key, i), slot);
+      long slotKey = entry.getLong(KEY_OFFSET);
+      if (slotKey == 0) {
+        return null;
+      }
+      if (slotKey != key || !hasValidChecksum(slot)) {
+        continue;
+      }
+      if (entry.getLong(MTIME_OFFSET) != mtime
+          || entry.getLong(SIZE_OFFSET) != size
+          || entry.getLong(FILE_KEY_OFFSET) != fileKey) {
+        return null;
+      }
+      byte[] hash = new byte[HASH_SIZE];
+      System.arraycopy(slot, HASH_OFFSET, hash, 0, HASH_SIZE);
+      return new Entry(HashCode.fromBytes(hash), slot[TYPE_OFFSET]);
+    }
+    return null;
+  }
+
+  /** Record the hash of a file with the given stat data, replacing any older entry for it. */
+  void put(long key, long mtime, long size, long fileKey, HashCode hashCode, byte type) {
+    byte[] hashBytes = hashCode.asBytes();
+    Preconditions.checkArgument(hashBytes.length == HASH_SIZE);
+
+    byte[] slot = new byte[SLOT_SIZE];
+    int target = slotFor(key, 0);
+    for (int i = 0; i < PROBE_LIMIT; i++) {
+      int candidate = slotFor(key, i);
+      long slotKey = readSlot(candidate, slot).getLong(KEY_OFFSET);
+      if (slotKey == 0 || slotKey == key) {
+        target = candidate;
+        break;
+      }
+    }
+
+    ByteBuffer entry = ByteBuffer.wrap(slot);
+    entry.putLong(KEY_OFFSET, key);
+    entry.putLong(MTIME_OFFSET, mtime);
+    entry.putLong(SIZE_OFFSET, size);
+    entry.putLong(FILE_KEY_OFFSET, fileKey);
+    System.arraycopy(hashBytes, 0, slot, HASH_OFFSET, HASH_SIZE);
+    for (int i = TYPE_OFFSET; i < CHECKSUM_OFFSET; i++) {
+      slot[i] = 0;
+    }
+    slot[TYPE_OFFSET] = type;
+    entry.putInt(CHECKSUM_OFFSET, checksum(slot));
+
+    ByteBuffer view = buffer.duplicate();
+    view.position(HEADER_SIZE + target * SLOT_SIZE);
+    view.put(slot);
+  }
+
+  private int slotFor(long key, int probe) {
+    return (int) ((key + probe) & (capacity - 1));
+  }
+
+  private ByteBuffer readSlot(int index, byte[] slot) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(HEADER_SIZE + index * SLOT_SIZE);
+    view.get(slot);
+    return ByteBuffer.wrap(slot);
+  }
+
+  private static int checksum(byte[] slot) {
+    CRC32 crc = new CRC32();
+    crc.update(slot, 0, CHECKSUM_OFFSET);
+    return (int) crc.getValue();
+  }
+
+  private static boolean hasValidChecksum(byte[] slot) {
+    return ByteBuffer.wrap(slot).getInt(CHECKSUM_OFFSET) == checksum(slot);
+  }
+
+  static class Entry {
+    private final HashCode hashCode;
+    private final byte type;
+
+    Entry(HashCode hashCode, byte type) {
+      this.hashCode = hashCode;
+      this.type = type;
+    }
+
+    HashCode getHashCode() {
+      return hashCode;
+    }
+
+    byte getType() {
+      return type;
+    }
+  }
+}
@@ -25,4 +25,10 @@ abstract class AbstractListeningSemaphoreArrayPendingItem {
   public abstract SettableFuture<Void> getFuture();
 
   public abstract ResourceAmounts getResources();
+
+  /** Items with a higher priority are granted their resources first. */
+  public abstract long getPriority();
+
+  /** Orders items of the same priority by when they were added. */
+  public abstract long getSequence();
 }
@@ -16,28 +16,54 @@
 package com.facebook.buck.util.concurrent;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
  * than blocking.
+ *
+ * <p>The semaphore takes no locks, as it is hit by every step of a build. The used amounts are
+ * updated by compare-and-set, and acquisitions which have to wait are kept in a concurrent queue,
+ * which only one thread at a time hands the released resources out from. Threads which release
+ * resources while another thread does so, including the listeners of the futures that thread
+ * completes, leave it to that thread to go over the queue again, rather than waiting for it or
+ * recursing into it.
  */
 public class ListeningMultiSemaphore {
 
-  private ResourceAmounts usedValues;
+  private static final Comparator<ListeningSemaphoreArrayPendingItem> PENDING_ITEM_ORDER =
+      Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+          .reversed()
+          .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequence);
+
+  private final AtomicReference<ResourceAmounts> usedValues =
+      new AtomicReference<>(ResourceAmounts.ZERO);
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final NavigableSet<ListeningSemaphoreArrayPendingItem> pending =
+      new ConcurrentSkipListSet<>(PENDING_ITEM_ORDER);
+  /** Size of {@link #pending}, which the set itself can only count in linear time. */
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicLong pendingItemSequence = new AtomicLong();
+  /**
+   * Number of times the pending queue was asked to be processed since the thread processing it
+   * last looked. Whichever thread brings it up from 0 processes the queue, until it drops back to
+   * 0.
+   */
+  private final AtomicInteger pendingProcessingRequests = new AtomicInteger();
   private final ResourceAllocationFairness fairness;
 
   public ListeningMultiSemaphore(
       ResourceAmounts availableResources, ResourceAllocationFairness fairness) {
-    this.usedValues = ResourceAmounts.ZERO;
     this.maximumValues = availableResources;
     this.fairness = fairness;
   }
@@ -52,19 +78,48 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Like {@link #acquire(ResourceAmounts)}, but if the resources have to be waited for, they are
+   * granted before those of waiting acquisitions with a lower priority. Acquisitions with the same
+   * priority are granted in the order they were made.
+   */
+  public ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.ZERO)) {
       return Futures.immediateFuture(null);
     }
 
     resources = capResourceAmounts(resources);
-    if (!checkIfResourcesAvailable(resources)) {
-      SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
-      return pendingFuture;
+    if (tryIncreaseUsedResources(resources)) {
+      return Futures.immediateFuture(null);
+    }
+
+    SettableFuture<Void> pendingFuture = SettableFuture.create();
+    ListeningSemaphoreArrayPendingItem item =
+        ListeningSemaphoreArrayPendingItem.of(
+            pendingFuture, resources, priority, pendingItemSequence.getAndIncrement());
+    while (true) {
+      pending.add(item);
+      pendingCount.incrementAndGet();
+      // The resources may have been released after we failed to get them, but before the release
+      // could see the new item. Any release from now on sees it, so check once more. Only take
+      // back our own item here, so that acquiring never completes (and runs the listeners of)
+      // other acquisitions.
+      if (!resources.allValuesLessThanOrEqual(getAvailableResources())) {
+        return pendingFuture;
+      }
+      if (!pending.remove(item)) {
+        // Whoever is handing out resources has already granted it.
+        return pendingFuture;
+      }
+      pendingCount.decrementAndGet();
+      if (tryIncreaseUsedResources(resources)) {
+        return Futures.immediateFuture(null);
+      }
     }
-    increaseUsedResources(resources);
-    return Futures.immediateFuture(null);
   }
 
   /**
@@ -80,37 +135,69 @@ public class ListeningMultiSemaphore {
 
     resources = capResourceAmounts(resources);
     decreaseUsedResources(resources);
-    processPendingFutures(getPendingItemsThatCanBeProcessed());
+    processPendingItems();
   }
 
-  private synchronized ImmutableList<ListeningSemaphoreArrayPendingItem>
-      getPendingItemsThatCanBeProcessed() {
-    ImmutableList.Builder<ListeningSemaphoreArrayPendingItem> builder = ImmutableList.builder();
-
-    Iterator<ListeningSemaphoreArrayPendingItem> iterator = pending.iterator();
-    while (!getAvailableResources().equals(ResourceAmounts.ZERO) && iterator.hasNext()) {
-      ListeningSemaphoreArrayPendingItem item = iterator.next();
-      if (checkIfResourcesAvailable(item.getResources())) {
-        builder.add(item);
-        increaseUsedResources(item.getResources());
-        iterator.remove();
+  /**
+   * Grants the resources of as many pending items as can be granted, unless another thread is doing
+   * so, in which case that thread is made to go over the pending items again once it's done.
+   *
+   * <p>The granted futures are completed while still processing, so that resources released by
+   * their listeners, e.g. because the executor they were going to run on rejected them, are handed
+   * out by the next pass of the loop here rather than by a nested call. With many waiting items,
+   * such nesting overflows the stack, and the items granted but not yet completed are never
+   * completed.
+   */
+  private void processPendingItems() {
+    if (pendingProcessingRequests.getAndIncrement() != 0) {
+      return;
+    }
+    List<ListeningSemaphoreArrayPendingItem> granted = new ArrayList<>();
+    int requests = 1;
+    do {
+      grantPendingItems(granted);
+      ResourceAmounts failedAmounts = ResourceAmounts.ZERO;
+      for (ListeningSemaphoreArrayPendingItem item : granted) {
+        if (!item.getFuture().set(null)) {
+          failedAmounts = failedAmounts.append(item.getResources());
+        }
+      }
+      granted.clear();
+      if (!failedAmounts.equals(ResourceAmounts.ZERO)) {
+        // The future was cancelled while waiting, so nobody is going to release its resources.
+        decreaseUsedResources(failedAmounts);
+        pendingProcessingRequests.incrementAndGet();
+      }
+      requests = pendingProcessingRequests.addAndGet(-requests);
+    } while (requests != 0);
+  }
+
+  /** Must only be called by the thread processing the pending items. */
+  private void grantPendingItems(List<ListeningSemaphoreArrayPendingItem> granted) {
+    for (ListeningSemaphoreArrayPendingItem item : pending) {
+      if (getAvailableResources().equals(ResourceAmounts.ZERO)) {
+        break;
+      }
+      if (tryIncreaseUsedResources(item.getResources())) {
+        pending.remove(item);
+        pendingCount.decrementAndGet();
+        granted.add(item);
       } else if (!fairnessAllowsReordering()) {
         break;
       }
     }
-    return builder.build();
   }
 
-  public synchronized ResourceAmounts getAvailableResources() {
-    return maximumValues.subtract(usedValues);
+  public ResourceAmounts getAvailableResources() {
+    return maximumValues.subtract(usedValues.get());
   }
 
-  public synchronized ResourceAmounts getMaximumValues() {
+  public ResourceAmounts getMaximumValues() {
     return maximumValues;
   }
 
-  public synchronized int getQueueLength() {
-    return pending.size();
+  public int getQueueLength() {
+    return pendingCount.get();
   }
 
   /**
@@ -126,41 +213,38 @@ public class ListeningMultiSemaphore {
         Math.min(amounts.getNetworkIO(), maximumValues.getNetworkIO()));
   }
 
-  private synchronized boolean checkIfResourcesAvailable(ResourceAmounts resources) {
+  /** @return whether the resources were available, in which case they are now used. */
+  private boolean tryIncreaseUsedResources(ResourceAmounts resources) {
     Preconditions.checkState(
         resources.allValuesLessThanOrEqual(maximumValues),
         "Resource amounts (%s) must be capped to the maximum amounts (%s)",
         resources,
         maximumValues);
-    return usedValues.append(resources).allValuesLessThanOrEqual(maximumValues);
-  }
-
-  private synchronized void increaseUsedResources(ResourceAmounts resources) {
-    usedValues = usedValues.append(resources);
-  }
-
-  private synchronized void decreaseUsedResources(ResourceAmounts resources) {
-    ResourceAmounts updatedAmounts = usedValues.subtract(resources);
-    Preconditions.checkArgument(
-        !updatedAmounts.containsValuesLessThan(ResourceAmounts.ZERO),
-        "Cannot increase available resources by %s. Current: %s, Maximum: %s",
-        resources,
-        usedValues,
-        maximumValues);
-    usedValues = updatedAmounts;
-  }
-
-  private void processPendingFutures(ImmutableList<ListeningSemaphoreArrayPendingItem> items) {
-    ResourceAmounts failedAmounts = ResourceAmounts.ZERO;
-
-    for (ListeningSemaphoreArrayPendingItem item : items) {
-      if (!item.getFuture().set(null)) {
-        failedAmounts = failedAmounts.append(item.getResources());
+    while (true) {
+      ResourceAmounts used = usedValues.get();
+      ResourceAmounts updatedAmounts = used.append(resources);
+      if (!updatedAmounts.allValuesLessThanOrEqual(maximumValues)) {
+        return false;
+      }
+      if (usedValues.compareAndSet(used, updatedAmounts)) {
+        return true;
       }
     }
+  }
 
-    if (!failedAmounts.equals(ResourceAmounts.ZERO)) {
-      release(failedAmounts);
+  private void decreaseUsedResources(ResourceAmounts resources) {
+    while (true) {
+      ResourceAmounts used = usedValues.get();
+      ResourceAmounts updatedAmounts = used.subtract(resources);
+      Preconditions.checkArgument(
+          !updatedAmounts.containsValuesLessThan(ResourceAmounts.ZERO),
+          "Cannot increase available resources by %s. Current: %s, Maximum: %s",
+          resources,
+          used,
+          maximumValues);
+      if (usedValues.compareAndSet(used, updatedAmounts)) {
+        return;
+      }
     }
   }
 
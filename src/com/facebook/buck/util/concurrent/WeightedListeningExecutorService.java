@@ -37,14 +37,24 @@ import javax.annotation.Nullable;
 public class WeightedListeningExecutorService extends AbstractListeningExecutorService {
   private final ListeningMultiSemaphore semaphore;
   private final ResourceAmounts defaultValues;
+  private final long priority;
   private final ListeningExecutorService delegate;
 
   public WeightedListeningExecutorService(
       ListeningMultiSemaphore semaphore,
       ResourceAmounts defaultValues,
       ListeningExecutorService delegate) {
+    this(semaphore, defaultValues, 0, delegate);
+  }
+
+  private WeightedListeningExecutorService(
+      ListeningMultiSemaphore semaphore,
+      ResourceAmounts defaultValues,
+      long priority,
+      ListeningExecutorService delegate) {
     this.semaphore = semaphore;
     this.defaultValues = defaultValues;
+    this.priority = priority;
     this.delegate = delegate;
   }
 
@@ -65,14 +75,30 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
     if (newDefaultAmounts.equals(defaultValues)) {
       return this;
     }
-    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, delegate);
+    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, priority, delegate);
+  }
+
+  /**
+   * Creates a new service whose tasks get their resources before the waiting tasks of services
+   * with a lower priority sharing the same semaphore.
+   *
+   * @param newPriority priority of the tasks submitted to the new service. Services start with 0.
+   * @return Service that uses the same semaphore, delegate and default amounts but with the given
+   *     priority.
+   */
+  public WeightedListeningExecutorService withPriority(long newPriority) {
+    if (newPriority == priority) {
+      return this;
+    }
+    return new WeightedListeningExecutorService(semaphore, defaultValues, newPriority, delegate);
   }
 
   private <T> ListenableFuture<T> submitWithSemaphore(
       final Callable<T> callable, final ResourceAmounts amounts) {
+    ListenableFuture<Void> acquired = semaphore.acquire(amounts, priority);
     ListenableFuture<T> future =
         Futures.transformAsync(
-            semaphore.acquire(amounts),
+            acquired,
             input -> {
               try {
                 return Futures.immediateFuture(callable.call());
@@ -82,7 +108,13 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
             },
             delegate);
     future.addListener(
-        () -> semaphore.release(amounts),
+        () -> {
+          // Cancelling the future before the resources were granted cancels the acquisition, whose
+          // resources the semaphore gives back itself.
+          if (!acquired.isCancelled()) {
+            semaphore.release(amounts);
+          }
+        },
         com.google.common.util.concurrent.MoreExecutors.directExecutor());
     return future;
   }
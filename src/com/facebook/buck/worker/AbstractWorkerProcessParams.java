@@ -43,9 +43,18 @@ interface AbstractWorkerProcessParams {
   /** Environment that will be used to start the worker tool. */
   ImmutableMap<String, String> getStartupEnvironment();
 
-  /** Maximum number of tools that pool can have. */
+  /**
+   * Maximum number of tools that pool can have. For multiplexed tools, the maximum number of jobs
+   * the single tool may be running at once.
+   */
   int getMaxWorkers();
 
+  /**
+   * Whether the tool can be sent new jobs while it is still running earlier ones, so that one tool
+   * can run all the jobs of the pool.
+   */
+  boolean isMultiplexed();
+
   /**
    * Identifies the instance of the persisted worker process pool. Defines when worker process pool
    * should be invalidated.
@@ -25,14 +25,22 @@ import com.facebook.buck.util.ProcessExecutorParams;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 public class WorkerProcess implements Closeable {
 
@@ -43,7 +51,23 @@ public class WorkerProcess implements Closeable {
   private final ProjectFilesystem filesystem;
   private final Path tmpPath;
   private final Path stdErr;
+  private final boolean multiplexed;
   private final AtomicInteger currentMessageID = new AtomicInteger();
+  /** Jobs of a multiplexed process which were sent, and are waiting for their responses. */
+  @GuardedBy("pendingResponses")
+  private final Map<Integer, SettableFuture<Integer>> pendingResponses = new HashMap<>();
+  /** Set once the responses of a multiplexed process are no longer read, and why, if it failed. */
+  @GuardedBy("pendingResponses")
+  private boolean responseReaderStopped = false;
+
+  @GuardedBy("pendingResponses")
+  @Nullable
+  private Throwable responseReaderFailure;
+
+  @GuardedBy("this")
+  @Nullable
+  private Thread responseReader;
+
   private boolean handshakePerformed = false;
   @Nullable private WorkerProcessProtocol.CommandSender protocol;
   @Nullable private ProcessExecutor.LaunchedProcess launchedProcess;
@@ -67,7 +91,22 @@ public class WorkerProcess implements Closeable {
       ProjectFilesystem filesystem,
       Path tmpPath)
       throws IOException {
+    this(executor, processParams, filesystem, tmpPath, false);
+  }
+
+  /**
+   * @param multiplexed Whether to submit jobs to the process as soon as they come, without waiting
+   *     for the ones already submitted to finish. The process has to agree to it in the handshake.
+   */
+  public WorkerProcess(
+      ProcessExecutor executor,
+      ProcessExecutorParams processParams,
+      ProjectFilesystem filesystem,
+      Path tmpPath,
+      boolean multiplexed)
+      throws IOException {
     this.executor = executor;
+    this.multiplexed = multiplexed;
     this.stdErr = Files.createTempFile("buck-worker-", "-stderr.log");
     this.processParams =
         processParams.withRedirectError(ProcessBuilder.Redirect.to(stdErr.toFile()));
@@ -96,14 +135,33 @@ public class WorkerProcess implements Closeable {
               if (launchedProcess != null) {
                 executor.destroyLaunchedProcess(launchedProcess);
               }
-            });
+            },
+            multiplexed
+                ? ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_MULTIPLEXING)
+                : ImmutableSet.of());
 
     LOG.debug("Handshaking with process %d", this.hashCode());
     protocol.handshake(currentMessageID.getAndIncrement());
+    if (multiplexed && !protocol.isMultiplexed()) {
+      throw new HumanReadableException(
+          "Worker process %s is used for multiplexed jobs, but it didn't agree to the \"%s\" "
+              + "capability in the handshake.",
+          Joiner.on(' ').join(processParams.getCommand()),
+          WorkerProcessProtocolZero.CAPABILITY_MULTIPLEXING);
+    }
     handshakePerformed = true;
   }
 
-  public synchronized WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
+  /** @return whether jobs are submitted to this process without waiting for earlier ones. */
+  public boolean isMultiplexed() {
+    return multiplexed;
+  }
+
+  /**
+   * Submits a job to the process and blocks until it finishes. A multiplexed process may be sent
+   * jobs from several threads at once; otherwise jobs are run one at a time.
+   */
+  public WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
     Preconditions.checkState(
         protocol != null,
         "Tried to submit a job to the worker process before the handshake was performed.");
@@ -119,9 +177,40 @@ public class WorkerProcess implements Closeable {
     LOG.debug(
         "Sending job %d to process %d \n" + " job arguments: \'%s\'",
         messageID, this.hashCode(), jobArgs);
-    protocol.send(messageID, WorkerProcessCommand.of(argsPath, stdoutPath, stderrPath));
-    LOG.debug("Receiving response for job %d from process %d", messageID, this.hashCode());
-    int exitCode = protocol.receiveCommandResponse(messageID);
+    WorkerProcessCommand command = WorkerProcessCommand.of(argsPath, stdoutPath, stderrPath);
+    int exitCode;
+    if (multiplexed) {
+      SettableFuture<Integer> response = SettableFuture.create();
+      synchronized (pendingResponses) {
+        if (responseReaderStopped) {
+          throw new HumanReadableException(
+              responseReaderFailure,
+              "Worker process %s can no longer run jobs.",
+              Joiner.on(' ').join(processParams.getCommand()));
+        }
+        pendingResponses.put(messageID, response);
+        pendingResponses.notifyAll();
+      }
+      try {
+        synchronized (this) {
+          startResponseReaderIfNeeded(protocol);
+          protocol.send(messageID, command);
+        }
+      } catch (IOException | RuntimeException e) {
+        synchronized (pendingResponses) {
+          pendingResponses.remove(messageID);
+        }
+        throw e;
+      }
+      LOG.debug("Receiving response for job %d from process %d", messageID, this.hashCode());
+      exitCode = waitForResponse(response);
+    } else {
+      synchronized (this) {
+        protocol.send(messageID, command);
+        LOG.debug("Receiving response for job %d from process %d", messageID, this.hashCode());
+        exitCode = protocol.receiveCommandResponse(messageID);
+      }
+    }
     Optional<String> stdout = filesystem.readFileIfItExists(stdoutPath);
     Optional<String> stderr = filesystem.readFileIfItExists(stderrPath);
     LOG.debug(
@@ -134,9 +223,92 @@ public class WorkerProcess implements Closeable {
     return WorkerJobResult.of(exitCode, stdout, stderr);
   }
 
+  /**
+   * Starts the thread which reads the responses of a multiplexed process, in whatever order they
+   * come, and completes the jobs they are for.
+   */
+  @GuardedBy("this")
+  private void startResponseReaderIfNeeded(WorkerProcessProtocol.CommandSender protocol) {
+    if (responseReader != null) {
+      return;
+    }
+    responseReader = new Thread(() -> readResponses(protocol));
+    responseReader.setName(String.format("Worker process %d response reader", this.hashCode()));
+    responseReader.setDaemon(true);
+    responseReader.start();
+  }
+
+  private void readResponses(WorkerProcessProtocol.CommandSender protocol) {
+    while (true) {
+      synchronized (pendingResponses) {
+        // Only read while jobs are running, so that the reader doesn't race close() for the end of
+        // the stream.
+        while (pendingResponses.isEmpty() && !responseReaderStopped) {
+          try {
+            pendingResponses.wait();
+          } catch (InterruptedException e) {
+            failPendingResponses(e);
+            return;
+          }
+        }
+        if (responseReaderStopped) {
+          return;
+        }
+      }
+
+      WorkerProcessResponse next;
+      try {
+        next = protocol.receiveNextCommandResponse();
+      } catch (IOException | RuntimeException e) {
+        // Nothing more can be read, so fail the jobs which are still waiting.
+        failPendingResponses(e);
+        return;
+      }
+      SettableFuture<Integer> response;
+      synchronized (pendingResponses) {
+        response = pendingResponses.remove(next.getId());
+      }
+      if (response == null) {
+        failPendingResponses(
+            new HumanReadableException(
+                "Got a response for job %d from worker process %s, which isn't running it.",
+                next.getId(), Joiner.on(' ').join(processParams.getCommand())));
+        return;
+      }
+      response.set(next.getExitCode());
+    }
+  }
+
+  private void failPendingResponses(Throwable failure) {
+    synchronized (pendingResponses) {
+      responseReaderStopped = true;
+      responseReaderFailure = failure;
+      for (SettableFuture<Integer> pending : pendingResponses.values()) {
+        pending.setException(failure);
+      }
+      pendingResponses.clear();
+    }
+  }
+
+  /** Waits for the response of a job sent to a multiplexed process. */
+  private int waitForResponse(SettableFuture<Integer> response) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(response);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   @Override
   public void close() {
     LOG.debug("Closing process %d", this.hashCode());
+    synchronized (pendingResponses) {
+      // Any job still running fails once the process goes away.
+      responseReaderStopped = true;
+      pendingResponses.notifyAll();
+    }
     try {
       if (protocol != null) {
         protocol.close();
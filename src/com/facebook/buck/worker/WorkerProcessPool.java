@@ -24,26 +24,51 @@ import com.google.common.hash.HashCode;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * Lends worker processes to the jobs which need them.
+ *
+ * <p>A pool of multiplexed workers runs a single process, and lends it to up to as many jobs at
+ * once as it has capacity for, rather than starting a process per job.
+ */
 public abstract class WorkerProcessPool implements Closeable {
   private static final Logger LOG = Logger.get(WorkerProcessPool.class);
 
   private final int capacity;
+  private final boolean multiplexed;
   private final BlockingQueue<WorkerProcess> availableWorkers;
+  /** Bounds the number of jobs sharing the process of a multiplexed pool. */
+  private final Semaphore availableJobSlots;
 
   @GuardedBy("createdWorkers")
   private final List<WorkerProcess> createdWorkers;
 
+  /**
+   * The number of jobs each process of a multiplexed pool is lent to. A process which died or was
+   * destroyed is no longer lent, but is only closed once the jobs still using it are done.
+   */
+  @GuardedBy("createdWorkers")
+  private final Map<WorkerProcess, Integer> jobsInFlight = new HashMap<>();
+
   private final HashCode poolHash;
 
   public WorkerProcessPool(int maxWorkers, HashCode poolHash) {
+    this(maxWorkers, false, poolHash);
+  }
+
+  public WorkerProcessPool(int maxWorkers, boolean multiplexed, HashCode poolHash) {
     this.capacity = maxWorkers;
+    this.multiplexed = multiplexed;
     this.availableWorkers = new LinkedBlockingStack<>();
+    this.availableJobSlots = new Semaphore(maxWorkers);
     this.createdWorkers = new ArrayList<>();
     this.poolHash = poolHash;
   }
@@ -54,6 +79,9 @@ public abstract class WorkerProcessPool implements Closeable {
    * or {@link #destroyWorkerProcess(WorkerProcess)} methods after you finish using it.
    */
   public WorkerProcess borrowWorkerProcess() throws IOException, InterruptedException {
+    if (multiplexed) {
+      return borrowSharedWorkerProcess();
+    }
     WorkerProcess workerProcess;
     while ((workerProcess = availableWorkers.poll(0, TimeUnit.SECONDS)) != null) {
       if (workerProcess.isAlive()) {
@@ -75,6 +103,36 @@ public abstract class WorkerProcessPool implements Closeable {
     return availableWorkers.take();
   }
 
+  private WorkerProcess borrowSharedWorkerProcess() throws IOException, InterruptedException {
+    availableJobSlots.acquire();
+    try {
+      synchronized (createdWorkers) {
+        if (!createdWorkers.isEmpty()) {
+          WorkerProcess workerProcess = createdWorkers.get(0);
+          if (workerProcess.isAlive()) {
+            jobsInFlight.merge(workerProcess, 1, Integer::sum);
+            return workerProcess;
+          }
+          createdWorkers.remove(0);
+          if (!jobsInFlight.containsKey(workerProcess)) {
+            try {
+              workerProcess.close();
+            } catch (Exception ex) {
+              LOG.error(ex, "Failed to close dead worker process; ignoring.");
+            }
+          }
+        }
+        WorkerProcess workerProcess = Preconditions.checkNotNull(startWorkerProcess());
+        createdWorkers.add(workerProcess);
+        jobsInFlight.put(workerProcess, 1);
+        return workerProcess;
+      }
+    } catch (IOException | RuntimeException e) {
+      availableJobSlots.release();
+      throw e;
+    }
+  }
+
   private @Nullable WorkerProcess createNewWorkerIfPossible() throws IOException {
     synchronized (createdWorkers) {
       if (createdWorkers.size() == capacity) {
@@ -87,6 +145,13 @@ public abstract class WorkerProcessPool implements Closeable {
   }
 
   public void returnWorkerProcess(WorkerProcess workerProcess) {
+    if (multiplexed) {
+      // The process may have been retired since, if it died while it was borrowed.
+      if (finishSharedJob(workerProcess, false)) {
+        workerProcess.close();
+      }
+      return;
+    }
     synchronized (createdWorkers) {
       Preconditions.checkArgument(
           createdWorkers.contains(workerProcess),
@@ -100,6 +165,14 @@ public abstract class WorkerProcessPool implements Closeable {
   // Same as returnWorkerProcess, except this assumes the worker is borked and should be terminated
   // with prejudice.
   public void destroyWorkerProcess(WorkerProcess workerProcess) {
+    if (multiplexed) {
+      // Other jobs may still be running on the process, so it is only retired: no more jobs are
+      // lent it, and it is closed once the last of them is done.
+      if (finishSharedJob(workerProcess, true)) {
+        workerProcess.close();
+      }
+      return;
+    }
     synchronized (createdWorkers) {
       boolean removed = createdWorkers.remove(workerProcess);
       Preconditions.checkArgument(removed, "Trying to return a foreign WorkerProcess to the pool");
@@ -107,13 +180,41 @@ public abstract class WorkerProcessPool implements Closeable {
     workerProcess.close();
   }
 
+  /**
+   * Records that a job of a multiplexed pool is done with its process.
+   *
+   * @return whether the process should be closed, as it is retired and no other job uses it.
+   */
+  private boolean finishSharedJob(WorkerProcess workerProcess, boolean retire) {
+    try {
+      synchronized (createdWorkers) {
+        Integer jobs = jobsInFlight.get(workerProcess);
+        Preconditions.checkArgument(
+            jobs != null, "Trying to return a foreign WorkerProcess to the pool");
+        if (jobs == 1) {
+          jobsInFlight.remove(workerProcess);
+        } else {
+          jobsInFlight.put(workerProcess, jobs - 1);
+        }
+        if (retire) {
+          createdWorkers.remove(workerProcess);
+        }
+        return jobs == 1 && !createdWorkers.contains(workerProcess);
+      }
+    } finally {
+      availableJobSlots.release();
+    }
+  }
+
   @Override
   public void close() {
     ImmutableSet<WorkerProcess> processesToClose;
     synchronized (createdWorkers) {
       processesToClose = ImmutableSet.copyOf(createdWorkers);
       Preconditions.checkState(
-          availableWorkers.size() == createdWorkers.size(),
+          multiplexed
+              ? availableJobSlots.availablePermits() == capacity
+              : availableWorkers.size() == createdWorkers.size(),
           "WorkerProcessPool was still running when shutdown was called.");
     }
 
@@ -135,6 +236,10 @@ public abstract class WorkerProcessPool implements Closeable {
     return capacity;
   }
 
+  public boolean isMultiplexed() {
+    return multiplexed;
+  }
+
   protected abstract WorkerProcess startWorkerProcess() throws IOException;
 
   public HashCode getPoolHash() {
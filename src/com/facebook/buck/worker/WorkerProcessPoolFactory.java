@@ -93,6 +93,14 @@ public class WorkerProcessPoolFactory {
                   + "Consolidate these workers to avoid this warning.",
               key, poolCapacity, paramsToUse.getMaxWorkers()));
     }
+    if (pool.isMultiplexed() != paramsToUse.isMultiplexed()) {
+      context.postEvent(
+          ConsoleEvent.warning(
+              "There are two 'worker_tool' targets declared with the same command (%s), but "
+                  + "different 'multiplexed' settings (%s and %s). Only the first setting is "
+                  + "applied. Consolidate these workers to avoid this warning.",
+              key, pool.isMultiplexed(), paramsToUse.isMultiplexed()));
+    }
 
     return pool;
   }
@@ -114,12 +122,15 @@ public class WorkerProcessPoolFactory {
     final AtomicInteger workerNumber = new AtomicInteger(0);
 
     WorkerProcessPool newPool =
-        new WorkerProcessPool(paramsToUse.getMaxWorkers(), workerHash) {
+        new WorkerProcessPool(
+            paramsToUse.getMaxWorkers(), paramsToUse.isMultiplexed(), workerHash) {
           @Override
           protected WorkerProcess startWorkerProcess() throws IOException {
             Path tmpDir = workerTmpDir.resolve(Integer.toString(workerNumber.getAndIncrement()));
             filesystem.mkdirs(tmpDir);
-            WorkerProcess process = createWorkerProcess(processParams, context, tmpDir);
+            WorkerProcess process =
+                createWorkerProcess(
+                    processParams, context, tmpDir, paramsToUse.isMultiplexed());
             process.ensureLaunchAndHandshake();
             return process;
           }
@@ -161,8 +172,12 @@ public class WorkerProcessPoolFactory {
 
   @VisibleForTesting
   public WorkerProcess createWorkerProcess(
-      ProcessExecutorParams processParams, ExecutionContext context, Path tmpDir)
+      ProcessExecutorParams processParams,
+      ExecutionContext context,
+      Path tmpDir,
+      boolean multiplexed)
       throws IOException {
-    return new WorkerProcess(context.getProcessExecutor(), processParams, filesystem, tmpDir);
+    return new WorkerProcess(
+        context.getProcessExecutor(), processParams, filesystem, tmpDir, multiplexed);
   }
 }
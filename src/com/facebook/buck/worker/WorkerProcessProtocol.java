@@ -27,6 +27,18 @@ public interface WorkerProcessProtocol {
 
     int receiveCommandResponse(int messageID) throws IOException;
 
+    /**
+     * @return true if the handshake established that several commands may be sent before the
+     *     responses to the earlier ones are received.
+     */
+    boolean isMultiplexed();
+
+    /**
+     * Receives the response to whichever of the commands sent finishes next. Only meaningful for
+     * multiplexed senders, as responses may come in any order.
+     */
+    WorkerProcessResponse receiveNextCommandResponse() throws IOException;
+
     /** Instructs the CommandReceiver to shut itself down. */
     @Override
     void close() throws IOException;
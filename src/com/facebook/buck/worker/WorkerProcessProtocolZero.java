@@ -18,6 +18,8 @@ package com.facebook.buck.worker;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
@@ -34,21 +36,44 @@ import java.nio.file.Paths;
 import java.util.Optional;
 
 public class WorkerProcessProtocolZero {
+
+  /**
+   * Capability which lets Buck send commands to the process while it is still working on earlier
+   * ones. The process may then respond to them in any order.
+   */
+  public static final String CAPABILITY_MULTIPLEXING = "multiplexing";
+
   public static class CommandSender implements WorkerProcessProtocol.CommandSender {
     private final JsonWriter processStdinWriter;
     private final JsonReader processStdoutReader;
     private final Optional<Path> stdErr;
     private final Runnable onClose;
+    private final ImmutableSet<String> requestedCapabilities;
+    private ImmutableSet<String> capabilities = ImmutableSet.of();
     private boolean isClosed = false;
 
     public CommandSender(
         OutputStream processStdin, InputStream processStdout, Path stdErr, Runnable onClose) {
+      this(processStdin, processStdout, stdErr, onClose, ImmutableSet.of());
+    }
+
+    /**
+     * @param requestedCapabilities capabilities offered to the process in the handshake. Only those
+     *     the process offers back are used.
+     */
+    public CommandSender(
+        OutputStream processStdin,
+        InputStream processStdout,
+        Path stdErr,
+        Runnable onClose,
+        ImmutableSet<String> requestedCapabilities) {
       this.processStdinWriter =
           new JsonWriter(new BufferedWriter(new OutputStreamWriter(processStdin)));
       this.processStdoutReader =
           new JsonReader(new BufferedReader(new InputStreamReader(processStdout)));
       this.stdErr = Optional.of(stdErr);
       this.onClose = onClose;
+      this.requestedCapabilities = requestedCapabilities;
     }
 
     @VisibleForTesting
@@ -63,8 +88,14 @@ public class WorkerProcessProtocolZero {
 
     @Override
     public void handshake(int messageId) throws IOException {
-      sendHandshake(processStdinWriter, messageId);
-      receiveHandshake(processStdoutReader, messageId, stdErr);
+      sendHandshake(processStdinWriter, messageId, requestedCapabilities);
+      ImmutableSet<String> offered = receiveHandshake(processStdoutReader, messageId, stdErr);
+      capabilities = Sets.intersection(requestedCapabilities, offered).immutableCopy();
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+      return capabilities.contains(CAPABILITY_MULTIPLEXING);
     }
 
     /*
@@ -122,6 +153,18 @@ public class WorkerProcessProtocolZero {
     */
     @Override
     public int receiveCommandResponse(int messageID) throws IOException {
+      WorkerProcessResponse response = receiveNextCommandResponse();
+      if (response.getId() != messageID) {
+        throw new HumanReadableException(
+            String.format(
+                "Expected response's \"id\" value to be " + "\"%d\", got \"%d\" instead.",
+                messageID, response.getId()));
+      }
+      return response.getExitCode();
+    }
+
+    @Override
+    public WorkerProcessResponse receiveNextCommandResponse() throws IOException {
       int id = -1;
       int exitCode = -1;
       String type = "";
@@ -149,12 +192,6 @@ public class WorkerProcessProtocolZero {
             getStdErrorOutput(stdErr));
       }
 
-      if (id != messageID) {
-        throw new HumanReadableException(
-            String.format(
-                "Expected response's \"id\" value to be " + "\"%d\", got \"%d\" instead.",
-                messageID, id));
-      }
       if (!type.equals(TYPE_RESULT) && !type.equals(TYPE_ERROR)) {
         throw new HumanReadableException(
             String.format(
@@ -162,7 +199,7 @@ public class WorkerProcessProtocolZero {
                     + "to be one of [\"%s\",\"%s\"], got \"%s\" instead.",
                 TYPE_RESULT, TYPE_ERROR, type));
       }
-      return exitCode;
+      return WorkerProcessResponse.of(id, exitCode);
     }
 
     @Override
@@ -211,7 +248,7 @@ public class WorkerProcessProtocolZero {
 
     @Override
     public void handshake(int messageId) throws IOException {
-      sendHandshake(processStdinWriter, messageId);
+      sendHandshake(processStdinWriter, messageId, ImmutableSet.of());
       receiveHandshake(processStdoutReader, messageId, Optional.empty());
     }
 
@@ -366,35 +403,41 @@ public class WorkerProcessProtocolZero {
          id: 0,
          type: 'handshake',
          protocol_version: '0',
-         capabilities: []
+         capabilities: [<capability>, ...]
        }
   */
-  private static void sendHandshake(JsonWriter writer, int messageId) throws IOException {
+  private static void sendHandshake(
+      JsonWriter writer, int messageId, ImmutableSet<String> capabilities) throws IOException {
     writer.beginArray();
     writer.beginObject();
     writer.name("id").value(messageId);
     writer.name("type").value(TYPE_HANDSHAKE);
     writer.name("protocol_version").value(PROTOCOL_VERSION);
-    writer.name("capabilities").beginArray().endArray();
+    writer.name("capabilities").beginArray();
+    for (String capability : capabilities) {
+      writer.value(capability);
+    }
+    writer.endArray();
     writer.endObject();
     writer.flush();
   }
 
   /*
-   Expects a message that looks like this:
+   Expects a message that looks like this, and returns the capabilities in it:
      [
        {
          id: 0,
          type: 'handshake',
          protocol_version: '0',
-         capabilities: []
+         capabilities: [<capability>, ...]
        }
   */
-  private static void receiveHandshake(JsonReader reader, int messageId, Optional<Path> stdErr)
-      throws IOException {
+  private static ImmutableSet<String> receiveHandshake(
+      JsonReader reader, int messageId, Optional<Path> stdErr) throws IOException {
     int id = -1;
     String type = "";
     String protocolVersion = "";
+    ImmutableSet.Builder<String> capabilities = ImmutableSet.builder();
 
     try {
       reader.beginArray();
@@ -410,10 +453,13 @@ public class WorkerProcessProtocolZero {
         } else if (property.equals("capabilities")) {
           try {
             reader.beginArray();
+            while (reader.hasNext()) {
+              capabilities.add(reader.nextString());
+            }
             reader.endArray();
           } catch (IllegalStateException e) {
             throw new HumanReadableException(
-                "Expected handshake response's \"capabilities\" to " + "be an empty array.");
+                "Expected handshake response's \"capabilities\" to " + "be an array of strings.");
           }
         } else {
           reader.skipValue();
@@ -447,6 +493,7 @@ public class WorkerProcessProtocolZero {
                   + "\"protocol_version\" to be \"%s\", got \"%s\" instead.",
               PROTOCOL_VERSION, protocolVersion));
     }
+    return capabilities.build();
   }
 
   private static String getStdErrorOutput(Optional<Path> stdErr) throws IOException {
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.Executor;
 
 public class DeterministicZipBuilder implements Closeable {
   // TODO(cjhopman): Should this buffer the entries and then sort them by name? We may have to
@@ -32,6 +33,16 @@ public class DeterministicZipBuilder implements Closeable {
     this.output = ZipOutputStreams.newOutputStream(path);
   }
 
+  /**
+   * Creates a builder which compresses several entries at once on {@code compressionExecutor}. The
+   * zip is the same as the one written without it.
+   */
+  public DeterministicZipBuilder(Path path, Executor compressionExecutor) throws IOException {
+    this.output =
+        ZipOutputStreams.newOutputStream(
+            path, ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION, compressionExecutor);
+  }
+
   public void addEntry(
       InputStream data,
       long dataLength,
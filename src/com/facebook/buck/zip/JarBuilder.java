@@ -32,6 +32,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
@@ -66,6 +67,7 @@ public class JarBuilder {
   private Predicate<? super CustomZipEntry> removeEntryPredicate = entry -> false;
   private List<JarEntryContainer> sourceContainers = new ArrayList<>();
   private Set<String> alreadyAddedEntries = new HashSet<>();
+  @Nullable private Executor compressionExecutor;
 
   public JarBuilder setObserver(Observer observer) {
     this.observer = observer;
@@ -122,10 +124,22 @@ public class JarBuilder {
     return this;
   }
 
+  /**
+   * Compresses several entries at once on {@code compressionExecutor}, which may be one the caller
+   * is running on. The jar is the same as the one written without it.
+   */
+  public JarBuilder setCompressionExecutor(@Nullable Executor compressionExecutor) {
+    this.compressionExecutor = compressionExecutor;
+    return this;
+  }
+
   public int createJarFile(Path outputFile) throws IOException {
     Preconditions.checkArgument(outputFile.isAbsolute());
     try (CustomJarOutputStream jar =
-        ZipOutputStreams.newJarOutputStream(outputFile, APPEND_TO_ZIP)) {
+        compressionExecutor == null
+            ? ZipOutputStreams.newJarOutputStream(outputFile, APPEND_TO_ZIP)
+            : ZipOutputStreams.newJarOutputStream(
+                outputFile, APPEND_TO_ZIP, compressionExecutor)) {
       jar.setEntryHashingEnabled(shouldHashEntries);
       this.outputFile = outputFile;
 
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.timing.Clock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CustomZipOutputStream.Impl} which compresses several entries at once on an {@link
+ * Executor}, and writes them out in the order they were added.
+ *
+ * <p>Each entry is compressed exactly as {@link AppendingZipOutputStreamImpl} compresses it, just
+ * on another thread, so the archive is byte for byte the same as the one it writes.
+ *
+ * <p>The data of an entry is buffered in memory until the entry has been compressed and all the
+ * entries before it were written. When waiting for an entry, the writing thread compresses it
+ * itself if the executor hasn't got to it yet, so a busy executor, or one which is running the
+ * writing thread, never holds it up. Entries too large to buffer are compressed by the writing
+ * thread straight to the output, once all the entries before them were written.
+ *
+ * <p>The data buffered by all the streams in the process is bounded as well as that of each stream,
+ * as many archives may be written at once. An entry which doesn't fit in what is left is also
+ * compressed by the writing thread, rather than waiting for other streams to make room.
+ */
+class ParallelDeflatingZipOutputStreamImpl implements CustomZipOutputStream.Impl {
+
+  /** Entries larger than this are compressed as they are written, rather than buffered. */
+  private static final int MAX_BUFFERED_ENTRY_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Bound the memory used by buffered data and the deflaters' native memory, of a stream and of all
+   * the streams in the process.
+   */
+  private static final long MAX_BUFFERED_SIZE_PER_STREAM = 8 * 1024 * 1024;
+
+  private static final long MAX_BUFFERED_SIZE = 64 * 1024 * 1024;
+
+  private static final AtomicLong bufferedSizeOfAllStreams = new AtomicLong();
+
+  private static final int MAX_PENDING_ENTRIES =
+      4 * Runtime.getRuntime().availableProcessors();
+
+  private final Clock clock;
+  private final OutputStream delegate;
+  private final boolean throwExceptionsOnDuplicate;
+  private final Executor executor;
+  private final Set<String> seenNames = new HashSet<>();
+  private final List<EntryAccounting> entries = new ArrayList<>();
+  private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+  private long bufferedSize = 0;
+  private long currentOffset = 0;
+  @Nullable private EntryAccounting currentEntry = null;
+  /** The data of the current entry, or null once the entry is being written straight out. */
+  @Nullable private EntryData currentData = null;
+
+  public ParallelDeflatingZipOutputStreamImpl(
+      Clock clock, OutputStream stream, boolean throwExceptionsOnDuplicate, Executor executor) {
+    this.clock = clock;
+    this.delegate = stream;
+    this.throwExceptionsOnDuplicate = throwExceptionsOnDuplicate;
+    this.executor = executor;
+  }
+
+  @Override
+  public void actuallyPutNextEntry(ZipEntry entry) throws IOException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
+      // Same exception as ZipOutputStream.
+      throw new ZipException("duplicate entry: " + entry.getName());
+    }
+
+    // The offset is set once the entries before this one have been written.
+    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    entries.add(currentEntry);
+    currentData = new EntryData();
+  }
+
+  @Override
+  public void actuallyWrite(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    if (currentData != null) {
+      if (currentData.size() + len <= MAX_BUFFERED_ENTRY_SIZE) {
+        currentData.write(b, off, len);
+        return;
+      }
+      writePendingEntries(0);
+      writeLocalFileHeader(currentEntry);
+      currentData.writeTo(currentEntry, delegate);
+      currentData = null;
+    }
+    currentEntry.write(delegate, b, off, len);
+  }
+
+  @Override
+  public void actuallyCloseEntry() throws IOException {
+    if (currentEntry == null) {
+      return; // no-op
+    }
+
+    if (currentData != null && !reserveBufferedSize(currentData.size())) {
+      // Make room by writing out this stream's own entries, or else compress this one here.
+      writePendingEntries(0);
+      if (!reserveBufferedSize(currentData.size())) {
+        writeLocalFileHeader(currentEntry);
+        currentData.writeTo(currentEntry, delegate);
+        currentData = null;
+      }
+    }
+
+    if (currentData == null) {
+      currentOffset += currentEntry.finish(delegate);
+    } else {
+      EntryAccounting entry = currentEntry;
+      EntryData data = currentData;
+      FutureTask<byte[]> compression =
+          new FutureTask<>(
+              () -> {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.size() / 2);
+                data.writeTo(entry, compressed);
+                entry.finish(compressed);
+                return compressed.toByteArray();
+              });
+      pendingEntries.add(new PendingEntry(entry, compression, data.size()));
+      try {
+        executor.execute(compression);
+      } catch (RejectedExecutionException e) {
+        // The entry is compressed by this thread when it's its turn to be written.
+      }
+      writePendingEntries(MAX_PENDING_ENTRIES);
+    }
+
+    currentEntry = null;
+    currentData = null;
+  }
+
+  @Override
+  public void actuallyClose() throws IOException {
+    try {
+      writePendingEntries(0);
+    } finally {
+      // Entries left over by a failed write no longer hold on to the shared budget.
+      bufferedSizeOfAllStreams.addAndGet(-bufferedSize);
+      bufferedSize = 0;
+    }
+    new CentralDirectory().writeCentralDirectory(delegate, currentOffset, entries);
+
+    delegate.close();
+  }
+
+  /** @return whether there was room in the budgets to buffer the given amount of data. */
+  private boolean reserveBufferedSize(int size) {
+    if (bufferedSize + size > MAX_BUFFERED_SIZE_PER_STREAM) {
+      return false;
+    }
+    long allStreams;
+    do {
+      allStreams = bufferedSizeOfAllStreams.get();
+      if (allStreams + size > MAX_BUFFERED_SIZE) {
+        return false;
+      }
+    } while (!bufferedSizeOfAllStreams.compareAndSet(allStreams, allStreams + size));
+    bufferedSize += size;
+    return true;
+  }
+
+  @VisibleForTesting
+  static long getBufferedSizeOfAllStreams() {
+    return bufferedSizeOfAllStreams.get();
+  }
+
+  /**
+   * Writes out the pending entries which have already been compressed, and then more of them, in
+   * order, until at most {@code maxPendingEntries} are left.
+   */
+  private void writePendingEntries(int maxPendingEntries) throws IOException {
+    while (!pendingEntries.isEmpty()
+        && (pendingEntries.size() > maxPendingEntries
+            || pendingEntries.peekFirst().compression.isDone())) {
+      PendingEntry pending = pendingEntries.removeFirst();
+      // Does nothing if the executor already started compressing the entry.
+      pending.compression.run();
+      byte[] compressed = getCompressedData(pending.compression);
+      writeLocalFileHeader(pending.entry);
+      delegate.write(compressed);
+      currentOffset += compressed.length;
+      bufferedSize -= pending.size;
+      bufferedSizeOfAllStreams.addAndGet(-pending.size);
+    }
+  }
+
+  private void writeLocalFileHeader(EntryAccounting entry) throws IOException {
+    entry.setOffset(currentOffset);
+    currentOffset += entry.writeLocalFileHeader(delegate);
+  }
+
+  private static byte[] getCompressedData(FutureTask<byte[]> compression) throws IOException {
+    try {
+      return compression.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing a zip entry.");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** The uncompressed data of an entry, which can be handed over without copying it. */
+  private static class EntryData extends ByteArrayOutputStream {
+    private void writeTo(EntryAccounting entry, OutputStream out) throws IOException {
+      entry.write(out, buf, 0, count);
+    }
+  }
+
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    private final FutureTask<byte[]> compression;
+    private final int size;
+
+    private PendingEntry(EntryAccounting entry, FutureTask<byte[]> compression, int size) {
+      this.entry = entry;
+      this.compression = compression;
+      this.size = size;
+    }
+  }
+}
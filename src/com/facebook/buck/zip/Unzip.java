@@ -23,29 +23,48 @@ import com.facebook.buck.util.MoreCollectors;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipError;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
 public class Unzip {
 
+  /** How much of an entry is written to its file at a time when unzipping from a stream. */
+  private static final long TRANSFER_SIZE = 1024 * 1024;
+
+  /** Mask for the file type bits of a mode, e.g. {@link MoreFiles#S_IFLNK}. */
+  @SuppressWarnings("PMD.AvoidUsingOctalValues")
+  private static final long S_IFMT = 0170000;
+
   /** Utility class: do not instantiate. */
   private Unzip() {}
 
@@ -233,6 +252,168 @@ public class Unzip {
     return filesWritten.build();
   }
 
+  /**
+   * Unzips a zip file as it is read from a stream, e.g. while it is being downloaded, rather than
+   * from a file. The stream is read to its end.
+   *
+   * <p>Entries are written to {@code scratchDir}, each as soon as its data arrives. Whether entries
+   * are executable or symlinks is only recorded in the zip's central directory, at the end of the
+   * stream, so that is applied once all of it has been read. Nothing outside {@code scratchDir} is
+   * touched until {@link ExtractedZip#moveInto} is called, so a stream which turns out to be
+   * incomplete or not the expected one can simply be dropped.
+   *
+   * @param scratchDir an empty directory, on the same file system as where the files will go.
+   * @throws IOException such as a {@link ZipException} or {@link java.io.EOFException} if the
+   *     stream doesn't hold a complete zip file.
+   */
+  public static ExtractedZip extractZipStream(InputStream in, Path scratchDir)
+      throws IOException {
+    SortedMap<Path, ZipArchiveEntry> pathMap = new TreeMap<>();
+    Map<String, Long> externalAttributes;
+    try (StreamingZipInputStream zip = new StreamingZipInputStream(in)) {
+      ReadableByteChannel source = Channels.newChannel(zip);
+      while (!zip.isAtCentralDirectory()) {
+        ZipEntry entry = zip.getNextEntry();
+        if (entry == null) {
+          throw new ZipException("Zip stream ended before its central directory.");
+        }
+        Path target = Paths.get(entry.getName()).normalize();
+        if (target.isAbsolute() || target.startsWith("..")) {
+          throw new ZipException(String.format("Entry %s is outside the zip.", entry.getName()));
+        }
+        pathMap.put(target, new ZipArchiveEntry(entry.getName()));
+        Path scratchTarget = scratchDir.resolve(target);
+        if (entry.isDirectory()) {
+          Files.createDirectories(scratchTarget);
+        } else {
+          Files.createDirectories(scratchTarget.getParent());
+          try (FileChannel out =
+              FileChannel.open(
+                  scratchTarget,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = out.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+              position += transferred;
+            }
+          }
+          scratchTarget.toFile().setLastModified(entry.getTime());
+        }
+        zip.closeEntry();
+      }
+      externalAttributes = zip.readCentralDirectory();
+    }
+
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
+      ZipArchiveEntry entry = p.getValue();
+      Long attributes = externalAttributes.get(entry.getName());
+      if (attributes == null) {
+        throw new ZipException(
+            String.format("Entry %s is missing from the central directory.", entry.getName()));
+      }
+      if (entry.isDirectory()) {
+        continue;
+      }
+      long mode = attributes >> 16;
+      Path scratchTarget = scratchDir.resolve(p.getKey());
+      if ((mode & S_IFMT) == MoreFiles.S_IFLNK) {
+        Path linkTarget =
+            scratchDir
+                .getFileSystem()
+                .getPath(new String(Files.readAllBytes(scratchTarget), Charsets.UTF_8));
+        Files.delete(scratchTarget);
+        Files.createSymbolicLink(scratchTarget, linkTarget);
+      } else if (MorePosixFilePermissions.fromMode(mode)
+          .contains(PosixFilePermission.OWNER_EXECUTE)) {
+        MoreFiles.makeExecutable(scratchTarget);
+      }
+    }
+
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : new ArrayList<>(pathMap.entrySet())) {
+      if (!isTopLevel(p.getKey(), pathMap)) {
+        fillIntermediatePaths(p.getKey(), pathMap);
+      }
+    }
+    ImmutableSortedMap.Builder<Path, Boolean> entries = ImmutableSortedMap.naturalOrder();
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
+      entries.put(p.getKey(), p.getValue().isDirectory());
+    }
+    return new ExtractedZip(scratchDir, entries.build());
+  }
+
+  /** The contents of a zip file unzipped into a scratch directory, ready to be moved into place. */
+  public static final class ExtractedZip {
+    private final Path scratchDir;
+
+    /** Whether each path of the zip, and each directory between them, is a directory. */
+    private final ImmutableSortedMap<Path, Boolean> entries;
+
+    private ExtractedZip(Path scratchDir, ImmutableSortedMap<Path, Boolean> entries) {
+      this.scratchDir = scratchDir;
+      this.entries = entries;
+    }
+
+    /**
+     * Moves the unzipped files into the filesystem as {@link #extractZipFile(Path,
+     * ProjectFilesystem, ExistingFileMode)} would have written them, then deletes the scratch
+     * directory.
+     *
+     * @return the paths of the files moved into place.
+     */
+    public ImmutableList<Path> moveInto(
+        ProjectFilesystem filesystem, ExistingFileMode existingFileMode) throws IOException {
+      ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
+      // Sorted by path, so dirs come before contents.
+      for (Map.Entry<Path, Boolean> entry : entries.entrySet()) {
+        Path target = filesystem.getPath(entry.getKey().toString());
+        if (entry.getValue()) {
+          if (filesystem.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
+            // Stale contents are cleaned once all the entries are in place.
+          } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            filesystem.deleteFileAtPath(target);
+            filesystem.mkdirs(target);
+          } else {
+            filesystem.mkdirs(target);
+          }
+        } else {
+          if (filesystem.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            filesystem.deleteRecursivelyIfExists(target);
+          } else if (!filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            filesystem.createParentDirs(target);
+          }
+          Files.move(
+              scratchDir.resolve(entry.getKey()),
+              filesystem.resolve(target),
+              StandardCopyOption.REPLACE_EXISTING);
+          filesWritten.add(target);
+        }
+      }
+
+      if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+        for (Map.Entry<Path, Boolean> entry : entries.entrySet()) {
+          if (!entry.getValue()) {
+            continue;
+          }
+          Path dir = filesystem.getPath(entry.getKey().toString());
+          for (Path path : filesystem.getDirectoryContents(dir)) {
+            if (!entries.containsKey(Paths.get(path.toString()))) {
+              filesystem.deleteRecursivelyIfExists(path);
+            }
+          }
+        }
+      }
+      discard();
+      return filesWritten.build();
+    }
+
+    /** Deletes whatever is left of the unzipped files. */
+    public void discard() throws IOException {
+      MoreFiles.deleteRecursivelyIfExists(scratchDir);
+    }
+  }
+
   public static ImmutableList<Path> extractZipFile(
       Path zipFile, ProjectFilesystem filesystem, ExistingFileMode existingFileMode)
       throws IOException {
@@ -254,6 +435,64 @@ public class Unzip {
         .collect(MoreCollectors.toImmutableList());
   }
 
+  /**
+   * A {@link ZipInputStream} which can tell when it has reached the central directory, and read it,
+   * rather than just skipping past it.
+   */
+  private static class StreamingZipInputStream extends ZipInputStream {
+
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    private StreamingZipInputStream(InputStream in) {
+      super(in, Charsets.UTF_8);
+    }
+
+    /** Must only be called between entries. */
+    private boolean isAtCentralDirectory() throws IOException {
+      long signature = peekSignature();
+      return signature == ZipEntry.CENSIG || signature == ZipEntry.ENDSIG;
+    }
+
+    private long peekSignature() throws IOException {
+      // ZipInputStream reads through a pushback stream, to which it returns whatever it reads past
+      // the end of an entry.
+      PushbackInputStream pushback = (PushbackInputStream) in;
+      byte[] signature = new byte[4];
+      int read = ByteStreams.read(pushback, signature, 0, signature.length);
+      pushback.unread(signature, 0, read);
+      return read < signature.length ? -1 : readUnsignedInt(signature, 0);
+    }
+
+    /** @return the external attributes of each entry, then reads the rest of the stream. */
+    private Map<String, Long> readCentralDirectory() throws IOException {
+      Map<String, Long> externalAttributes = new HashMap<>();
+      byte[] header = new byte[CENTRAL_DIRECTORY_HEADER_SIZE];
+      while (peekSignature() == ZipEntry.CENSIG) {
+        ByteStreams.readFully(in, header);
+        int nameLength = readUnsignedShort(header, 28);
+        int extraLength = readUnsignedShort(header, 30);
+        int commentLength = readUnsignedShort(header, 32);
+        byte[] name = new byte[nameLength];
+        ByteStreams.readFully(in, name);
+        ByteStreams.skipFully(in, extraLength + commentLength);
+        externalAttributes.put(new String(name, Charsets.UTF_8), readUnsignedInt(header, 38));
+      }
+      if (peekSignature() != ZipEntry.ENDSIG) {
+        throw new ZipException("Zip stream ended before the end of its central directory.");
+      }
+      ByteStreams.exhaust(in);
+      return externalAttributes;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+      return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static long readUnsignedInt(byte[] bytes, int offset) {
+      return readUnsignedShort(bytes, offset) | ((long) readUnsignedShort(bytes, offset + 2)) << 16;
+    }
+  }
+
   public static ImmutableSet<Path> getZipMembers(Path archiveAbsolutePath) throws IOException {
     try (FileSystem zipFs = FileSystems.newFileSystem(archiveAbsolutePath, null)) {
       Path root = Iterables.getOnlyElement(zipFs.getRootDirectories());
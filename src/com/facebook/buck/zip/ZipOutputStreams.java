@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.Executor;
 
 public class ZipOutputStreams {
 
@@ -105,6 +106,62 @@ public class ZipOutputStreams {
     return new CustomJarOutputStream(newImpl(out, mode, clock));
   }
 
+  /**
+   * Create a new {@link CustomZipOutputStream}, like {@link #newOutputStream(Path,
+   * HandleDuplicates)}, which compresses several entries at once on {@code compressionExecutor}.
+   * The zip is byte for byte the same as the one written by a stream which doesn't.
+   *
+   * <p>The executor may be one the caller is running on: entries are compressed by the caller if
+   * the executor hasn't started on them by the time they need to be written.
+   *
+   * @param zipFile The file to write to.
+   * @param mode How to handle duplicate entries. Only appending modes compress in parallel.
+   * @param compressionExecutor Runs the compression of entries.
+   */
+  public static CustomZipOutputStream newOutputStream(
+      Path zipFile, HandleDuplicates mode, Executor compressionExecutor) throws IOException {
+    return newOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(zipFile)),
+        mode,
+        new DefaultClock(),
+        compressionExecutor);
+  }
+
+  public static CustomJarOutputStream newJarOutputStream(
+      Path jarFile, HandleDuplicates mode, Executor compressionExecutor) throws IOException {
+    return newJarOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(jarFile)),
+        mode,
+        new DefaultClock(),
+        compressionExecutor);
+  }
+
+  public static CustomZipOutputStream newOutputStream(
+      OutputStream out, HandleDuplicates mode, Clock clock, Executor compressionExecutor) {
+    return new CustomZipOutputStream(newImpl(out, mode, clock, compressionExecutor));
+  }
+
+  public static CustomJarOutputStream newJarOutputStream(
+      OutputStream out, HandleDuplicates mode, Clock clock, Executor compressionExecutor) {
+    return new CustomJarOutputStream(newImpl(out, mode, clock, compressionExecutor));
+  }
+
+  private static CustomZipOutputStream.Impl newImpl(
+      OutputStream out, HandleDuplicates mode, Clock clock, Executor compressionExecutor) {
+    switch (mode) {
+      case APPEND_TO_ZIP:
+      case THROW_EXCEPTION:
+        return new ParallelDeflatingZipOutputStreamImpl(
+            clock, out, mode == HandleDuplicates.THROW_EXCEPTION, compressionExecutor);
+      case OVERWRITE_EXISTING:
+        // Entries may be replaced until the stream is closed, so they are only written then.
+        return newImpl(out, mode, clock);
+      default:
+        throw new HumanReadableException(
+            "Unable to determine which zip output mode to use: %s", mode);
+    }
+  }
+
   protected static CustomZipOutputStream.Impl newImpl(
       OutputStream out, HandleDuplicates mode, Clock clock) {
     CustomZipOutputStream.Impl impl;
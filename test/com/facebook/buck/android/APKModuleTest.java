@@ -45,7 +45,7 @@ public class APKModuleTest {
 
   private void verifyDependencies(
       APKModuleGraph graph, APKModule module, ImmutableSet<String> names) {
-    ImmutableSet<APKModule> deps = graph.getGraph().getOutgoingNodesFor(module);
+    Set<APKModule> deps = graph.getGraph().getOutgoingNodesFor(module);
     assertThat(deps.size(), is(names.size()));
     for (APKModule dep : deps) {
       assertThat(dep.getName(), in(names));
@@ -143,7 +143,7 @@ public class APKModuleTest {
           oneOf(
               "src.com.facebook.test.android.library",
               "src.com.facebook.test.java.library.test.java.library.flavor"));
-      ImmutableSet<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
+      Set<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
       assertThat(apkModule.isRootModule(), is(false));
 
       assertThat(dependencies.size(), is(1));
@@ -258,7 +258,7 @@ public class APKModuleTest {
 
     for (APKModule apkModule : topLevelNodes) {
       assertThat(apkModule.getName(), oneOf("test.android.library", "test.java.library"));
-      ImmutableSet<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
+      Set<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
 
       assertThat(dependencies.size(), is(2));
       assertThat(
@@ -354,7 +354,7 @@ public class APKModuleTest {
 
     for (APKModule apkModule : topLevelNodes) {
       assertThat(apkModule.getName(), oneOf("test.android.library", "test.java.library"));
-      ImmutableSet<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
+      Set<APKModule> dependencies = dag.getGraph().getOutgoingNodesFor(apkModule);
 
       for (APKModule depModule : dependencies) {
         assertThat(
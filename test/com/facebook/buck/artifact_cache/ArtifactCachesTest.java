@@ -46,6 +46,7 @@ public class ArtifactCachesTest {
                 projectFilesystem,
                 Optional.empty(),
                 MoreExecutors.newDirectExecutorService(),
+                Optional.empty(),
                 Optional.empty())
             .newInstance();
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(HttpArtifactCache.class));
@@ -64,6 +65,7 @@ public class ArtifactCachesTest {
                 projectFilesystem,
                 Optional.empty(),
                 MoreExecutors.newDirectExecutorService(),
+                Optional.empty(),
                 Optional.empty())
             .newInstance();
 
@@ -84,6 +86,7 @@ public class ArtifactCachesTest {
                 projectFilesystem,
                 Optional.empty(),
                 MoreExecutors.newDirectExecutorService(),
+                Optional.empty(),
                 Optional.empty())
             .newInstance();
 
@@ -112,6 +115,7 @@ public class ArtifactCachesTest {
                     projectFilesystem,
                     Optional.empty(),
                     MoreExecutors.newDirectExecutorService(),
+                    Optional.empty(),
                     Optional.empty())
                 .newInstance());
 
@@ -156,6 +160,7 @@ public class ArtifactCachesTest {
                     projectFilesystem,
                     Optional.empty(),
                     MoreExecutors.newDirectExecutorService(),
+                    Optional.empty(),
                     Optional.empty())
                 .newInstance());
 
@@ -194,6 +199,7 @@ public class ArtifactCachesTest {
                 projectFilesystem,
                 Optional.empty(),
                 MoreExecutors.newDirectExecutorService(),
+                Optional.empty(),
                 Optional.empty())
             .newInstance();
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(MultiArtifactCache.class));
@@ -213,6 +219,7 @@ public class ArtifactCachesTest {
                 projectFilesystem,
                 Optional.of("evilwifi"),
                 MoreExecutors.newDirectExecutorService(),
+                Optional.empty(),
                 Optional.empty())
             .newInstance();
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(DirArtifactCache.class));
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class BatchingArtifactFetcherTest {
+
+  private static final LazyPath dummyFile = LazyPath.ofInstance(Paths.get("dummy"));
+
+  private static class RecordingArtifactCache extends NoopArtifactCache {
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+        ImmutableList<ArtifactFetchRequest> requests) {
+      batchSizes.add(requests.size());
+      return super.multiFetchAsync(requests);
+    }
+
+    @Override
+    public ListenableFuture<ImmutableList<Optional<CacheResult>>> multiFetchMetadataAsync(
+        ImmutableList<RuleKey> ruleKeys) {
+      batchSizes.add(ruleKeys.size());
+      return super.multiFetchMetadataAsync(ruleKeys);
+    }
+  }
+
+  @Test
+  public void queuedFetchesAreSentTogether() {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(cache, 10);
+
+    List<BatchingArtifactFetcher.PendingFetch> fetches = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      fetches.add(fetcher.enqueue(new RuleKey(String.format("%04x", i)), dummyFile));
+    }
+    for (BatchingArtifactFetcher.PendingFetch fetch : fetches) {
+      assertThat(fetch.get().getType(), Matchers.equalTo(CacheResultType.MISS));
+    }
+
+    assertThat(cache.batchSizes, Matchers.contains(5));
+  }
+
+  @Test
+  public void batchesAreCappedAtMaxBatchSize() {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(cache, 2);
+
+    List<BatchingArtifactFetcher.PendingFetch> fetches = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      fetches.add(fetcher.enqueue(new RuleKey(String.format("%04x", i)), dummyFile));
+    }
+    // Waiting on the last fetch has to send out everything queued up in front of it.
+    fetches.get(4).get();
+
+    assertThat(cache.batchSizes, Matchers.contains(2, 2, 1));
+  }
+
+  @Test
+  public void exceptionsAreReportedToEveryFetchInTheBatch() {
+    BatchingArtifactFetcher fetcher =
+        new BatchingArtifactFetcher(
+            new NoopArtifactCache() {
+              @Override
+              public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+                  ImmutableList<ArtifactFetchRequest> requests) {
+                return Futures.immediateFailedFuture(new IllegalStateException("boom"));
+              }
+            },
+            10);
+
+    BatchingArtifactFetcher.PendingFetch first = fetcher.enqueue(new RuleKey("aaaa"), dummyFile);
+    BatchingArtifactFetcher.PendingFetch second = fetcher.enqueue(new RuleKey("bbbb"), dummyFile);
+
+    for (BatchingArtifactFetcher.PendingFetch fetch : ImmutableList.of(first, second)) {
+      try {
+        fetch.get();
+        throw new AssertionError("Expected fetch to fail");
+      } catch (RuntimeException e) {
+        assertThat(e.getCause(), Matchers.instanceOf(IllegalStateException.class));
+      }
+    }
+  }
+
+  @Test
+  public void discardedFetchesAreNotSent() {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(cache, 10);
+
+    BatchingArtifactFetcher.PendingFetch discarded =
+        fetcher.enqueue(new RuleKey("aaaa"), dummyFile);
+    BatchingArtifactFetcher.PendingFetch wanted = fetcher.enqueue(new RuleKey("bbbb"), dummyFile);
+    discarded.discardIfUnused();
+    wanted.get();
+
+    assertThat(cache.batchSizes, Matchers.contains(1));
+    assertFalse(fetcher.sendBatch());
+  }
+
+  @Test
+  public void metadataFetchesAreBatchedSeparately() {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(cache, 10);
+
+    BatchingArtifactFetcher.PendingFetch fetch = fetcher.enqueue(new RuleKey("aaaa"), dummyFile);
+    List<BatchingArtifactFetcher.PendingMetadataFetch> metadataFetches = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      metadataFetches.add(fetcher.enqueueMetadataFetch(new RuleKey(String.format("%04x", i))));
+    }
+    metadataFetches.get(1).discardIfUnused();
+    assertFalse(metadataFetches.get(0).getIfDone().isPresent());
+
+    assertThat(metadataFetches.get(0).get(), Matchers.equalTo(Optional.empty()));
+    assertThat(metadataFetches.get(2).getIfDone(), Matchers.equalTo(Optional.of(Optional.empty())));
+    assertFalse(metadataFetches.get(1).getIfDone().isPresent());
+    assertThat(cache.batchSizes, Matchers.contains(2));
+
+    fetch.get();
+    assertThat(cache.batchSizes, Matchers.contains(2, 1));
+    assertFalse(fetcher.sendMetadataBatch());
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ChunkedDirArtifactCacheTest {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filesystem = new ProjectFilesystem(tmpDir.getRoot());
+    cacheDir = tmpDir.getRoot().resolve("cache");
+  }
+
+  private ChunkedDirArtifactCache newCache(Optional<Long> maxCacheSizeBytes) throws IOException {
+    return new ChunkedDirArtifactCache(
+        "dir", filesystem, cacheDir, CacheReadMode.READWRITE, maxCacheSizeBytes);
+  }
+
+  private Path writeArtifact(String name, byte[] contents) throws IOException {
+    Path path = tmpDir.getRoot().resolve(name);
+    Files.write(path, contents);
+    return path;
+  }
+
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void store(ArtifactCache cache, RuleKey ruleKey, Path artifact) {
+    Futures.getUnchecked(
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+            BorrowablePath.notBorrowablePath(artifact)));
+  }
+
+  private CacheResult fetch(ArtifactCache cache, RuleKey ruleKey, Path output) {
+    return Futures.getUnchecked(cache.fetchAsync(ruleKey, LazyPath.ofInstance(output)));
+  }
+
+  private long countChunks() throws IOException {
+    try (Stream<Path> files = Files.walk(cacheDir.resolve("chunks"))) {
+      return files.filter(Files::isRegularFile).count();
+    }
+  }
+
+  @Test
+  public void storeAndFetchRoundTripsContentsAndMetadata() throws IOException {
+    byte[] contents = randomBytes(3 * 1024 * 1024, 1);
+    Path artifact = writeArtifact("artifact", contents);
+    RuleKey ruleKey = new RuleKey("aaaa");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("some", "metadata");
+
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+    Futures.getUnchecked(
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(ruleKey).setMetadata(metadata).build(),
+            BorrowablePath.notBorrowablePath(artifact)));
+
+    Path output = tmpDir.getRoot().resolve("output");
+    CacheResult result = fetch(cache, ruleKey, output);
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+    assertArrayEquals(contents, Files.readAllBytes(output));
+
+    assertEquals(CacheResultType.MISS, fetch(cache, new RuleKey("bbbb"), output).getType());
+    cache.close();
+  }
+
+  @Test
+  public void identicalArtifactsShareChunks() throws IOException {
+    byte[] contents = randomBytes(2 * 1024 * 1024, 2);
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+
+    store(cache, new RuleKey("aaaa"), writeArtifact("first", contents));
+    long chunkCount = countChunks();
+    long totalBytes = cache.getTotalBytes();
+    store(cache, new RuleKey("bbbb"), writeArtifact("second", contents));
+
+    assertEquals(chunkCount, countChunks());
+    // Only the second entry's own (tiny) entry file should have been added.
+    assertThat(cache.getTotalBytes() - totalBytes, Matchers.lessThan(1024L));
+
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(CacheResultType.HIT, fetch(cache, new RuleKey("bbbb"), output).getType());
+    assertArrayEquals(contents, Files.readAllBytes(output));
+    cache.close();
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvictedFirst() throws IOException, InterruptedException {
+    int artifactSize = 100 * 1024;
+    long maxSize = 7L * artifactSize / 2;
+    ChunkedDirArtifactCache cache = newCache(Optional.of(maxSize));
+    RuleKey first = new RuleKey("aaaa");
+    RuleKey second = new RuleKey("bbbb");
+    RuleKey third = new RuleKey("cccc");
+    RuleKey fourth = new RuleKey("dddd");
+    Path output = tmpDir.getRoot().resolve("output");
+
+    store(cache, first, writeArtifact("first", randomBytes(artifactSize, 3)));
+    Thread.sleep(5);
+    store(cache, second, writeArtifact("second", randomBytes(artifactSize, 4)));
+    Thread.sleep(5);
+    store(cache, third, writeArtifact("third", randomBytes(artifactSize, 5)));
+    Thread.sleep(5);
+    // Using the first entry should protect it from eviction.
+    assertEquals(CacheResultType.HIT, fetch(cache, first, output).getType());
+    Thread.sleep(5);
+    store(cache, fourth, writeArtifact("fourth", randomBytes(artifactSize, 6)));
+
+    assertEquals(CacheResultType.MISS, fetch(cache, second, output).getType());
+    assertEquals(CacheResultType.MISS, fetch(cache, third, output).getType());
+    assertEquals(CacheResultType.HIT, fetch(cache, first, output).getType());
+    assertEquals(CacheResultType.HIT, fetch(cache, fourth, output).getType());
+    assertThat(cache.getTotalBytes(), Matchers.lessThanOrEqualTo(maxSize));
+    cache.close();
+  }
+
+  @Test
+  public void indexIsSharedBetweenInstances() throws IOException {
+    byte[] contents = randomBytes(512 * 1024, 7);
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+    store(cache, new RuleKey("aaaa"), writeArtifact("artifact", contents));
+    long totalBytes = cache.getTotalBytes();
+    cache.close();
+
+    ChunkedDirArtifactCache reopened = newCache(Optional.empty());
+    assertEquals(totalBytes, reopened.getTotalBytes());
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(CacheResultType.HIT, fetch(reopened, new RuleKey("aaaa"), output).getType());
+    assertArrayEquals(contents, Files.readAllBytes(output));
+    reopened.close();
+  }
+
+  @Test
+  public void entryWithMissingChunkIsAMiss() throws IOException {
+    byte[] contents = randomBytes(512 * 1024, 8);
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+    RuleKey ruleKey = new RuleKey("aaaa");
+    store(cache, ruleKey, writeArtifact("artifact", contents));
+
+    try (Stream<Path> files = Files.walk(cacheDir.resolve("chunks"))) {
+      Files.delete(files.filter(Files::isRegularFile).findFirst().get());
+    }
+
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(CacheResultType.MISS, fetch(cache, ruleKey, output).getType());
+    assertFalse(Files.exists(cache.getPathForEntry(ruleKey.toString())));
+    cache.close();
+  }
+
+  @Test
+  public void chunkBoundariesDependOnContent() throws IOException {
+    byte[] contents = randomBytes(4 * 1024 * 1024, 9);
+    ImmutableList<Integer> chunkLengths = readChunkLengths(new ByteArrayInputStream(contents));
+    assertEquals(contents.length, chunkLengths.stream().mapToInt(Integer::intValue).sum());
+    assertThat(chunkLengths.size(), Matchers.greaterThan(4));
+
+    // How the stream hands out its bytes makes no difference.
+    InputStream shortReads =
+        new FilterInputStream(new ByteArrayInputStream(contents)) {
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+          }
+        };
+    assertEquals(chunkLengths, readChunkLengths(shortReads));
+  }
+
+  @Test
+  public void entriesMissingFromTheIndexAreRecoveredOnOpen() throws IOException {
+    byte[] contents = randomBytes(512 * 1024, 10);
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+    store(cache, new RuleKey("aaaa"), writeArtifact("artifact", contents));
+    long totalBytes = cache.getTotalBytes();
+    // The process dies without ever writing back its index.
+    Files.deleteIfExists(cacheDir.resolve("index"));
+
+    ChunkedDirArtifactCache reopened = newCache(Optional.of(1L));
+    assertEquals(0L, reopened.getTotalBytes());
+    assertFalse(Files.exists(reopened.getPathForEntry("aaaa")));
+    assertEquals(0L, countChunks());
+    reopened.close();
+
+    store(cache, new RuleKey("bbbb"), writeArtifact("artifact", contents));
+    Files.deleteIfExists(cacheDir.resolve("index"));
+    reopened = newCache(Optional.empty());
+    assertEquals(totalBytes, reopened.getTotalBytes());
+    reopened.close();
+  }
+
+  @Test
+  public void cacheIsOnlyReconciledAfterAWriterDied() throws IOException {
+    byte[] contents = randomBytes(512 * 1024, 11);
+    ChunkedDirArtifactCache cache = newCache(Optional.empty());
+    store(cache, new RuleKey("aaaa"), writeArtifact("artifact", contents));
+    long totalBytes = cache.getTotalBytes();
+    cache.close();
+    try (Stream<Path> markers = Files.list(cacheDir.resolve("writers"))) {
+      assertEquals(0L, markers.count());
+    }
+
+    // An entry which isn't in the index, but whose writer is known to have finished.
+    Path unindexedEntry = cache.getPathForEntry("bbbb");
+    Files.createDirectories(unindexedEntry.getParent());
+    Files.copy(cache.getPathForEntry("aaaa"), unindexedEntry);
+    long entrySize = Files.size(unindexedEntry);
+    ChunkedDirArtifactCache reopened = newCache(Optional.empty());
+    assertEquals(totalBytes, reopened.getTotalBytes());
+    reopened.close();
+
+    // The marker of a writer which died before writing back its index.
+    Files.createFile(cacheDir.resolve("writers").resolve("writer-dead"));
+    reopened = newCache(Optional.empty());
+    assertEquals(totalBytes + entrySize, reopened.getTotalBytes());
+    assertFalse(Files.exists(cacheDir.resolve("writers").resolve("writer-dead")));
+    reopened.close();
+  }
+
+  private static ImmutableList<Integer> readChunkLengths(InputStream in) throws IOException {
+    ChunkedDirArtifactCache.ChunkReader reader = new ChunkedDirArtifactCache.ChunkReader(in);
+    ImmutableList.Builder<Integer> chunkLengths = ImmutableList.builder();
+    int length;
+    while ((length = reader.next()) > 0) {
+      assertTrue(length <= reader.getBuffer().length);
+      chunkLengths.add(length);
+    }
+    return chunkLengths.build();
+  }
+}
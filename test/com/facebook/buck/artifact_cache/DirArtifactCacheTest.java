@@ -167,6 +167,39 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleX, new BuildRuleForTest(fileX));
   }
 
+  @Test
+  public void testFetchMetadataDoesNotFetchArtifact() throws InterruptedException, IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            new ProjectFilesystem(cacheDir),
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty());
+
+    RuleKey ruleKey = new RuleKey("aaaa");
+    assertEquals(
+        Optional.of(CacheResultType.MISS),
+        Futures.getUnchecked(dirArtifactCache.fetchMetadataAsync(ruleKey))
+            .map(CacheResult::getType));
+
+    Files.write(fileX, "x".getBytes(UTF_8));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).putMetadata("foo", "bar").build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    Files.delete(fileX);
+
+    Optional<CacheResult> result =
+        Futures.getUnchecked(dirArtifactCache.fetchMetadataAsync(ruleKey));
+    assertEquals(Optional.of(CacheResultType.HIT), result.map(CacheResult::getType));
+    assertEquals(ImmutableMap.of("foo", "bar"), result.get().getMetadata());
+    assertEquals(Optional.of(1L), result.get().artifactSizeBytes());
+    assertFalse(Files.exists(fileX));
+  }
+
   @Test
   public void testCacheStoreOverwrite() throws InterruptedException, IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.slb.HttpResponse;
+import com.facebook.buck.slb.HttpService;
+import com.facebook.buck.slb.OkHttpResponseWrapper;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares looking up a batch of keys one at a time against a single {@link
+ * ArtifactCache#multiFetchAsync} call, against a fake cache server with a fixed round trip time.
+ */
+public class HttpArtifactCacheMultiFetchBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int keyCount = 100;
+
+  @Param({"1", "10", "50"})
+  private int latencyMillis = 10;
+
+  @Param({"16", "64"})
+  private int threadCount = 16;
+
+  private static final Random random = new Random(12345);
+
+  private ImmutableList<ArtifactFetchRequest> requests;
+  private ListeningExecutorService fetchExecutor;
+  private HttpArtifactCache artifactCache;
+
+  @Before
+  @BeforeExperiment
+  public void setUp() {
+    byte[] randomRuleKey = new byte[16];
+    ImmutableList.Builder<ArtifactFetchRequest> requestsBuilder = ImmutableList.builder();
+    for (int i = 0; i < keyCount; i++) {
+      random.nextBytes(randomRuleKey);
+      requestsBuilder.add(
+          ArtifactFetchRequest.of(
+              new RuleKey(HashCode.fromBytes(randomRuleKey)),
+              LazyPath.ofInstance(Paths.get("output", String.valueOf(i)))));
+    }
+    requests = requestsBuilder.build();
+
+    fetchExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+    artifactCache =
+        new HttpArtifactCache(
+            NetworkCacheArgs.builder()
+                .setCacheName("http")
+                .setCacheMode(ArtifactCacheMode.http)
+                .setRepository("some_repository")
+                .setScheduleType("some_schedule")
+                .setFetchClient(new SlowHttpService())
+                .setStoreClient(new SlowHttpService())
+                .setCacheReadMode(CacheReadMode.READONLY)
+                .setProjectFilesystem(new FakeProjectFilesystem())
+                .setBuckEventBus(BuckEventBusForTests.newInstance())
+                .setHttpWriteExecutorService(MoreExecutors.newDirectExecutorService())
+                .setHttpFetchExecutorService(Optional.of(fetchExecutor))
+                .setErrorTextTemplate("{cache_name} encountered an error: {error_message}")
+                .setDistributedBuildModeEnabled(false)
+                .build());
+  }
+
+  @After
+  @AfterExperiment
+  public void tearDown() {
+    artifactCache.close();
+    fetchExecutor.shutdownNow();
+  }
+
+  @Ignore
+  @Test
+  public void testSequentialFetch() {
+    benchSequentialFetch();
+  }
+
+  @Ignore
+  @Test
+  public void testMultiFetch() {
+    benchMultiFetch();
+  }
+
+  @Benchmark
+  public void benchSequentialFetch() {
+    for (ArtifactFetchRequest request : requests) {
+      Futures.getUnchecked(artifactCache.fetchAsync(request.getRuleKey(), request.getOutput()));
+    }
+  }
+
+  @Benchmark
+  public void benchMultiFetch() {
+    Futures.getUnchecked(artifactCache.multiFetchAsync(requests));
+  }
+
+  /** Answers every lookup with a miss after {@code latencyMillis}. */
+  private class SlowHttpService implements HttpService {
+    @Override
+    public HttpResponse makeRequest(String path, Request.Builder requestBuilder)
+        throws IOException {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      return new OkHttpResponseWrapper(
+          new Response.Builder()
+              .request(requestBuilder.url("http://localhost" + path).build())
+              .protocol(Protocol.HTTP_1_1)
+              .code(HttpURLConnection.HTTP_NOT_FOUND)
+              .body(ResponseBody.create(MediaType.parse("application/octet-stream"), ""))
+              .build());
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -36,6 +36,7 @@ import java.nio.file.Paths;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
@@ -312,4 +313,96 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void multiFetchFallsThroughToLowerCachesInOrder() throws Exception {
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(cache1, cache2));
+
+    RuleKey key1 = new RuleKey("aaaa");
+    RuleKey key2 = new RuleKey("bbbb");
+    RuleKey key3 = new RuleKey("cccc");
+    cache1.store(ArtifactInfo.builder().addRuleKeys(key1).build(), new byte[0]);
+    cache2.store(ArtifactInfo.builder().addRuleKeys(key3).build(), new byte[0]);
+
+    ImmutableList<CacheResult> results =
+        multiArtifactCache
+            .multiFetchAsync(
+                ImmutableList.of(
+                    ArtifactFetchRequest.of(key1, LazyPath.ofInstance(tmp.newFile())),
+                    ArtifactFetchRequest.of(key2, LazyPath.ofInstance(tmp.newFile())),
+                    ArtifactFetchRequest.of(key3, LazyPath.ofInstance(tmp.newFile()))))
+            .get();
+
+    assertThat(
+        results.stream().map(CacheResult::getType).collect(Collectors.toList()),
+        Matchers.contains(CacheResultType.HIT, CacheResultType.MISS, CacheResultType.HIT));
+    assertThat(
+        "Hits from the lower cache should be propagated to the higher one.",
+        cache1.hasArtifact(key3),
+        Matchers.is(true));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void multiFetchPreservesErrorsFromInnerCache() throws Exception {
+    ErroringArtifactCache inner = new ErroringArtifactCache();
+    MultiArtifactCache cache = new MultiArtifactCache(ImmutableList.of(inner));
+    ImmutableList<CacheResult> results =
+        cache
+            .multiFetchAsync(
+                ImmutableList.of(
+                    ArtifactFetchRequest.of(dummyRuleKey, dummyFile),
+                    ArtifactFetchRequest.of(new RuleKey("aaaa"), dummyFile)))
+            .get();
+    assertThat(
+        results.stream().map(CacheResult::getType).collect(Collectors.toList()),
+        Matchers.contains(CacheResultType.ERROR, CacheResultType.ERROR));
+    cache.close();
+  }
+
+  @Test
+  public void fetchMetadataStopsAtFirstCacheWhichCantAnswer() throws Exception {
+    ArtifactCache missingCache = new MetadataArtifactCache(CacheResult.miss());
+    ArtifactCache hittingCache =
+        new MetadataArtifactCache(
+            CacheResult.hit("cache", ArtifactCacheMode.dir, ImmutableMap.of("foo", "bar"), 0));
+    // DummyArtifactCache can't look up metadata on its own.
+    MultiArtifactCache hitFirst =
+        new MultiArtifactCache(
+            ImmutableList.of(missingCache, hittingCache, new DummyArtifactCache()));
+    Optional<CacheResult> result = hitFirst.fetchMetadataAsync(dummyRuleKey).get();
+    assertEquals(Optional.of(CacheResultType.HIT), result.map(CacheResult::getType));
+    assertEquals(ImmutableMap.of("foo", "bar"), result.get().getMetadata());
+    hitFirst.close();
+
+    MultiArtifactCache unknownFirst =
+        new MultiArtifactCache(ImmutableList.of(new DummyArtifactCache(), hittingCache));
+    assertEquals(Optional.empty(), unknownFirst.fetchMetadataAsync(dummyRuleKey).get());
+    unknownFirst.close();
+
+    MultiArtifactCache allMiss =
+        new MultiArtifactCache(ImmutableList.of(missingCache, missingCache));
+    assertEquals(
+        Optional.of(CacheResultType.MISS),
+        allMiss.fetchMetadataAsync(dummyRuleKey).get().map(CacheResult::getType));
+    allMiss.close();
+  }
+
+  // A cache which answers every metadata lookup the same way.
+  private static class MetadataArtifactCache extends NoopArtifactCache {
+    private final CacheResult metadataResult;
+
+    MetadataArtifactCache(CacheResult metadataResult) {
+      this.metadataResult = metadataResult;
+    }
+
+    @Override
+    public ListenableFuture<Optional<CacheResult>> fetchMetadataAsync(RuleKey ruleKey) {
+      return Futures.immediateFuture(Optional.of(metadataResult));
+    }
+  }
 }
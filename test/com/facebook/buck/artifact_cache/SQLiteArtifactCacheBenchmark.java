@@ -28,6 +28,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -70,6 +71,7 @@ public class SQLiteArtifactCacheBenchmark {
   private LazyPath output;
   private SQLiteArtifactCache artifactCache;
   private ListeningExecutorService executor;
+  private ListeningExecutorService workers;
 
   @Before
   public void setUp() throws InterruptedException, IOException, SQLException {
@@ -92,6 +94,7 @@ public class SQLiteArtifactCacheBenchmark {
   @BeforeExperiment
   private void setUpBenchmark() throws IOException, SQLException {
     artifactCache = cache(Optional.of(1024 * 1024 * 1024L));
+    workers = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     byte[] randomRuleKey = new byte[16];
 
     ruleKeys = new ArrayList<>(opCount);
@@ -123,6 +126,7 @@ public class SQLiteArtifactCacheBenchmark {
   public void tearDown() {
     artifactCache.close();
     executor.shutdown();
+    workers.shutdown();
   }
 
   private SQLiteArtifactCache cache(Optional<Long> maxCacheSizeBytes)
@@ -155,6 +159,7 @@ public class SQLiteArtifactCacheBenchmark {
     benchMetadataFetch();
     benchArtifactStore();
     benchArtifactFetch();
+    benchConcurrentFetchAndStore();
   }
 
   @Benchmark
@@ -188,4 +193,28 @@ public class SQLiteArtifactCacheBenchmark {
       Futures.getUnchecked(artifactCache.fetchAsync(key, output));
     }
   }
+
+  /**
+   * Has {@code threadCount} threads fetch and store at the same time, the way a build with many
+   * cores uses the cache. Every thread stores its own slice of the artifacts while looking up all
+   * of the metadata, so readers and writers contend for the database throughout.
+   */
+  @Benchmark
+  private void benchConcurrentFetchAndStore() {
+    List<ListenableFuture<?>> futures = new ArrayList<>(threadCount);
+    for (int thread = 0; thread < threadCount; thread++) {
+      int firstIndex = thread;
+      futures.add(
+          workers.submit(
+              () -> {
+                for (int i = firstIndex; i < opCount; i += threadCount) {
+                  artifactCache.store(
+                      contentInfo.get(i), BorrowablePath.notBorrowablePath(inlinedFile));
+                  Futures.getUnchecked(artifactCache.fetchAsync(ruleKeys.get(i), output));
+                  Futures.getUnchecked(artifactCache.fetchAsync(contentHashes.get(i), output));
+                }
+              }));
+    }
+    Futures.getUnchecked(Futures.allAsList(futures));
+  }
 }
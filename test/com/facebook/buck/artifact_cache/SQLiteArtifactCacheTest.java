@@ -25,6 +25,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
@@ -35,6 +36,9 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -43,7 +47,13 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -105,7 +115,9 @@ public class SQLiteArtifactCacheTest {
         cacheDir,
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
-        CacheReadMode.READWRITE);
+        CacheReadMode.READWRITE,
+        // Run eviction inline, so its effects can be checked as soon as a store returns.
+        MoreExecutors.newDirectExecutorService());
   }
 
   /**
@@ -390,6 +402,121 @@ public class SQLiteArtifactCacheTest {
     assertEquals(contentHashA.toString(), resultC.getMetadata().get(METADATA_KEY));
   }
 
+  @Test
+  public void testConcurrentStoresAndFetches() throws Exception {
+    artifactCache = cache(Optional.empty());
+    writeInlinedArtifact(fileA);
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+    try {
+      List<RuleKey> contentHashes = new ArrayList<>();
+      List<ListenableFuture<CacheResult>> futures = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        RuleKey contentHash = new RuleKey(String.format("%016x", i));
+        LazyPath taskOutput = LazyPath.ofInstance(cacheDir.resolve(".output" + i));
+        contentHashes.add(contentHash);
+        futures.add(
+            executor.submit(
+                () -> {
+                  artifactCache.store(
+                      ArtifactInfo.builder().addRuleKeys(contentHash).build(),
+                      BorrowablePath.notBorrowablePath(fileA));
+                  return Futures.getUnchecked(artifactCache.fetchAsync(contentHash, taskOutput));
+                }));
+      }
+      for (CacheResult result : Futures.allAsList(futures).get()) {
+        assertEquals(CacheResultType.HIT, result.getType());
+      }
+      assertThat(
+          artifactCache.inlinedArtifactContentHashes(),
+          Matchers.containsInAnyOrder(contentHashes.toArray()));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailingWriteOnlyFailsItsOwnWriter() throws Exception {
+    artifactCache = cache(Optional.empty());
+    Timestamp time = Timestamp.from(Instant.now());
+    artifactCache.insertMetadata(ruleKeyA, ImmutableMap.of(), time);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Future<?> first;
+      Future<?> duplicate;
+      Future<?> last;
+      // Hold the writers off until all three are queued, so their writes are committed as a group.
+      synchronized (artifactCache.getWriteLock()) {
+        first =
+            executor.submit(
+                () -> {
+                  artifactCache.insertMetadata(ruleKeyB, ImmutableMap.of(), time);
+                  return null;
+                });
+        duplicate =
+            executor.submit(
+                () -> {
+                  artifactCache.insertMetadata(ruleKeyA, ImmutableMap.of(), time);
+                  return null;
+                });
+        last =
+            executor.submit(
+                () -> {
+                  artifactCache.insertMetadata(ruleKeyC, ImmutableMap.of(), time);
+                  return null;
+                });
+        while (artifactCache.getPendingWriteCount() < 3) {
+          Thread.sleep(10);
+        }
+      }
+
+      first.get();
+      last.get();
+      try {
+        duplicate.get();
+        fail("Inserting an existing rule key should fail.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause(), Matchers.instanceOf(SQLException.class));
+      }
+      assertThat(
+          artifactCache.metadataRuleKeys(),
+          Matchers.containsInAnyOrder(ruleKeyA, ruleKeyB, ruleKeyC));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testEvictionKeepsContentStoredAfterItWasPicked() throws IOException, SQLException {
+    artifactCache = cache(Optional.of(2 * MAX_INLINED_BYTES));
+
+    writeFileArtifact(fileA);
+    writeFileArtifact(fileB);
+
+    artifactCache.insertContent(
+        contentHashA,
+        BorrowablePath.notBorrowablePath(fileA),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(3))));
+    artifactCache.insertContent(
+        contentHashB,
+        BorrowablePath.notBorrowablePath(fileB),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(2))));
+
+    // The eviction picks A, the least recently used content. Before A is deleted, a store of the
+    // same content finds it present and reports success.
+    artifactCache.removeOldContent(
+        () ->
+            Futures.getUnchecked(
+                artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA))));
+
+    assertThat(artifactCache.directoryFileContentHashes(), Matchers.contains(contentHashA));
+    assertTrue(Files.exists(fileA));
+    CacheResult result = Futures.getUnchecked(artifactCache.fetchAsync(contentHashA, output));
+    assertEquals(CacheResultType.HIT, result.getType());
+  }
+
   @Test
   public void testMarshalMetadata() throws IOException {
     byte[] expected = new byte[4];
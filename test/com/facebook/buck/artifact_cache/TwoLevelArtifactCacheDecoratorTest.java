@@ -26,9 +26,11 @@ import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.Optional;
 import org.hamcrest.Matchers;
@@ -79,6 +81,84 @@ public class TwoLevelArtifactCacheDecoratorTest {
     }
   }
 
+  @Test
+  public void testFetchMetadataOnlyFetchesFirstLevel() throws InterruptedException, IOException {
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator twoLevelCache =
+            new TwoLevelArtifactCacheDecorator(
+                inMemoryArtifactCache,
+                new ProjectFilesystem(tmp.getRoot()),
+                BuckEventBusForTests.newInstance(),
+                /* performTwoLevelStores */ true,
+                /* minimumTwoLevelStoredArtifactSize */ 5L,
+                /* maximumTwoLevelStoredArtifactSize */ Optional.empty())) {
+      assertThat(
+          Futures.getUnchecked(twoLevelCache.fetchMetadataAsync(dummyRuleKey))
+              .map(CacheResult::getType),
+          Matchers.equalTo(Optional.of(CacheResultType.MISS)));
+
+      LazyPath largeArtifact = LazyPath.ofInstance(tmp.newFile());
+      Files.write(largeArtifact.get(), new byte[6]);
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).putMetadata("foo", "bar").build(),
+          BorrowablePath.notBorrowablePath(largeArtifact.get()));
+      Optional<CacheResult> result =
+          Futures.getUnchecked(twoLevelCache.fetchMetadataAsync(dummyRuleKey));
+      assertThat(
+          result.map(CacheResult::getType), Matchers.equalTo(Optional.of(CacheResultType.HIT)));
+      assertThat(result.get().getMetadata(), Matchers.hasEntry("foo", "bar"));
+      assertThat(result.get().twoLevelContentHashKey().isPresent(), Matchers.is(true));
+
+      // Single-level entries can't be looked up without fetching them.
+      LazyPath smallArtifact = LazyPath.ofInstance(tmp.newFile());
+      Files.write(smallArtifact.get(), new byte[3]);
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(),
+          BorrowablePath.notBorrowablePath(smallArtifact.get()));
+      assertThat(
+          Futures.getUnchecked(twoLevelCache.fetchMetadataAsync(dummyRuleKey2)),
+          Matchers.equalTo(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void testFetchMetadataUsesDelegateMetadataLookups()
+      throws InterruptedException, IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    try (DirArtifactCache dirArtifactCache =
+            new DirArtifactCache(
+                "dir",
+                filesystem,
+                tmp.newFolder("cache").getFileName(),
+                CacheReadMode.READWRITE,
+                /* maxCacheSizeBytes */ Optional.empty());
+        TwoLevelArtifactCacheDecorator twoLevelCache =
+            new TwoLevelArtifactCacheDecorator(
+                dirArtifactCache,
+                filesystem,
+                BuckEventBusForTests.newInstance(),
+                /* performTwoLevelStores */ false,
+                /* minimumTwoLevelStoredArtifactSize */ 5L,
+                /* maximumTwoLevelStoredArtifactSize */ Optional.empty())) {
+      // The dir cache can look up metadata without fetching, so even single-level entries work.
+      LazyPath artifact = LazyPath.ofInstance(tmp.newFile());
+      Files.write(artifact.get(), new byte[6]);
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).putMetadata("foo", "bar").build(),
+          BorrowablePath.notBorrowablePath(artifact.get()));
+      Optional<CacheResult> result =
+          Futures.getUnchecked(twoLevelCache.fetchMetadataAsync(dummyRuleKey));
+      assertThat(
+          result.map(CacheResult::getType), Matchers.equalTo(Optional.of(CacheResultType.HIT)));
+      assertThat(result.get().getMetadata(), Matchers.hasEntry("foo", "bar"));
+      assertThat(result.get().twoLevelContentHashKey().isPresent(), Matchers.is(false));
+      assertThat(
+          Futures.getUnchecked(twoLevelCache.fetchMetadataAsync(dummyRuleKey2))
+              .map(CacheResult::getType),
+          Matchers.equalTo(Optional.of(CacheResultType.MISS)));
+    }
+  }
+
   private void testStoreThresholds(int artifactSize, int expectedArtifactsInCache)
       throws InterruptedException, IOException {
     try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
@@ -187,4 +267,39 @@ public class TwoLevelArtifactCacheDecoratorTest {
           Matchers.equalTo(CacheResultType.HIT));
     }
   }
+
+  @Test
+  public void testMultiFetch() throws Exception {
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator twoLevelCache =
+            new TwoLevelArtifactCacheDecorator(
+                inMemoryArtifactCache,
+                new ProjectFilesystem(tmp.getRoot()),
+                BuckEventBusForTests.newInstance(),
+                /* performTwoLevelStores */ true,
+                /* minimumTwoLevelStoredArtifactSize */ 0L,
+                /* maximumTwoLevelStoredArtifactSize */ Optional.empty())) {
+      LazyPath dummyFile = LazyPath.ofInstance(tmp.newFile());
+      Files.write(dummyFile.get(), "content".getBytes(StandardCharsets.UTF_8));
+
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(dummyFile.get()));
+
+      LazyPath output1 = LazyPath.ofInstance(tmp.newFile());
+      LazyPath output2 = LazyPath.ofInstance(tmp.newFile());
+      ImmutableList<CacheResult> results =
+          twoLevelCache
+              .multiFetchAsync(
+                  ImmutableList.of(
+                      ArtifactFetchRequest.of(dummyRuleKey, output1),
+                      ArtifactFetchRequest.of(dummyRuleKey2, output2)))
+              .get();
+
+      assertThat(results.get(0).getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(results.get(1).getType(), Matchers.equalTo(CacheResultType.MISS));
+      assertEquals(
+          "content", new String(Files.readAllBytes(output1.get()), StandardCharsets.UTF_8));
+    }
+  }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.event.CommandEvent;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.io.ProjectWatch;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.parser.DaemonicParserStateSnapshot;
+import com.facebook.buck.parser.thrift.RemoteDaemonicCellState;
+import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.timing.FakeClock;
+import com.facebook.buck.util.WatchmanWatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DaemonTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final String CURRENT_CLOCK = "c:0:1";
+  private static final String SAVED_CLOCK = "c:0:0";
+
+  private Path root;
+  private Cell cell;
+  private RecordingWatchmanClient watchmanClient;
+
+  @Before
+  public void setUp() throws Exception {
+    root = tmp.getRoot().toRealPath();
+    watchmanClient = new RecordingWatchmanClient();
+    ProjectFilesystem filesystem = new ProjectFilesystem(root);
+    cell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setSections(
+                        "[project]",
+                        "watchman_cursor = clock_id",
+                        "[parser]",
+                        "daemon_state_snapshot = true")
+                    .build())
+            .setWatchman(
+                new Watchman(
+                    ImmutableMap.of(root, ProjectWatch.of(root.toString(), Optional.empty())),
+                    ImmutableSet.of(),
+                    ImmutableMap.of(root.toString(), CURRENT_CLOCK),
+                    Optional.empty(),
+                    Optional.of(watchmanClient)))
+            .build();
+  }
+
+  @Test
+  public void restoresSnapshotAndStartsCursorsAtItsClocks() throws Exception {
+    writeSnapshot(ImmutableMap.of(root, SAVED_CLOCK));
+
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      assertEquals(SAVED_CLOCK, daemon.getWatchmanCursor().get(root).get());
+      assertThat(getCachedBuildFiles(daemon), Matchers.contains("BUCK"));
+    }
+  }
+
+  @Test
+  public void snapshotOfOtherWatchedRootsIsIgnored() throws Exception {
+    writeSnapshot(ImmutableMap.of(Paths.get("/other/root"), SAVED_CLOCK));
+
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      assertEquals(CURRENT_CLOCK, daemon.getWatchmanCursor().get(root).get());
+      assertThat(getCachedBuildFiles(daemon), Matchers.empty());
+    }
+  }
+
+  @Test
+  public void firstQueryAfterRestoreAsksForChangesSinceTheSnapshot() throws Exception {
+    writeSnapshot(ImmutableMap.of(root, SAVED_CLOCK));
+    watchmanClient.response =
+        ImmutableMap.of("clock", "c:0:2", "files", ImmutableList.of(), "is_fresh_instance", false);
+
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      watchFileSystem(daemon);
+
+      assertEquals(ImmutableList.of(SAVED_CLOCK), watchmanClient.sinceClocks);
+      assertEquals("c:0:2", daemon.getWatchmanCursor().get(root).get());
+      // Nothing changed in the meantime, so the restored cache is as good as ever.
+      assertThat(getCachedBuildFiles(daemon), Matchers.contains("BUCK"));
+    }
+  }
+
+  @Test
+  public void restoredStateIsDroppedIfWatchmanRestarted() throws Exception {
+    writeSnapshot(ImmutableMap.of(root, SAVED_CLOCK));
+    watchmanClient.response =
+        ImmutableMap.of("clock", "c:1:0", "files", ImmutableList.of(), "is_fresh_instance", true);
+
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      watchFileSystem(daemon);
+
+      assertThat(getCachedBuildFiles(daemon), Matchers.empty());
+    }
+  }
+
+  @Test
+  public void savedSnapshotIsRestoredByTheNextDaemon() throws Exception {
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      daemon.getParser().restoreParserState(newRemoteState(), cell);
+      daemon.saveParserStateSnapshot();
+    }
+
+    try (Daemon daemon = new Daemon(cell, Optional.empty())) {
+      assertEquals(CURRENT_CLOCK, daemon.getWatchmanCursor().get(root).get());
+      assertThat(getCachedBuildFiles(daemon), Matchers.contains("BUCK"));
+    }
+  }
+
+  private void watchFileSystem(Daemon daemon) throws IOException, InterruptedException {
+    daemon.watchFileSystem(
+        CommandEvent.started("build", ImmutableList.of(), true, 23L),
+        BuckEventBusForTests.newInstance(new FakeClock(0)),
+        new WatchmanWatcher(
+            cell.getWatchman().getProjectWatches(),
+            daemon.getFileEventBus(),
+            ImmutableSet.of(),
+            cell.getWatchman(),
+            daemon.getWatchmanCursor()),
+        WatchmanWatcher.FreshInstanceAction.NONE);
+  }
+
+  private void writeSnapshot(ImmutableMap<Path, String> clocks) throws IOException {
+    new DaemonicParserStateSnapshot(
+            DaemonicParserStateSnapshot.computeFingerprint(cell), clocks, newRemoteState())
+        .write(
+            cell.getFilesystem()
+                .resolve(cell.getFilesystem().getBuckPaths().getBuckOut())
+                .resolve("daemon/parser-state"));
+  }
+
+  private static RemoteDaemonicParserState newRemoteState() {
+    RemoteDaemonicCellState cellState = new RemoteDaemonicCellState();
+    cellState.setAllRawNodesJsons(
+        ImmutableMap.of("BUCK", "[{\"name\":\"foo\",\"buck.base_path\":\"\"}]"));
+    cellState.setBuildFileDependents(ImmutableMap.of());
+    cellState.setBuildFileEnv(ImmutableMap.of());
+
+    RemoteDaemonicParserState state = new RemoteDaemonicParserState();
+    state.setCellPaths(ImmutableList.of(""));
+    state.setCachedIncludes(ImmutableMap.of());
+    state.setCellPathToDaemonicState(ImmutableMap.of("", cellState));
+    return state;
+  }
+
+  private ImmutableSet<String> getCachedBuildFiles(Daemon daemon) throws IOException {
+    RemoteDaemonicCellState cellState =
+        daemon.getParser().storeParserState(cell).getCellPathToDaemonicState().get("");
+    return cellState == null
+        ? ImmutableSet.of()
+        : ImmutableSet.copyOf(cellState.getAllRawNodesJsons().keySet());
+  }
+
+  private static class RecordingWatchmanClient implements WatchmanClient {
+    private final List<Object> sinceClocks = new ArrayList<>();
+    private Map<String, Object> response = ImmutableMap.of();
+
+    @Override
+    public Optional<? extends Map<String, ? extends Object>> queryWithTimeout(
+        long timeoutNanos, Object... query) {
+      for (Object element : query) {
+        if (element instanceof Map) {
+          sinceClocks.add(((Map<?, ?>) element).get("since"));
+        }
+      }
+      return Optional.of(response);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cxx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CxxCompilationCacheTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode FIRST = HashCode.fromString("0123456789abcdef");
+  private static final HashCode SECOND = HashCode.fromString("1123456789abcdef");
+  private static final HashCode THIRD = HashCode.fromString("2123456789abcdef");
+
+  private Path cacheDir;
+  private Path object;
+  private Path depFile;
+
+  @Before
+  public void setUp() {
+    cacheDir = tmp.getRoot().resolve("cache");
+    object = tmp.getRoot().resolve("out/input.o");
+    depFile = tmp.getRoot().resolve("out/input.o.dep");
+  }
+
+  @Test
+  public void fetchesStoredOutputs() throws IOException {
+    CxxCompilationCache cache = new CxxCompilationCache(cacheDir, 1024);
+    assertFalse(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+
+    writeOutputs("object", "deps");
+    cache.store(FIRST, ImmutableList.of(object, depFile));
+    Files.delete(object);
+    writeOutputs("stale object", "stale deps");
+
+    assertTrue(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+    assertEquals("object", read(object));
+    assertEquals("deps", read(depFile));
+  }
+
+  @Test
+  public void storedOutputsAreCopies() throws IOException {
+    CxxCompilationCache cache = new CxxCompilationCache(cacheDir, 1024);
+    writeOutputs("object", "deps");
+    cache.store(FIRST, ImmutableList.of(object, depFile));
+
+    // Modifying an output in place doesn't change the cache.
+    writeOutputs("modified", "deps");
+    assertTrue(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+    assertEquals("object", read(object));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws IOException {
+    CxxCompilationCache cache = new CxxCompilationCache(cacheDir, 25);
+    writeOutputs("0123456789", "");
+    cache.store(FIRST, ImmutableList.of(object, depFile));
+    cache.store(SECOND, ImmutableList.of(object, depFile));
+    assertTrue(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+
+    cache.store(THIRD, ImmutableList.of(object, depFile));
+
+    assertTrue(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+    assertFalse(cache.fetch(SECOND, ImmutableList.of(object, depFile)));
+    assertTrue(cache.fetch(THIRD, ImmutableList.of(object, depFile)));
+    assertFalse(Files.exists(cacheDir.resolve("11").resolve(SECOND.toString())));
+  }
+
+  @Test
+  public void entriesOutliveTheProcess() throws IOException {
+    CxxCompilationCache cache = new CxxCompilationCache(cacheDir, 25);
+    writeOutputs("0123456789", "");
+    cache.store(FIRST, ImmutableList.of(object, depFile));
+    cache.store(SECOND, ImmutableList.of(object, depFile));
+    Files.setLastModifiedTime(
+        cacheDir.resolve("01").resolve(FIRST.toString()), FileTime.fromMillis(2000));
+    Files.setLastModifiedTime(
+        cacheDir.resolve("11").resolve(SECOND.toString()), FileTime.fromMillis(1000));
+    Files.createDirectories(cacheDir.resolve("tmp1234"));
+
+    CxxCompilationCache reloaded = new CxxCompilationCache(cacheDir, 25);
+    reloaded.store(THIRD, ImmutableList.of(object, depFile));
+
+    // The entry used last before the restart is kept, and leftovers of stores are deleted.
+    assertTrue(reloaded.fetch(FIRST, ImmutableList.of(object, depFile)));
+    assertFalse(reloaded.fetch(SECOND, ImmutableList.of(object, depFile)));
+    assertFalse(Files.exists(cacheDir.resolve("tmp1234")));
+  }
+
+  @Test
+  public void entryDeletedBehindTheCachesBackIsAMiss() throws IOException {
+    CxxCompilationCache cache = new CxxCompilationCache(cacheDir, 1024);
+    writeOutputs("object", "deps");
+    cache.store(FIRST, ImmutableList.of(object, depFile));
+    Files.delete(cacheDir.resolve("01").resolve(FIRST.toString()).resolve("1"));
+
+    assertFalse(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+    assertFalse(cache.fetch(FIRST, ImmutableList.of(object, depFile)));
+  }
+
+  private void writeOutputs(String objectContents, String depFileContents) throws IOException {
+    Files.createDirectories(object.getParent());
+    Files.write(object, objectContents.getBytes(StandardCharsets.UTF_8));
+    Files.write(depFile, depFileContents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+}
@@ -19,9 +19,12 @@ package com.facebook.buck.cxx;
 import static com.facebook.buck.file.ProjectFilesystemMatchers.pathExists;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.cli.FakeBuckConfig;
 import com.facebook.buck.cxx.platform.Compiler;
@@ -41,11 +44,14 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
@@ -97,6 +103,7 @@ public class CxxCompileStepIntegrationTest {
             scratchDir,
             true,
             compiler,
+            Optional.empty(),
             Optional.empty());
 
     // Execute the archive step and verify it ran successfully.
@@ -167,6 +174,7 @@ public class CxxCompileStepIntegrationTest {
             scratchDir,
             true,
             compiler,
+            Optional.empty(),
             Optional.empty());
 
     // Execute the archive step and verify it ran successfully.
@@ -183,4 +191,176 @@ public class CxxCompileStepIntegrationTest {
     Files.delete(input);
     Files.deleteIfExists(output);
   }
+
+  @Test
+  public void fetchesOutputsFromCompilationCache() throws Exception {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    CxxPlatform platform =
+        CxxPlatformUtils.build(new CxxBuckConfig(FakeBuckConfig.builder().build()));
+
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    SourcePathResolver pathResolver =
+        DefaultSourcePathResolver.from(new SourcePathRuleFinder(resolver));
+    Compiler compiler = platform.getCc().resolve(resolver);
+    Path output = filesystem.resolve(Paths.get("output.o"));
+    Path depFile = filesystem.resolve(Paths.get("output.dep"));
+    Path relativeInput = Paths.get("input.c");
+    filesystem.writeContentsToPath("int main() { return 0; }", relativeInput);
+    Path scratchDir = filesystem.getPath("scratchDir");
+    filesystem.mkdirs(scratchDir);
+
+    CxxCompilationCache cache =
+        new CxxCompilationCache(tmp.getRoot().resolve("cache"), 1024 * 1024);
+    // The inputs are the same as far as the cache can tell, whatever the source says.
+    CxxCompilationCache.Lookup lookup =
+        cache.newLookup(() -> Optional.of(HashCode.fromInt(42)));
+
+    CxxPreprocessAndCompileStep step =
+        new CxxPreprocessAndCompileStep(
+            filesystem,
+            CxxPreprocessAndCompileStep.Operation.PREPROCESS_AND_COMPILE,
+            output,
+            Optional.of(depFile),
+            relativeInput,
+            CxxSource.Type.C,
+            new CxxPreprocessAndCompileStep.ToolCommand(
+                compiler.getCommandPrefix(pathResolver), ImmutableList.of(), ImmutableMap.of()),
+            HeaderPathNormalizer.empty(pathResolver),
+            CxxPlatformUtils.DEFAULT_COMPILER_DEBUG_PATH_SANITIZER,
+            scratchDir,
+            true,
+            compiler,
+            Optional.empty(),
+            Optional.of(lookup));
+
+    ExecutionContext executionContext = TestExecutionContext.newInstance();
+    TestConsole console = (TestConsole) executionContext.getConsole();
+    assertEquals(
+        "compile step failed: " + console.getTextWrittenToStdErr(),
+        0,
+        step.execute(executionContext).getExitCode());
+    byte[] compiledObject = Files.readAllBytes(output);
+    byte[] compiledDepFile = Files.readAllBytes(depFile);
+
+    // Running the compiler now would fail.
+    filesystem.writeContentsToPath("not C", relativeInput);
+    Files.delete(output);
+    Files.delete(depFile);
+
+    assertEquals(0, step.execute(executionContext).getExitCode());
+    assertArrayEquals(compiledObject, Files.readAllBytes(output));
+    assertArrayEquals(compiledDepFile, Files.readAllBytes(depFile));
+  }
+
+  @Test
+  public void cacheKeyHashesTheCompilerContents() throws Exception {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    CxxPlatform platform =
+        CxxPlatformUtils.build(new CxxBuckConfig(FakeBuckConfig.builder().build()));
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    Compiler compiler = platform.getCc().resolve(resolver);
+    CxxCompilationCache.Lookup lookup =
+        new CxxCompilationCache(tmp.getRoot().resolve("cache"), 1024)
+            .newLookup(() -> Optional.of(HashCode.fromInt(42)));
+
+    Path tool = tmp.getRoot().resolve("cc");
+    Files.write(tool, "compiler 1".getBytes(StandardCharsets.UTF_8));
+    FileTime mtime = Files.getLastModifiedTime(tool);
+    Optional<HashCode> firstKey =
+        newStep(filesystem, compiler, tool.toString(), lookup).getCacheKey();
+    assertTrue(firstKey.isPresent());
+
+    // A compiler of the same size and modification time, installed in place of the old one.
+    Path replacement = tmp.getRoot().resolve("cc.new");
+    Files.write(replacement, "compiler 2".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(replacement, mtime);
+    Files.move(replacement, tool, StandardCopyOption.REPLACE_EXISTING);
+    assertNotEquals(
+        firstKey, newStep(filesystem, compiler, tool.toString(), lookup).getCacheKey());
+
+    // A compiler looked up on the PATH can't be hashed.
+    assertFalse(newStep(filesystem, compiler, "cc", lookup).getCacheKey().isPresent());
+  }
+
+  @Test
+  public void cacheKeyHashesTheCompilerEnvironment() throws Exception {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    CxxPlatform platform =
+        CxxPlatformUtils.build(new CxxBuckConfig(FakeBuckConfig.builder().build()));
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    Compiler compiler = platform.getCc().resolve(resolver);
+    CxxCompilationCache.Lookup lookup =
+        new CxxCompilationCache(tmp.getRoot().resolve("cache"), 1024)
+            .newLookup(() -> Optional.of(HashCode.fromInt(42)));
+    Path tool = tmp.getRoot().resolve("cc");
+    Files.write(tool, "compiler".getBytes(StandardCharsets.UTF_8));
+
+    Optional<HashCode> key =
+        newStep(
+                filesystem,
+                compiler,
+                tool.toString(),
+                ImmutableMap.of("SDKROOT", "/sdk/1", "DEVELOPER_DIR", "/dev"),
+                lookup)
+            .getCacheKey();
+    assertTrue(key.isPresent());
+    assertEquals(
+        "The order of the environment does not matter",
+        key,
+        newStep(
+                filesystem,
+                compiler,
+                tool.toString(),
+                ImmutableMap.of("DEVELOPER_DIR", "/dev", "SDKROOT", "/sdk/1"),
+                lookup)
+            .getCacheKey());
+    assertNotEquals(
+        key,
+        newStep(
+                filesystem,
+                compiler,
+                tool.toString(),
+                ImmutableMap.of("SDKROOT", "/sdk/2", "DEVELOPER_DIR", "/dev"),
+                lookup)
+            .getCacheKey());
+  }
+
+  private static CxxPreprocessAndCompileStep newStep(
+      ProjectFilesystem filesystem,
+      Compiler compiler,
+      String tool,
+      CxxCompilationCache.Lookup lookup) {
+    return newStep(filesystem, compiler, tool, ImmutableMap.of(), lookup);
+  }
+
+  private static CxxPreprocessAndCompileStep newStep(
+      ProjectFilesystem filesystem,
+      Compiler compiler,
+      String tool,
+      ImmutableMap<String, String> environment,
+      CxxCompilationCache.Lookup lookup) {
+    return new CxxPreprocessAndCompileStep(
+        filesystem,
+        CxxPreprocessAndCompileStep.Operation.PREPROCESS_AND_COMPILE,
+        Paths.get("output.o"),
+        Optional.of(Paths.get("output.dep")),
+        Paths.get("input.c"),
+        CxxSource.Type.C,
+        new CxxPreprocessAndCompileStep.ToolCommand(
+            ImmutableList.of(tool), ImmutableList.of(), environment),
+        HeaderPathNormalizer.empty(
+            DefaultSourcePathResolver.from(
+                new SourcePathRuleFinder(
+                    new BuildRuleResolver(
+                        TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer())))),
+        CxxPlatformUtils.DEFAULT_COMPILER_DEBUG_PATH_SANITIZER,
+        filesystem.getPath("scratchDir"),
+        true,
+        compiler,
+        Optional.empty(),
+        Optional.of(lookup));
+  }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cxx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.facebook.buck.cxx.CxxIncludeScanner.Include;
+import com.facebook.buck.cxx.CxxIncludeScanner.SearchPath;
+import com.facebook.buck.io.ExecutableFinder;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.DefaultProcessExecutor;
+import com.facebook.buck.util.ProcessExecutor;
+import com.facebook.buck.util.ProcessExecutorParams;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CxxIncludeScannerTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private CxxIncludeScanner scanner;
+  private Path root;
+
+  @Before
+  public void setUp() {
+    scanner = new CxxIncludeScanner(100);
+    root = tmp.getRoot().toAbsolutePath();
+  }
+
+  @Test
+  public void parsesIncludeDirectives() {
+    assertEquals(
+        ImmutableList.of(
+            new Include(Include.Kind.QUOTED, "a.h"),
+            new Include(Include.Kind.ANGLED, "dir/b.h"),
+            new Include(Include.Kind.ANGLED, "c.h"),
+            new Include(Include.Kind.QUOTED, "d.h"),
+            new Include(Include.Kind.ANGLED, "e.h")),
+        CxxIncludeScanner.parseIncludes(
+            "#include \"a.h\"\n"
+                + "  #  include <dir/b.h> // comment\n"
+                + "#import<c.h>\n"
+                + "/* comment */ #include_next \"d.h\"\n"
+                + "#inc\\\nlude <e.h>\n"
+                + "#define X 1\n"
+                + "int x = 1; #include \"not_a_directive.h\"\n"));
+  }
+
+  @Test
+  public void ignoresDirectivesInCommentsAndLiterals() {
+    assertEquals(
+        ImmutableList.of(new Include(Include.Kind.QUOTED, "real.h")),
+        CxxIncludeScanner.parseIncludes(
+            "// #include \"line_comment.h\" \\\n"
+                + "#include \"continued_line_comment.h\"\n"
+                + "/*\n"
+                + "#include \"block_comment.h\"\n"
+                + "*/\n"
+                + "const char* s = \"/*\";\n"
+                + "#include \"real.h\"\n"
+                + "const char* t = \"*/\";\n"
+                + "#error don't\n"
+                + "char c = '\"';\n"));
+  }
+
+  @Test
+  public void macroIncludesAreComputed() {
+    assertEquals(
+        ImmutableList.of(new Include(Include.Kind.COMPUTED, "")),
+        CxxIncludeScanner.parseIncludes("#define HEADER \"a.h\"\n#include HEADER\n"));
+  }
+
+  @Test
+  public void followsIncludesThroughSearchPaths() throws IOException {
+    Path source = write("src/main.c", "#include \"local.h\"\n#include <lib/api.h>\n");
+    Path local = write("src/local.h", "#include <missing_system_header.h>\n");
+    Path api = write("include/lib/api.h", "#include \"detail.h\"\n#include <mapped.h>\n");
+    Path detail = write("include/lib/detail.h", "#include \"api.h\"\n");
+    Path mapped = write("elsewhere/real_name.h", "");
+
+    Optional<ImmutableSet<Path>> headers =
+        scanner.scan(
+            ImmutableList.of(source),
+            ImmutableList.of(
+                SearchPath.ofHeaderMap(ImmutableMap.of("mapped.h", mapped)),
+                SearchPath.ofDirectory(root.resolve("include"))));
+
+    assertEquals(Optional.of(ImmutableSet.of(local, api, detail, mapped)), headers);
+  }
+
+  @Test
+  public void includeIsFollowedIntoEverySearchPath() throws IOException {
+    Path source = write("main.c", "#include <a.h>\n");
+    Path first = write("first/a.h", "");
+    Path second = write("second/a.h", "");
+
+    Optional<ImmutableSet<Path>> headers =
+        scanner.scan(
+            ImmutableList.of(source),
+            ImmutableList.of(
+                SearchPath.ofDirectory(root.resolve("first")),
+                SearchPath.ofDirectory(root.resolve("second"))));
+
+    assertEquals(Optional.of(ImmutableSet.of(first, second)), headers);
+  }
+
+  @Test
+  public void scanGivesUpOnComputedIncludes() throws IOException {
+    Path source = write("main.c", "#include \"a.h\"\n");
+    write("a.h", "#include HEADER\n");
+
+    assertFalse(scanner.scan(ImmutableList.of(source), ImmutableList.of()).isPresent());
+  }
+
+  @Test
+  public void headersAreFoundAsTheCompilerFindsThem() throws IOException, InterruptedException {
+    Optional<Path> gcc =
+        new ExecutableFinder().getOptionalExecutable(
+            Paths.get("gcc"), ImmutableMap.copyOf(System.getenv()));
+    assumeTrue(gcc.isPresent());
+
+    Path source =
+        write(
+            "src/main.c",
+            "#include \"util.h\"\n"
+                + "#include <lib/api.h>\n"
+                + "#include \"lib/api.h\" /* once more */\n"
+                + "int main() { return util() + api(); }\n");
+    write("src/util.h", "#pragma once\n#include \"lib/types.h\"\nint util(void);\n");
+    write("include/lib/types.h", "#pragma once\ntypedef int api_t;\n");
+    write(
+        "include/lib/api.h",
+        "#pragma once\n#include \"types.h\"\n#include <lib/../lib/version.h>\napi_t api(void);\n");
+    write("include/lib/version.h", "#pragma once\n");
+    Path depFile = root.resolve("main.d");
+
+    ProcessExecutor executor = new DefaultProcessExecutor(new TestConsole());
+    ProcessExecutor.Result result =
+        executor.launchAndExecute(
+            ProcessExecutorParams.builder()
+                .setCommand(
+                    ImmutableList.of(
+                        gcc.get().toString(),
+                        "-M",
+                        "-MF",
+                        depFile.toString(),
+                        "-I",
+                        root.resolve("include").toString(),
+                        "-I",
+                        root.resolve("src").toString(),
+                        source.toString()))
+                .setDirectory(root)
+                .build());
+    assertEquals(result.getStderr().orElse(""), 0, result.getExitCode());
+
+    ImmutableSet.Builder<Path> compilerHeaders = ImmutableSet.builder();
+    try (Reader reader = Files.newBufferedReader(depFile, StandardCharsets.UTF_8)) {
+      for (String prereq : Depfiles.parseDepfile(reader).getPrereqs()) {
+        Path header = root.resolve(prereq).normalize();
+        if (header.startsWith(root) && !header.equals(source)) {
+          compilerHeaders.add(header);
+        }
+      }
+    }
+
+    Optional<ImmutableSet<Path>> scannedHeaders =
+        scanner.scan(
+            ImmutableList.of(source),
+            ImmutableList.of(
+                SearchPath.ofDirectory(root.resolve("include")),
+                SearchPath.ofDirectory(root.resolve("src"))));
+
+    assertThat(compilerHeaders.build(), Matchers.hasSize(4));
+    assertEquals(Optional.of(compilerHeaders.build()), scannedHeaders);
+  }
+
+  @Test
+  public void closureHashChangesWithWhatMayBeIncluded() throws IOException {
+    Path source = write("src/main.c", "#include <a.h>\n");
+    Path header = write("include/a.h", "#include \"b.h\"\n");
+    write("include/unrelated.h", "");
+    ImmutableList<SearchPath> searchPaths =
+        ImmutableList.of(SearchPath.ofDirectory(root.resolve("include")));
+    Optional<HashCode> initial = scanner.hashClosure(ImmutableList.of(source), searchPaths);
+    assertTrue(initial.isPresent());
+
+    write("include/unrelated.h", "int x;\n");
+    assertEquals(initial, scanner.hashClosure(ImmutableList.of(source), searchPaths));
+
+    // A header which didn't exist before is now found.
+    write("include/b.h", "");
+    Optional<HashCode> withNewHeader = scanner.hashClosure(ImmutableList.of(source), searchPaths);
+    assertNotEquals(initial, withNewHeader);
+
+    write("include/b.h", "int y;\n");
+    assertNotEquals(withNewHeader, scanner.hashClosure(ImmutableList.of(source), searchPaths));
+
+    Files.delete(header);
+    assertEquals(
+        scanner.hashClosure(ImmutableList.of(source), ImmutableList.of()),
+        scanner.hashClosure(ImmutableList.of(source), searchPaths));
+  }
+
+  @Test
+  public void scanDoesNotDependOnWhatIsCached() throws IOException {
+    CxxIncludeScanner singleEntryScanner = new CxxIncludeScanner(1);
+    Path source = write("main.c", "#include \"a.h\"\n#include \"b.h\"\n");
+    Path first = write("a.h", "#include \"c.h\"\n");
+    Path second = write("b.h", "#include \"c.h\"\n");
+    Path third = write("c.h", "");
+
+    // a.h and b.h share a cache entry, and the others evict it.
+    assertEquals(
+        Optional.of(ImmutableSet.of(first, second, third)),
+        singleEntryScanner.scan(ImmutableList.of(source), ImmutableList.of()));
+  }
+
+  private Path write(String relativePath, String contents) throws IOException {
+    Path path = root.resolve(relativePath);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+}
@@ -19,13 +19,16 @@ package com.facebook.buck.cxx;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.cxx.platform.Compiler;
 import com.facebook.buck.cxx.platform.DefaultCompiler;
 import com.facebook.buck.cxx.platform.GccCompiler;
 import com.facebook.buck.cxx.platform.GccPreprocessor;
+import com.facebook.buck.cxx.platform.HeaderVerification;
 import com.facebook.buck.cxx.platform.Preprocessor;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.model.BuildTarget;
@@ -56,15 +59,20 @@ import com.facebook.buck.rules.coercer.FrameworkPath;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
 import com.facebook.buck.testutil.FakeFileHashCache;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import org.junit.Rule;
 import org.junit.Test;
 
 public class CxxPreprocessAndCompileTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
 
   private static class PreprocessorWithColorSupport extends GccPreprocessor {
 
@@ -586,4 +594,56 @@ public class CxxPreprocessAndCompileTest {
     Path output = CxxPreprocessAndCompile.getGcnoPath(input);
     assertEquals(Paths.get("foo/bar.m.gcno"), output);
   }
+
+  @Test
+  public void includeScannerIsOnlyUsedWhenItKnowsEverySearchPath() throws Exception {
+    SourcePathResolver pathResolver =
+        DefaultSourcePathResolver.from(
+            new SourcePathRuleFinder(
+                new BuildRuleResolver(
+                    TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer())));
+    Path source = tmp.newFile("test.cpp");
+    Files.write(source, "#include <a.h>\n".getBytes(StandardCharsets.UTF_8));
+    CxxToolFlags rawIncludeFlags =
+        CxxToolFlags.explicitBuilder().addRuleFlags(StringArg.of("-Iextra")).build();
+
+    assertTrue(
+        newScanningDelegate(pathResolver, PreprocessorFlags.builder().build())
+            .scanDependencies(source, CxxToolFlags.of())
+            .isPresent());
+    // Headers found through flags passed as is, or through frameworks, could be missed.
+    assertFalse(
+        newScanningDelegate(
+                pathResolver, PreprocessorFlags.builder().setOtherFlags(rawIncludeFlags).build())
+            .scanDependencies(source, CxxToolFlags.of())
+            .isPresent());
+    assertFalse(
+        newScanningDelegate(pathResolver, PreprocessorFlags.builder().build())
+            .scanDependencies(source, rawIncludeFlags)
+            .isPresent());
+    assertFalse(
+        newScanningDelegate(
+                pathResolver,
+                PreprocessorFlags.builder()
+                    .addFrameworkPaths(
+                        FrameworkPath.ofSourcePath(new FakeSourcePath("Foo.framework")))
+                    .build())
+            .scanDependencies(source, CxxToolFlags.of())
+            .isPresent());
+  }
+
+  private static PreprocessorDelegate newScanningDelegate(
+      SourcePathResolver pathResolver, PreprocessorFlags flags) {
+    return new PreprocessorDelegate(
+            pathResolver,
+            CxxPlatformUtils.DEFAULT_COMPILER_DEBUG_PATH_SANITIZER,
+            HeaderVerification.of(HeaderVerification.Mode.IGNORE),
+            DEFAULT_WORKING_DIR,
+            DEFAULT_PREPROCESSOR,
+            flags,
+            DEFAULT_FRAMEWORK_PATH_SEARCH_PATH_FUNCTION,
+            Optional.empty(),
+            /* leadingIncludePaths */ Optional.empty())
+        .withIncludeScanner(new CxxIncludeScanner(100));
+  }
 }
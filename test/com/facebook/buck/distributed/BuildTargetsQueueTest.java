@@ -25,6 +25,8 @@ import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.rules.TargetGraph;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import org.junit.Assert;
 import org.junit.Test;
@@ -85,6 +87,36 @@ public class BuildTargetsQueueTest {
     Assert.assertEquals(0, queue.dequeueZeroDependencyNodes(zeroDepTargets).size());
   }
 
+  @Test
+  public void testPrioritiesFollowLongestChainOfDependents() throws NoSuchBuildTargetException {
+    BuildTargetsQueue queue = createDiamondDependencyQueue();
+    Assert.assertEquals(1, queue.getPriority(TARGET_NAME));
+    Assert.assertEquals(2, queue.getPriority(TARGET_NAME + "_left"));
+    Assert.assertEquals(2, queue.getPriority(TARGET_NAME + "_right"));
+    Assert.assertEquals(3, queue.getPriority(TARGET_NAME + "_leaf"));
+    Assert.assertEquals(
+        ImmutableList.of(TARGET_NAME + "_leaf"), queue.getDependencies(TARGET_NAME + "_left"));
+    Assert.assertEquals(
+        ImmutableSet.of(TARGET_NAME + "_left", TARGET_NAME + "_right"),
+        ImmutableSet.copyOf(queue.getDependents(TARGET_NAME + "_leaf")));
+  }
+
+  @Test
+  public void testPrioritiesUseCostEstimates() {
+    BuildTargetsQueue queue =
+        BuildTargetsQueue.newQueue(
+            ImmutableMap.of(
+                "//:root", ImmutableList.of("//:slow", "//:fast"),
+                "//:slow", ImmutableList.of("//:leaf"),
+                "//:fast", ImmutableList.of("//:leaf"),
+                "//:leaf", ImmutableList.of()),
+            ImmutableMap.of("//:root", 1L, "//:slow", 100L, "//:fast", 10L, "//:leaf", 5L)::get);
+    Assert.assertEquals(1, queue.getPriority("//:root"));
+    Assert.assertEquals(101, queue.getPriority("//:slow"));
+    Assert.assertEquals(11, queue.getPriority("//:fast"));
+    Assert.assertEquals(106, queue.getPriority("//:leaf"));
+  }
+
   private static BuildRuleResolver createSimpleResolver() throws NoSuchBuildTargetException {
     BuildRuleResolver resolver =
         new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
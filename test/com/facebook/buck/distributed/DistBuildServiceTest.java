@@ -39,6 +39,8 @@ import com.facebook.buck.distributed.thrift.FetchBuildSlaveFinishedStatsRequest;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveFinishedStatsResponse;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveStatusRequest;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveStatusResponse;
+import com.facebook.buck.distributed.thrift.FetchSourceFilesResponse;
+import com.facebook.buck.distributed.thrift.FileInfo;
 import com.facebook.buck.distributed.thrift.FrontendRequest;
 import com.facebook.buck.distributed.thrift.FrontendRequestType;
 import com.facebook.buck.distributed.thrift.FrontendResponse;
@@ -58,6 +60,7 @@ import com.facebook.buck.model.Pair;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -150,6 +153,34 @@ public class DistBuildServiceTest {
     Assert.assertTrue(buildJobState.equals(sentState));
   }
 
+  @Test
+  public void canFetchSourceFilesInOneRequest() throws IOException {
+    Capture<FrontendRequest> request = EasyMock.newCapture();
+    FetchSourceFilesResponse fetchResponse = new FetchSourceFilesResponse();
+    fetchResponse.addToFiles(
+        new FileInfo().setContentHash("aaaa").setContent("first".getBytes(StandardCharsets.UTF_8)));
+    fetchResponse.addToFiles(
+        new FileInfo().setContentHash("bbbb").setContent("second".getBytes(StandardCharsets.UTF_8)));
+    FrontendResponse response = new FrontendResponse();
+    response.setType(FrontendRequestType.FETCH_SRC_FILES);
+    response.setWasSuccessful(true);
+    response.setFetchSourceFilesResponse(fetchResponse);
+    EasyMock.expect(frontendService.makeRequest(EasyMock.capture(request)))
+        .andReturn(response)
+        .once();
+    EasyMock.replay(frontendService);
+
+    ImmutableMap<String, byte[]> contents =
+        distBuildService.fetchSourceFiles(ImmutableList.of("aaaa", "bbbb"));
+
+    Assert.assertEquals(
+        ImmutableList.of("aaaa", "bbbb"),
+        request.getValue().getFetchSourceFilesRequest().getContentHashes());
+    Assert.assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), contents.get("aaaa"));
+    Assert.assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), contents.get("bbbb"));
+    EasyMock.verify(frontendService);
+  }
+
   @Test
   public void canUploadFiles() throws Exception {
     final List<Boolean> fileExistence = Arrays.asList(true, false, true);
@@ -69,4 +69,34 @@ public class LocalFsContentsProviderTest {
     Assert.assertTrue(Files.isRegularFile(anotherAbsPath));
     Assert.assertThat(FILE_CONTENTS, Matchers.equalTo(Files.readAllBytes(anotherAbsPath)));
   }
+
+  @Test
+  public void testMaterializedFileIsLinkedToCachedFile() throws InterruptedException, IOException {
+    LocalFsContentsProvider provider = new LocalFsContentsProvider(cacheRootDir);
+    Files.write(targetAbsPath, FILE_CONTENTS);
+    provider.writeFileAndGetInputStream(entry, targetAbsPath);
+    Assert.assertTrue(provider.contains(entry));
+
+    // Replaces what preloading left there.
+    Path anotherAbsPath = cacheRootDir.resolve("dir/slicespin.file.txt");
+    Files.createDirectories(anotherAbsPath.getParent());
+    Files.write(anotherAbsPath, new byte[0]);
+    Assert.assertTrue(provider.materializeFileContents(entry, anotherAbsPath));
+    Assert.assertThat(FILE_CONTENTS, Matchers.equalTo(Files.readAllBytes(anotherAbsPath)));
+    Assert.assertTrue(Files.isSameFile(targetAbsPath, anotherAbsPath));
+  }
+
+  @Test
+  public void testExecutableFilesAreCachedApart() throws InterruptedException, IOException {
+    LocalFsContentsProvider provider = new LocalFsContentsProvider(cacheRootDir);
+    Files.write(targetAbsPath, FILE_CONTENTS);
+    provider.writeFileAndGetInputStream(entry, targetAbsPath);
+
+    BuildJobStateFileHashEntry executableEntry = entry.deepCopy();
+    executableEntry.setIsExecutable(true);
+    Assert.assertFalse(provider.contains(executableEntry));
+    Assert.assertFalse(
+        provider.materializeFileContents(
+            executableEntry, cacheRootDir.resolve("slicespin.file.txt")));
+  }
 }
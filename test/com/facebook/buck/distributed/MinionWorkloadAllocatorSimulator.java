@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.MinionWorkloadAllocator.AllocationPolicy;
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Replays the graph of a distributed build against a {@link MinionWorkloadAllocator}, so that
+ * allocation policies can be compared without running a build.
+ *
+ * <p>Each Minion builds the targets of a workload at the same time, and asks for more work once
+ * all of them are done. Before building a target, a Minion fetches the outputs of those of its
+ * dependencies which it doesn't hold yet, i.e. which it neither built nor fetched before.
+ *
+ * <p>Run from the command line with a recorded graph, a JSON object from each target to its
+ * dependencies and how long it took to build:
+ *
+ * <pre>
+ *   {"//app:bin": {"deps": ["//lib:lib"], "durationMillis": 5200}, "//lib:lib": {...}, ...}
+ * </pre>
+ *
+ * followed by the number of Minions, the number of targets per workload, and how long fetching
+ * the outputs of a target takes, in milliseconds.
+ */
+public class MinionWorkloadAllocatorSimulator {
+
+  private final ImmutableMap<String, ImmutableList<String>> dependencies;
+  private final ImmutableMap<String, Long> durations;
+
+  public MinionWorkloadAllocatorSimulator(
+      ImmutableMap<String, ImmutableList<String>> dependencies,
+      ImmutableMap<String, Long> durations) {
+    Preconditions.checkArgument(dependencies.keySet().equals(durations.keySet()));
+    this.dependencies = dependencies;
+    this.durations = durations;
+  }
+
+  /**
+   * @param costEstimates how the queue estimates the cost of each target. Passing the actual
+   *     durations simulates perfect estimates.
+   */
+  public Result simulate(
+      Map<String, Long> costEstimates,
+      AllocationPolicy policy,
+      int minionCount,
+      int maxTargetsPerMinion,
+      long fetchMillis) {
+    BuildTargetsQueue queue =
+        BuildTargetsQueue.newQueue(
+            dependencies, target -> Preconditions.checkNotNull(costEstimates.get(target)));
+    MinionWorkloadAllocator allocator =
+        new MinionWorkloadAllocator(queue, maxTargetsPerMinion, policy);
+
+    List<String> idleMinions = new ArrayList<>();
+    Map<String, Set<String>> heldOutputs = new HashMap<>();
+    for (int i = 0; i < minionCount; ++i) {
+      String minionId = "minion" + i;
+      idleMinions.add(minionId);
+      heldOutputs.put(minionId, new HashSet<>());
+    }
+
+    PriorityQueue<FinishedWorkload> runningWorkloads =
+        new PriorityQueue<>((a, b) -> Long.compare(a.finishMillis, b.finishMillis));
+    long nowMillis = 0;
+    long fetchedOutputs = 0;
+    while (true) {
+      // Idle Minions ask for work each time another Minion finishes, like they would when retrying.
+      for (String minionId : new ArrayList<>(idleMinions)) {
+        ImmutableList<String> targets = allocator.getTargetsToBuild(minionId);
+        if (targets.isEmpty()) {
+          continue;
+        }
+        idleMinions.remove(minionId);
+        Set<String> held = heldOutputs.get(minionId);
+        long workloadMillis = 0;
+        for (String target : targets) {
+          long targetMillis = Preconditions.checkNotNull(durations.get(target));
+          for (String dependency : Preconditions.checkNotNull(dependencies.get(target))) {
+            if (held.add(dependency)) {
+              ++fetchedOutputs;
+              targetMillis += fetchMillis;
+            }
+          }
+          workloadMillis = Math.max(workloadMillis, targetMillis);
+        }
+        held.addAll(targets);
+        runningWorkloads.add(new FinishedWorkload(minionId, nowMillis + workloadMillis));
+      }
+
+      if (runningWorkloads.isEmpty()) {
+        Preconditions.checkState(
+            allocator.isBuildFinished(), "No Minion is building, but the build isn't finished.");
+        return new Result(nowMillis, fetchedOutputs);
+      }
+      FinishedWorkload finished = runningWorkloads.remove();
+      nowMillis = finished.finishMillis;
+      allocator.finishedBuildingTargets(finished.minionId);
+      idleMinions.add(finished.minionId);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 4) {
+      System.err.println(
+          "Usage: MinionWorkloadAllocatorSimulator "
+              + "<graph.json> <minions> <targets per minion> <fetch millis>");
+      System.exit(1);
+    }
+    Map<String, RecordedTarget> recordedTargets =
+        ObjectMappers.readValue(
+            Paths.get(args[0]), new TypeReference<Map<String, RecordedTarget>>() {});
+    ImmutableMap.Builder<String, ImmutableList<String>> dependencies = ImmutableMap.builder();
+    ImmutableMap.Builder<String, Long> durations = ImmutableMap.builder();
+    for (Map.Entry<String, RecordedTarget> entry : recordedTargets.entrySet()) {
+      dependencies.put(entry.getKey(), ImmutableList.copyOf(entry.getValue().deps));
+      durations.put(entry.getKey(), entry.getValue().durationMillis);
+    }
+    MinionWorkloadAllocatorSimulator simulator =
+        new MinionWorkloadAllocatorSimulator(dependencies.build(), durations.build());
+
+    int minionCount = Integer.parseInt(args[1]);
+    int maxTargetsPerMinion = Integer.parseInt(args[2]);
+    long fetchMillis = Long.parseLong(args[3]);
+    for (AllocationPolicy policy : AllocationPolicy.values()) {
+      Result result =
+          simulator.simulate(
+              simulator.durations, policy, minionCount, maxTargetsPerMinion, fetchMillis);
+      System.out.println(
+          String.format(
+              "%-28s build took %8d ms, fetched %6d outputs",
+              policy, result.getBuildMillis(), result.getFetchedOutputs()));
+    }
+  }
+
+  /** Outcome of a simulated build. */
+  public static class Result {
+    private final long buildMillis;
+    private final long fetchedOutputs;
+
+    private Result(long buildMillis, long fetchedOutputs) {
+      this.buildMillis = buildMillis;
+      this.fetchedOutputs = fetchedOutputs;
+    }
+
+    /** @return how long the build took from start to finish. */
+    public long getBuildMillis() {
+      return buildMillis;
+    }
+
+    /** @return how many times a Minion fetched the outputs of a target built by another. */
+    public long getFetchedOutputs() {
+      return fetchedOutputs;
+    }
+  }
+
+  private static class FinishedWorkload {
+    private final String minionId;
+    private final long finishMillis;
+
+    private FinishedWorkload(String minionId, long finishMillis) {
+      this.minionId = minionId;
+      this.finishMillis = finishMillis;
+    }
+  }
+
+  private static class RecordedTarget {
+    @JsonProperty List<String> deps = ImmutableList.of();
+    @JsonProperty long durationMillis;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.MinionWorkloadAllocator.AllocationPolicy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MinionWorkloadAllocatorSimulatorTest {
+
+  private static final int MINIONS = 3;
+  private static final int TARGETS_PER_MINION = 2;
+  private static final long FETCH_MILLIS = 5;
+
+  private MinionWorkloadAllocatorSimulator simulator;
+  private ImmutableMap<String, Long> durations;
+
+  @Before
+  public void setUp() {
+    // A long chain, a few short chains and many independent targets, all needed by one binary.
+    ImmutableMap.Builder<String, ImmutableList<String>> dependencies = ImmutableMap.builder();
+    ImmutableMap.Builder<String, Long> durations = ImmutableMap.builder();
+    List<String> binaryDependencies = new ArrayList<>();
+    binaryDependencies.add(addChain(dependencies, durations, "//long:", 15));
+    for (int i = 0; i < 6; ++i) {
+      binaryDependencies.add(addChain(dependencies, durations, "//short" + i + ":", 4));
+    }
+    for (int i = 0; i < 30; ++i) {
+      binaryDependencies.add(addChain(dependencies, durations, "//independent" + i + ":", 1));
+    }
+    dependencies.put("//app:bin", ImmutableList.copyOf(binaryDependencies));
+    durations.put("//app:bin", 10L);
+
+    this.durations = durations.build();
+    this.simulator = new MinionWorkloadAllocatorSimulator(dependencies.build(), this.durations);
+  }
+
+  @Test
+  public void criticalPathShortensBuild() {
+    MinionWorkloadAllocatorSimulator.Result firstComeFirstServed =
+        simulate(AllocationPolicy.FIRST_COME_FIRST_SERVED);
+    MinionWorkloadAllocatorSimulator.Result criticalPath =
+        simulate(AllocationPolicy.CRITICAL_PATH);
+    Assert.assertTrue(criticalPath.getBuildMillis() < firstComeFirstServed.getBuildMillis());
+  }
+
+  @Test
+  public void localityAvoidsFetches() {
+    MinionWorkloadAllocatorSimulator.Result criticalPath =
+        simulate(AllocationPolicy.CRITICAL_PATH);
+    MinionWorkloadAllocatorSimulator.Result locality =
+        simulate(AllocationPolicy.CRITICAL_PATH_AND_LOCALITY);
+    Assert.assertTrue(locality.getFetchedOutputs() < criticalPath.getFetchedOutputs());
+    Assert.assertTrue(locality.getBuildMillis() <= criticalPath.getBuildMillis());
+  }
+
+  private MinionWorkloadAllocatorSimulator.Result simulate(AllocationPolicy policy) {
+    return simulator.simulate(durations, policy, MINIONS, TARGETS_PER_MINION, FETCH_MILLIS);
+  }
+
+  /** @return the last target of the chain. */
+  private static String addChain(
+      ImmutableMap.Builder<String, ImmutableList<String>> dependencies,
+      ImmutableMap.Builder<String, Long> durations,
+      String prefix,
+      int length) {
+    String previous = null;
+    for (int i = 0; i < length; ++i) {
+      String target = prefix + i;
+      dependencies.put(
+          target, previous == null ? ImmutableList.of() : ImmutableList.of(previous));
+      durations.put(target, 10L);
+      previous = target;
+    }
+    return previous;
+  }
+}
@@ -21,6 +21,7 @@ import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -28,6 +29,7 @@ import org.junit.Test;
 public class MinionWorkloadAllocatorTest {
 
   private static final String MINION_ONE = "Super minion 1";
+  private static final String MINION_TWO = "Super minion 2";
 
   private BuildTargetsQueue queue;
   private BuildTarget target;
@@ -64,4 +66,63 @@ public class MinionWorkloadAllocatorTest {
 
     Assert.assertEquals(0, allocator.getTargetsToBuild(MINION_ONE).size());
   }
+
+  @Test
+  public void testCriticalPathTargetsGoFirst() {
+    BuildTargetsQueue queue =
+        BuildTargetsQueue.newQueue(
+            ImmutableMap.of(
+                "//:short", ImmutableList.of(),
+                "//:long", ImmutableList.of(),
+                "//:long_dependent", ImmutableList.of("//:long")),
+            target -> 1);
+    MinionWorkloadAllocator allocator =
+        new MinionWorkloadAllocator(
+            queue, 1, MinionWorkloadAllocator.AllocationPolicy.CRITICAL_PATH);
+
+    Assert.assertEquals(ImmutableList.of("//:long"), allocator.getTargetsToBuild(MINION_ONE));
+    Assert.assertEquals(ImmutableList.of("//:short"), allocator.getTargetsToBuild(MINION_TWO));
+  }
+
+  @Test
+  public void testChainedTargetIsKeptForMinionWhichBuiltItsDependency() {
+    BuildTargetsQueue queue =
+        BuildTargetsQueue.newQueue(
+            ImmutableMap.of(
+                "//:a", ImmutableList.of(),
+                "//:a_dependent", ImmutableList.of("//:a"),
+                "//:b", ImmutableList.of(),
+                "//:b_dependent", ImmutableList.of("//:b"),
+                "//:c", ImmutableList.of()),
+            target ->
+                ImmutableMap.of("//:a", 3L, "//:a_dependent", 5L, "//:b", 2L, "//:b_dependent", 5L)
+                    .getOrDefault(target, 1L));
+    MinionWorkloadAllocator allocator = new MinionWorkloadAllocator(queue, 1);
+
+    Assert.assertEquals(ImmutableList.of("//:a"), allocator.getTargetsToBuild(MINION_ONE));
+    Assert.assertEquals(ImmutableList.of("//:b"), allocator.getTargetsToBuild(MINION_TWO));
+    allocator.finishedBuildingTargets(MINION_ONE);
+    allocator.finishedBuildingTargets(MINION_TWO);
+
+    // Both dependents have a higher priority than //:c, but each is kept for its Minion.
+    Assert.assertEquals(
+        ImmutableList.of("//:b_dependent"), allocator.getTargetsToBuild(MINION_TWO));
+    Assert.assertEquals(
+        ImmutableList.of("//:a_dependent"), allocator.getTargetsToBuild(MINION_ONE));
+  }
+
+  @Test
+  public void testChainedTargetIsGivenAwayRatherThanLeavingMinionIdle() {
+    BuildTargetsQueue queue =
+        BuildTargetsQueue.newQueue(
+            ImmutableMap.of(
+                "//:a", ImmutableList.of(), "//:a_dependent", ImmutableList.of("//:a")),
+            target -> 1);
+    MinionWorkloadAllocator allocator = new MinionWorkloadAllocator(queue, 1);
+
+    Assert.assertEquals(ImmutableList.of("//:a"), allocator.getTargetsToBuild(MINION_ONE));
+    allocator.finishedBuildingTargets(MINION_ONE);
+    Assert.assertEquals(
+        ImmutableList.of("//:a_dependent"), allocator.getTargetsToBuild(MINION_TWO));
+  }
 }
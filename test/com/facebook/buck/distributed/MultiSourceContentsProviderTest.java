@@ -18,6 +18,8 @@ package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -78,4 +80,33 @@ public class MultiSourceContentsProviderTest {
     provider.materializeFileContents(entry, targetAbsPath);
     EasyMock.verify(mockProvider);
   }
+
+  @Test
+  public void onlyFilesMissingLocallyArePrefetchedFromServer()
+      throws InterruptedException, IOException {
+    Path cacheDir = tempDir.newFolder("cache").toPath();
+    LocalFsContentsProvider localFsProvider = new LocalFsContentsProvider(cacheDir);
+    BuildJobStateFileHashEntry cachedEntry = new BuildJobStateFileHashEntry();
+    cachedEntry.setHashCode("1234");
+    Path cachedAbsPath = tempDir.getRoot().toPath().resolve("cached.txt");
+    Files.write(cachedAbsPath, FILE_CONTENTS);
+    localFsProvider.writeFileAndGetInputStream(cachedEntry, cachedAbsPath);
+
+    BuildJobStateFileHashEntry inlineEntry = new BuildJobStateFileHashEntry();
+    inlineEntry.setHashCode("5678");
+    inlineEntry.setContents(FILE_CONTENTS);
+    BuildJobStateFileHashEntry remoteEntry = new BuildJobStateFileHashEntry();
+    remoteEntry.setHashCode("9abc");
+
+    EasyMock.expect(mockProvider.prefetchFileContents(ImmutableList.of(remoteEntry)))
+        .andReturn(Futures.immediateFuture(null))
+        .once();
+    EasyMock.replay(mockProvider);
+
+    MultiSourceContentsProvider provider =
+        new MultiSourceContentsProvider(
+            mockProvider, new FileMaterializationStatsTracker(), Optional.of(cacheDir));
+    provider.prefetchFileContents(ImmutableList.of(cachedEntry, inlineEntry, remoteEntry));
+    EasyMock.verify(mockProvider);
+  }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.easymock.EasyMock;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ServerContentsProviderTest {
+
+  private static final byte[] FIRST_CONTENTS = "first".getBytes(Charsets.UTF_8);
+  private static final byte[] SECOND_CONTENTS = "second".getBytes(Charsets.UTF_8);
+
+  @Rule public TemporaryFolder tempDir = new TemporaryFolder();
+
+  private DistBuildService service;
+  private LocalFsContentsProvider localFsProvider;
+  private ServerContentsProvider provider;
+
+  @Before
+  public void setUp() throws InterruptedException, IOException {
+    service = EasyMock.createMock(DistBuildService.class);
+    localFsProvider = new LocalFsContentsProvider(tempDir.newFolder("cache").toPath());
+    provider =
+        new ServerContentsProvider(
+            service, MoreExecutors.newDirectExecutorService(), Optional.of(localFsProvider));
+  }
+
+  @Test
+  public void prefetchedFilesAreFetchedInOneRequest() throws Exception {
+    EasyMock.expect(service.fetchSourceFiles(ImmutableList.of("aaaa", "bbbb")))
+        .andReturn(ImmutableMap.of("aaaa", FIRST_CONTENTS, "bbbb", SECOND_CONTENTS))
+        .once();
+    EasyMock.replay(service);
+
+    BuildJobStateFileHashEntry first = newEntry("aaaa");
+    BuildJobStateFileHashEntry second = newEntry("bbbb");
+    // The same contents at another path are only fetched once.
+    provider.prefetchFileContents(ImmutableList.of(first, second, newEntry("aaaa"))).get();
+    // The contents are kept in the local source file cache rather than in memory.
+    Assert.assertTrue(localFsProvider.contains(first));
+    Assert.assertTrue(localFsProvider.contains(second));
+
+    Path firstAbsPath = tempDir.getRoot().toPath().resolve("first.txt");
+    Path secondAbsPath = tempDir.getRoot().toPath().resolve("dir/second.txt");
+    Assert.assertTrue(provider.materializeFileContents(first, firstAbsPath));
+    Assert.assertTrue(provider.materializeFileContents(second, secondAbsPath));
+    Assert.assertThat(Files.readAllBytes(firstAbsPath), Matchers.equalTo(FIRST_CONTENTS));
+    Assert.assertThat(Files.readAllBytes(secondAbsPath), Matchers.equalTo(SECOND_CONTENTS));
+    EasyMock.verify(service);
+  }
+
+  @Test
+  public void fileIsFetchedOnItsOwnWhenPrefetchingFailed() throws Exception {
+    EasyMock.expect(service.fetchSourceFiles(ImmutableList.of("aaaa")))
+        .andThrow(new IOException("Frontend unavailable."))
+        .once();
+    EasyMock.expect(service.fetchSourceFile("aaaa"))
+        .andReturn(new ByteArrayInputStream(FIRST_CONTENTS))
+        .once();
+    EasyMock.replay(service);
+
+    BuildJobStateFileHashEntry entry = newEntry("aaaa");
+    provider.prefetchFileContents(ImmutableList.of(entry)).get();
+
+    Path absPath = tempDir.getRoot().toPath().resolve("first.txt");
+    Assert.assertTrue(provider.materializeFileContents(entry, absPath));
+    Assert.assertThat(Files.readAllBytes(absPath), Matchers.equalTo(FIRST_CONTENTS));
+    EasyMock.verify(service);
+  }
+
+  @Test
+  public void nothingIsPrefetchedWithoutALocalSourceFileCache() throws Exception {
+    EasyMock.expect(service.fetchSourceFile("aaaa"))
+        .andReturn(new ByteArrayInputStream(FIRST_CONTENTS))
+        .once();
+    EasyMock.replay(service);
+    provider =
+        new ServerContentsProvider(
+            service, MoreExecutors.newDirectExecutorService(), Optional.empty());
+
+    BuildJobStateFileHashEntry entry = newEntry("aaaa");
+    provider.prefetchFileContents(ImmutableList.of(entry)).get();
+
+    Path absPath = tempDir.getRoot().toPath().resolve("first.txt");
+    Assert.assertTrue(provider.materializeFileContents(entry, absPath));
+    Assert.assertThat(Files.readAllBytes(absPath), Matchers.equalTo(FIRST_CONTENTS));
+    EasyMock.verify(service);
+  }
+
+  private static BuildJobStateFileHashEntry newEntry(String hashCode) {
+    BuildJobStateFileHashEntry entry = new BuildJobStateFileHashEntry();
+    entry.setHashCode(hashCode);
+    return entry;
+  }
+}
@@ -21,8 +21,11 @@ import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -72,4 +75,9 @@ public class FakeFileContentsProvider implements FileContentsProvider {
         filesystem.getPathRelativeToProjectRoot(targetAbsPath).get());
     return true;
   }
+
+  @Override
+  public ListenableFuture<?> prefetchFileContents(Collection<BuildJobStateFileHashEntry> entries) {
+    return Futures.immediateFuture(null);
+  }
 }
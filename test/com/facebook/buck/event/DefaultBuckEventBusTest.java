@@ -20,12 +20,18 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -115,6 +121,112 @@ public class DefaultBuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void eachListenerGetsItsEventsInOrder() throws Exception {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    List<RecordingSubscriber> subscribers = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      RecordingSubscriber subscriber = new RecordingSubscriber();
+      subscribers.add(subscriber);
+      eb.register(subscriber);
+    }
+    List<TestEvent> events = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      TestEvent event = new TestEvent();
+      events.add(event);
+      eb.post(event);
+    }
+    eb.close();
+    for (RecordingSubscriber subscriber : subscribers) {
+      assertEquals(events, subscriber.events);
+    }
+  }
+
+  @Test
+  public void slowListenersDoNotHoldUpOthers() throws Exception {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), true, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    CountDownLatch slowSubscriberReleased = new CountDownLatch(1);
+    List<TestEvent> blockedOn = Collections.synchronizedList(new ArrayList<>());
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void block(TestEvent event) throws InterruptedException {
+            blockedOn.add(event);
+            slowSubscriberReleased.await();
+          }
+        });
+    CountDownLatch delivered = new CountDownLatch(1);
+    List<TestEvent> deliveredEvents = Collections.synchronizedList(new ArrayList<>());
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void deliver(TestEvent event) {
+            deliveredEvents.add(event);
+            delivered.countDown();
+          }
+        });
+    TestEvent event = new TestEvent();
+    eb.post(event);
+    try {
+      assertTrue(delivered.await(timeoutMillis, TimeUnit.MILLISECONDS));
+      assertEquals(ImmutableList.of(event), deliveredEvents);
+    } finally {
+      slowSubscriberReleased.countDown();
+      eb.close();
+    }
+    assertEquals(ImmutableList.of(event), blockedOn);
+  }
+
+  @Test
+  public void subscribersGetEventsOfSubtypes() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), false, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    List<BuckEvent> events = new ArrayList<>();
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void any(BuckEvent event) {
+            events.add(event);
+          }
+        });
+    TestEvent event = new TestEvent();
+    eb.post(event);
+    eb.close();
+    assertEquals(ImmutableList.of(event), events);
+  }
+
+  @Test
+  public void eventsPostedByListenersComeAfterTheEventTheyHandleForEveryListener()
+      throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(), false, BuckEventBusForTests.BUILD_ID_FOR_TEST, timeoutMillis);
+    TestEvent first = new TestEvent();
+    TestEvent second = new TestEvent();
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void repost(TestEvent event) {
+            if (event == first) {
+              eb.post(second);
+            }
+          }
+        });
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    eb.register(subscriber);
+    eb.post(first);
+    eb.close();
+    assertEquals(ImmutableList.of(first, second), subscriber.events);
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
@@ -141,6 +253,15 @@ public class DefaultBuckEventBusTest {
     }
   }
 
+  private static class RecordingSubscriber {
+    private final List<TestEvent> events = new ArrayList<>();
+
+    @Subscribe
+    public void record(TestEvent event) {
+      events.add(event);
+    }
+  }
+
   private static class TestEvent extends AbstractBuckEvent {
 
     public TestEvent() {
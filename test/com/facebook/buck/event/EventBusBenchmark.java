@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.timing.DefaultClock;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.eventbus.Subscribe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how many events per second get from threads posting them to all the listeners of a
+ * {@link DefaultBuckEventBus}, one of which is much slower than the others, as a build's trace
+ * writing listeners are.
+ */
+public class EventBusBenchmark {
+  @Param({"1", "4", "16"})
+  private int postingThreads = 4;
+
+  @Param({"1", "8"})
+  private int listeners = 8;
+
+  /** Time the slow listener spends on each event. */
+  @Param({"0", "1000"})
+  private int slowListenerNanos = 1000;
+
+  private ExecutorService executor;
+  private List<CountingListener> countingListeners;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDownTest() {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    executor = Executors.newFixedThreadPool(postingThreads);
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void everyListenerGetsEveryEvent() throws Exception {
+    postEvents(10000);
+    for (CountingListener listener : countingListeners) {
+      assertEquals(postingThreads * 10000L, listener.count.get());
+    }
+  }
+
+  @Benchmark
+  public void postEvents(int reps) throws Exception {
+    DefaultBuckEventBus eventBus =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    countingListeners = new ArrayList<>();
+    for (int i = 0; i < listeners; i++) {
+      CountingListener listener =
+          i == 0 ? new CountingListener(slowListenerNanos) : new CountingListener(0);
+      countingListeners.add(listener);
+      eventBus.register(listener);
+    }
+
+    List<Future<?>> posters = new ArrayList<>();
+    for (int thread = 0; thread < postingThreads; thread++) {
+      posters.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < reps; i++) {
+                  eventBus.post(new BenchmarkEvent());
+                }
+              }));
+    }
+    for (Future<?> poster : posters) {
+      poster.get();
+    }
+    // Waits for the events to be delivered.
+    eventBus.close();
+  }
+
+  private static class CountingListener {
+    private final long nanosPerEvent;
+    private final AtomicLong count = new AtomicLong();
+
+    private CountingListener(long nanosPerEvent) {
+      this.nanosPerEvent = nanosPerEvent;
+    }
+
+    @Subscribe
+    public void count(BenchmarkEvent event) {
+      long end = System.nanoTime() + nanosPerEvent;
+      while (System.nanoTime() < end) {
+        // Busy, as a listener formatting and writing out the event is.
+      }
+      count.incrementAndGet();
+    }
+  }
+
+  private static class BenchmarkEvent extends AbstractBuckEvent {
+    private BenchmarkEvent() {
+      super(EventKey.unique());
+    }
+
+    @Override
+    protected String getValueString() {
+      return "";
+    }
+
+    @Override
+    public String getEventName() {
+      return "BenchmarkEvent";
+    }
+  }
+}
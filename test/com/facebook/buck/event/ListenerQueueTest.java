@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ListenerQueueTest {
+
+  @Test
+  public void listenerIsWaitedForAgainOnceItCatchesUp() {
+    List<String> delivered = new ArrayList<>();
+    List<Runnable> scheduled = new ArrayList<>();
+    ListenerQueue queue =
+        new ListenerQueue(
+            new Object() {
+              @Subscribe
+              public void record(String event) {
+                delivered.add(event);
+              }
+            },
+            scheduled::add,
+            1,
+            () -> {});
+    ImmutableList<MethodHandle> handlers = queue.getHandlers(String.class);
+
+    // Nothing delivers the first event, so the poster of the second one gives up waiting.
+    queue.enqueue("first", handlers);
+    queue.enqueue("second", handlers);
+    assertTrue(queue.isStuck());
+
+    scheduled.remove(0).run();
+    assertEquals(ImmutableList.of("first", "second"), delivered);
+    assertFalse(queue.isStuck());
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AbstractParallelBottomUpTraversalTest {
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void nodesAreVisitedOnceAndAfterAllTheirDependencies() {
+    Random random = new Random(42);
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    for (int i = 0; i < 5000; i++) {
+      mutableGraph.addNode(i);
+      for (int j = i == 0 ? 0 : random.nextInt(5); j > 0; j--) {
+        mutableGraph.addEdge(i, random.nextInt(i));
+      }
+    }
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(mutableGraph);
+
+    // Maps each visited node to the longest chain of dependencies below it, which can only be
+    // computed if all of its dependencies have been visited first.
+    Map<Integer, Integer> heights = new ConcurrentHashMap<>();
+    new AbstractParallelBottomUpTraversal<Integer>(graph, pool) {
+      @Override
+      public void visit(Integer node) {
+        int height = 0;
+        for (Integer dep : graph.getOutgoingNodesFor(node)) {
+          Integer depHeight = heights.get(dep);
+          assertTrue(String.format("%d visited before %d", node, dep), depHeight != null);
+          height = Math.max(height, depHeight + 1);
+        }
+        assertEquals(null, heights.put(node, height));
+      }
+    }.traverse();
+
+    assertEquals(graph.getNodes(), heights.keySet());
+  }
+
+  @Test
+  public void emptyGraphIsTraversed() {
+    new AbstractParallelBottomUpTraversal<String>(
+        new DirectedAcyclicGraph<>(new MutableDirectedGraph<>()), pool) {
+      @Override
+      public void visit(String node) {
+        throw new AssertionError();
+      }
+    }.traverse();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void exceptionsFromVisitArePropagated() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    new AbstractParallelBottomUpTraversal<String>(new DirectedAcyclicGraph<>(mutableGraph), pool) {
+      @Override
+      public void visit(String node) {
+        if (node.equals("B")) {
+          throw new IllegalArgumentException();
+        }
+      }
+    }.traverse();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cyclesAreDetected() {
+    MutableDirectedGraph<String> cyclicGraph = new MutableDirectedGraph<>();
+    cyclicGraph.addEdge("A", "B");
+    cyclicGraph.addEdge("B", "C");
+    cyclicGraph.addEdge("C", "B");
+    new AbstractParallelBottomUpTraversal<String>(cyclicGraph, pool) {
+      @Override
+      public void visit(String node) {}
+    }.traverse();
+  }
+}
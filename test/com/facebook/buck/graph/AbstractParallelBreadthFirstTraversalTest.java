@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AbstractParallelBreadthFirstTraversalTest {
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void visitsEveryReachableNodeOnceAndLevelByLevel() {
+    // Node i depends on 2i + 1, 2i + 2 and i + 1, so most nodes are reachable through several paths
+    // of different lengths.
+    int nodeCount = 5000;
+    Map<Integer, AtomicInteger> visitCounts = new ConcurrentHashMap<>();
+    Map<Integer, Integer> visitOrder = new ConcurrentHashMap<>();
+    AtomicInteger counter = new AtomicInteger();
+
+    new AbstractParallelBreadthFirstTraversal<Integer>(pool, ImmutableList.of(0)) {
+      @Override
+      public Iterable<Integer> visit(Integer node) {
+        visitCounts.computeIfAbsent(node, n -> new AtomicInteger()).incrementAndGet();
+        visitOrder.put(node, counter.getAndIncrement());
+        return getDeps(node, nodeCount);
+      }
+    }.start();
+
+    assertEquals(nodeCount, visitCounts.size());
+    for (AtomicInteger count : visitCounts.values()) {
+      assertEquals(1, count.get());
+    }
+
+    // Every node of a level must have been visited before any node of the next one.
+    Map<Integer, Integer> depths = new HashMap<>();
+    AbstractBreadthFirstTraversal.<Integer>traverse(
+        0,
+        node -> {
+          int depth = depths.computeIfAbsent(node, n -> 0);
+          for (int dep : getDeps(node, nodeCount)) {
+            depths.putIfAbsent(dep, depth + 1);
+          }
+          return getDeps(node, nodeCount);
+        });
+    int[] lastVisitOfDepth = new int[nodeCount];
+    int[] firstVisitOfDepth = new int[nodeCount];
+    Arrays.fill(firstVisitOfDepth, Integer.MAX_VALUE);
+    for (Map.Entry<Integer, Integer> entry : depths.entrySet()) {
+      int depth = entry.getValue();
+      int order = visitOrder.get(entry.getKey());
+      lastVisitOfDepth[depth] = Math.max(lastVisitOfDepth[depth], order);
+      firstVisitOfDepth[depth] = Math.min(firstVisitOfDepth[depth], order);
+    }
+    for (int depth = 1; firstVisitOfDepth[depth] != Integer.MAX_VALUE; depth++) {
+      assertTrue(lastVisitOfDepth[depth - 1] < firstVisitOfDepth[depth]);
+    }
+  }
+
+  @Test
+  public void returnsNodesInTheOrderOfASequentialTraversal() {
+    int nodeCount = 5000;
+    ImmutableList.Builder<Integer> sequentialOrder = ImmutableList.builder();
+    AbstractBreadthFirstTraversal.<Integer>traverse(
+        0,
+        node -> {
+          sequentialOrder.add(node);
+          return getDeps(node, nodeCount);
+        });
+
+    assertEquals(
+        sequentialOrder.build(),
+        AbstractParallelBreadthFirstTraversal.<Integer>traverse(
+            pool, ImmutableList.of(0), node -> getDeps(node, nodeCount)));
+  }
+
+  @Test
+  public void callerVisitsNodesTheExecutorRejects() {
+    int nodeCount = 5000;
+    assertEquals(
+        nodeCount,
+        AbstractParallelBreadthFirstTraversal.<Integer>traverse(
+                runnable -> {
+                  throw new RejectedExecutionException();
+                },
+                ImmutableList.of(0),
+                node -> getDeps(node, nodeCount))
+            .size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void exceptionsFromVisitArePropagated() {
+    AbstractParallelBreadthFirstTraversal.<Integer>traverse(
+        pool,
+        ImmutableList.of(0),
+        node -> {
+          if (node == 100) {
+            throw new IllegalArgumentException();
+          }
+          return ImmutableSet.of(node + 1);
+        });
+  }
+
+  private static ImmutableSet<Integer> getDeps(int node, int nodeCount) {
+    ImmutableSet.Builder<Integer> deps = ImmutableSet.builder();
+    for (int dep : new int[] {2 * node + 1, 2 * node + 2, node + 1}) {
+      if (dep < nodeCount) {
+        deps.add(dep);
+      }
+    }
+    return deps.build();
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Sets;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the int-indexed {@link DirectedAcyclicGraph} with the multimap based representation it
+ * replaced. Run with caliper's allocation instrument to compare the memory each one retains: the
+ * {@code build*} benchmarks allocate little besides the graph itself.
+ */
+public class DirectedAcyclicGraphBenchmark {
+  @Param({"10000", "100000", "500000"})
+  private int nodeCount = 10000;
+
+  /** Average number of dependencies per node, roughly that of a large target graph. */
+  @Param({"8"})
+  private int averageDegree = 8;
+
+  private MutableDirectedGraph<String> mutableGraph;
+  private DirectedAcyclicGraph<String> compactGraph;
+  private MultimapGraph<String> multimapGraph;
+
+  @Before
+  public void setUpTest() {
+    nodeCount = 1000;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    Random random = new Random(123);
+    mutableGraph = new MutableDirectedGraph<>();
+    for (int i = 0; i < nodeCount; i++) {
+      // Target-like names, so that hashing and equality cost about what they do for real nodes.
+      String node = String.format("//path/to/package%d:target%d", i / 10, i);
+      mutableGraph.addNode(node);
+      int degree = i == 0 ? 0 : random.nextInt(2 * averageDegree + 1);
+      for (int j = 0; j < degree; j++) {
+        int dep = random.nextInt(i);
+        mutableGraph.addEdge(node, String.format("//path/to/package%d:target%d", dep / 10, dep));
+      }
+    }
+    compactGraph = new DirectedAcyclicGraph<>(mutableGraph);
+    multimapGraph = new MultimapGraph<>(mutableGraph);
+  }
+
+  @Test
+  public void representationsAgree() {
+    assertEquals(multimapGraph.getNodes(), compactGraph.getNodes());
+    for (String node : compactGraph.getNodes()) {
+      assertEquals(multimapGraph.getOutgoingNodesFor(node), compactGraph.getOutgoingNodesFor(node));
+      assertEquals(multimapGraph.getIncomingNodesFor(node), compactGraph.getIncomingNodesFor(node));
+    }
+    assertEquals(traverseMultimapGraph(), traverseCompactGraph());
+  }
+
+  @Benchmark
+  public int buildCompactGraph() {
+    return new DirectedAcyclicGraph<>(mutableGraph).getNodes().size();
+  }
+
+  @Benchmark
+  public int buildMultimapGraph() {
+    return new MultimapGraph<>(mutableGraph).getNodes().size();
+  }
+
+  @Benchmark
+  public int traverseCompactGraph() {
+    return traverse(compactGraph);
+  }
+
+  @Benchmark
+  public int traverseMultimapGraph() {
+    return traverse(multimapGraph);
+  }
+
+  /** Visits every node bottom-up and then walks each one's reverse edges, as rdeps queries do. */
+  private static int traverse(TraversableGraph<String> graph) {
+    int[] visited = new int[1];
+    new AbstractBottomUpTraversal<String, RuntimeException>(graph) {
+      @Override
+      public void visit(String node) {
+        for (String dependent : graph.getIncomingNodesFor(node)) {
+          visited[0] += dependent.length();
+        }
+      }
+    }.traverse();
+    return visited[0];
+  }
+
+  /** The representation {@link DirectedAcyclicGraph} used to have. */
+  private static class MultimapGraph<T> implements TraversableGraph<T> {
+    private final ImmutableSet<T> nodes;
+    private final ImmutableSetMultimap<T, T> outgoingEdges;
+    private final ImmutableSetMultimap<T, T> incomingEdges;
+
+    MultimapGraph(MutableDirectedGraph<T> graph) {
+      this.nodes = ImmutableSet.copyOf(graph.getNodes());
+      ImmutableSetMultimap.Builder<T, T> outgoing = ImmutableSetMultimap.builder();
+      ImmutableSetMultimap.Builder<T, T> incoming = ImmutableSetMultimap.builder();
+      for (T source : nodes) {
+        for (T sink : graph.getOutgoingNodesFor(source)) {
+          outgoing.put(source, sink);
+          incoming.put(sink, source);
+        }
+      }
+      this.outgoingEdges = outgoing.build();
+      this.incomingEdges = incoming.build();
+    }
+
+    @Override
+    public ImmutableSet<T> getNodesWithNoIncomingEdges() {
+      return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    }
+
+    @Override
+    public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
+      return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    }
+
+    @Override
+    public ImmutableSet<T> getIncomingNodesFor(T sink) {
+      return incomingEdges.get(sink);
+    }
+
+    @Override
+    public ImmutableSet<T> getOutgoingNodesFor(T source) {
+      return outgoingEdges.get(source);
+    }
+
+    @Override
+    public ImmutableSet<T> getNodes() {
+      return nodes;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+public class DirectedAcyclicGraphTest {
+
+  //     A
+  //   /  \
+  //  B    C    E
+  //   \  /
+  //    D
+  private static DirectedAcyclicGraph<String> makeGraph(boolean reversedInsertionOrder) {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    if (reversedInsertionOrder) {
+      graph.addNode("E");
+      graph.addEdge("C", "D");
+      graph.addEdge("B", "D");
+      graph.addEdge("A", "C");
+      graph.addEdge("A", "B");
+    } else {
+      graph.addEdge("A", "B");
+      graph.addEdge("A", "C");
+      graph.addEdge("B", "D");
+      graph.addEdge("C", "D");
+      graph.addNode("E");
+    }
+    return new DirectedAcyclicGraph<>(graph);
+  }
+
+  @Test
+  public void edgesAreAvailableInBothDirections() {
+    DirectedAcyclicGraph<String> graph = makeGraph(false);
+
+    assertEquals(ImmutableSet.of("A", "B", "C", "D", "E"), graph.getNodes());
+    assertEquals(4, graph.getEdgeCount());
+    assertEquals(ImmutableSet.of("B", "C"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableSet.of("D"), graph.getOutgoingNodesFor("B"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("D"));
+    assertEquals(ImmutableSet.of("B", "C"), graph.getIncomingNodesFor("D"));
+    assertEquals(ImmutableSet.of("A"), graph.getIncomingNodesFor("C"));
+    assertEquals(ImmutableSet.of(), graph.getIncomingNodesFor("E"));
+
+    assertEquals(ImmutableSet.of("A", "E"), graph.getNodesWithNoIncomingEdges());
+    assertEquals(ImmutableSet.of("D", "E"), graph.getNodesWithNoOutgoingEdges());
+  }
+
+  @Test
+  public void nodesOutsideTheGraphHaveNoEdges() {
+    DirectedAcyclicGraph<String> graph = makeGraph(false);
+    assertTrue(graph.getOutgoingNodesFor("Z").isEmpty());
+    assertTrue(graph.getIncomingNodesFor("Z").isEmpty());
+  }
+
+  @Test
+  public void neighborsAreLookedUp() {
+    DirectedAcyclicGraph<String> graph = makeGraph(true);
+    assertTrue(graph.getOutgoingNodesFor("A").contains("C"));
+    assertFalse(graph.getOutgoingNodesFor("A").contains("D"));
+    assertFalse(graph.getOutgoingNodesFor("A").contains("Z"));
+    assertFalse(graph.getOutgoingNodesFor("A").contains(null));
+    assertTrue(graph.getIncomingNodesFor("D").contains("B"));
+    assertFalse(graph.getIncomingNodesFor("D").contains("A"));
+  }
+
+  @Test
+  public void equalityDoesNotDependOnInsertionOrder() {
+    assertEquals(makeGraph(false), makeGraph(true));
+    assertEquals(makeGraph(false).hashCode(), makeGraph(true).hashCode());
+
+    MutableDirectedGraph<String> other = new MutableDirectedGraph<>();
+    other.addEdge("A", "B");
+    other.addEdge("A", "C");
+    other.addEdge("B", "D");
+    other.addEdge("C", "E");
+    other.addNode("D");
+    assertNotEquals(makeGraph(false), new DirectedAcyclicGraph<>(other));
+  }
+
+  @Test
+  public void largeGraphsRoundTrip() {
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    for (int i = 1; i < 10000; i++) {
+      mutableGraph.addEdge(i, i / 2);
+      mutableGraph.addEdge(i, i / 3);
+    }
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(mutableGraph);
+
+    assertEquals(mutableGraph.getEdgeCount(), graph.getEdgeCount());
+    for (Integer node : mutableGraph.getNodes()) {
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getOutgoingNodesFor(node)),
+          graph.getOutgoingNodesFor(node));
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getIncomingNodesFor(node)),
+          graph.getIncomingNodesFor(node));
+      for (Integer sink : mutableGraph.getOutgoingNodesFor(node)) {
+        assertTrue(graph.getOutgoingNodesFor(node).contains(sink));
+      }
+      assertFalse(graph.getOutgoingNodesFor(node).contains(node));
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.JarContentsCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ClassPathCachingFileManagerTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private JavaCompiler compiler;
+  private JarContentsCache jarContentsCache;
+  private Path depJar;
+
+  @Before
+  public void setUp() throws IOException {
+    compiler = ToolProvider.getSystemJavaCompiler();
+    jarContentsCache = new JarContentsCache();
+
+    Path depClasses = tmp.newFolder("dep");
+    compile(
+        "dep/Dep.java",
+        "package dep; public class Dep { public static int answer() { return 42; } }",
+        ImmutableList.of("-d", depClasses.toString()),
+        compiler.getStandardFileManager(null, null, null));
+    depJar = tmp.getRoot().resolve("dep.jar");
+    try (OutputStream outputStream = Files.newOutputStream(depJar);
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+      zipOutputStream.putNextEntry(new ZipEntry("dep/Dep.class"));
+      zipOutputStream.write(Files.readAllBytes(depClasses.resolve("dep/Dep.class")));
+      zipOutputStream.closeEntry();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    jarContentsCache.close();
+  }
+
+  @Test
+  public void compilesAgainstCachedClassPath() throws IOException {
+    ClassUsageTracker tracker = new ClassUsageTracker();
+    Path out = tmp.newFolder("out");
+    DiagnosticCollector<JavaFileObject> diagnostics =
+        compile(
+            "Example.java",
+            "public class Example { int answer = dep.Dep.answer(); }",
+            ImmutableList.of("-d", out.toString(), "-classpath", depJar.toString()),
+            tracker.wrapFileManager(newCachingFileManager()));
+
+    assertEquals(ImmutableList.of(), diagnostics.getDiagnostics());
+    assertTrue(Files.exists(out.resolve("Example.class")));
+    assertEquals(
+        ImmutableSetMultimap.of(depJar.toAbsolutePath(), Paths.get("dep/Dep.class")),
+        tracker.getClassUsageMap());
+  }
+
+  @Test
+  public void reportsMissingClassesOnCachedClassPath() throws IOException {
+    DiagnosticCollector<JavaFileObject> diagnostics =
+        compile(
+            "Example.java",
+            "public class Example { dep.Missing missing; }",
+            ImmutableList.of(
+                "-d", tmp.newFolder("out").toString(), "-classpath", depJar.toString()),
+            newCachingFileManager());
+
+    assertEquals(1, diagnostics.getDiagnostics().size());
+  }
+
+  @Test
+  public void listsClassesOfJarsOnClassPath() throws IOException {
+    StandardJavaFileManager fileManager = newCachingFileManager();
+    fileManager.setLocation(StandardLocation.CLASS_PATH, ImmutableList.of(depJar.toFile()));
+
+    Iterable<JavaFileObject> files =
+        fileManager.list(
+            StandardLocation.CLASS_PATH,
+            "dep",
+            ImmutableSet.of(JavaFileObject.Kind.CLASS),
+            /* recurse */ false);
+
+    JavaFileObject file = files.iterator().next();
+    assertEquals("dep.Dep", fileManager.inferBinaryName(StandardLocation.CLASS_PATH, file));
+    assertTrue(file.isNameCompatible("Dep", JavaFileObject.Kind.CLASS));
+    assertEquals(
+        "jar:" + depJar.toAbsolutePath().toUri() + "!/dep/Dep.class", file.toUri().toString());
+    assertTrue(fileManager.isSameFile(file, files.iterator().next()));
+  }
+
+  @Test
+  public void leavesClassPathsWithDirectoriesToTheCompiler() throws IOException {
+    StandardJavaFileManager fileManager = newCachingFileManager();
+    Path classesDir = tmp.newFolder("classes");
+    Files.createDirectories(classesDir.resolve("dep"));
+    Files.write(classesDir.resolve("dep/Other.class"), new byte[0]);
+    fileManager.setLocation(
+        StandardLocation.CLASS_PATH, ImmutableList.of(depJar.toFile(), classesDir.toFile()));
+
+    ImmutableSet.Builder<String> binaryNames = ImmutableSet.builder();
+    for (JavaFileObject file :
+        fileManager.list(
+            StandardLocation.CLASS_PATH,
+            "dep",
+            ImmutableSet.of(JavaFileObject.Kind.CLASS),
+            /* recurse */ false)) {
+      binaryNames.add(fileManager.inferBinaryName(StandardLocation.CLASS_PATH, file));
+    }
+
+    assertEquals(ImmutableSet.of("dep.Dep", "dep.Other"), binaryNames.build());
+  }
+
+  private StandardJavaFileManager newCachingFileManager() {
+    return new ClassPathCachingFileManager(
+        compiler.getStandardFileManager(null, null, null), jarContentsCache);
+  }
+
+  private DiagnosticCollector<JavaFileObject> compile(
+      String sourceName,
+      String source,
+      ImmutableList<String> options,
+      StandardJavaFileManager fileManager)
+      throws IOException {
+    Path sourceFile = tmp.getRoot().resolve("src").resolve(sourceName);
+    Files.createDirectories(sourceFile.getParent());
+    Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    ImmutableList<String> allOptions =
+        ImmutableList.<String>builder()
+            .add("-source", "8", "-target", "8", "-Xlint:-options")
+            .addAll(options)
+            .build();
+    compiler
+        .getTask(
+            null,
+            fileManager,
+            diagnostics,
+            allOptions,
+            null,
+            fileManager.getJavaFileObjects(sourceFile.toFile()))
+        .call();
+    fileManager.close();
+    return diagnostics;
+  }
+}
@@ -25,6 +25,7 @@ import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.ContextualProcessExecutor;
 import com.facebook.buck.util.DefaultProcessExecutor;
+import com.facebook.buck.util.JarContentsCache;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.Verbosity;
 import com.google.common.collect.ImmutableList;
@@ -51,6 +52,7 @@ public class JavacExecutionContextSerializerTest {
         new JavacEventSinkToBuckEventBusBridge(BuckEventBusForTests.newInstance());
     PrintStream stdErr = new PrintStream(new ByteArrayOutputStream());
     ClassLoaderCache classLoaderCache = new ClassLoaderCache();
+    JarContentsCache jarContentsCache = new JarContentsCache();
     Verbosity verbosity = Verbosity.COMMANDS_AND_OUTPUT;
     DefaultCellPathResolver cellPathResolver =
         new DefaultCellPathResolver(
@@ -84,6 +86,7 @@ public class JavacExecutionContextSerializerTest {
             eventSink,
             stdErr,
             classLoaderCache,
+            jarContentsCache,
             verbosity,
             cellPathResolver,
             javaPackageFinder,
@@ -96,11 +99,12 @@ public class JavacExecutionContextSerializerTest {
     Map<String, Object> data = JavacExecutionContextSerializer.serialize(input);
     JavacExecutionContext output =
         JavacExecutionContextSerializer.deserialize(
-            data, eventSink, stdErr, classLoaderCache, new TestConsole());
+            data, eventSink, stdErr, classLoaderCache, jarContentsCache, new TestConsole());
 
     assertThat(output.getEventSink(), Matchers.equalTo(eventSink));
     assertThat(output.getStdErr(), Matchers.equalTo(stdErr));
     assertThat(output.getClassLoaderCache(), Matchers.equalTo(classLoaderCache));
+    assertThat(output.getJarContentsCache(), Matchers.equalTo(jarContentsCache));
     assertThat(output.getVerbosity(), Matchers.equalTo(verbosity));
 
     assertThat(output.getCellPathResolver(), Matchers.instanceOf(DefaultCellPathResolver.class));
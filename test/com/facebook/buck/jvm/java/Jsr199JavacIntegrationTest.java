@@ -120,6 +120,7 @@ public class Jsr199JavacIntegrationTest {
             new JavacEventSinkToBuckEventBusBridge(executionContext.getBuckEventBus()),
             executionContext.getStdErr(),
             executionContext.getClassLoaderCache(),
+            executionContext.getJarContentsCache(),
             executionContext.getVerbosity(),
             executionContext.getCellPathResolver(),
             executionContext.getJavaPackageFinder(),
@@ -170,6 +171,7 @@ public class Jsr199JavacIntegrationTest {
             new JavacEventSinkToBuckEventBusBridge(executionContext.getBuckEventBus()),
             executionContext.getStdErr(),
             executionContext.getClassLoaderCache(),
+            executionContext.getJarContentsCache(),
             executionContext.getVerbosity(),
             executionContext.getCellPathResolver(),
             executionContext.getJavaPackageFinder(),
@@ -267,6 +269,7 @@ public class Jsr199JavacIntegrationTest {
             new JavacEventSinkToBuckEventBusBridge(executionContext.getBuckEventBus()),
             executionContext.getStdErr(),
             executionContext.getClassLoaderCache(),
+            executionContext.getJarContentsCache(),
             executionContext.getVerbosity(),
             executionContext.getCellPathResolver(),
             executionContext.getJavaPackageFinder(),
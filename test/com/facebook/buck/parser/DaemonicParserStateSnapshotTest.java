@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.cli.FakeBuckConfig;
+import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DaemonicParserStateSnapshotTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static RemoteDaemonicParserState newRemoteState() {
+    RemoteDaemonicParserState state = new RemoteDaemonicParserState();
+    state.setCellPaths(ImmutableList.of(""));
+    state.setCachedIncludes(
+        ImmutableMap.of("/root/BUCK", ImmutableList.of("/root/DEFS", "/root/OTHER_DEFS")));
+    state.setCellPathToDaemonicState(ImmutableMap.of());
+    return state;
+  }
+
+  @Test
+  public void roundTripsStateAndClocks() throws Exception {
+    Path path = tmp.getRoot().resolve("daemon/parser-state");
+    ImmutableMap<Path, String> clocks =
+        ImmutableMap.of(Paths.get("/root"), "c:1:2", Paths.get("/root/cell"), "c:3:4");
+    new DaemonicParserStateSnapshot("fingerprint", clocks, newRemoteState()).write(path);
+
+    Optional<DaemonicParserStateSnapshot> snapshot =
+        DaemonicParserStateSnapshot.read(path, "fingerprint");
+    assertTrue(snapshot.isPresent());
+    assertEquals("fingerprint", snapshot.get().getFingerprint());
+    assertEquals(clocks, snapshot.get().getClocks());
+    assertEquals(newRemoteState(), snapshot.get().getState());
+  }
+
+  @Test
+  public void snapshotWithDifferentFingerprintIsIgnored() throws Exception {
+    Path path = tmp.getRoot().resolve("parser-state");
+    new DaemonicParserStateSnapshot("fingerprint", ImmutableMap.of(), newRemoteState())
+        .write(path);
+
+    assertFalse(DaemonicParserStateSnapshot.read(path, "other fingerprint").isPresent());
+  }
+
+  @Test
+  public void missingOrCorruptSnapshotIsIgnored() throws Exception {
+    Path path = tmp.getRoot().resolve("parser-state");
+    assertFalse(DaemonicParserStateSnapshot.read(path, "fingerprint").isPresent());
+
+    new DaemonicParserStateSnapshot("fingerprint", ImmutableMap.of(), newRemoteState())
+        .write(path);
+    byte[] contents = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(contents, contents.length - 4));
+    assertFalse(DaemonicParserStateSnapshot.read(path, "fingerprint").isPresent());
+  }
+
+  @Test
+  public void fingerprintDependsOnParserConfig() throws Exception {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build();
+    Cell sameCell = new TestCellBuilder().setFilesystem(filesystem).build();
+    Cell otherCell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setSections("[buildfile]", "includes = //DEFS")
+                    .build())
+            .build();
+
+    assertEquals(
+        DaemonicParserStateSnapshot.computeFingerprint(cell),
+        DaemonicParserStateSnapshot.computeFingerprint(sameCell));
+    assertNotEquals(
+        DaemonicParserStateSnapshot.computeFingerprint(cell),
+        DaemonicParserStateSnapshot.computeFingerprint(otherCell));
+  }
+}
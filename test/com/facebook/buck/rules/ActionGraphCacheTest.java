@@ -18,9 +18,14 @@ package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.cli.FakeBuckConfig;
+import com.facebook.buck.cxx.CxxBuckConfig;
+import com.facebook.buck.cxx.CxxTestBuilder;
 import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
@@ -31,15 +36,18 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
+import com.facebook.buck.shell.ExportFileBuilder;
 import com.facebook.buck.testutil.TargetGraphFactory;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.timing.IncrementingFakeClock;
+import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.WatchmanOverflowEvent;
 import com.facebook.buck.util.WatchmanPathEvent;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
@@ -243,6 +251,116 @@ public class ActionGraphCacheTest {
     assertEquals(countEventsOf(ActionGraphEvent.Cache.Miss.class), 4);
   }
 
+  @Test
+  public void incrementalUpdateOnlyRecreatesChangedNodesAndDependents() {
+    ActionGraphCache cache = new ActionGraphCache(broadcastEventListener, true);
+    TargetNode<?, ?> exportB = createExportFileNode("//foo:B", new FakeSourcePath("foo/B.txt"));
+    TargetNode<?, ?> exportA =
+        createExportFileNode("//foo:A", new DefaultBuildTargetSourcePath(exportB.getBuildTarget()));
+    TargetNode<?, ?> exportC = createExportFileNode("//bar:C", new FakeSourcePath("bar/C.txt"));
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(
+            eventBus,
+            CHECK_GRAPHS,
+            /* skipActionGraphCache */ false,
+            TargetGraphFactory.newInstance(exportA, exportB, exportC),
+            keySeed);
+
+    // Replace B with an equivalent, but not equal, node. The graph check compares the
+    // incrementally updated graph with a fresh one.
+    ActionGraphAndResolver resultRun2 =
+        cache.getActionGraph(
+            eventBus,
+            CHECK_GRAPHS,
+            /* skipActionGraphCache */ false,
+            TargetGraphFactory.newInstance(
+                exportA,
+                createExportFileNode("//foo:B", new FakeSourcePath("foo/B.txt")),
+                exportC),
+            keySeed);
+    assertEquals(2, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+
+    assertSame(getRule(resultRun1, exportC), getRule(resultRun2, exportC));
+    assertNotSame(getRule(resultRun1, exportB), getRule(resultRun2, exportB));
+    // A depends on B, so it has to be recreated too.
+    assertNotSame(getRule(resultRun1, exportA), getRule(resultRun2, exportA));
+    assertEquals(
+        ImmutableSet.of(
+            exportA.getBuildTarget(), exportB.getBuildTarget(), exportC.getBuildTarget()),
+        RichStream.from(resultRun2.getActionGraph().getNodes())
+            .map(BuildRule::getBuildTarget)
+            .toImmutableSet());
+  }
+
+  @Test
+  public void incrementalUpdateRecreatesNodesInPackagesWithNewFiles() {
+    ActionGraphCache cache = new ActionGraphCache(broadcastEventListener, true);
+    TargetNode<?, ?> exportB = createExportFileNode("//foo:B", new FakeSourcePath("foo/B.txt"));
+    TargetNode<?, ?> exportC = createExportFileNode("//bar:C", new FakeSourcePath("bar/C.txt"));
+    TargetGraph graph = TargetGraphFactory.newInstance(exportB, exportC);
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(
+            eventBus, CHECK_GRAPHS, /* skipActionGraphCache */ false, graph, keySeed);
+
+    Path root = exportB.getFilesystem().getRootPath();
+    cache.invalidateBasedOn(
+        WatchmanPathEvent.of(root, WatchmanPathEvent.Kind.CREATE, Paths.get("foo/New.txt")));
+    assertFalse(cache.isCacheEmpty());
+
+    // The target graph is the same, but the new file may affect the rules in its package.
+    ActionGraphAndResolver resultRun2 =
+        cache.getActionGraph(
+            eventBus, CHECK_GRAPHS, /* skipActionGraphCache */ false, graph, keySeed);
+    assertEquals(0, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+    assertSame(getRule(resultRun1, exportC), getRule(resultRun2, exportC));
+    assertNotSame(getRule(resultRun1, exportB), getRule(resultRun2, exportB));
+
+    // Once the graph is updated, the same target graph is a hit again.
+    cache.getActionGraph(eventBus, CHECK_GRAPHS, /* skipActionGraphCache */ false, graph, keySeed);
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+  }
+
+  @Test
+  public void incrementalUpdateOnlyReusesCacheableRules() {
+    ActionGraphCache cache = new ActionGraphCache(broadcastEventListener, true);
+    TargetNode<?, ?> exportC = createExportFileNode("//bar:C", new FakeSourcePath("bar/C.txt"));
+    TargetNode<?, ?> javaNode =
+        JavaLibraryBuilder.createBuilder(BuildTargetFactory.newInstance("//baz:java")).build();
+    // The test's args and extra deps are suppliers which look rules up through the resolver.
+    TargetNode<?, ?> cxxTestNode =
+        new CxxTestBuilder(
+                BuildTargetFactory.newInstance("//baz:test"),
+                new CxxBuckConfig(FakeBuckConfig.builder().build()))
+            .build();
+    // Rule keys of cxx_test graphs don't match between two fresh graphs either, so the graph check
+    // can't be used here.
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(
+            eventBus,
+            NOT_CHECK_GRAPHS,
+            /* skipActionGraphCache */ false,
+            TargetGraphFactory.newInstance(nodeA, nodeB, exportC, javaNode, cxxTestNode),
+            keySeed);
+
+    ActionGraphAndResolver resultRun2 =
+        cache.getActionGraph(
+            eventBus,
+            NOT_CHECK_GRAPHS,
+            /* skipActionGraphCache */ false,
+            TargetGraphFactory.newInstance(
+                nodeA, createTargetNode("B"), exportC, javaNode, cxxTestNode),
+            keySeed);
+
+    assertSame(getRule(resultRun1, exportC), getRule(resultRun2, exportC));
+    // These nodes didn't change, but their rules aren't marked as safe to carry over.
+    assertNotSame(getRule(resultRun1, javaNode), getRule(resultRun2, javaNode));
+    assertNotSame(getRule(resultRun1, cxxTestNode), getRule(resultRun2, cxxTestNode));
+  }
+
+  private static BuildRule getRule(ActionGraphAndResolver result, TargetNode<?, ?> node) {
+    return result.getResolver().getRule(node.getBuildTarget());
+  }
+
   private TargetNode<?, ?> createTargetNode(String name, TargetNode<?, ?>... deps) {
     BuildTarget buildTarget = BuildTargetFactory.newInstance("//foo:" + name);
     JavaLibraryBuilder targetNodeBuilder = JavaLibraryBuilder.createBuilder(buildTarget);
@@ -252,6 +370,10 @@ public class ActionGraphCacheTest {
     return targetNodeBuilder.build();
   }
 
+  private static TargetNode<?, ?> createExportFileNode(String target, SourcePath src) {
+    return new ExportFileBuilder(BuildTargetFactory.newInstance(target)).setSrc(src).build();
+  }
+
   private int countEventsOf(Class<? extends ActionGraphEvent> trackedClass) {
     int i = 0;
     for (BuckEvent event : trackedEvents) {
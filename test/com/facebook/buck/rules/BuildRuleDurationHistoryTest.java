@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleDurationHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//:target");
+  private static final BuildTarget OTHER_TARGET = BuildTargetFactory.newInstance("//:other");
+
+  private Path storePath;
+
+  @Before
+  public void setUp() {
+    storePath = tmp.getRoot().resolve("buck-out/rule-durations");
+  }
+
+  @Test
+  public void recordedDurationsAreLoadedBack() throws IOException {
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(storePath);
+    history.record(TARGET, 42);
+    history.save();
+
+    BuildRuleDurationHistory loaded = BuildRuleDurationHistory.load(storePath);
+    assertEquals(OptionalLong.of(42), loaded.getDurationMillis(TARGET));
+    assertEquals(OptionalLong.empty(), loaded.getDurationMillis(OTHER_TARGET));
+    assertEquals(42, loaded.getMeanDurationMillis());
+  }
+
+  @Test
+  public void newerDurationsReplaceStoredOnes() throws IOException {
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(storePath);
+    history.record(TARGET, 42);
+    history.record(OTHER_TARGET, 10);
+    history.save();
+
+    history = BuildRuleDurationHistory.load(storePath);
+    history.record(TARGET, 7);
+    assertEquals(OptionalLong.of(7), history.getDurationMillis(TARGET));
+    history.save();
+
+    BuildRuleDurationHistory loaded = BuildRuleDurationHistory.load(storePath);
+    assertEquals(OptionalLong.of(7), loaded.getDurationMillis(TARGET));
+    assertEquals(OptionalLong.of(10), loaded.getDurationMillis(OTHER_TARGET));
+  }
+
+  @Test
+  public void corruptStoreIsDiscarded() throws IOException {
+    Files.createDirectories(storePath.getParent());
+    Files.write(storePath, new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 0});
+
+    BuildRuleDurationHistory loaded = BuildRuleDurationHistory.load(storePath);
+    assertEquals(OptionalLong.empty(), loaded.getDurationMillis(TARGET));
+    assertEquals(0, loaded.getMeanDurationMillis());
+  }
+}
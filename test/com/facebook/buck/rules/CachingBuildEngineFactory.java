@@ -38,6 +38,12 @@ public class CachingBuildEngineFactory {
   private CachingBuildEngine.DepFiles depFiles = CachingBuildEngine.DepFiles.ENABLED;
   private long maxDepFileCacheEntries = 256L;
   private Optional<Long> artifactCacheSizeLimit = Optional.empty();
+  private int multiFetchBatchSize = 1;
+  private int numThreads = 4;
+  private boolean cachePrefetchEnabled = false;
+  private boolean lazyMaterializationEnabled = false;
+  private boolean streamingArtifactUnzipEnabled = false;
+  private Optional<BuildRuleDurationHistory> ruleDurationHistory = Optional.empty();
   private long inputFileSizeLimit = Long.MAX_VALUE;
   private Optional<RuleKeyFactories> ruleKeyFactories = Optional.empty();
   private CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -83,6 +89,34 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setMultiFetchBatchSize(int multiFetchBatchSize) {
+    this.multiFetchBatchSize = multiFetchBatchSize;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setCachePrefetchEnabled(boolean cachePrefetchEnabled) {
+    this.cachePrefetchEnabled = cachePrefetchEnabled;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setLazyMaterializationEnabled(
+      boolean lazyMaterializationEnabled) {
+    this.lazyMaterializationEnabled = lazyMaterializationEnabled;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setStreamingArtifactUnzipEnabled(
+      boolean streamingArtifactUnzipEnabled) {
+    this.streamingArtifactUnzipEnabled = streamingArtifactUnzipEnabled;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setRuleDurationHistory(
+      BuildRuleDurationHistory ruleDurationHistory) {
+    this.ruleDurationHistory = Optional.of(ruleDurationHistory);
+    return this;
+  }
+
   public CachingBuildEngineFactory setCachingBuildEngineDelegate(
       CachingBuildEngineDelegate cachingBuildEngineDelegate) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -117,12 +151,18 @@ public class CachingBuildEngineFactory {
       return new CachingBuildEngine(
           cachingBuildEngineDelegate,
           executorService,
+          numThreads,
           new DefaultStepRunner(),
           buildMode,
           metadataStorage,
           depFiles,
           maxDepFileCacheEntries,
           artifactCacheSizeLimit,
+          multiFetchBatchSize,
+          cachePrefetchEnabled,
+          lazyMaterializationEnabled,
+          streamingArtifactUnzipEnabled,
+          ruleDurationHistory,
           buildRuleResolver,
           buildInfoStoreManager,
           ruleFinder,
@@ -137,12 +177,18 @@ public class CachingBuildEngineFactory {
         cachingBuildEngineDelegate,
         executorService,
         executorService,
+        numThreads,
         new DefaultStepRunner(),
         buildMode,
         metadataStorage,
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        multiFetchBatchSize,
+        cachePrefetchEnabled,
+        lazyMaterializationEnabled,
+        streamingArtifactUnzipEnabled,
+        ruleDurationHistory,
         buildRuleResolver,
         buildInfoStoreManager,
         resourceAwareSchedulingInfo,
@@ -26,6 +26,8 @@ import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -37,6 +39,7 @@ import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.artifact_cache.TwoLevelArtifactCacheDecorator;
 import com.facebook.buck.cli.CommandThreadManager;
 import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
@@ -106,6 +109,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.AbstractListeningExecutorService;
 import com.google.common.util.concurrent.Futures;
@@ -129,6 +133,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutionException;
@@ -1457,6 +1462,78 @@ public class CachingBuildEngineTest {
         assertTrue(fakeFileHashCache.contains(filesystem.resolve(output)));
       }
     }
+
+    @Test
+    public void cachePrefetchLooksUpDepsBeforeTheBuildReachesThem() throws Exception {
+      BuildTarget depTarget = BuildTargetFactory.newInstance("//:dep");
+      BuildRule dep =
+          new WriteFile(
+              depTarget,
+              filesystem,
+              TestBuildRuleParams.create(),
+              "dep",
+              Paths.get("output/dep"),
+              /* executable */ false);
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      BuildRule rule =
+          new WriteFile(
+              target,
+              filesystem,
+              TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep)),
+              "rule",
+              Paths.get("output/rule"),
+              /* executable */ false);
+
+      // Run an initial build to seed the cache with both rules.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setBuildMode(CachingBuildEngine.BuildMode.DEEP).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+      filesystem.clear();
+      buildInfoStore.deleteMetadata(depTarget);
+      buildInfoStore.deleteMetadata(target);
+
+      // Now do a shallow build.  The top-level rule is a cache hit, so the build itself never
+      // needs to look at the dep, but the prefetch should have looked up its metadata anyway,
+      // without fetching the dep's artifact.
+      Set<RuleKey> lookedUpKeys = Sets.newConcurrentHashSet();
+      Set<RuleKey> fetchedKeys = Sets.newConcurrentHashSet();
+      ArtifactCache recordingCache =
+          new NoopArtifactCache() {
+            @Override
+            public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+              fetchedKeys.add(ruleKey);
+              return cache.fetchAsync(ruleKey, output);
+            }
+
+            @Override
+            public ListenableFuture<ImmutableList<Optional<CacheResult>>> multiFetchMetadataAsync(
+                ImmutableList<RuleKey> ruleKeys) {
+              lookedUpKeys.addAll(ruleKeys);
+              return super.multiFetchMetadataAsync(ruleKeys);
+            }
+          };
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setCachePrefetchEnabled(true).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(
+                    buildContext.withArtifactCache(recordingCache),
+                    TestExecutionContext.newInstance(),
+                    rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        assertThat(lookedUpKeys, hasItem(defaultRuleKeyFactory.build(dep)));
+        assertThat(fetchedKeys, equalTo(ImmutableSet.of(defaultRuleKeyFactory.build(rule))));
+        assertNull(cachingBuildEngine.getBuildRuleResult(depTarget));
+      }
+    }
   }
 
   public static class InputBasedRuleKeyTests extends CommonFixture {
@@ -1657,6 +1734,111 @@ public class CachingBuildEngineTest {
       }
     }
 
+    @Test
+    public void lazyMaterializationDoesNotFetchDepsOnInputBasedCacheHit() throws Exception {
+      BuildTarget depTarget = BuildTargetFactory.newInstance("//:dep");
+      Path depOutput = Paths.get("output/dep");
+      BuildRule dep =
+          new WriteFile(
+              depTarget,
+              filesystem,
+              TestBuildRuleParams.create(),
+              "dep",
+              depOutput,
+              /* executable */ false);
+      resolver.addToIndex(dep);
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = Paths.get("output/rule");
+      BuildRule rule =
+          new InputRuleKeyBuildRule(
+              target,
+              filesystem,
+              TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep))) {
+            @AddToRuleKey private final SourcePath input = dep.getSourcePathToOutput();
+
+            @Override
+            public ImmutableList<Step> getBuildSteps(
+                BuildContext context, BuildableContext buildableContext) {
+              buildableContext.recordArtifact(output);
+              return ImmutableList.of(
+                  new WriteFileStep(filesystem, "rule", output, /* executable */ false));
+            }
+
+            @Override
+            public SourcePath getSourcePathToOutput() {
+              return new ExplicitBuildTargetSourcePath(getBuildTarget(), output);
+            }
+          };
+      resolver.addToIndex(rule);
+
+      // Run an initial build to seed the cache with both rules, storing them in two levels.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(CachingBuildEngine.BuildMode.DEEP)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      new FakeRuleKeyFactory(
+                          ImmutableMap.of(
+                              depTarget, new RuleKey("aaaa"), target, new RuleKey("bbbb"))),
+                      inputBasedRuleKeyFactory,
+                      NOOP_DEP_FILE_RULE_KEY_FACTORY))
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(
+                    buildContext.withArtifactCache(createTwoLevelCache()),
+                    TestExecutionContext.newInstance(),
+                    rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+      filesystem.clear();
+      buildInfoStore.deleteMetadata(depTarget);
+      buildInfoStore.deleteMetadata(target);
+      fileHashCache.invalidateAll();
+      // Leave a stale output of the dep behind, which is cleaned up once the rule is done with it.
+      filesystem.writeContentsToPath("stale", depOutput);
+
+      // Now change the rule's key, without changing its inputs.  It can still be fetched by its
+      // input-based rule key, which only needs the hash of the dep's output, so the dep itself
+      // should never be fetched.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setLazyMaterializationEnabled(true)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      new FakeRuleKeyFactory(
+                          ImmutableMap.of(
+                              depTarget, new RuleKey("aaaa"), target, new RuleKey("cccc"))),
+                      inputBasedRuleKeyFactory,
+                      NOOP_DEP_FILE_RULE_KEY_FACTORY))
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(
+                    buildContext.withArtifactCache(createTwoLevelCache()),
+                    TestExecutionContext.newInstance(),
+                    rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE_INPUT_BASED, result.getSuccess());
+        assertTrue(filesystem.exists(output));
+        assertNull(cachingBuildEngine.getBuildRuleResult(depTarget));
+        assertFalse(filesystem.exists(depOutput));
+      }
+    }
+
+    private ArtifactCache createTwoLevelCache() throws InterruptedException {
+      return new TwoLevelArtifactCacheDecorator(
+          cache,
+          new ProjectFilesystem(tmp.getRoot()),
+          BuckEventBusForTests.newInstance(),
+          /* performTwoLevelStores */ true,
+          /* minimumTwoLevelStoredArtifactSize */ 0L,
+          /* maximumTwoLevelStoredArtifactSize */ Optional.empty());
+    }
+
     @Test
     public void missingInputBasedRuleKeyDoesNotMatchExistingRuleKey() throws Exception {
       missingInputBasedRuleKeyCausesLocalBuild(Optional.of(new RuleKey("aaaa")));
@@ -3204,6 +3386,50 @@ public class CachingBuildEngineTest {
           FluentIterable.from(listener.getEvents()).filter(BuildRuleEvent.class));
     }
 
+    @Test
+    public void buildWaitsForTheRulesPostBuildCallbacks() throws Exception {
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      BuildRule rule = new EmptyBuildRule(target, filesystem);
+
+      // Hold back each task a little, so callbacks still queued when build() completes would
+      // show up as a missing finished event.
+      ListeningExecutorService service =
+          new NewThreadExecutorService() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+              super.execute(
+                  () -> {
+                    try {
+                      Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                      throw new RuntimeException(e);
+                    }
+                    command.run();
+                  });
+            }
+          };
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setExecutorService(service)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      NOOP_RULE_KEY_FACTORY,
+                      NOOP_INPUT_BASED_RULE_KEY_FACTORY,
+                      NOOP_DEP_FILE_RULE_KEY_FACTORY))
+              .build()) {
+        cachingBuildEngine
+            .build(buildContext, TestExecutionContext.newInstance(), rule)
+            .getResult()
+            .get();
+
+        // The finished event is posted by the rule's post-build callbacks.
+        assertTrue(
+            RichStream.from(listener.getEvents())
+                .filter(BuildRuleEvent.Finished.class)
+                .anyMatch(e -> e.getBuildRule().equals(rule)));
+      }
+    }
+
     @Test
     public void originForBuiltLocally() throws Exception {
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CriticalPathPrioritiesTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private BuildRuleResolver resolver;
+  private BuildRuleDurationHistory history;
+
+  @Before
+  public void setUp() {
+    resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    history = BuildRuleDurationHistory.load(tmp.getRoot().resolve("rule-durations"));
+  }
+
+  @Test
+  public void rulesAtTheBottomOfLongChainsComeFirst() {
+    BuildRule bottom = addRule("//:bottom", 10);
+    BuildRule middle = addRule("//:middle", 10, bottom);
+    BuildRule top = addRule("//:top", 10, middle);
+    BuildRule single = addRule("//:single", 25);
+
+    CriticalPathPriorities priorities = newPriorities();
+    priorities.compute(ImmutableList.of(top, single));
+
+    assertEquals(30, priorities.getPriority(bottom));
+    assertEquals(20, priorities.getPriority(middle));
+    assertEquals(10, priorities.getPriority(top));
+    assertEquals(25, priorities.getPriority(single));
+  }
+
+  @Test
+  public void sharedDepsTakeTheLongestChainOfTheirDependents() {
+    BuildRule shared = addRule("//:shared", 5);
+    BuildRule slow = addRule("//:slow", 100, shared);
+    BuildRule fast = addRule("//:fast", 1, shared);
+
+    CriticalPathPriorities priorities = newPriorities();
+    priorities.compute(ImmutableList.of(fast));
+    priorities.compute(ImmutableList.of(slow));
+
+    assertEquals(105, priorities.getPriority(shared));
+  }
+
+  @Test
+  public void rulesWhichWereNeverBuiltAreEstimatedByTheMeanDuration() throws Exception {
+    history.record(addRule("//:one").getBuildTarget(), 10);
+    history.record(addRule("//:two").getBuildTarget(), 30);
+    history.save();
+    history = BuildRuleDurationHistory.load(tmp.getRoot().resolve("rule-durations"));
+
+    BuildRule dep = addRule("//:dep");
+    BuildRule rule = addRule("//:rule", 5, dep);
+    CriticalPathPriorities priorities = newPriorities();
+    priorities.compute(ImmutableList.of(rule));
+
+    assertEquals(25, priorities.getPriority(dep));
+  }
+
+  @Test
+  public void rulesWhichWereNotComputedHaveNoPriority() {
+    assertEquals(0, newPriorities().getPriority(addRule("//:rule", 5)));
+  }
+
+  @Test
+  public void deepChainsDoNotOverflowTheStack() {
+    BuildRule rule = addRule("//:rule0", 1);
+    BuildRule bottom = rule;
+    for (int i = 1; i < 20000; i++) {
+      rule = addRule("//:rule" + i, 1, rule);
+    }
+
+    CriticalPathPriorities priorities = newPriorities();
+    priorities.compute(ImmutableList.of(rule));
+
+    assertEquals(20000, priorities.getPriority(bottom));
+  }
+
+  private CriticalPathPriorities newPriorities() {
+    return new CriticalPathPriorities(history, new RuleDepsCache(resolver));
+  }
+
+  private BuildRule addRule(String target, BuildRule... deps) {
+    return resolver.addToIndex(new FakeBuildRule(target, deps));
+  }
+
+  private BuildRule addRule(String target, long durationMillis, BuildRule... deps) {
+    BuildRule rule = addRule(target, deps);
+    history.record(rule.getBuildTarget(), durationMillis);
+    return rule;
+  }
+}
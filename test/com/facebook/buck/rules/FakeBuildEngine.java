@@ -63,4 +63,7 @@ public class FakeBuildEngine implements BuildEngine {
   public int getNumRulesToBuild(Iterable<BuildRule> rule) {
     return 0;
   }
+
+  @Override
+  public void planBuild(Iterable<BuildRule> rules) {}
 }
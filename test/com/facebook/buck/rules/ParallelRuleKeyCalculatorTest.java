@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.facebook.buck.util.HumanReadableException;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private ForkJoinPool pool;
+  private BuildRuleResolver resolver;
+  private BuckEventBus eventBus;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+    resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    eventBus = BuckEventBusForTests.newInstance();
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void depsAreComputedOnceAndBeforeTheirDependents() throws Exception {
+    BuildRule bottom = resolver.addToIndex(new FakeBuildRule("//:bottom"));
+    BuildRule left = resolver.addToIndex(new FakeBuildRule("//:left", bottom));
+    BuildRule right = resolver.addToIndex(new FakeBuildRule("//:right", bottom));
+    BuildRule top = resolver.addToIndex(new FakeBuildRule("//:top", left, right));
+
+    OrderCheckingRuleKeyFactory factory = new OrderCheckingRuleKeyFactory();
+    AtomicInteger scopes = new AtomicInteger();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(
+            pool,
+            factory,
+            new RuleDepsCache(resolver),
+            (bus, rule) -> {
+              assertSame(eventBus, bus);
+              return scopes::incrementAndGet;
+            });
+
+    ListenableFuture<String> topKey = calculator.calculate(eventBus, top);
+    ListenableFuture<String> leftKey = calculator.calculate(eventBus, left);
+
+    assertEquals("//:top(//:left,//:right,)", topKey.get());
+    assertEquals("//:left(//:bottom,)", leftKey.get());
+    assertEquals(4, factory.builds.get());
+    assertEquals(4, scopes.get());
+  }
+
+  @Test
+  public void deepGraphsAreComputed() throws Exception {
+    List<BuildRule> rules = new ArrayList<>();
+    BuildRule previous = resolver.addToIndex(new FakeBuildRule("//:rule0"));
+    rules.add(previous);
+    for (int i = 1; i < 1000; i++) {
+      BuildRule first = resolver.addToIndex(new FakeBuildRule("//:first" + i, previous));
+      BuildRule second = resolver.addToIndex(new FakeBuildRule("//:second" + i, previous));
+      previous = resolver.addToIndex(new FakeBuildRule("//:rule" + i, first, second));
+      rules.add(previous);
+    }
+
+    OrderCheckingRuleKeyFactory factory = new OrderCheckingRuleKeyFactory();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(pool, factory, new RuleDepsCache(resolver));
+    List<ListenableFuture<String>> keys = new ArrayList<>();
+    for (BuildRule rule : rules) {
+      keys.add(calculator.calculate(eventBus, rule));
+    }
+
+    for (int i = 0; i < rules.size(); i++) {
+      String key = keys.get(i).get();
+      assertEquals(factory.keys.get(rules.get(i)), key);
+    }
+    assertEquals(1 + 3 * 999, factory.builds.get());
+  }
+
+  @Test
+  public void longChainsDontOverflowTheStack() throws Exception {
+    BuildRule previous = resolver.addToIndex(new FakeBuildRule("//:rule0"));
+    for (int i = 1; i < 10000; i++) {
+      previous = resolver.addToIndex(new FakeBuildRule("//:rule" + i, previous));
+    }
+
+    OrderCheckingRuleKeyFactory factory = new OrderCheckingRuleKeyFactory();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(pool, factory, new RuleDepsCache(resolver));
+
+    assertEquals("//:rule9999(//:rule9998,)", calculator.calculate(eventBus, previous).get());
+    assertEquals(10000, factory.builds.get());
+  }
+
+  @Test
+  public void failuresArePropagatedToDependents() throws Exception {
+    BuildRule bad = resolver.addToIndex(new FakeBuildRule("//:bad"));
+    BuildRule top = resolver.addToIndex(new FakeBuildRule("//:top", bad));
+
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(
+            pool,
+            rule -> {
+              throw new HumanReadableException("Can't compute a key for %s", rule);
+            },
+            new RuleDepsCache(resolver));
+
+    try {
+      calculator.calculate(eventBus, top).get();
+      fail("Expected the dep's failure.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(HumanReadableException.class));
+    }
+  }
+
+  /** Builds keys out of the names of the deps, and fails if their keys aren't available yet. */
+  private class OrderCheckingRuleKeyFactory implements RuleKeyFactory<String> {
+    private final ConcurrentMap<BuildRule, String> keys = new ConcurrentHashMap<>();
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Override
+    public String build(BuildRule rule) {
+      StringBuilder key = new StringBuilder(rule.getFullyQualifiedName()).append('(');
+      for (BuildRule dep : rule.getBuildDeps()) {
+        if (!keys.containsKey(dep)) {
+          throw new IllegalStateException(dep + " was not computed before " + rule);
+        }
+        key.append(dep.getFullyQualifiedName()).append(',');
+      }
+      String result = key.append(')').toString();
+      if (keys.putIfAbsent(rule, result) != null) {
+        throw new IllegalStateException(rule + " was computed twice");
+      }
+      builds.incrementAndGet();
+      return result;
+    }
+  }
+}
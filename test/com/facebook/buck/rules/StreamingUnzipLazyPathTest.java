@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.Zip;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StreamingUnzipLazyPathTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ExecutorService unzipService;
+  private ProjectFilesystem filesystem;
+  private Path scratchRoot;
+  private byte[] payload;
+  private StreamingUnzipLazyPath path;
+
+  @Before
+  public void setUp() throws InterruptedException, IOException {
+    unzipService = Executors.newCachedThreadPool();
+    filesystem = new ProjectFilesystem(tmp.newFolder("project"));
+    scratchRoot = tmp.getRoot().resolve("scratch");
+    Path zipFile = tmp.getRoot().resolve("artifact.zip");
+    try (Zip zip = new Zip(zipFile, true)) {
+      zip.add("buck-out/gen/out.txt", "contents");
+    }
+    payload = Files.readAllBytes(zipFile);
+    path = new StreamingUnzipLazyPath(LazyPath.ofInstance(zipFile), scratchRoot, unzipService);
+  }
+
+  @After
+  public void tearDown() {
+    unzipService.shutdownNow();
+  }
+
+  @Test
+  public void verifiedPayloadIsMovedIntoPlace() throws IOException {
+    writePayload(payload);
+    // Nothing changes in the project until the payload is known to be the right one.
+    assertFalse(filesystem.exists(filesystem.getPath("buck-out/gen/out.txt")));
+    path.onPayloadVerified();
+
+    assertTrue(path.moveUnzippedPayloadInto(filesystem));
+    assertEquals(
+        "contents",
+        new String(
+            Files.readAllBytes(filesystem.resolve("buck-out/gen/out.txt")), Charsets.UTF_8));
+    path.discardUnzippedPayloads();
+    assertScratchRootIsEmpty();
+  }
+
+  @Test
+  public void unverifiedPayloadIsNotUsed() throws IOException {
+    writePayload(payload);
+
+    assertFalse(path.moveUnzippedPayloadInto(filesystem));
+    assertFalse(filesystem.exists(filesystem.getPath("buck-out/gen")));
+    path.discardUnzippedPayloads();
+    assertScratchRootIsEmpty();
+  }
+
+  @Test
+  public void invalidPayloadDoesNotFailTheDownload() throws IOException {
+    byte[] garbage = new byte[4 * 1024 * 1024];
+    Arrays.fill(garbage, (byte) 'x');
+    writePayload(garbage);
+    path.onPayloadVerified();
+
+    assertFalse(path.moveUnzippedPayloadInto(filesystem));
+  }
+
+  @Test
+  public void onlyTheLastVerifiedPayloadCounts() throws IOException {
+    writePayload(Arrays.copyOf(payload, payload.length / 2));
+    writePayload(payload);
+    path.onPayloadVerified();
+
+    assertTrue(path.moveUnzippedPayloadInto(filesystem));
+    path.discardUnzippedPayloads();
+    assertScratchRootIsEmpty();
+  }
+
+  @Test
+  public void payloadIsNotUnzippedWhileDownloadingWithoutAFreeThread()
+      throws InterruptedException, IOException {
+    ExecutorService busyService =
+        new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new SynchronousQueue<>());
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      busyService.submit(
+          () -> {
+            release.await();
+            return null;
+          });
+      path =
+          new StreamingUnzipLazyPath(
+              LazyPath.ofInstance(tmp.getRoot().resolve("artifact.zip")),
+              scratchRoot,
+              busyService);
+
+      // The download goes on, rather than waiting for the busy thread.
+      writePayload(payload);
+      path.onPayloadVerified();
+      assertFalse(path.moveUnzippedPayloadInto(filesystem));
+    } finally {
+      release.countDown();
+      busyService.shutdownNow();
+    }
+  }
+
+  private void writePayload(byte[] bytes) throws IOException {
+    try (OutputStream stream = path.onPayloadStarted()) {
+      stream.write(bytes);
+    }
+  }
+
+  private void assertScratchRootIsEmpty() throws IOException {
+    try (Stream<Path> children = Files.list(scratchRoot)) {
+      assertEquals(0, children.count());
+    }
+  }
+}
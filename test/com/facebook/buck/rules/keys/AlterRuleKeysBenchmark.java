@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.android.AndroidLibraryBuilder;
+import com.facebook.buck.android.AndroidResourceBuilder;
+import com.facebook.buck.cxx.CxxBinaryBuilder;
+import com.facebook.buck.cxx.CxxLibraryBuilder;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AbstractNodeBuilder;
+import com.facebook.buck.rules.AddsToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeSourcePath;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.facebook.buck.rules.SourceWithFlags;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares reading {@link com.facebook.buck.rules.AddToRuleKey} fields through a {@link
+ * MethodHandleAlterRuleKey} per class with reading each of them reflectively, over the rules a
+ * mix of Java, C++ and Android targets creates. Only the field extraction is measured: values are
+ * walked as a rule key builder would, but not hashed.
+ */
+public class AlterRuleKeysBenchmark {
+  /** Number of targets of each kind. */
+  @Param({"10", "100"})
+  private int targetCount = 10;
+
+  private ImmutableList<BuildRule> rules;
+
+  private final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> reflectiveLoader =
+      CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
+  private final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> methodHandleLoader =
+      CacheBuilder.newBuilder().build(new MethodHandleAlterKeyLoader());
+
+  @Before
+  public void setUpTest() throws Exception {
+    targetCount = 2;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    List<AbstractNodeBuilder<?, ?, ?, ?>> builders = new ArrayList<>();
+    for (int i = 0; i < targetCount; i++) {
+      BuildTarget javaDep = BuildTargetFactory.newInstance("//java/dep" + i + ":dep");
+      builders.add(
+          JavaLibraryBuilder.createBuilder(javaDep)
+              .addSrc(Paths.get("java/dep" + i + "/Dep.java")));
+      builders.add(
+          JavaLibraryBuilder.createBuilder(
+                  BuildTargetFactory.newInstance("//java/lib" + i + ":lib"))
+              .addSrc(Paths.get("java/lib" + i + "/Lib.java"))
+              .addSrc(Paths.get("java/lib" + i + "/Util.java"))
+              .addDep(javaDep));
+
+      BuildTarget cxxDep = BuildTargetFactory.newInstance("//cxx/dep" + i + ":dep");
+      builders.add(
+          new CxxLibraryBuilder(cxxDep)
+              .setSrcs(
+                  ImmutableSortedSet.of(
+                      SourceWithFlags.of(new FakeSourcePath("cxx/dep" + i + "/dep.cpp")))));
+      builders.add(
+          new CxxBinaryBuilder(BuildTargetFactory.newInstance("//cxx/bin" + i + ":bin"))
+              .setSrcs(
+                  ImmutableSortedSet.of(
+                      SourceWithFlags.of(new FakeSourcePath("cxx/bin" + i + "/main.cpp")),
+                      SourceWithFlags.of(new FakeSourcePath("cxx/bin" + i + "/util.cpp"))))
+              .setDeps(ImmutableSortedSet.of(cxxDep)));
+
+      BuildTarget resource = BuildTargetFactory.newInstance("//android/res" + i + ":res");
+      builders.add(
+          AndroidResourceBuilder.createBuilder(resource)
+              .setRes(new FakeSourcePath("android/res" + i + "/res"))
+              .setRDotJavaPackage("com.example.res" + i));
+      builders.add(
+          AndroidLibraryBuilder.createBuilder(
+                  BuildTargetFactory.newInstance("//android/lib" + i + ":lib"))
+              .addSrc(Paths.get("android/lib" + i + "/Activity.java"))
+              .addDep(resource));
+    }
+
+    List<TargetNode<?, ?>> nodes = new ArrayList<>();
+    for (AbstractNodeBuilder<?, ?, ?, ?> builder : builders) {
+      nodes.add(builder.build());
+    }
+    TargetGraph targetGraph = TargetGraphFactory.newInstance(nodes);
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(targetGraph, new DefaultTargetNodeToBuildRuleTransformer());
+    for (AbstractNodeBuilder<?, ?, ?, ?> builder : builders) {
+      builder.build(resolver, new FakeProjectFilesystem(), targetGraph);
+    }
+    rules = ImmutableList.copyOf(resolver.getBuildRules());
+  }
+
+  @Test
+  public void loadersAddTheSameValues() {
+    List<String> reflectiveValues = new ArrayList<>();
+    List<String> methodHandleValues = new ArrayList<>();
+    walkAll(reflectiveLoader, (key, value) -> reflectiveValues.add(key + "=" + value));
+    walkAll(methodHandleLoader, (key, value) -> methodHandleValues.add(key + "=" + value));
+    assertTrue(rules.size() >= 6 * targetCount);
+    assertEquals(reflectiveValues, methodHandleValues);
+  }
+
+  @Benchmark
+  public int reflective() {
+    int[] count = new int[1];
+    walkAll(reflectiveLoader, (key, value) -> count[0]++);
+    return count[0];
+  }
+
+  @Benchmark
+  public int methodHandles() {
+    int[] count = new int[1];
+    walkAll(methodHandleLoader, (key, value) -> count[0]++);
+    return count[0];
+  }
+
+  private void walkAll(
+      LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> loader, ValueConsumer consumer) {
+    WalkingSink sink = new WalkingSink(loader, consumer);
+    for (BuildRule rule : rules) {
+      sink.amend(rule);
+    }
+  }
+
+  private interface ValueConsumer {
+    void accept(String key, @Nullable Object value);
+  }
+
+  /**
+   * Visits the values a rule key builder would be given, descending into appendables but not into
+   * other rules, which have keys of their own.
+   */
+  private static class WalkingSink implements RuleKeyObjectSink {
+    private final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> loader;
+    private final ValueConsumer consumer;
+
+    private WalkingSink(
+        LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> loader, ValueConsumer consumer) {
+      this.loader = loader;
+      this.consumer = consumer;
+    }
+
+    private void amend(Object object) {
+      if (object instanceof RuleKeyAppendable) {
+        ((RuleKeyAppendable) object).appendToRuleKey(this);
+      }
+      for (AlterRuleKey alterRuleKey : loader.getUnchecked(object.getClass())) {
+        alterRuleKey.amendKey(this, object);
+      }
+    }
+
+    @Override
+    public RuleKeyObjectSink setReflectively(String key, @Nullable Object val) {
+      if (val instanceof BuildRule) {
+        consumer.accept(key, ((BuildRule) val).getBuildTarget());
+      } else if (val instanceof AddsToRuleKey) {
+        consumer.accept(key, val.getClass().getName());
+        amend(val);
+      } else if (val instanceof Iterable) {
+        for (Object element : (Iterable<?>) val) {
+          setReflectively(key, element);
+        }
+      } else if (val instanceof Map) {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) val).entrySet()) {
+          setReflectively(key, entry.getKey());
+          setReflectively(key, entry.getValue());
+        }
+      } else if (val instanceof Optional) {
+        setReflectively(key, ((Optional<?>) val).orElse(null));
+      } else {
+        consumer.accept(key, val);
+      }
+      return this;
+    }
+
+    @Override
+    @Deprecated
+    public RuleKeyObjectSink setPath(Path absolutePath, Path ideallyRelative) {
+      consumer.accept(".path", absolutePath);
+      return this;
+    }
+  }
+}
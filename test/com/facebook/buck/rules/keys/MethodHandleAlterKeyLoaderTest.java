@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import org.junit.Test;
+
+public class MethodHandleAlterKeyLoaderTest {
+
+  private static class Base {
+    @AddToRuleKey private final String zeta = "base";
+    @AddToRuleKey private final int alpha = 3;
+  }
+
+  private static class Derived extends Base {
+    @AddToRuleKey(stringify = true)
+    private final Path path = Paths.get("some/path");
+
+    @AddToRuleKey private final Optional<String> empty = Optional.empty();
+    @AddToRuleKey @Nullable private final Object nothing = null;
+    @SuppressWarnings("unused")
+    private final String notAdded = "ignored";
+  }
+
+  private static class NoFields {}
+
+  @Test
+  public void addsSameValuesInSameOrderAsReflection() throws Exception {
+    Derived derived = new Derived();
+    List<String> expected =
+        ImmutableList.of(
+            "empty=Optional.empty", "nothing=null", "path=some/path", "alpha=3", "zeta=base");
+    assertEquals(expected, amend(new ReflectiveAlterKeyLoader(), derived));
+    assertEquals(expected, amend(new MethodHandleAlterKeyLoader(), derived));
+  }
+
+  @Test
+  public void classesWithoutFieldsNeedNoAlterRuleKey() throws Exception {
+    assertEquals(0, new MethodHandleAlterKeyLoader().load(NoFields.class).size());
+    assertEquals(1, new MethodHandleAlterKeyLoader().load(Derived.class).size());
+  }
+
+  private static List<String> amend(
+      CacheLoader<Class<?>, ? extends Iterable<AlterRuleKey>> loader, Object object)
+      throws Exception {
+    List<String> values = new ArrayList<>();
+    RuleKeyObjectSink sink =
+        new RuleKeyObjectSink() {
+          @Override
+          public RuleKeyObjectSink setReflectively(String key, @Nullable Object val) {
+            values.add(key + "=" + val);
+            return this;
+          }
+
+          @Override
+          @Deprecated
+          public RuleKeyObjectSink setPath(Path absolutePath, Path ideallyRelative) {
+            throw new UnsupportedOperationException();
+          }
+        };
+    for (AlterRuleKey alterRuleKey : loader.load(object.getClass())) {
+      alterRuleKey.amendKey(sink, object);
+    }
+    return values;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.cache.DefaultFileHashCache;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.StackedFileHashCache;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path storePath;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    storePath = tmp.getRoot().resolve("buck-out/rule-key-cache");
+  }
+
+  @Test
+  public void ruleKeysAreReusedAcrossInstances() throws IOException {
+    writeWithOldModificationTime(Paths.get("Lib.java"), "class Lib {}");
+    writeWithOldModificationTime(Paths.get("Bin.java"), "class Bin {}");
+
+    Run first = new Run("fingerprint");
+    first.save();
+    Run second = new Run("fingerprint");
+
+    assertEquals(first.libKey, second.libKey);
+    assertEquals(first.binKey, second.binKey);
+    assertEquals(0, first.cache.getStoreHitCount());
+    assertEquals(2, second.cache.getStoreHitCount());
+  }
+
+  @Test
+  public void changedInputsInvalidateRuleAndItsDependents() throws IOException {
+    writeWithOldModificationTime(Paths.get("Lib.java"), "class Lib {}");
+    writeWithOldModificationTime(Paths.get("Bin.java"), "class Bin {}");
+    Run first = new Run("fingerprint");
+    first.save();
+
+    writeWithOldModificationTime(Paths.get("Lib.java"), "class Lib { int x; }");
+    Run second = new Run("fingerprint");
+
+    assertNotEquals(first.libKey, second.libKey);
+    assertNotEquals(first.binKey, second.binKey);
+    assertEquals(0, second.cache.getStoreHitCount());
+
+    // The stored keys match those computed without the store.
+    second.save();
+    Run third = new Run("fingerprint");
+    assertEquals(second.libKey, third.libKey);
+    assertEquals(second.binKey, third.binKey);
+    assertEquals(2, third.cache.getStoreHitCount());
+  }
+
+  @Test
+  public void storeIsDiscardedWhenFingerprintChanges() throws IOException {
+    writeWithOldModificationTime(Paths.get("Lib.java"), "class Lib {}");
+    writeWithOldModificationTime(Paths.get("Bin.java"), "class Bin {}");
+    new Run("fingerprint").save();
+
+    assertEquals(0, new Run("other fingerprint").cache.getStoreHitCount());
+  }
+
+  @Test
+  public void recentlyModifiedInputsAreNotRecorded() throws IOException {
+    writeWithOldModificationTime(Paths.get("Lib.java"), "class Lib {}");
+    filesystem.writeContentsToPath("class Bin {}", Paths.get("Bin.java"));
+    new Run("fingerprint").save();
+
+    // Only the rule whose inputs are all old enough is stored.
+    assertEquals(1, new Run("fingerprint").cache.getStoreHitCount());
+  }
+
+  private void writeWithOldModificationTime(Path path, String contents) throws IOException {
+    filesystem.writeContentsToPath(contents, path);
+    Files.setLastModifiedTime(
+        filesystem.resolve(path),
+        FileTime.from(
+            System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10), TimeUnit.MILLISECONDS));
+  }
+
+  /** Computes the keys of a small action graph from scratch, as a new buck process would. */
+  private class Run {
+    private final PersistentRuleKeyCache cache;
+    private final RuleKey libKey;
+    private final RuleKey binKey;
+
+    private Run(String fingerprint) {
+      BuildRuleResolver resolver =
+          new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+      SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
+      SourcePathResolver pathResolver = DefaultSourcePathResolver.from(ruleFinder);
+
+      BuildRule lib = resolver.addToIndex(new RuleWithSource("//:lib", "Lib.java"));
+      BuildRule bin = resolver.addToIndex(new RuleWithSource("//:bin", "Bin.java", lib));
+
+      RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(0);
+      cache =
+          PersistentRuleKeyCache.load(
+              storePath,
+              fingerprint,
+              new ContentAgnosticRuleKeyFactory(fieldLoader, pathResolver, ruleFinder));
+      DefaultRuleKeyFactory factory =
+          new DefaultRuleKeyFactory(
+              fieldLoader,
+              new StackedFileHashCache(
+                  ImmutableList.of(
+                      DefaultFileHashCache.createDefaultFileHashCache(
+                          filesystem, FileHashCacheMode.DEFAULT))),
+              pathResolver,
+              ruleFinder,
+              cache);
+      binKey = factory.build(bin);
+      libKey = factory.build(lib);
+    }
+
+    private void save() throws IOException {
+      cache.save();
+    }
+  }
+
+  private class RuleWithSource extends FakeBuildRule {
+    @AddToRuleKey private final SourcePath source;
+
+    private RuleWithSource(String target, String source, BuildRule... deps) {
+      super(BuildTargetFactory.newInstance(target), filesystem, deps);
+      this.source = new PathSourcePath(filesystem, Paths.get(source));
+    }
+  }
+}
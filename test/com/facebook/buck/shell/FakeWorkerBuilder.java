@@ -81,6 +81,11 @@ public class FakeWorkerBuilder
       return false;
     }
 
+    @Override
+    public boolean isMultiplexed() {
+      return false;
+    }
+
     @Override
     public HashCode getInstanceKey() {
       return hashCode;
@@ -111,6 +111,18 @@ public class WorkerShellStepTest {
       int maxWorkers,
       @Nullable String persistentWorkerKey,
       @Nullable HashCode workerHash) {
+    return createJobParams(
+        startupCommand, startupEnv, jobArgs, maxWorkers, false, persistentWorkerKey, workerHash);
+  }
+
+  private WorkerJobParams createJobParams(
+      ImmutableList<String> startupCommand,
+      ImmutableMap<String, String> startupEnv,
+      String jobArgs,
+      int maxWorkers,
+      boolean multiplexed,
+      @Nullable String persistentWorkerKey,
+      @Nullable HashCode workerHash) {
     return WorkerJobParams.of(
         jobArgs,
         WorkerProcessParams.of(
@@ -118,6 +130,7 @@ public class WorkerShellStepTest {
             startupCommand,
             startupEnv,
             maxWorkers,
+            multiplexed,
             persistentWorkerKey == null || workerHash == null
                 ? Optional.empty()
                 : Optional.of(WorkerProcessIdentity.of(persistentWorkerKey, workerHash))));
@@ -421,7 +434,10 @@ public class WorkerShellStepTest {
             new WorkerProcessPoolFactory(new FakeProjectFilesystem()) {
               @Override
               public WorkerProcess createWorkerProcess(
-                  ProcessExecutorParams processParams, ExecutionContext context, Path tmpDir)
+                  ProcessExecutorParams processParams,
+                  ExecutionContext context,
+                  Path tmpDir,
+                  boolean multiplexed)
                   throws IOException {
                 try {
                   sleep(5);
@@ -504,6 +520,44 @@ public class WorkerShellStepTest {
                 fakeWorkerStartupCommand, existingPoolSize, stepPoolSize)));
   }
 
+  @Test
+  public void testWarningIsPrintedForIdenticalWorkerToolsWithDifferentMultiplexing()
+      throws Exception {
+    ExecutionContext context =
+        createExecutionContextWith(
+            ImmutableMap.of("jobArgs", WorkerJobResult.of(0, Optional.of(""), Optional.of(""))));
+
+    FakeBuckEventListener listener = new FakeBuckEventListener();
+    context.getBuckEventBus().register(listener);
+
+    WorkerJobParams params =
+        createJobParams(
+            ImmutableList.of(startupCommand, startupArg),
+            ImmutableMap.of(),
+            "jobArgs",
+            1,
+            true,
+            null,
+            null);
+
+    WorkerShellStep step = createWorkerShellStep(params, null, null);
+    step.execute(context);
+
+    BuckEvent firstEvent = listener.getEvents().get(0);
+    assertThat(firstEvent, Matchers.instanceOf(ConsoleEvent.class));
+
+    ConsoleEvent consoleEvent = (ConsoleEvent) firstEvent;
+    assertThat(consoleEvent.getLevel(), Matchers.is(Level.WARNING));
+    assertThat(
+        consoleEvent.getMessage(),
+        Matchers.is(
+            String.format(
+                "There are two 'worker_tool' targets declared with the same command (%s), but "
+                    + "different 'multiplexed' settings (false and true). Only the first setting "
+                    + "is applied. Consolidate these workers to avoid this warning.",
+                fakeWorkerStartupCommand)));
+  }
+
   private static class ConcurrentExecution extends Thread {
     private final WorkerShellStep step;
     private final ExecutionContext context;
@@ -54,4 +54,9 @@ public class WorkerToolBuilder
     getArgForPopulating().setMaxWorkers(maxWorkers);
     return this;
   }
+
+  public WorkerToolBuilder setMultiplexed(boolean multiplexed) {
+    getArgForPopulating().setMultiplexed(multiplexed);
+    return this;
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarContentsCacheTest {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void listsEntriesByDirectory() throws IOException {
+    Path jarPath =
+        writeJar(
+            "lib.jar",
+            ImmutableMap.of(
+                "Root.class", "root",
+                "com/example/A.class", "a",
+                "com/example/B.java", "b",
+                "com/example/sub/C.class", "c",
+                "com/examples/D.class", "d"));
+    try (JarContentsCache cache = new JarContentsCache()) {
+      JarContentsCache.Jar jar = cache.getJar(jarPath);
+      assertEquals(ImmutableList.of("Root.class"), jar.getEntries(""));
+      assertEquals(
+          ImmutableList.of("com/example/A.class", "com/example/B.java"),
+          jar.getEntries("com/example"));
+      assertEquals(
+          ImmutableSet.of("com/example/A.class", "com/example/B.java", "com/example/sub/C.class"),
+          ImmutableSet.copyOf(jar.getEntriesRecursively("com/example")));
+      assertEquals(5, jar.getEntriesRecursively("").size());
+      assertEquals(ImmutableList.of(), jar.getEntries("org"));
+    }
+  }
+
+  @Test
+  public void readsEntryContents() throws IOException {
+    Path jarPath = writeJar("lib.jar", ImmutableMap.of("com/example/A.class", "contents"));
+    try (JarContentsCache cache = new JarContentsCache()) {
+      JarContentsCache.Jar jar = cache.getJar(jarPath);
+      assertArrayEquals(
+          "contents".getBytes(StandardCharsets.UTF_8),
+          jar.getEntryContents("com/example/A.class"));
+    }
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void readingMissingEntryFails() throws IOException {
+    Path jarPath = writeJar("lib.jar", ImmutableMap.of("com/example/A.class", "contents"));
+    try (JarContentsCache cache = new JarContentsCache()) {
+      cache.getJar(jarPath).getEntryContents("com/example/Missing.class");
+    }
+  }
+
+  @Test
+  public void unchangedJarIsListedOnce() throws IOException {
+    Path jarPath = writeJar("lib.jar", ImmutableMap.of("A.class", "a"));
+    try (JarContentsCache cache = new JarContentsCache()) {
+      assertSame(cache.getJar(jarPath), cache.getJar(jarPath));
+    }
+  }
+
+  @Test
+  public void changedJarIsListedAgain() throws IOException {
+    Path jarPath = writeJar("lib.jar", ImmutableMap.of("A.class", "a"));
+    try (JarContentsCache cache = new JarContentsCache()) {
+      JarContentsCache.Jar before = cache.getJar(jarPath);
+      assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), before.getEntryContents("A.class"));
+
+      writeJar("lib.jar", ImmutableMap.of("A.class", "changed", "B.class", "b"));
+      Files.setLastModifiedTime(
+          jarPath, FileTime.fromMillis(before.getLastModifiedTime().toMillis() + 10000));
+      JarContentsCache.Jar after = cache.getJar(jarPath);
+
+      assertNotSame(before, after);
+      assertEquals(ImmutableList.of("A.class", "B.class"), after.getEntries(""));
+      assertArrayEquals(
+          "changed".getBytes(StandardCharsets.UTF_8), after.getEntryContents("A.class"));
+    }
+  }
+
+  @Test
+  public void evictedJarCanStillBeRead() throws IOException {
+    Path firstPath = writeJar("first.jar", ImmutableMap.of("A.class", "a"));
+    Path secondPath = writeJar("second.jar", ImmutableMap.of("B.class", "b"));
+    try (JarContentsCache cache = new JarContentsCache(1, 1, 0)) {
+      JarContentsCache.Jar first = cache.getJar(firstPath);
+      cache.getJar(secondPath);
+      assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), first.getEntryContents("A.class"));
+    }
+  }
+
+  @Test
+  public void onlyRecentlyReadJarsAreKeptOpen() throws IOException {
+    Path firstPath = writeJar("first.jar", ImmutableMap.of("A.class", "a"));
+    Path secondPath = writeJar("second.jar", ImmutableMap.of("B.class", "b"));
+    try (JarContentsCache cache = new JarContentsCache(10, 1, 0)) {
+      JarContentsCache.Jar first = cache.getJar(firstPath);
+      JarContentsCache.Jar second = cache.getJar(secondPath);
+      assertEquals(0, cache.getOpenJarCount());
+
+      for (int i = 0; i < 2; i++) {
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), first.getEntryContents("A.class"));
+        assertArrayEquals("b".getBytes(StandardCharsets.UTF_8), second.getEntryContents("B.class"));
+        assertEquals(1, cache.getOpenJarCount());
+      }
+    }
+  }
+
+  private Path writeJar(String name, Map<String, String> entries) throws IOException {
+    Path jarPath = tempFolder.getRoot().toPath().resolve(name);
+    try (OutputStream outputStream = Files.newOutputStream(jarPath);
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        zipOutputStream.putNextEntry(new ZipEntry(entry.getKey()));
+        zipOutputStream.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        zipOutputStream.closeEntry();
+      }
+    }
+    return jarPath;
+  }
+}
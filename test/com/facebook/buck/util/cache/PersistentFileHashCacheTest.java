@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashCacheTest {
+
+  private static final int CAPACITY = 1 << 10;
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path indexPath;
+
+  @Before
+  public void setUp() {
+    indexPath = tmp.getRoot().resolve("index/sources");
+  }
+
+  @Test
+  public void indexOnlyReturnsEntriesWithMatchingStatData() throws IOException {
+    PersistentFileHashIndex index = PersistentFileHashIndex.open(indexPath, CAPACITY);
+    long key = PersistentFileHashIndex.keyFor("foo/Bar.java");
+    HashCode hashCode = Hashing.sha1().hashInt(42);
+    index.put(key, 100, 200, 300, hashCode, (byte) 1);
+
+    PersistentFileHashIndex.Entry entry = index.get(key, 100, 200, 300);
+    assertNotNull(entry);
+    assertEquals(hashCode, entry.getHashCode());
+    assertEquals(1, entry.getType());
+
+    assertNull(index.get(key, 101, 200, 300));
+    assertNull(index.get(key, 100, 201, 300));
+    assertNull(index.get(key, 100, 200, 301));
+    assertNull(index.get(PersistentFileHashIndex.keyFor("foo/Baz.java"), 100, 200, 300));
+  }
+
+  @Test
+  public void indexIsSharedBetweenMappings() throws IOException {
+    long key = PersistentFileHashIndex.keyFor("foo/Bar.java");
+    HashCode hashCode = Hashing.sha1().hashInt(42);
+    PersistentFileHashIndex.open(indexPath, CAPACITY).put(key, 1, 2, 3, hashCode, (byte) 1);
+
+    PersistentFileHashIndex.Entry entry =
+        PersistentFileHashIndex.open(indexPath, CAPACITY).get(key, 1, 2, 3);
+    assertNotNull(entry);
+    assertEquals(hashCode, entry.getHashCode());
+
+    // An index with a different layout is replaced rather than misread.
+    assertNull(PersistentFileHashIndex.open(indexPath, CAPACITY * 2).get(key, 1, 2, 3));
+  }
+
+  @Test
+  public void corruptEntriesAreIgnored() throws IOException {
+    PersistentFileHashIndex index = PersistentFileHashIndex.open(indexPath, CAPACITY);
+    long key = PersistentFileHashIndex.keyFor("foo/Bar.java");
+    index.put(key, 1, 2, 3, Hashing.sha1().hashInt(42), (byte) 1);
+
+    // Flip a bit of the stored hash, as a write torn by another process might.
+    try (RandomAccessFile file = new RandomAccessFile(indexPath.toFile(), "rw")) {
+      long hashOffset = 64 + (key & (CAPACITY - 1)) * 64 + 32;
+      file.seek(hashOffset);
+      int value = file.read();
+      file.seek(hashOffset);
+      file.write(value ^ 1);
+    }
+    assertNull(index.get(key, 1, 2, 3));
+  }
+
+  @Test
+  public void fullIndexEvictsOldEntries() throws IOException {
+    PersistentFileHashIndex index = PersistentFileHashIndex.open(indexPath, 16);
+    for (int i = 0; i < 100; i++) {
+      index.put(
+          PersistentFileHashIndex.keyFor("file" + i), i, i, i, Hashing.sha1().hashInt(i), (byte) 1);
+    }
+    PersistentFileHashIndex.Entry entry =
+        index.get(PersistentFileHashIndex.keyFor("file99"), 99, 99, 99);
+    assertNotNull(entry);
+    assertEquals(Hashing.sha1().hashInt(99), entry.getHashCode());
+  }
+
+  @Test
+  public void hashesOfUnchangedFilesAreReusedAcrossInstances()
+      throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("Foo.java");
+    writeWithOldModificationTime(filesystem, path, "class Foo {}");
+
+    AtomicInteger loads = new AtomicInteger();
+    assertEquals(hashOf("class Foo {}"), newCache(filesystem, loads).get(path));
+    assertEquals(1, loads.get());
+
+    // A fresh instance, as in a new process, finds the hash in the index.
+    assertEquals(hashOf("class Foo {}"), newCache(filesystem, loads).get(path));
+    assertEquals(1, loads.get());
+
+    // Once the file changes, the stale entry is ignored.
+    writeWithOldModificationTime(filesystem, path, "class Foo { int x; }");
+    assertEquals(hashOf("class Foo { int x; }"), newCache(filesystem, loads).get(path));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+
+    AtomicInteger loads = new AtomicInteger();
+    newCache(filesystem, loads).get(path);
+    newCache(filesystem, loads).get(path);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void persistentModeIsUsedByDefaultFileHashCache()
+      throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, FileHashCacheMode.PERSISTENT);
+    assertTrue(cache.fileHashCacheEngine instanceof PersistentFileHashCache);
+
+    Path path = Paths.get("Foo.java");
+    writeWithOldModificationTime(filesystem, path, "class Foo {}");
+    assertEquals(hashOf("class Foo {}"), cache.get(path));
+    assertTrue(
+        Files.exists(
+            filesystem.resolve(filesystem.getBuckPaths().getBuckOut()).resolve("file-hash-cache")));
+  }
+
+  private PersistentFileHashCache newCache(ProjectFilesystem filesystem, AtomicInteger loads)
+      throws IOException {
+    return new PersistentFileHashCache(
+        filesystem,
+        PersistentFileHashIndex.open(indexPath, CAPACITY),
+        path -> {
+          loads.incrementAndGet();
+          try {
+            return HashCodeAndFileType.ofFile(filesystem.computeSha1(path).asHashCode());
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        },
+        path -> 0L);
+  }
+
+  private static void writeWithOldModificationTime(
+      ProjectFilesystem filesystem, Path path, String contents) throws IOException {
+    long previous =
+        Files.exists(filesystem.resolve(path))
+            ? Files.getLastModifiedTime(filesystem.resolve(path)).toMillis()
+            : System.currentTimeMillis();
+    filesystem.writeContentsToPath(contents, path);
+    Files.setLastModifiedTime(
+        filesystem.resolve(path),
+        FileTime.from(
+            Math.min(previous, System.currentTimeMillis()) - TimeUnit.MINUTES.toMillis(10),
+            TimeUnit.MILLISECONDS));
+  }
+
+  private static HashCode hashOf(String contents) {
+    return Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+  }
+}
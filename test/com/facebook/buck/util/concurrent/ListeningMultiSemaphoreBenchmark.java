@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how many tiny steps per second threads can push through a {@link
+ * ListeningMultiSemaphore} sized for the machine, as the number of threads running them grows. Each
+ * step waits for a cpu, which once there are more threads than cpus means waiting for another step
+ * to release one, and releases it right away, so the time is almost all spent in the semaphore.
+ */
+public class ListeningMultiSemaphoreBenchmark {
+  @Param({"1", "2", "4", "8", "16", "32", "64"})
+  private int threads = 4;
+
+  @Param({"FAIR", "FAST"})
+  private ResourceAllocationFairness fairness = ResourceAllocationFairness.FAIR;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDownTest() {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void allStepsRunAndReleaseTheirResources() throws Exception {
+    for (ResourceAllocationFairness fairness : ResourceAllocationFairness.values()) {
+      // Fewer cpus than threads, so that steps have to wait for each other.
+      ListeningMultiSemaphore semaphore =
+          new ListeningMultiSemaphore(ResourceAmounts.of(threads / 2, 0, 0, 0), fairness);
+      assertEquals(threads * 10000L, runSteps(semaphore, 10000));
+      assertEquals(semaphore.getMaximumValues(), semaphore.getAvailableResources());
+      assertEquals(0, semaphore.getQueueLength());
+    }
+  }
+
+  @Benchmark
+  public long acquireAndRelease(int reps) throws Exception {
+    return runSteps(newSemaphore(), Math.max(1, reps / threads));
+  }
+
+  private ListeningMultiSemaphore newSemaphore() {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    return new ListeningMultiSemaphore(ResourceAmounts.of(cpus, 0, 0, 0), fairness);
+  }
+
+  /** Has every thread run the given number of steps, and returns how many steps ran. */
+  private long runSteps(ListeningMultiSemaphore semaphore, int stepsPerThread) throws Exception {
+    ResourceAmounts step = ResourceAmounts.of(1, 0, 0, 0);
+    AtomicLong stepsRun = new AtomicLong();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      workers.add(
+          executor.submit(
+              () -> {
+                start.await();
+                for (int i = 0; i < stepsPerThread; i++) {
+                  semaphore.acquire(step).get();
+                  stepsRun.incrementAndGet();
+                  semaphore.release(step);
+                }
+                return null;
+              }));
+    }
+    start.countDown();
+    for (Future<?> worker : workers) {
+      worker.get();
+    }
+    return stepsRun.get();
+  }
+}
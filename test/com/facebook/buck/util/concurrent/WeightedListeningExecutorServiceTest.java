@@ -22,9 +22,20 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.hamcrest.Matchers;
 import org.junit.Test;
@@ -94,6 +105,69 @@ public class WeightedListeningExecutorServiceTest {
     assertThat(semaphore.getAvailableResources(), Matchers.equalTo(ResourceAmounts.of(1, 0, 0, 0)));
   }
 
+  @Test
+  public void everySubmissionCompletesWhenCancelledOrRejected() throws Exception {
+    Queue<Exception> overReleases = new ConcurrentLinkedQueue<>();
+    ListeningMultiSemaphore semaphore =
+        new ListeningMultiSemaphore(
+            ResourceAmounts.of(3, 0, 0, 0), ResourceAllocationFairness.FAIR) {
+          @Override
+          public void release(ResourceAmounts resources) {
+            try {
+              super.release(resources);
+            } catch (IllegalArgumentException e) {
+              // Releasing resources which were never acquired.
+              overReleases.add(e);
+              throw e;
+            }
+          }
+        };
+    ListeningExecutorService delegate =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    WeightedListeningExecutorService service =
+        new WeightedListeningExecutorService(semaphore, ResourceAmounts.of(1, 0, 0, 0), delegate);
+    ExecutorService submitters = Executors.newFixedThreadPool(4);
+
+    List<Future<List<ListenableFuture<?>>>> submitted = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      submitted.add(
+          submitters.submit(
+              () -> {
+                Random random = new Random();
+                List<ListenableFuture<?>> futures = new ArrayList<>();
+                for (int j = 0; j < 2000; j++) {
+                  ListenableFuture<?> future =
+                      service.submit(
+                          Thread::yield, ResourceAmounts.of(1 + random.nextInt(3), 0, 0, 0));
+                  futures.add(future);
+                  if (random.nextInt(3) == 0) {
+                    futures.get(random.nextInt(futures.size())).cancel(random.nextBoolean());
+                  }
+                  if (j == 1000) {
+                    // Anything granted from here on is rejected by the delegate.
+                    delegate.shutdown();
+                  }
+                }
+                return futures;
+              }));
+    }
+
+    for (Future<List<ListenableFuture<?>>> futures : submitted) {
+      for (ListenableFuture<?> future : futures.get()) {
+        try {
+          future.get(10, TimeUnit.SECONDS);
+        } catch (CancellationException | ExecutionException e) {
+          // Cancelled or rejected, but done nonetheless.
+        }
+      }
+    }
+    submitters.shutdown();
+
+    assertThat(overReleases, Matchers.empty());
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(0));
+    assertThat(semaphore.getAvailableResources(), Matchers.equalTo(semaphore.getMaximumValues()));
+  }
+
   private AtomicBoolean submitSetBool(
       WeightedListeningExecutorService service, ResourceAmounts amounts) {
     final AtomicBoolean bool = new AtomicBoolean(false);
@@ -35,6 +35,16 @@ public class FakeWorkerProcessProtocol {
       return 0;
     }
 
+    @Override
+    public boolean isMultiplexed() {
+      return false;
+    }
+
+    @Override
+    public WorkerProcessResponse receiveNextCommandResponse() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
     @Override
     public void close() throws IOException {
       isClosed = true;
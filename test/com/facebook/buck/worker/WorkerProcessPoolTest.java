@@ -16,7 +16,9 @@
 
 package com.facebook.buck.worker;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.util.Threads;
 import com.google.common.collect.ImmutableMap;
@@ -184,6 +186,89 @@ public class WorkerProcessPoolTest {
     pool.returnWorkerProcess(process2);
   }
 
+  @Test
+  public void testMultiplexedPoolSharesOneProcessUpToCapacityThenBlocks()
+      throws InterruptedException {
+    int maxJobs = 3;
+    final WorkerProcessPool pool = createMultiplexedPool(maxJobs);
+    final Set<WorkerProcess> createdWorkers = concurrentSet();
+    final Set<Runnable> borrowers = concurrentSet();
+
+    Thread[] tasks = new Thread[maxJobs + 1];
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i] =
+          new Thread(
+              new BorrowWorkerProcessWithoutReturning(pool, createdWorkers) {
+                @Override
+                public void runUnsafe() throws Exception {
+                  super.runUnsafe();
+                  borrowers.add(this);
+                }
+              });
+    }
+
+    for (Thread thread : tasks) {
+      thread.start();
+    }
+
+    for (Thread thread : tasks) {
+      thread.join(100);
+    }
+
+    assertThat(createdWorkers.size(), Matchers.is(1));
+    assertThat(borrowers.size(), Matchers.is(maxJobs));
+  }
+
+  @Test
+  public void testMultiplexedPoolReusesItsProcess() throws InterruptedException {
+    final WorkerProcessPool pool = createMultiplexedPool(2);
+    final ConcurrentHashMap<Runnable, WorkerProcess> usedWorkers = new ConcurrentHashMap<>();
+
+    Thread[] threads = new Thread[5];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new BorrowAndReturnWorkerProcess(pool, usedWorkers));
+      threads[i].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(usedWorkers.size(), Matchers.is(threads.length));
+    assertThat(new HashSet<>(usedWorkers.values()).size(), Matchers.is(1));
+    pool.close();
+  }
+
+  @Test
+  public void testMultiplexedPoolReplacesDestroyedProcess()
+      throws InterruptedException, IOException {
+    final WorkerProcessPool pool = createMultiplexedPool(2);
+    final WorkerProcess process = pool.borrowWorkerProcess();
+    pool.destroyWorkerProcess(process);
+
+    final WorkerProcess process2 = pool.borrowWorkerProcess();
+    assertThat(process2, Matchers.not(process));
+    pool.returnWorkerProcess(process2);
+  }
+
+  @Test
+  public void testMultiplexedPoolClosesDestroyedProcessOnceItsJobsAreDone()
+      throws InterruptedException, IOException {
+    final WorkerProcessPool pool = createMultiplexedPool(3);
+    final WorkerProcess process = pool.borrowWorkerProcess();
+    assertThat(pool.borrowWorkerProcess(), Matchers.is(process));
+
+    pool.destroyWorkerProcess(process);
+    assertTrue(process.isAlive());
+    final WorkerProcess process2 = pool.borrowWorkerProcess();
+    assertThat(process2, Matchers.not(process));
+
+    pool.returnWorkerProcess(process);
+    assertFalse(process.isAlive());
+    pool.returnWorkerProcess(process2);
+    pool.close();
+  }
+
   private static WorkerProcessPool createPool(int maxWorkers) {
     return new WorkerProcessPool(maxWorkers, Hashing.sha1().hashLong(0)) {
       @Override
@@ -193,6 +278,17 @@ public class WorkerProcessPoolTest {
     };
   }
 
+  private static WorkerProcessPool createMultiplexedPool(int maxJobs) {
+    return new WorkerProcessPool(maxJobs, true, Hashing.sha1().hashLong(0)) {
+      @Override
+      protected WorkerProcess startWorkerProcess() throws IOException {
+        WorkerProcess process = new FakeWorkerProcess(ImmutableMap.of());
+        process.ensureLaunchAndHandshake();
+        return process;
+      }
+    };
+  }
+
   private static <T> Set<T> concurrentSet() {
     return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
   }
@@ -16,11 +16,13 @@
 
 package com.facebook.buck.worker;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.collect.ImmutableSet;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -180,6 +182,68 @@ public class WorkerProcessProtocolZeroTest {
     }
   }
 
+  @Test
+  public void testMultiplexingIsUsedWhenTheProcessAgreesToIt() throws IOException {
+    InputStream jsonReader =
+        inputStream(
+            "[{\"id\":0,\"type\":\"handshake\",\"protocol_version\":\"0\","
+                + "\"capabilities\":[\"multiplexing\"]}");
+
+    WorkerProcessProtocol.CommandSender protocol =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream,
+            jsonReader,
+            newTempFile(),
+            () -> {},
+            ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_MULTIPLEXING));
+
+    protocol.handshake(0);
+    assertThat(
+        dummyOutputStream.toString(),
+        Matchers.containsString("\"capabilities\":[\"multiplexing\"]"));
+    assertTrue(protocol.isMultiplexed());
+  }
+
+  @Test
+  public void testMultiplexingIsNotUsedUnlessTheProcessAgreesToIt() throws IOException {
+    WorkerProcessProtocol.CommandSender protocol =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream,
+            createMockJsonReaderForReceiveHandshake(0, "handshake", "0"),
+            newTempFile(),
+            () -> {},
+            ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_MULTIPLEXING));
+
+    protocol.handshake(0);
+    assertFalse(protocol.isMultiplexed());
+  }
+
+  @Test
+  public void testReceiveNextCommandResponseInAnyOrder() throws IOException {
+    InputStream jsonReader =
+        inputStream(
+            "[{\"id\":0,\"type\":\"handshake\",\"protocol_version\":\"0\","
+                + "\"capabilities\":[\"multiplexing\"]}"
+                + ",{\"id\":2,\"type\":\"result\",\"exit_code\":0}"
+                + ",{\"id\":1,\"type\":\"error\",\"exit_code\":1}");
+
+    WorkerProcessProtocol.CommandSender protocol =
+        new WorkerProcessProtocolZero.CommandSender(
+            dummyOutputStream,
+            jsonReader,
+            newTempFile(),
+            () -> {},
+            ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_MULTIPLEXING));
+
+    protocol.handshake(0);
+    assertThat(
+        protocol.receiveNextCommandResponse(),
+        Matchers.equalTo(WorkerProcessResponse.of(2, 0)));
+    assertThat(
+        protocol.receiveNextCommandResponse(),
+        Matchers.equalTo(WorkerProcessResponse.of(1, 1)));
+  }
+
   private InputStream createMockJsonReaderForReceiveCommandResponse(
       int messageID, String type, int exitCode) throws IOException {
     String jsonToBeRead =
@@ -41,7 +41,15 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -86,6 +94,101 @@ public class WorkerProcessTest {
     }
   }
 
+  @Test(timeout = 20 * 1000)
+  public void testMultiplexedJobsAreRunConcurrently() throws Exception {
+    ProjectFilesystem filesystem = new ProjectFilesystem(temporaryPaths.getRoot());
+    Path tmpPath = temporaryPaths.newFolder();
+    int jobs = 3;
+    CountDownLatch allSent = new CountDownLatch(jobs);
+    Deque<Integer> sent = new ConcurrentLinkedDeque<>();
+
+    try (WorkerProcess process =
+        new WorkerProcess(
+            new FakeProcessExecutor(), createDummyParams(), filesystem, tmpPath, true)) {
+      process.setProtocol(
+          new FakeWorkerProcessProtocol.FakeCommandSender() {
+            @Override
+            public void send(int messageId, WorkerProcessCommand command) throws IOException {
+              sent.push(messageId);
+              allSent.countDown();
+            }
+
+            @Override
+            public boolean isMultiplexed() {
+              return true;
+            }
+
+            @Override
+            public WorkerProcessResponse receiveNextCommandResponse() throws IOException {
+              // Only respond once all jobs were sent, and to the last one first.
+              try {
+                allSent.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              int messageId = sent.pop();
+              filesystem.writeContentsToPath(
+                  filesystem.readFileIfItExists(tmpPath.resolve(messageId + ".args")).get(),
+                  tmpPath.resolve(messageId + ".out"));
+              return WorkerProcessResponse.of(messageId, 0);
+            }
+          });
+
+      ExecutorService executor = Executors.newFixedThreadPool(jobs);
+      try {
+        List<Future<WorkerJobResult>> results = new ArrayList<>();
+        for (int i = 0; i < jobs; i++) {
+          String jobArgs = "job " + i;
+          results.add(executor.submit(() -> process.submitAndWaitForJob(jobArgs)));
+        }
+        for (int i = 0; i < jobs; i++) {
+          assertThat(results.get(i).get().getStdout(), Matchers.equalTo(Optional.of("job " + i)));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test(timeout = 20 * 1000)
+  public void testMultiplexedJobsFailOnceResponsesCannotBeRead() throws Exception {
+    ProjectFilesystem filesystem = new ProjectFilesystem(temporaryPaths.getRoot());
+
+    try (WorkerProcess process =
+        new WorkerProcess(
+            new FakeProcessExecutor(),
+            createDummyParams(),
+            filesystem,
+            temporaryPaths.newFolder(),
+            true)) {
+      process.setProtocol(
+          new FakeWorkerProcessProtocol.FakeCommandSender() {
+            @Override
+            public boolean isMultiplexed() {
+              return true;
+            }
+
+            @Override
+            public WorkerProcessResponse receiveNextCommandResponse() throws IOException {
+              throw new IOException("stdout went away");
+            }
+          });
+
+      try {
+        process.submitAndWaitForJob("job");
+        fail("The job should have failed");
+      } catch (IOException e) {
+        assertThat(e.getMessage(), Matchers.equalTo("stdout went away"));
+      }
+      try {
+        process.submitAndWaitForJob("another job");
+        fail("The process should no longer take jobs");
+      } catch (HumanReadableException e) {
+        assertThat(e.getCause().getMessage(), Matchers.equalTo("stdout went away"));
+      }
+    }
+  }
+
   @Test
   public void testClose() throws IOException {
     FakeWorkerProcessProtocol.FakeCommandSender protocol =
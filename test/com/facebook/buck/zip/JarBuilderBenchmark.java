@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Compares creating a fat jar with {@link JarBuilder} serially with creating it while compressing
+ * entries on a pool. The jar is built from several directories of class-sized files, as the jar of
+ * a binary with many deps is.
+ */
+public class JarBuilderBenchmark {
+  /** Total size of the files put in the jar. */
+  @Param({"500"})
+  private int sizeMegabytes = 500;
+
+  @Param({"10000"})
+  private int averageFileSize = 10000;
+
+  @Rule public TemporaryPaths temporaryPaths = new TemporaryPaths();
+
+  private Path root;
+  private ImmutableList<Path> entriesToJar;
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUpTest() throws IOException {
+    sizeMegabytes = 2;
+    setUp(temporaryPaths.getRoot());
+  }
+
+  @After
+  public void tearDownTest() {
+    pool.shutdownNow();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws IOException {
+    setUp(Files.createTempDirectory("jar-builder-benchmark"));
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() throws IOException {
+    pool.shutdownNow();
+    MoreFiles.deleteRecursively(root);
+  }
+
+  private void setUp(Path root) throws IOException {
+    this.root = root;
+    pool = new ForkJoinPool();
+    Random random = new Random(0);
+    ImmutableList.Builder<Path> directories = ImmutableList.builder();
+    long remaining = sizeMegabytes * 1024L * 1024L;
+    for (int dir = 0; remaining > 0; dir++) {
+      Path classes = root.resolve("lib" + dir);
+      directories.add(classes);
+      for (int file = 0; file < 1000 && remaining > 0; file++) {
+        Path path = classes.resolve("com/example/lib" + dir + "/Class" + file + ".class");
+        Files.createDirectories(path.getParent());
+        byte[] data = newClassLikeData(random, 1 + random.nextInt(2 * averageFileSize));
+        Files.write(path, data);
+        remaining -= data.length;
+      }
+    }
+    entriesToJar = directories.build();
+  }
+
+  @Test
+  public void parallelJarIsTheSameAsTheSerialOne() throws IOException {
+    assertArrayEquals(Files.readAllBytes(serial()), Files.readAllBytes(parallel()));
+  }
+
+  @Benchmark
+  public Path serial() throws IOException {
+    Path jar = root.resolve("serial.jar");
+    new JarBuilder().setEntriesToJar(entriesToJar).createJarFile(jar);
+    return jar;
+  }
+
+  @Benchmark
+  public Path parallel() throws IOException {
+    Path jar = root.resolve("parallel.jar");
+    new JarBuilder()
+        .setEntriesToJar(entriesToJar)
+        .setCompressionExecutor(pool)
+        .createJarFile(jar);
+    return jar;
+  }
+
+  /** Compresses about as well as class files: a few distinct "tokens", in random order. */
+  private static byte[] newClassLikeData(Random random, int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(16));
+    }
+    return data;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP;
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.timing.IncrementingFakeClock;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelDeflatingZipOutputStreamImplTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void writesTheSameBytesAsTheSerialStream() throws IOException {
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(serial, APPEND_TO_ZIP, new IncrementingFakeClock())) {
+      writeEntries(zip);
+    }
+
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(
+            parallel, APPEND_TO_ZIP, new IncrementingFakeClock(), executor)) {
+      writeEntries(zip);
+    }
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test
+  public void entriesAreCompressedByTheWriterIfTheExecutorNeverRunsThem() throws IOException {
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(serial, APPEND_TO_ZIP, new IncrementingFakeClock())) {
+      writeEntries(zip);
+    }
+
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(
+            parallel, APPEND_TO_ZIP, new IncrementingFakeClock(), command -> {})) {
+      writeEntries(zip);
+    }
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test
+  public void entriesAreCompressedByTheWriterIfTheExecutorRejectsThem() throws IOException {
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(serial, APPEND_TO_ZIP, new IncrementingFakeClock())) {
+      writeEntries(zip);
+    }
+
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(
+            parallel,
+            APPEND_TO_ZIP,
+            new IncrementingFakeClock(),
+            command -> {
+              throw new RejectedExecutionException();
+            })) {
+      writeEntries(zip);
+    }
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test
+  public void entriesCanBeReadBack() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(
+            bytes, THROW_EXCEPTION, new IncrementingFakeClock(), executor)) {
+      writeEntries(zip);
+    }
+
+    int count = 0;
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        ByteStreams.copy(zip, contents);
+        assertEquals(
+            entry.getName(),
+            entry.getCrc(),
+            Hashing.crc32().hashBytes(contents.toByteArray()).padToLong());
+        count++;
+      }
+    }
+    assertEquals(203, count);
+  }
+
+  @Test
+  public void entriesBeyondTheBufferBudgetAreCompressedByTheWriter() throws IOException {
+    byte[] data = new byte[1024 * 1024];
+    new Random(0).nextBytes(data);
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    // An executor which never runs anything leaves every buffered entry pending.
+    try (CustomZipOutputStream serialZip =
+            ZipOutputStreams.newOutputStream(serial, APPEND_TO_ZIP, new IncrementingFakeClock());
+        CustomZipOutputStream parallelZip =
+            ZipOutputStreams.newOutputStream(
+                parallel, APPEND_TO_ZIP, new IncrementingFakeClock(), command -> {})) {
+      for (int i = 0; i < 20; i++) {
+        for (CustomZipOutputStream zip : new CustomZipOutputStream[] {serialZip, parallelZip}) {
+          zip.putNextEntry(new ZipEntry("entry" + i));
+          zip.write(data);
+          zip.closeEntry();
+        }
+        assertTrue(
+            ParallelDeflatingZipOutputStreamImpl.getBufferedSizeOfAllStreams()
+                <= 8 * 1024 * 1024);
+      }
+    }
+
+    assertEquals(0, ParallelDeflatingZipOutputStreamImpl.getBufferedSizeOfAllStreams());
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test(expected = ZipException.class)
+  public void duplicateEntriesAreRejected() throws IOException {
+    try (CustomZipOutputStream zip =
+        ZipOutputStreams.newOutputStream(
+            new ByteArrayOutputStream(), THROW_EXCEPTION, new IncrementingFakeClock(), executor)) {
+      zip.putNextEntry(new CustomZipEntry("a.txt"));
+      zip.putNextEntry(new CustomZipEntry("a.txt"));
+    }
+  }
+
+  /** Writes entries of all sorts, including one too large to be buffered. */
+  private static void writeEntries(CustomZipOutputStream zip) throws IOException {
+    Random random = new Random(42);
+    zip.putNextEntry(new CustomZipEntry("dir/"));
+    zip.closeEntry();
+    for (int i = 0; i < 200; i++) {
+      CustomZipEntry entry = new CustomZipEntry("dir/file" + i + ".class");
+      if (i % 3 == 0) {
+        entry.setCompressionLevel(Deflater.BEST_COMPRESSION);
+      }
+      zip.putNextEntry(entry);
+      byte[] data = newCompressibleData(random, random.nextInt(64 * 1024));
+      // Written in pieces, as streams are copied.
+      for (int off = 0; off < data.length; off += 8192) {
+        zip.write(data, off, Math.min(8192, data.length - off));
+      }
+      zip.closeEntry();
+    }
+
+    byte[] stored = newCompressibleData(random, 1000);
+    CustomZipEntry storedEntry = new CustomZipEntry("stored.bin");
+    storedEntry.setCompressionLevel(Deflater.NO_COMPRESSION);
+    storedEntry.setSize(stored.length);
+    storedEntry.setCompressedSize(stored.length);
+    storedEntry.setCrc(Hashing.crc32().hashBytes(stored).padToLong());
+    zip.putNextEntry(storedEntry);
+    zip.write(stored);
+    zip.closeEntry();
+
+    zip.putNextEntry(new CustomZipEntry("large.bin"));
+    byte[] chunk = newCompressibleData(random, 1024 * 1024);
+    for (int i = 0; i < 6; i++) {
+      zip.write(chunk);
+    }
+    zip.closeEntry();
+  }
+
+  private static byte[] newCompressibleData(Random random, int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+}
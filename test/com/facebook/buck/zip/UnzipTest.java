@@ -16,22 +16,28 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeThat;
 
 import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.zip.ZipEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
@@ -219,4 +225,59 @@ public class UnzipTest {
     assertTrue(Files.exists(extractFolder.toAbsolutePath().resolve("foo")));
     assertTrue(Files.exists(extractFolder.toAbsolutePath().resolve("foo/bar")));
   }
+
+  @Test
+  public void testExtractZipStream() throws InterruptedException, IOException {
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      ZipArchiveEntry exe = new ZipArchiveEntry("bin/test.exe");
+      exe.setUnixMode(
+          (int) MorePosixFilePermissions.toMode(PosixFilePermissions.fromString("r-x------")));
+      zip.putArchiveEntry(exe);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("emptydir/"));
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("1.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    Files.createDirectories(extractFolder.resolve("emptydir"));
+    Files.write(extractFolder.resolve("emptydir/stale.bin"), DUMMY_FILE_CONTENTS);
+    Path scratchDir = tmpFolder.newFolder();
+    Unzip.ExtractedZip extracted;
+    try (InputStream input = Files.newInputStream(zipFile)) {
+      extracted = Unzip.extractZipStream(input, scratchDir);
+    }
+    // Nothing is touched until the unzipped files are moved into place.
+    assertFalse(Files.exists(extractFolder.resolve("1.bin")));
+    assertTrue(Files.exists(extractFolder.resolve("emptydir/stale.bin")));
+
+    ImmutableList<Path> result =
+        extracted.moveInto(
+            new ProjectFilesystem(extractFolder),
+            Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    assertEquals(ImmutableList.of(Paths.get("1.bin"), Paths.get("bin/test.exe")), result);
+    Path exe = extractFolder.resolve("bin/test.exe");
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(exe));
+    assertTrue(Files.isExecutable(exe));
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(extractFolder.resolve("1.bin")));
+    assertTrue(Files.isDirectory(extractFolder.resolve("emptydir")));
+    assertFalse(Files.exists(extractFolder.resolve("emptydir/stale.bin")));
+    assertFalse(Files.exists(scratchDir));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testExtractTruncatedZipStream() throws InterruptedException, IOException {
+    try (Zip zip = new Zip(zipFile, true)) {
+      zip.add("1.bin", DUMMY_FILE_CONTENTS);
+      zip.add("2.bin", DUMMY_FILE_CONTENTS);
+    }
+
+    byte[] bytes = Files.readAllBytes(zipFile);
+    Unzip.extractZipStream(
+        new ByteArrayInputStream(bytes, 0, bytes.length - 30), tmpFolder.newFolder());
+  }
 }